@@ -0,0 +1,38 @@
+package de.shuewe.gpx;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cancels operations which are run in background (init, validation, save). Queued operations are not started,
+ * running operations check the token for every point and stop with a CancellationException. One token may be
+ * passed to several operations, e.g. to all operations started by a screen which is left.
+ */
+public class CancellationToken {
+
+    //Token of operations which can not be cancelled, must not be cancelled itself
+    static final CancellationToken NONE = new CancellationToken();
+
+    private volatile boolean m_cancelled = false;
+
+    /**
+     * Cancels all operations using this token.
+     */
+    public void cancel() {
+        m_cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return m_cancelled;
+    }
+
+    /**
+     * Stops the calling operation if the token was cancelled.
+     *
+     * @throws CancellationException if cancelled
+     */
+    void throwIfCancelled() {
+        if (m_cancelled) {
+            throw new CancellationException();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package de.shuewe.gpx;
+
+/**
+ * Calculates distances over primitive coordinate arrays. The cosine of the latitude is calculated once per point
+ * and passed in by the caller, so a batch of n points needs n instead of 2(n-1) cosines.
+ * The loops work on plain arrays without objects, so the JIT can keep them tight.
+ */
+public final class DistanceCalculator {
+
+    /**
+     * Accuracy of the distance calculation.
+     */
+    public enum Mode {
+        //Haversine formula for all distances (same results as WayPoint#calculateDistanceInKilometer)
+        HAVERSINE,
+        //Equirectangular approximation for short hops, haversine otherwise
+        FAST
+    }
+
+    //Largest difference of latitude or longitude (in degrees) which is calculated equirectangular in fast mode.
+    //For hops up to this size (about 11km) the relative error is below 3.53e-7 (see DistanceCalculatorTest).
+    public static final double FAST_MAX_DEGREES = 0.1;
+
+    private DistanceCalculator() {
+    }
+
+    /**
+     * Calculates the cosine of latitudes.
+     *
+     * @param lat    latitudes in degrees
+     * @param from   first index (inclusive)
+     * @param to     last index (exclusive)
+     * @param cosLat target array, filled from index from to to
+     */
+    public static void cosLatitudes(double[] lat, int from, int to, double[] cosLat) {
+        for (int i = from; i < to; i++) {
+            cosLat[i] = Math.cos(Math.toRadians(lat[i]));
+        }
+    }
+
+    /**
+     * Calculates the distances between consecutive points.
+     *
+     * @param lat      latitudes in degrees
+     * @param lng      longitudes in degrees
+     * @param cosLat   cosine of latitudes (see #cosLatitudes)
+     * @param from     first point (inclusive)
+     * @param to       last point (exclusive)
+     * @param mode     accuracy of calculation
+     * @param distance target array, distance[i] is set to the distance between point i-1 and i for i in (from, to)
+     */
+    public static void distances(double[] lat, double[] lng, double[] cosLat, int from, int to, Mode mode, double[] distance) {
+        for (int i = from + 1; i < to; i++) {
+            distance[i] = distance(lat[i - 1], lng[i - 1], cosLat[i - 1], lat[i], lng[i], cosLat[i], mode);
+        }
+    }
+
+    /**
+     * Calculates the distance along consecutive points. The values before from have to be set already.
+     *
+     * @param lat        latitudes in degrees
+     * @param lng        longitudes in degrees
+     * @param cosLat     cosine of latitudes (see #cosLatitudes)
+     * @param from       first point to calculate (at least 1)
+     * @param to         last point (exclusive)
+     * @param mode       accuracy of calculation
+     * @param cumulative target array, cumulative[i] is set to cumulative[i-1] plus the distance between point i-1 and i
+     */
+    public static void cumulate(double[] lat, double[] lng, double[] cosLat, int from, int to, Mode mode, double[] cumulative) {
+        for (int i = from; i < to; i++) {
+            cumulative[i] = cumulative[i - 1] + distance(lat[i - 1], lng[i - 1], cosLat[i - 1], lat[i], lng[i], cosLat[i], mode);
+        }
+    }
+
+    /**
+     * Calculates the distance between two coordinates.
+     *
+     * @param lat1 latitude of first point
+     * @param lng1 longitude of first point
+     * @param cos1 cosine of latitude of first point
+     * @param lat2 latitude of second point
+     * @param lng2 longitude of second point
+     * @param cos2 cosine of latitude of second point
+     * @param mode accuracy of calculation
+     * @return distance in km
+     */
+    public static double distance(double lat1, double lng1, double cos1, double lat2, double lng2, double cos2, Mode mode) {
+        if (mode == Mode.FAST && Math.abs(lat1 - lat2) <= FAST_MAX_DEGREES && Math.abs(lng1 - lng2) <= FAST_MAX_DEGREES) {
+            return equirectangular(lat1, lng1, cos1, lat2, lng2, cos2);
+        }
+        return haversine(lat1, lng1, cos1, lat2, lng2, cos2);
+    }
+
+    /**
+     * Calculates the distance between two coordinates with the haversine formula.
+     *
+     * @param lat1 latitude of first point
+     * @param lng1 longitude of first point
+     * @param cos1 cosine of latitude of first point
+     * @param lat2 latitude of second point
+     * @param lng2 longitude of second point
+     * @param cos2 cosine of latitude of second point
+     * @return distance in km
+     */
+    public static double haversine(double lat1, double lng1, double cos1, double lat2, double lng2, double cos2) {
+        double latDistance = Math.toRadians(lat1 - lat2);
+        double lngDistance = Math.toRadians(lng1 - lng2);
+
+        double sinLat = Math.sin(latDistance / 2);
+        double sinLng = Math.sin(lngDistance / 2);
+        double a = sinLat * sinLat + cos1 * cos2 * sinLng * sinLng;
+
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+
+        return WayPoint.AVERAGE_RADIUS_OF_EARTH_KM * c;
+    }
+
+    /**
+     * Calculates the distance between two near coordinates with the equirectangular approximation.
+     *
+     * @param lat1 latitude of first point
+     * @param lng1 longitude of first point
+     * @param cos1 cosine of latitude of first point
+     * @param lat2 latitude of second point
+     * @param lng2 longitude of second point
+     * @param cos2 cosine of latitude of second point
+     * @return distance in km
+     */
+    public static double equirectangular(double lat1, double lng1, double cos1, double lat2, double lng2, double cos2) {
+        double x = Math.toRadians(lng1 - lng2) * (cos1 + cos2) / 2;
+        double y = Math.toRadians(lat1 - lat2);
+        return WayPoint.AVERAGE_RADIUS_OF_EARTH_KM * Math.sqrt(x * x + y * y);
+    }
+}
@@ -0,0 +1,93 @@
+package de.shuewe.gpx;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Local HashStore which keeps the anchored hashes in memory. If a file is given, the hashes are
+ * appended to it (one hash per line) and read from it on first access.
+ */
+public class FileHashStore implements HashStore {
+
+    //File to persist hashes, can be null
+    private final File m_file;
+
+    //Anchored hashes, loaded lazy
+    private Set<String> m_hashes = null;
+
+    /**
+     * Creates an in-process store without persistence.
+     */
+    public FileHashStore() {
+        this(null);
+    }
+
+    /**
+     * Creates a store backed by the given file.
+     *
+     * @param file to read and append hashes, can be null
+     */
+    public FileHashStore(File file) {
+        m_file = file;
+    }
+
+    @Override
+    public synchronized void anchor(Collection<String> hashes) throws IOException {
+        Set<String> known = getHashes();
+        Writer writer = m_file == null ? null : new FileWriter(m_file, true);
+        try {
+            for (String hash : hashes) {
+                if (hash == null || !known.add(hash)) {
+                    continue;
+                }
+                if (writer != null) {
+                    writer.write(hash);
+                    writer.write('\n');
+                }
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(String hash) throws IOException {
+        return hash != null && getHashes().contains(hash);
+    }
+
+    /**
+     * Gets the anchored hashes, reads them from file if not done yet.
+     *
+     * @return Set of hashes
+     * @throws IOException if file can't be read
+     */
+    private Set<String> getHashes() throws IOException {
+        if (m_hashes == null) {
+            Set<String> res = new HashSet<String>();
+            if (m_file != null && m_file.exists()) {
+                BufferedReader reader = new BufferedReader(new FileReader(m_file));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.isEmpty()) {
+                            res.add(line);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            m_hashes = res;
+        }
+        return m_hashes;
+    }
+}
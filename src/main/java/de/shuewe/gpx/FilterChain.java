@@ -0,0 +1,421 @@
+package de.shuewe.gpx;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chain of filters for incoming trackpoints (see GPXHandler#setFilterChain). A fix passes the stages in order,
+ * a stage may reject it or change it (e.g. smoothing). Stages work on one reused Fix, so filtering allocates
+ * nothing. Stages compare with the last fix which passed the whole chain, each stage counts accepted and
+ * rejected fixes.
+ */
+public class FilterChain {
+
+    /**
+     * Fix which is passed through the chain, reused for all fixes.
+     */
+    public static final class Fix {
+
+        private long m_time;
+        private double m_lat;
+        private double m_lng;
+        private double m_accuracy;
+        //NaN if fix has no altitude
+        private double m_altitude;
+
+        void set(long time, double lat, double lng, double accuracy, double altitude) {
+            m_time = time;
+            m_lat = lat;
+            m_lng = lng;
+            m_accuracy = accuracy;
+            m_altitude = altitude;
+        }
+
+        /**
+         * Gets the time
+         *
+         * @return time in epoch millis
+         */
+        public long getTime() {
+            return m_time;
+        }
+
+        public double getLat() {
+            return m_lat;
+        }
+
+        public double getLng() {
+            return m_lng;
+        }
+
+        public double getAccuracy() {
+            return m_accuracy;
+        }
+
+        /**
+         * Gets the altitude
+         *
+         * @return altitude, NaN if fix has no altitude
+         */
+        public double getAltitude() {
+            return m_altitude;
+        }
+
+        /**
+         * Changes the position (e.g. by smoothing)
+         *
+         * @param lat latitude
+         * @param lng longitude
+         */
+        public void setPosition(double lat, double lng) {
+            m_lat = lat;
+            m_lng = lng;
+        }
+
+        public void setAccuracy(double accuracy) {
+            m_accuracy = accuracy;
+        }
+    }
+
+    /**
+     * Stage of a FilterChain. Stages are used by one thread at a time (with the lock of the chain held).
+     */
+    public abstract static class Stage {
+
+        //Counts, written with the lock of the chain held, read by any thread
+        private volatile long m_accepted = 0;
+        private volatile long m_rejected = 0;
+
+        /**
+         * Checks a fix, may change it.
+         *
+         * @param fix to be checked
+         * @return false if the fix is rejected
+         */
+        protected abstract boolean accept(Fix fix);
+
+        /**
+         * Called for each stage if a fix passed the whole chain.
+         *
+         * @param fix which is added to the track
+         */
+        protected void onAccepted(Fix fix) {
+        }
+
+        public String getName() {
+            return getClass().getSimpleName();
+        }
+
+        /**
+         * Gets the number of fixes this stage passed on
+         *
+         * @return count
+         */
+        public long getAcceptedCount() {
+            return m_accepted;
+        }
+
+        /**
+         * Gets the number of fixes this stage rejected
+         *
+         * @return count
+         */
+        public long getRejectedCount() {
+            return m_rejected;
+        }
+
+        @Override
+        public String toString() {
+            return getName() + ": " + m_accepted + " accepted, " + m_rejected + " rejected";
+        }
+    }
+
+    /**
+     * Rejects fixes which are not separated from the last fix by a multiple of their accuracies (like MinDistanceHandler).
+     */
+    public static class MinDistance extends Stage {
+
+        private final double m_factor;
+        private final DistanceCalculator.Mode m_mode;
+
+        private boolean m_hasLast = false;
+        private double m_lastLat;
+        private double m_lastLng;
+        //Cosine of latitude of last fix
+        private double m_lastCos;
+        private double m_lastAccuracy;
+
+        /**
+         * Constructor
+         *
+         * @param factor of accuracy which fixes have to be separated at least
+         * @param mode   accuracy of distance calculation, fast mode is sufficient for usual GPS accuracy
+         */
+        public MinDistance(double factor, DistanceCalculator.Mode mode) {
+            m_factor = factor;
+            m_mode = mode;
+        }
+
+        @Override
+        protected boolean accept(Fix fix) {
+            if (!m_hasLast) {
+                return true;
+            }
+            double distMeter = DistanceCalculator.distance(fix.m_lat, fix.m_lng, Math.cos(Math.toRadians(fix.m_lat)),
+                    m_lastLat, m_lastLng, m_lastCos, m_mode) * 1000;
+            return distMeter > m_factor * (fix.m_accuracy + m_lastAccuracy);
+        }
+
+        @Override
+        protected void onAccepted(Fix fix) {
+            m_hasLast = true;
+            m_lastLat = fix.m_lat;
+            m_lastLng = fix.m_lng;
+            m_lastCos = Math.cos(Math.toRadians(fix.m_lat));
+            m_lastAccuracy = fix.m_accuracy;
+        }
+    }
+
+    /**
+     * Rejects fixes which follow the last fix within a minimum time.
+     */
+    public static class MinInterval extends Stage {
+
+        private final long m_intervalMillis;
+
+        private long m_lastTime = GPXElement.NO_TIME;
+
+        /**
+         * Constructor
+         *
+         * @param intervalMillis minimum time between fixes
+         */
+        public MinInterval(long intervalMillis) {
+            m_intervalMillis = intervalMillis;
+        }
+
+        @Override
+        protected boolean accept(Fix fix) {
+            return m_lastTime == GPXElement.NO_TIME || fix.m_time - m_lastTime >= m_intervalMillis;
+        }
+
+        @Override
+        protected void onAccepted(Fix fix) {
+            m_lastTime = fix.m_time;
+        }
+    }
+
+    /**
+     * Rejects fixes with a worse accuracy than a threshold.
+     */
+    public static class MaxAccuracy extends Stage {
+
+        private final double m_maxAccuracy;
+
+        /**
+         * Constructor
+         *
+         * @param maxAccuracy maximum accuracy in meter
+         */
+        public MaxAccuracy(double maxAccuracy) {
+            m_maxAccuracy = maxAccuracy;
+        }
+
+        @Override
+        protected boolean accept(Fix fix) {
+            return fix.m_accuracy <= m_maxAccuracy;
+        }
+    }
+
+    /**
+     * Rejects outliers: fixes which could only be reached from the last fix with more than a maximum speed.
+     */
+    public static class MaxSpeed extends Stage {
+
+        private final double m_maxSpeed;
+        private final DistanceCalculator.Mode m_mode;
+
+        private boolean m_hasLast = false;
+        private long m_lastTime;
+        private double m_lastLat;
+        private double m_lastLng;
+        private double m_lastCos;
+
+        /**
+         * Constructor
+         *
+         * @param maxSpeed maximum speed in meter per second
+         * @param mode     accuracy of distance calculation
+         */
+        public MaxSpeed(double maxSpeed, DistanceCalculator.Mode mode) {
+            m_maxSpeed = maxSpeed;
+            m_mode = mode;
+        }
+
+        @Override
+        protected boolean accept(Fix fix) {
+            if (!m_hasLast) {
+                return true;
+            }
+            double distMeter = DistanceCalculator.distance(fix.m_lat, fix.m_lng, Math.cos(Math.toRadians(fix.m_lat)),
+                    m_lastLat, m_lastLng, m_lastCos, m_mode) * 1000;
+            //Fixes of the same millisecond are compared like fixes one millisecond apart
+            double seconds = Math.max(fix.m_time - m_lastTime, 1) / 1000.0;
+            return distMeter <= m_maxSpeed * seconds;
+        }
+
+        @Override
+        protected void onAccepted(Fix fix) {
+            m_hasLast = true;
+            m_lastTime = fix.m_time;
+            m_lastLat = fix.m_lat;
+            m_lastLng = fix.m_lng;
+            m_lastCos = Math.cos(Math.toRadians(fix.m_lat));
+        }
+    }
+
+    /**
+     * Smooths the position with a simple Kalman filter: the estimate is moved towards each fix weighted by
+     * the accuracies, its uncertainty grows with the expected speed between fixes. Never rejects a fix,
+     * the accuracy of the fix is replaced by the accuracy of the estimate. The estimate is only updated by
+     * fixes which pass the whole chain, fixes rejected by later stages leave it unchanged.
+     */
+    public static class Kalman extends Stage {
+
+        private final double m_speed;
+
+        private boolean m_hasEstimate = false;
+        private long m_time;
+        private double m_lat;
+        private double m_lng;
+        //Variance of estimate in square meter
+        private double m_variance;
+
+        //Estimate for the fix checked last, becomes the estimate if the fix passes the chain
+        private long m_candidateTime;
+        private double m_candidateLat;
+        private double m_candidateLng;
+        private double m_candidateVariance;
+
+        /**
+         * Constructor
+         *
+         * @param speed expected speed in meter per second (process noise), higher values follow the fixes closer
+         */
+        public Kalman(double speed) {
+            m_speed = speed;
+        }
+
+        @Override
+        protected boolean accept(Fix fix) {
+            double accuracy = Math.max(fix.m_accuracy, 1);
+            if (!m_hasEstimate) {
+                m_candidateTime = fix.m_time;
+                m_candidateLat = fix.m_lat;
+                m_candidateLng = fix.m_lng;
+                m_candidateVariance = accuracy * accuracy;
+                return true;
+            }
+            long millis = fix.m_time - m_time;
+            double variance = m_variance;
+            m_candidateTime = m_time;
+            if (millis > 0) {
+                variance += millis * m_speed * m_speed / 1000;
+                m_candidateTime = fix.m_time;
+            }
+            double gain = variance / (variance + accuracy * accuracy);
+            m_candidateLat = m_lat + gain * (fix.m_lat - m_lat);
+            //Longitude difference across the date line
+            double dLng = fix.m_lng - m_lng;
+            if (dLng > 180) {
+                dLng -= 360;
+            } else if (dLng < -180) {
+                dLng += 360;
+            }
+            m_candidateLng = m_lng + gain * dLng;
+            if (m_candidateLng > 180) {
+                m_candidateLng -= 360;
+            } else if (m_candidateLng < -180) {
+                m_candidateLng += 360;
+            }
+            m_candidateVariance = (1 - gain) * variance;
+            fix.setPosition(m_candidateLat, m_candidateLng);
+            fix.setAccuracy(Math.sqrt(m_candidateVariance));
+            return true;
+        }
+
+        @Override
+        protected void onAccepted(Fix fix) {
+            m_hasEstimate = true;
+            m_time = m_candidateTime;
+            m_lat = m_candidateLat;
+            m_lng = m_candidateLng;
+            m_variance = m_candidateVariance;
+        }
+    }
+
+    private final Stage[] m_stages;
+
+    //Fix reused for all fixes, guarded by this
+    private final Fix m_fix = new Fix();
+
+    /**
+     * Constructor
+     *
+     * @param stages in order of application
+     */
+    public FilterChain(Stage... stages) {
+        m_stages = stages.clone();
+    }
+
+    /**
+     * Gets the stages, e.g. to report their counts
+     *
+     * @return unmodifiable List of Stage
+     */
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(Arrays.asList(m_stages));
+    }
+
+    /**
+     * Gets the fix which is reused for all fixes. Has to be used with the lock of this chain held.
+     *
+     * @return Fix
+     */
+    Fix getFix() {
+        return m_fix;
+    }
+
+    /**
+     * Passes a fix through all stages. Has to be called with the lock of this chain held.
+     *
+     * @param fix to be filtered, may be changed by the stages
+     * @return true if the fix passed all stages
+     */
+    boolean filter(Fix fix) {
+        for (Stage stage : m_stages) {
+            if (!stage.accept(fix)) {
+                stage.m_rejected++;
+                return false;
+            }
+            stage.m_accepted++;
+        }
+        for (Stage stage : m_stages) {
+            stage.onAccepted(fix);
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        for (Stage stage : m_stages) {
+            if (res.length() > 0) {
+                res.append("; ");
+            }
+            res.append(stage);
+        }
+        return res.toString();
+    }
+}
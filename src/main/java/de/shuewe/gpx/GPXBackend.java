@@ -0,0 +1,25 @@
+package de.shuewe.gpx;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the background work of parsers. Each parser gets its own serial executor, so changes of one
+ * parser keep their order while independent parsers may run in parallel.
+ */
+public interface GPXBackend {
+
+    /**
+     * Creates the executor of a parser. Tasks of one executor have to run one after another in order of submission.
+     *
+     * @param name of parser (for logging)
+     * @return Executor
+     */
+    Executor newSerialExecutor(String name);
+
+    /**
+     * Checks if no task of any executor of this backend is queued or running.
+     *
+     * @return boolean
+     */
+    boolean isIdle();
+}
@@ -9,22 +9,36 @@ import java.util.Date;
 
 public abstract class GPXElement implements Comparable<GPXElement> {
 
+    //Time value (epoch millis) used for elements without date
+    public static final long NO_TIME = Long.MIN_VALUE;
+
     protected abstract Date getSortDate();
+
+    /**
+     * Gets the time used for sorting in epoch millis. Should be overwritten to avoid the Date of getSortDate().
+     *
+     * @return time, NO_TIME if element has no date
+     */
+    protected long getSortTime() {
+        Date date = getSortDate();
+        return date == null ? NO_TIME : date.getTime();
+    }
+
     @Override
     public int compareTo(GPXElement gpxElement){
-        Date date2 = gpxElement.getSortDate();
-        Date date=getSortDate();
-        if(date == null && date2 == null){
+        long time2 = gpxElement.getSortTime();
+        long time = getSortTime();
+        if(time == NO_TIME && time2 == NO_TIME){
             return 0;
         }
-        if (date == null) {
+        if (time == NO_TIME) {
             return 1;
         }
 
-        if(date2 == null){
+        if(time2 == NO_TIME){
             return -1;
         }
-        return date.compareTo(date2);
+        return time < time2 ? -1 : (time == time2 ? 0 : 1);
     }
 
     public abstract View getListViewRow(Context context, LayoutInflater inflater, View convertView, ViewGroup viewGroup);
@@ -0,0 +1,399 @@
+package de.shuewe.gpx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Result of an operation which is run in background (init, save, validation). Callbacks and chained operations
+ * are run when the result is available, so no thread has to wait for it. Like CompletableFuture, which is not
+ * available before API level 24.
+ *
+ * @param <V> type of result
+ */
+public class GPXFuture<V> implements Future<V> {
+
+    /**
+     * Callback for the result of a GPXFuture.
+     */
+    public interface Callback<V> {
+
+        void onSuccess(V value);
+
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * Function applied to the result of a GPXFuture (see then).
+     */
+    public interface Function<V, R> {
+
+        R apply(V value) throws Exception;
+    }
+
+    /**
+     * Function which starts another operation with the result of a GPXFuture (see thenCompose).
+     */
+    public interface AsyncFunction<V, R> {
+
+        GPXFuture<R> apply(V value) throws Exception;
+    }
+
+    //State, guarded by this
+    private boolean m_done = false;
+    private V m_value = null;
+    private Throwable m_error = null;
+
+    //Callbacks run on completion, null after completion
+    private List<Runnable> m_callbacks = new ArrayList<Runnable>();
+
+    //Token of the operation, cancelled with the future (may be null)
+    private final CancellationToken m_token;
+
+    public GPXFuture() {
+        this(null);
+    }
+
+    GPXFuture(CancellationToken token) {
+        m_token = token;
+    }
+
+    /**
+     * Gets a completed future
+     *
+     * @param value result
+     * @param <V>   type of result
+     * @return GPXFuture
+     */
+    public static <V> GPXFuture<V> completed(V value) {
+        GPXFuture<V> res = new GPXFuture<V>();
+        res.complete(value);
+        return res;
+    }
+
+    /**
+     * Gets a failed future
+     *
+     * @param error cause of failure
+     * @param <V>   type of result
+     * @return GPXFuture
+     */
+    public static <V> GPXFuture<V> failed(Throwable error) {
+        GPXFuture<V> res = new GPXFuture<V>();
+        res.completeExceptionally(error);
+        return res;
+    }
+
+    /**
+     * Gets a future which is completed with the results of all given futures (in order),
+     * or fails with the first failure.
+     *
+     * @param futures to be combined
+     * @param <V>     type of results
+     * @return GPXFuture
+     */
+    public static <V> GPXFuture<List<V>> allOf(final List<? extends GPXFuture<? extends V>> futures) {
+        final GPXFuture<List<V>> res = new GPXFuture<List<V>>();
+        if (futures.isEmpty()) {
+            res.complete(new ArrayList<V>());
+            return res;
+        }
+        final Object[] values = new Object[futures.size()];
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            final int index = i;
+            futures.get(i).addCallback(new Callback<V>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void onSuccess(V value) {
+                    values[index] = value;
+                    if (remaining.decrementAndGet() == 0) {
+                        res.complete((List<V>) Arrays.asList(values));
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    res.completeExceptionally(error);
+                }
+            });
+        }
+        return res;
+    }
+
+    /**
+     * Completes the future with a result
+     *
+     * @param value result
+     * @return false if the future was completed before
+     */
+    public boolean complete(V value) {
+        return finish(value, null);
+    }
+
+    /**
+     * Completes the future with a failure
+     *
+     * @param error cause of failure
+     * @return false if the future was completed before
+     */
+    public boolean completeExceptionally(Throwable error) {
+        if (error == null) {
+            throw new NullPointerException("error");
+        }
+        return finish(null, error);
+    }
+
+    private boolean finish(V value, Throwable error) {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            if (m_done) {
+                return false;
+            }
+            m_done = true;
+            m_value = value;
+            m_error = error;
+            callbacks = m_callbacks;
+            m_callbacks = null;
+            notifyAll();
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+        return true;
+    }
+
+    /**
+     * Cancels the future. The operation is cancelled too if it was started with a CancellationToken
+     * (operations of SecureGPXParser and GPXHandler), otherwise it is not stopped.
+     *
+     * @param mayInterruptIfRunning not used, running operations check the token
+     * @return false if the future was completed before
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        if (m_token != null) {
+            m_token.cancel();
+        }
+        return completeExceptionally(new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return m_error instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return m_done;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!m_done) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (!m_done) {
+            long remaining = end - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getResult();
+    }
+
+    private V getResult() throws ExecutionException {
+        if (m_error instanceof CancellationException) {
+            throw (CancellationException) m_error;
+        }
+        if (m_error != null) {
+            throw new ExecutionException(m_error);
+        }
+        return m_value;
+    }
+
+    /**
+     * Adds a callback, which is run by the thread which completes the future
+     * (or directly, if the future is completed already).
+     *
+     * @param callback to be added
+     * @return this
+     */
+    public GPXFuture<V> addCallback(final Callback<? super V> callback) {
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                V value;
+                Throwable error;
+                synchronized (GPXFuture.this) {
+                    value = m_value;
+                    error = m_error;
+                }
+                if (error != null) {
+                    callback.onFailure(error);
+                } else {
+                    callback.onSuccess(value);
+                }
+            }
+        };
+        synchronized (this) {
+            if (!m_done) {
+                m_callbacks.add(runnable);
+                return this;
+            }
+        }
+        runnable.run();
+        return this;
+    }
+
+    /**
+     * Adds a callback, which is run by the given executor (e.g. the main thread).
+     *
+     * @param callback to be added
+     * @param executor to run the callback
+     * @return this
+     */
+    public GPXFuture<V> addCallback(final Callback<? super V> callback, final Executor executor) {
+        return addCallback(new Callback<V>() {
+            @Override
+            public void onSuccess(final V value) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSuccess(value);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final Throwable error) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onFailure(error);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Applies a function to the result. A failure (also of the function) fails the returned future.
+     *
+     * @param function to be applied
+     * @param <R>      type of new result
+     * @return GPXFuture of the result of the function
+     */
+    public <R> GPXFuture<R> then(final Function<? super V, ? extends R> function) {
+        final GPXFuture<R> res = new GPXFuture<R>();
+        addCallback(new Callback<V>() {
+            @Override
+            public void onSuccess(V value) {
+                R result;
+                try {
+                    result = function.apply(value);
+                } catch (Exception e) {
+                    res.completeExceptionally(e);
+                    return;
+                }
+                res.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                res.completeExceptionally(error);
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Starts another operation with the result (e.g. validation after init).
+     *
+     * @param function which starts the operation
+     * @param <R>      type of result of the operation
+     * @return GPXFuture of the result of the operation
+     */
+    public <R> GPXFuture<R> thenCompose(final AsyncFunction<? super V, R> function) {
+        final GPXFuture<R> res = new GPXFuture<R>();
+        addCallback(new Callback<V>() {
+            @Override
+            public void onSuccess(V value) {
+                GPXFuture<R> next;
+                try {
+                    next = function.apply(value);
+                } catch (Exception e) {
+                    res.completeExceptionally(e);
+                    return;
+                }
+                next.addCallback(new Callback<R>() {
+                    @Override
+                    public void onSuccess(R value) {
+                        res.complete(value);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable error) {
+                        res.completeExceptionally(error);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                res.completeExceptionally(error);
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Gets a future which fails with a TimeoutException if this future is not completed in time.
+     * No thread waits for the timeout.
+     *
+     * @param timeout maximum time
+     * @param unit    of timeout
+     * @return GPXFuture
+     */
+    public GPXFuture<V> withTimeout(long timeout, TimeUnit unit) {
+        final GPXFuture<V> res = new GPXFuture<V>();
+        final ScheduledFuture<?> timeoutTask = SecureGPXParser.getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                res.completeExceptionally(new TimeoutException());
+            }
+        }, timeout, unit);
+        addCallback(new Callback<V>() {
+            @Override
+            public void onSuccess(V value) {
+                timeoutTask.cancel(false);
+                res.complete(value);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                timeoutTask.cancel(false);
+                res.completeExceptionally(error);
+            }
+        });
+        return res;
+    }
+}
@@ -1,22 +1,43 @@
 package de.shuewe.gpx;
 
-import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 public abstract class GPXHandler {
 
     static final String LOG_TAG="GPXHandler";
+    /**
+     * Looper thread of the parser, only set if the parser runs on LooperBackend.
+     *
+     * @deprecated background work is run by the GPXBackend of the parser, use addRunnableToBackgroundThread
+     */
+    @Deprecated
     public GPXThread m_thread;
     protected SecureGPXParser m_parser;
-    //List of sorted Waypoints (sorted by date, if date == null, points are on end of list).
-    private List<WayPoint> m_sortedPoints = null;
+    //Sorted view of all Waypoints (sorted by date, points without date are sorted like Date(0)).
+    private LocationIndex m_locations = null;
+    //Spatial queries over all Waypoints
+    private SpatialIndex m_spatialIndex = null;
     private Boolean m_valid;
+    //Anchors chain tips in external HashStore, can be null
+    private HashStoreAnchor m_anchor = null;
+    //Listener for failed writes to the HashStore, can be null
+    private HashStore.FailureListener m_anchorListener = null;
+    //Newest chain tip which is not passed to the anchor yet and flag if passing it is queued, used in background
+    private WayPoint m_pendingTip = null;
+    private boolean m_anchorQueued = false;
+    //Buffer for trackpoints in front of the background thread, null if each point is passed on directly
+    private volatile IngestionBuffer m_buffer = null;
+    //Filters for incoming trackpoints, null if all points are added
+    private volatile FilterChain m_filter = null;
 
     protected abstract void writeTempData();
 
@@ -24,13 +45,145 @@ public abstract class GPXHandler {
 
     public abstract void processTrackpoint(String trackName, double lat, double lng, double accuracy, double alt);
 
+    /**
+     * Adds a batch of trackpoints (e.g. from a buffer of fixes or an import) with one background task and
+     * one change notification. The arrays are copied, so the caller may reuse them. Points are sorted by time
+     * and hashed in one pass, they should be newer than all existing points to continue the chain.
+     * Handlers which filter points (e.g. MinDistanceHandler) override this method.
+     *
+     * @param trackName name of track
+     * @param time      times in epoch millis
+     * @param lat       latitudes
+     * @param lng       longitudes
+     * @param accuracy  accuracies
+     * @param alt       altitudes, null if there are none
+     * @param count     number of points (from index 0)
+     */
+    public void processTrackpoints(String trackName, long[] time, double[] lat, double[] lng, double[] accuracy, double[] alt, int count) {
+        addTrackPoints(trackName, time, lat, lng, accuracy, alt, count);
+    }
+
     public void save(){
         writeTempData();
+        if (m_anchor != null) {
+            m_anchor.flush();
+        }
         m_parser.save();
     }
 
+    /**
+     * Saves the data in background (see save).
+     *
+     * @return GPXFuture, completed after the file was written and the save listener was notified
+     */
+    public GPXFuture<Void> saveAsync() {
+        return saveAsync(new CancellationToken());
+    }
+
+    /**
+     * Saves the data in background like saveAsync. A cancelled save leaves the file unchanged.
+     *
+     * @param token to cancel saving
+     * @return GPXFuture, fails if saving was cancelled
+     */
+    public GPXFuture<Void> saveAsync(CancellationToken token) {
+        writeTempData();
+        if (m_anchor != null) {
+            m_anchor.flush();
+        }
+        return m_parser.saveAsync(token);
+    }
+
+    /**
+     * Sets the HashStore used to anchor chain tips. Tips are written in batches on an own thread.
+     *
+     * @param store to be used, null to disable anchoring
+     */
+    public void setHashStore(HashStore store) {
+        setHashStore(store, HashStoreAnchor.DEFAULT_BATCH_SIZE, HashStoreAnchor.DEFAULT_FLUSH_DELAY_MS);
+    }
+
+    /**
+     * Sets the HashStore used to anchor chain tips.
+     *
+     * @param store      to be used, null to disable anchoring
+     * @param batchSize  number of tips which are written together
+     * @param flushDelay max delay in ms until pending tips are written
+     */
+    public void setHashStore(HashStore store, int batchSize, long flushDelay) {
+        if (m_anchor != null) {
+            m_anchor.flush();
+        }
+        m_anchor = store == null ? null : new HashStoreAnchor(store, batchSize, flushDelay);
+        if (m_anchor != null) {
+            m_anchor.setFailureListener(m_anchorListener);
+        }
+    }
+
+    /**
+     * Sets a listener which is notified if tips can not be written to the HashStore. Failed writes are
+     * retried with growing delay, the oldest pending tips are dropped if too many are pending.
+     *
+     * @param listener to be notified on the thread of the anchor, null to remove it
+     */
+    public void setHashStoreFailureListener(HashStore.FailureListener listener) {
+        m_anchorListener = listener;
+        if (m_anchor != null) {
+            m_anchor.setFailureListener(listener);
+        }
+    }
+
+    /**
+     * Gets the HashStore used to anchor chain tips.
+     *
+     * @return HashStore, null if not set
+     */
+    public HashStore getHashStore() {
+        return m_anchor == null ? null : m_anchor.getStore();
+    }
+
+    /**
+     * Sets a bounded buffer for trackpoints. Buffered points are appended together by one background task,
+     * so bursts of fixes or a slow save do not let the queue of the background thread grow.
+     * Named points and waypoints are not buffered.
+     *
+     * @param capacity maximum number of buffered points, 0 to pass each point on directly (default)
+     * @param policy   handling of points which arrive while the buffer is full
+     */
+    public void setIngestionBuffer(int capacity, IngestionBuffer.OverflowPolicy policy) {
+        m_buffer = capacity == 0 ? null : new IngestionBuffer(capacity, policy);
+    }
+
+    /**
+     * Gets the buffer for trackpoints, e.g. to read its metrics.
+     *
+     * @return IngestionBuffer, null if not set
+     */
+    public IngestionBuffer getIngestionBuffer() {
+        return m_buffer;
+    }
+
+    /**
+     * Sets filters for trackpoints. Trackpoints are filtered on the calling thread before they are buffered or
+     * passed to the background thread, points of a batch are expected to be sorted by time.
+     * Named points and waypoints are not filtered.
+     *
+     * @param filter to be applied, null to add all points (default)
+     */
+    public void setFilterChain(FilterChain filter) {
+        m_filter = filter;
+    }
+
+    /**
+     * Gets the filters for trackpoints, e.g. to read their counts.
+     *
+     * @return FilterChain, null if not set
+     */
+    public FilterChain getFilterChain() {
+        return m_filter;
+    }
+
     public GPXHandler(){
-        m_thread = GPXThread.getInstance();
     }
 
     /**
@@ -69,7 +222,46 @@ public abstract class GPXHandler {
      * @return WayPoint
      */
     protected void addTrackPoint(String parentName, String name, double lat, double lng, double accuracy,Double alt) {
-        final Date date = new Date();
+        long time = System.currentTimeMillis();
+        FilterChain filter = m_filter;
+        if (filter == null || parentName == null || name != null) {
+            appendTrackPoint(parentName, name, time, lat, lng, accuracy, alt);
+            return;
+        }
+        synchronized (filter) {
+            FilterChain.Fix fix = filter.getFix();
+            fix.set(time, lat, lng, accuracy, alt == null ? Double.NaN : alt);
+            if (!filter.filter(fix)) {
+                return;
+            }
+            lat = fix.getLat();
+            lng = fix.getLng();
+            accuracy = fix.getAccuracy();
+        }
+        appendTrackPoint(parentName, null, time, lat, lng, accuracy, alt);
+    }
+
+    /**
+     * Adds a point after filtering, through the buffer if set.
+     *
+     * @param parentName Parent name != null indicates, that point belongs to track
+     * @param name       Name of point
+     * @param time       time in epoch millis
+     * @param lat        latitude
+     * @param lng        longitude
+     * @param accuracy   accuracy
+     * @param alt        altitude, may be null
+     */
+    private void appendTrackPoint(final String parentName, final String name, long time, final double lat, final double lng,
+                                  final double accuracy, final Double alt) {
+        IngestionBuffer buffer = m_buffer;
+        if (buffer != null && parentName != null && name == null) {
+            if (buffer.offer(parentName, time, lat, lng, accuracy, alt == null ? Double.NaN : alt)) {
+                drainInBackground(buffer);
+            }
+            return;
+        }
+        final Date date = new Date(time);
         Runnable runnable = new Runnable() {
 
             @Override
@@ -82,10 +274,10 @@ public abstract class GPXHandler {
                 }
                 res.setAltitude(alt);
                 String prevHash = null;
-                if (!getLocations().isEmpty()) {
-                    prevHash = getLocations().get(getLocations().size() - 1).getHash();
+                if (!m_locations.isEmpty()) {
+                    prevHash = m_locations.get(m_locations.size() - 1).getHash();
                 }
-                res.generateHash(prevHash);
+                res.generateHashBytes(prevHash == null ? null : prevHash.getBytes(), true);
                 if (parentName == null) {
                     m_parser.getPoints().add(res);
                 } else {
@@ -96,102 +288,207 @@ public abstract class GPXHandler {
                     m_parser.getTracks().get(parentName).addPoints(Collections.singletonList(res));
                 }
                 m_valid = null;
-                if (!m_sortedPoints.isEmpty() && m_sortedPoints.get(m_sortedPoints.size() - 1).getDate() == null) {
-                    m_sortedPoints.clear();
-                    getLocations();
-                } else {
-                    m_sortedPoints.add(res);
-                }
+                m_locations.invalidate();
+                anchorTip(res);
                 m_parser.markChanged();
             }
         };
         addRunnableToBackgroundThread(GPXThread.ACTION.CHANGE_DATA, runnable);
     }
 
-    public void changeTrackFromWaypoint(WayPoint point, String newTrackname) {
+    /**
+     * Adds a batch of trackpoints to a track in background (see processTrackpoints)
+     *
+     * @param trackName name of track
+     * @param time      times in epoch millis
+     * @param lat       latitudes
+     * @param lng       longitudes
+     * @param accuracy  accuracies
+     * @param alt       altitudes, null if there are none
+     * @param count     number of points (from index 0)
+     */
+    protected void addTrackPoints(final String trackName, long[] time, double[] lat, double[] lng, double[] accuracy, double[] alt, int count) {
+        if (count == 0) {
+            return;
+        }
+        final long[] times = Arrays.copyOf(time, count);
+        final double[] lats = Arrays.copyOf(lat, count);
+        final double[] lngs = Arrays.copyOf(lng, count);
+        final double[] accuracies = Arrays.copyOf(accuracy, count);
+        final double[] alts = alt == null ? null : Arrays.copyOf(alt, count);
+        FilterChain filter = m_filter;
+        if (filter != null) {
+            count = filterTrackPoints(filter, times, lats, lngs, accuracies, alts, count);
+            if (count == 0) {
+                return;
+            }
+        }
+        final int kept = count;
+        Runnable runnable = new Runnable() {
 
+            @Override
+            public void run() {
+                appendTrackPoints(trackName, times, lats, lngs, accuracies, alts, 0, kept);
+            }
+        };
+        addRunnableToBackgroundThread(GPXThread.ACTION.CHANGE_DATA, runnable);
+    }
+
+    /**
+     * Filters a batch of trackpoints, the kept points are moved to the front of the arrays.
+     *
+     * @param filter   to be applied
+     * @param time     times in epoch millis
+     * @param lat      latitudes
+     * @param lng      longitudes
+     * @param accuracy accuracies
+     * @param alt      altitudes, null if there are none
+     * @param count    number of points
+     * @return number of kept points
+     */
+    private static int filterTrackPoints(FilterChain filter, long[] time, double[] lat, double[] lng, double[] accuracy, double[] alt, int count) {
+        int kept = 0;
+        synchronized (filter) {
+            FilterChain.Fix fix = filter.getFix();
+            for (int i = 0; i < count; i++) {
+                fix.set(time[i], lat[i], lng[i], accuracy[i], alt == null ? Double.NaN : alt[i]);
+                if (!filter.filter(fix)) {
+                    continue;
+                }
+                time[kept] = time[i];
+                lat[kept] = fix.getLat();
+                lng[kept] = fix.getLng();
+                accuracy[kept] = fix.getAccuracy();
+                if (alt != null) {
+                    alt[kept] = alt[i];
+                }
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Appends the points of the buffer in background. Consecutive points of the same track are appended together.
+     *
+     * @param buffer to be drained
+     */
+    private void drainInBackground(final IngestionBuffer buffer) {
         Runnable runnable = new Runnable() {
 
             @Override
             public void run() {
-                List<TrackSegment> toBeMoved = new ArrayList<TrackSegment>();
-                Track sourceTrack = m_parser.getTracks().get(point.get_parentName());
-                int i = 0;
-                int iPos = -1;
-                List<TrackSegment> pointList = sourceTrack.getNumberedSegments();
-                for (TrackSegment points : pointList) {
-                    int pos = points.indexOf(point);
-                    i++;
-                    if (pos == -1) {
-                        //Not in list
+                IngestionBuffer.Batch batch = buffer.drain();
+                int start = 0;
+                for (int i = 1; i <= batch.m_count; i++) {
+                    boolean hasAltitude = !Double.isNaN(batch.m_altitude[start]);
+                    if (i < batch.m_count && batch.m_tracks[i].equals(batch.m_tracks[start])
+                            && hasAltitude == !Double.isNaN(batch.m_altitude[i])) {
                         continue;
                     }
-                    iPos = i; //+1 -> start with next segment
-                    toBeMoved.add(points.subList(pos, points.size()).clone());
+                    appendTrackPoints(batch.m_tracks[start], batch.m_time, batch.m_lat, batch.m_lng, batch.m_accuracy,
+                            hasAltitude ? batch.m_altitude : null, start, i);
+                    start = i;
                 }
-                if (pointList.size() >= iPos && iPos != -1) {
-                    for (int j = iPos; j < pointList.size(); j++) {
-                        toBeMoved.add(pointList.get(j).clone());
-                    }
-                }
-                if(toBeMoved.isEmpty()){
-                    return;
-                }
-                Log.i(LOG_TAG,"Found "+toBeMoved.size()+" Segments to move");
-                for(TrackSegment segment:toBeMoved){
-                    Log.i(LOG_TAG,"Segment size: "+segment.size());
-                }
-                int firstSegmentToBeRemoved=-1;
-                boolean hasRemovedSegment=false;
-                if(point.isStart()){
-                    Log.i(LOG_TAG,"Remove segment with size: "+toBeMoved.get(0).size());
-                    removeSegmentPrivate(toBeMoved.get(0));
-                    firstSegmentToBeRemoved=toBeMoved.get(0).getSegmentNumber();
+            }
+        };
+        addRunnableToBackgroundThread(GPXThread.ACTION.CHANGE_DATA, runnable);
+    }
 
-                }else{
-                    Log.i(LOG_TAG,"Remove waypoints with size: "+toBeMoved.get(0).size());
-                    hasRemovedSegment=sourceTrack.removeWaypoints(toBeMoved.get(0), false);
+    /**
+     * Appends trackpoints to a track, has to be called in background. The points are sorted by time and hashed in one pass.
+     *
+     * @param trackName name of track
+     * @param time      times in epoch millis
+     * @param lat       latitudes
+     * @param lng       longitudes
+     * @param accuracy  accuracies
+     * @param alt       altitudes, null if there are none
+     * @param start     first point (inclusive)
+     * @param end       last point (exclusive)
+     */
+    private void appendTrackPoints(String trackName, long[] time, double[] lat, double[] lng, double[] accuracy, double[] alt, int start, int end) {
+        if (!m_parser.getTracks().containsKey(trackName)) {
+            m_parser.getTracks().put(trackName, m_parser.getTrackInstance(trackName));
+        }
+        Track track = m_parser.getTracks().get(trackName);
+        List<WayPoint> points = new ArrayList<WayPoint>(end - start);
+        for (int i = start; i < end; i++) {
+            WayPoint point = m_parser.getWayPointInstance(lat[i], lng[i], new Date(time[i]), accuracy[i]);
+            if (alt != null) {
+                point.setAltitude(alt[i]);
+            }
+            point.setParentTrack(track);
+            points.add(point);
+        }
+        Collections.sort(points);
+        //Hash text of the previous point, reused for the whole batch
+        byte[] prevHashText = null;
+        if (!m_locations.isEmpty()) {
+            String prevHash = m_locations.get(m_locations.size() - 1).getHash();
+            prevHashText = prevHash == null ? null : prevHash.getBytes();
+        }
+        byte[] hashText = new byte[2 * TrackSegment.HASH_LENGTH];
+        for (WayPoint point : points) {
+            byte[] hash = point.generateHashBytes(prevHashText, true);
+            if (hash == null) {
+                prevHashText = null;
+                continue;
+            }
+            SecureGPXParser.bytesToHexAscii(hash, hashText);
+            prevHashText = hashText;
+        }
+        track.addPoints(points);
+        m_valid = null;
+        m_locations.invalidate();
+        anchorTip(points.get(points.size() - 1));
+        m_parser.markChanged();
+    }
 
-                }
-                if(toBeMoved.size()>1){
-                    if(firstSegmentToBeRemoved==-1){
-                        firstSegmentToBeRemoved=toBeMoved.get(1).getSegmentNumber();
-                        if(hasRemovedSegment){
-                            firstSegmentToBeRemoved+=-1;
-                        }
-                    }
-                    for (TrackSegment segment : toBeMoved.subList(1,toBeMoved.size())) {
-                        Log.i(LOG_TAG,"Remove segment with size: "+segment.size());
-                        segment.setSegmentNumber(firstSegmentToBeRemoved);
-                        removeSegmentPrivate(segment);
+    /**
+     * Moves a trackpoint and all later points of its track to another track. Moved points keep their identity,
+     * references to them stay valid and belong to the new track afterwards.
+     *
+     * @param point         first point to be moved
+     * @param newTrackname  name of target track, created if needed
+     */
+    public void changeTrackFromWaypoint(WayPoint point, String newTrackname) {
 
-                    }
+        Runnable runnable = new Runnable() {
+
+            @Override
+            public void run() {
+                Track sourceTrack = m_parser.getTracks().get(point.get_parentName());
+                if (sourceTrack == null) {
+                    return;
+                }
+                int segmentIndex = sourceTrack.indexOfSegment(point);
+                if (segmentIndex == -1) {
+                    return;
+                }
+                TrackSegment sourceSegment = sourceTrack.getSegments().get(segmentIndex);
+                int pos = sourceSegment.indexOf(point);
+                //Rows and segments are moved, not copied, so the moved points keep their identity
+                List<TrackSegment> toBeMoved = new ArrayList<TrackSegment>();
+                if (pos > 0) {
+                    GPXLog.i(LOG_TAG,"Move waypoints with size: "+(sourceSegment.size()-pos));
+                    toBeMoved.add(sourceSegment.moveRows(pos));
+                    segmentIndex++;
                 }
+                toBeMoved.addAll(sourceTrack.removeSegmentsFrom(segmentIndex));
+                GPXLog.i(LOG_TAG,"Found "+toBeMoved.size()+" Segments to move");
                 if (sourceTrack.getSize() == 0) {
-                    Log.i(LOG_TAG,"Track is empty -> Remove track");
+                    GPXLog.i(LOG_TAG,"Track is empty -> Remove track");
                     m_parser.getTracks().remove(sourceTrack.getName());
                 }else{
-                    Log.i(LOG_TAG,"Track is not empty: "+sourceTrack.getSize()+" in "+sourceTrack.getSegments().size()+" segments");
+                    GPXLog.i(LOG_TAG,"Track is not empty: "+sourceTrack.getSize()+" in "+sourceTrack.getSegments().size()+" segments");
                 }
                 if (!m_parser.getTracks().containsKey(newTrackname)) {
                     m_parser.getTracks().put(newTrackname, m_parser.getTrackInstance(newTrackname));
                 }
-                for (TrackSegment points : toBeMoved) {
-                    for (WayPoint p : points.getPoints()) {
-                        p.setParentTrack(m_parser.getTracks().get(newTrackname));
-                    }
-                }
-                if (m_parser.getTracks().get(newTrackname).getSize() == 0) {
-                    Log.i(LOG_TAG,"Add segments to empty track");
-                    for (TrackSegment points : toBeMoved) {
-                        m_parser.getTracks().get(newTrackname).addPoints(points);
-                        m_parser.getTracks().get(newTrackname).startNewSegment();
-                    }
-                } else {
-                    Log.i(LOG_TAG,"Add segments to existing track");
-                    m_parser.getTracks().get(newTrackname).addSegments(toBeMoved);
-                }
-                Log.i(LOG_TAG,"Moving Waypoints finished!");
+                m_parser.getTracks().get(newTrackname).addMovedSegments(toBeMoved);
+                GPXLog.i(LOG_TAG,"Moving Waypoints finished!");
+                m_locations.invalidate();
                 m_parser.markChanged();
             }
         };
@@ -200,36 +497,130 @@ public abstract class GPXHandler {
     }
 
     public void clear(){
-        if (m_sortedPoints != null) {
-            m_sortedPoints.clear();
-        }
+        invalidateLocations();
         m_valid=null;
     }
 
     /**
-     * Gets sorted List of all locations (from single Waypoints and tracks)
+     * Marks the sorted locations as changed, e.g. after single waypoints or tracks were added or removed.
+     */
+    void invalidateLocations() {
+        if (m_locations != null) {
+            m_locations.invalidate();
+        }
+    }
+
+    /**
+     * Gets sorted List of all locations (from single Waypoints and tracks).
+     * On the background thread of the parser (e.g. in a change listener) the list contains the current points.
+     * Other threads get the locations of the latest snapshot (see SecureGPXParser#getSnapshot), these are copies
+     * which may be read while the background thread changes the data.
      *
      * @return sorted list of WayPoint
      */
     public List<? extends WayPoint> getLocations() {
-        if (m_sortedPoints == null || m_sortedPoints.isEmpty()) {
-            if (m_sortedPoints == null) {
-                m_sortedPoints = new ArrayList<WayPoint>();
-            }
-            m_sortedPoints.addAll(m_parser.getPoints());
-            for (String trackName : m_parser.getTracks().keySet()) {
-                for (TrackSegment segments : m_parser.getTracks().get(trackName).getSegments()) {
-                    m_sortedPoints.addAll(segments.getPoints());
-                }
+        return getLocationIndex();
+    }
+
+    /**
+     * Gets the sorted locations for the calling thread, see getLocations.
+     *
+     * @return LocationIndex
+     */
+    private LocationIndex getLocationIndex() {
+        if (m_parser.isBackgroundThread()) {
+            return m_locations;
+        }
+        return m_parser.getSnapshot().getLocationIndex();
+    }
+
+    /**
+     * Gets the spatial index for the calling thread: the index of the current points on the background thread,
+     * the index of the latest snapshot on other threads.
+     *
+     * @return SpatialIndex
+     */
+    private SpatialIndex getSpatialIndex() {
+        if (m_parser.isBackgroundThread()) {
+            return m_spatialIndex;
+        }
+        return m_parser.getSnapshot().getSpatialIndex();
+    }
+
+    /**
+     * Gets all locations inside of a bounding box. If minLng > maxLng, the box crosses the 180th meridian.
+     * Track points know their track (WayPoint#getParentTrack) and segment (WayPoint#getSegment).
+     * Threads other than the background thread query the latest snapshot like getLocations, these points are copies.
+     *
+     * @param minLat minimum latitude
+     * @param minLng minimum (western) longitude
+     * @param maxLat maximum latitude
+     * @param maxLng maximum (eastern) longitude
+     * @return List of WayPoint
+     */
+    public List<WayPoint> getLocationsInBoundingBox(double minLat, double minLng, double maxLat, double maxLng) {
+        return getSpatialIndex().findInBoundingBox(minLat, minLng, maxLat, maxLng);
+    }
+
+    /**
+     * Gets all locations within a radius, sorted by distance.
+     *
+     * @param lat               latitude of center
+     * @param lng               longitude of center
+     * @param radiusInKilometer radius
+     * @return List of WayPoint
+     */
+    public List<WayPoint> getLocationsInRadius(double lat, double lng, double radiusInKilometer) {
+        return getSpatialIndex().findInRadius(lat, lng, radiusInKilometer);
+    }
+
+    /**
+     * Gets the nearest locations, sorted by distance.
+     *
+     * @param lat   latitude
+     * @param lng   longitude
+     * @param count maximum number of locations
+     * @return List of WayPoint
+     */
+    public List<WayPoint> getNearestLocations(double lat, double lng, int count) {
+        return getSpatialIndex().findNearest(lat, lng, count);
+    }
+
+    /**
+     * Gets all locations with date between start and end (inclusive), sorted by date.
+     * The points are found by binary search in each track segment and created while iterating.
+     * Threads other than the background thread iterate over the latest snapshot like getLocations.
+     *
+     * @param startTime in epoch millis
+     * @param endTime   in epoch millis
+     * @return Iterator of WayPoint
+     */
+    public Iterator<WayPoint> getLocationsBetween(long startTime, long endTime) {
+        return getLocationIndex().iterator(startTime, endTime);
+    }
+
+    /**
+     * Gets the position at the given time, interpolated between the two surrounding points of a track.
+     *
+     * @param time in epoch millis
+     * @return new WayPoint (without hash), null if no track was recorded at this time
+     */
+    public WayPoint getPositionAt(long time) {
+        for (Track track : m_parser.getTracks().values()) {
+            WayPoint res = track.getPositionAt(time);
+            if (res != null) {
+                return res;
             }
-            Collections.sort(m_sortedPoints);
         }
-        return m_sortedPoints;
+        return null;
     }
 
     public void init(SecureGPXParser parser){
 
         m_parser = parser;
+        m_thread = parser.getBackend() instanceof LooperBackend ? GPXThread.getInstance() : null;
+        m_locations = new LocationIndex(parser);
+        m_spatialIndex = new SpatialIndex(m_locations);
     }
 
     /**
@@ -250,14 +641,14 @@ public abstract class GPXHandler {
      * @param point to be removed
      */
     public void removeLocation(final WayPoint point) {
-        final boolean wasValid = isValid(); //May create own runnable in future (which would be executed before remove
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
+                boolean wasValid = isValid();
                 boolean removed = false;
                 if (point.get_parentName() == null || point.get_parentName().isEmpty()) {
                     //Single waypoint
-                    removed = m_parser.getPoints().remove(point);
+                    removed = removeSingleWaypoint(point);
                 } else {
                     //Track
                     removed = m_parser.getTracks().get(point.get_parentName()).removeWaypoint(point);
@@ -266,11 +657,10 @@ public abstract class GPXHandler {
                     }
                 }
                 if (removed) {
-                    m_sortedPoints.clear();
+                    m_locations.invalidate();
                     m_valid = null;
-                    getLocations();
-                    if (wasValid && m_sortedPoints.size() > 0) {
-                        validate(true);
+                    if (wasValid && m_locations.size() > 0) {
+                        repair();
                     }
                 }
                 m_parser.markChanged();
@@ -280,16 +670,15 @@ public abstract class GPXHandler {
     }
 
     public void removeSegment(TrackSegment segment){
-        final boolean wasValid = isValid();
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
+                boolean wasValid = isValid();
                 if (removeSegmentPrivate(segment)) {
-                    m_sortedPoints.clear();
+                    m_locations.invalidate();
                     m_valid = null;
-                    getLocations();
-                    if (wasValid && m_sortedPoints.size() > 0) {
-                        validate(true);
+                    if (wasValid && m_locations.size() > 0) {
+                        repair();
                     }
                 }
                 m_parser.markChanged();
@@ -300,16 +689,14 @@ public abstract class GPXHandler {
 
     public void removeTrack(Track track) {
         String trackName=track.getName();
-        final boolean wasValid=isValid();
         addRunnableToBackgroundThread(GPXThread.ACTION.CHANGE_DATA, new Runnable() {
             @Override
             public void run() {
-
+                boolean wasValid = isValid();
                 m_parser.getTracks().remove(trackName);
-                m_sortedPoints.clear();
-                getLocations();
+                m_locations.invalidate();
                 if(wasValid){
-                    validate(true);
+                    repair();
                 }
                 m_parser.markChanged();
             }
@@ -321,6 +708,7 @@ public abstract class GPXHandler {
         m_parser.getTracks().remove(track.getName());
         track.setName(newName);
         m_parser.getTracks().put(newName,track);
+        m_locations.invalidate();
         addRunnableToBackgroundThread(GPXThread.ACTION.CHANGE_DATA, new Runnable() {
             @Override
             public void run() {
@@ -344,9 +732,32 @@ public abstract class GPXHandler {
         addRunnableToBackgroundThread(GPXThread.ACTION.CHANGE_VALIDATION, run);
     }
 
+    /**
+     * Validates the data in background after all changes added before.
+     *
+     * @return GPXFuture of the validation result
+     */
+    public GPXFuture<Boolean> requestValidation() {
+        return requestValidation(new CancellationToken());
+    }
+
+    /**
+     * Validates the data in background like requestValidation. A cancelled validation leaves no result.
+     *
+     * @param token to cancel validation
+     * @return GPXFuture of the validation result, fails if validation was cancelled
+     */
+    public GPXFuture<Boolean> requestValidation(final CancellationToken token) {
+        return getParser().submit(GPXThread.ACTION.CHANGE_VALIDATION, token, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return isValid(token);
+            }
+        });
+    }
+
     protected void addRunnableToBackgroundThread(GPXThread.ACTION action, Runnable runnable) {
-        Log.d(GPXThread.TAG_THREAD, "Add runnable to background thread");
-        m_thread.m_handler.sendMessage(GPXThread.getPreparedMessage(action, getParser(), runnable));
+        getParser().execute(action, runnable);
     }
 
     protected SecureGPXParser getParser(){
@@ -354,17 +765,64 @@ public abstract class GPXHandler {
     }
 
     /**
-     * Checks if data of parser are valid.
+     * Checks if data of parser are valid. Has to be called in background.
      *
      * @return boolean
      */
     private boolean isValid() {
+        return isValid(CancellationToken.NONE);
+    }
+
+    /**
+     * Checks if data of parser are valid.
+     *
+     * @param token checked for every point
+     * @return boolean
+     */
+    private boolean isValid(CancellationToken token) {
         if (m_valid == null) {
-            m_valid = validate();
+            m_valid = validate(false, token);
         }
         return m_valid.booleanValue();
     }
 
+    /**
+     * Removes a single waypoint. The list of single waypoints is sorted, so the point is searched by its date.
+     *
+     * @param point to be removed
+     * @return true if point was removed
+     */
+    private boolean removeSingleWaypoint(WayPoint point) {
+        List<WayPoint> points = m_parser.getPoints();
+        //Equal points have the same date in seconds
+        long minTime = WayPoint.toSeconds(point.getSortTime()) * 1000;
+        int lo = 0;
+        int hi = points.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (points.get(mid).getSortTime() < minTime) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int found = -1;
+        for (int i = lo; i < points.size() && points.get(i).getSortTime() < minTime + 1000; i++) {
+            if (points.get(i) == point) {
+                found = i;
+                break;
+            }
+            if (found == -1 && points.get(i).equals(point)) {
+                found = i;
+            }
+        }
+        if (found == -1) {
+            return false;
+        }
+        points.remove(found);
+        return true;
+    }
+
     private boolean removeSegmentPrivate(TrackSegment segment){
         if(segment.isEmpty()){
             return false;
@@ -376,7 +834,8 @@ public abstract class GPXHandler {
         if(track.getSegments().isEmpty()) {
             m_parser.getTracks().remove(initName);
         }
-        Log.i(LOG_TAG,"Segment "+segment.getSegmentNumber()+" removed. Remaining segments: "+track.getSegments().size());
+        m_locations.invalidate();
+        GPXLog.i(LOG_TAG,"Segment "+segment.getSegmentNumber()+" removed. Remaining segments: "+track.getSegments().size());
         return removed;
     }
 
@@ -384,23 +843,79 @@ public abstract class GPXHandler {
      * Validates the data, and repairs broken blockchain if needed
      *
      * @param repair flag which indicates, if blockchain should be repaired
+     * @param token  checked for every point, must not be cancelled while repairing
      * @return
      */
-    private boolean validate(boolean repair) {
-        String prevHash = null;
-        for (WayPoint wayP : getLocations()) {
-            prevHash = wayP.generateHash(prevHash, repair);
+    private boolean validate(boolean repair, CancellationToken token) {
+        //Hashes are compared binary, the hex text of the previous hash is only needed as input of the next one
+        byte[] prevHash = null;
+        byte[] prevHashText = new byte[2 * TrackSegment.HASH_LENGTH];
+        for (WayPoint wayP : m_locations) {
+            token.throwIfCancelled();
+            if (prevHash != null) {
+                SecureGPXParser.bytesToHexAscii(prevHash, prevHashText);
+            }
+            prevHash = wayP.generateHashBytes(prevHash == null ? null : prevHashText, repair);
+        }
+        if (repair && !m_locations.isEmpty()) {
+            anchorTip(m_locations.get(m_locations.size() - 1));
+        }
+        if (prevHash == null) {
+            return false;
+        }
+        if (m_locations.get(m_locations.size() - 1).hasHash(prevHash)) {
+            return true;
         }
-        return getLocations().get(getLocations().size() - 1).getHash() == null ? false : prevHash.equals(getLocations().get(getLocations().size() - 1).getHash());
+        //Stored tip differs, the chain is still valid if the calculated tip is known to the store
+        HashStoreAnchor anchor = m_anchor;
+        if (anchor == null) {
+            return false;
+        }
+        String tip = SecureGPXParser.bytesToHexString(prevHash);
+        if (anchor.isCached(tip)) {
+            return true;
+        }
+        //The store may block, so it is only asked on the background thread
+        return m_parser.isBackgroundThread() && anchor.isAnchored(tip);
+    }
+
+    /**
+     * Passes the hash of a new chain tip to the HashStore (if set). Has to be called in background.
+     * The tip is passed by a task with validation priority, so it runs after the queued edits and only
+     * the newest tip of a burst of edits is passed on.
+     *
+     * @param tip newest point of the chain
+     */
+    private void anchorTip(WayPoint tip) {
+        if (m_anchor == null) {
+            return;
+        }
+        m_pendingTip = tip;
+        if (m_anchorQueued) {
+            return;
+        }
+        m_anchorQueued = true;
+        addRunnableToBackgroundThread(GPXThread.ACTION.CHANGE_VALIDATION, new Runnable() {
+            @Override
+            public void run() {
+                m_anchorQueued = false;
+                WayPoint tip = m_pendingTip;
+                m_pendingTip = null;
+                HashStoreAnchor anchor = m_anchor;
+                if (tip != null && anchor != null) {
+                    anchor.offer(tip.getHash());
+                }
+            }
+        });
     }
 
     /**
-     * Validate the data.
+     * Validates and repairs the data.
      *
      * @return boolean
      */
-    private boolean validate() {
-        return validate(false);
+    private boolean repair() {
+        return validate(true, CancellationToken.NONE);
     }
 
 
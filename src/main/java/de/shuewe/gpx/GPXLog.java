@@ -0,0 +1,67 @@
+package de.shuewe.gpx;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging of the library. Uses android.util.Log on Android and java.util.logging on a plain JVM (see GPXPlatform).
+ */
+final class GPXLog {
+
+    private GPXLog() {
+    }
+
+    static void d(String tag, String message) {
+        if (GPXPlatform.ANDROID) {
+            AndroidLog.d(tag, message);
+        } else {
+            Logger.getLogger(tag).log(Level.FINE, message);
+        }
+    }
+
+    static void i(String tag, String message) {
+        if (GPXPlatform.ANDROID) {
+            AndroidLog.i(tag, message);
+        } else {
+            Logger.getLogger(tag).log(Level.INFO, message);
+        }
+    }
+
+    static void w(String tag, String message, Throwable throwable) {
+        if (GPXPlatform.ANDROID) {
+            AndroidLog.w(tag, message, throwable);
+        } else {
+            Logger.getLogger(tag).log(Level.WARNING, message, throwable);
+        }
+    }
+
+    static void e(String tag, String message, Throwable throwable) {
+        if (GPXPlatform.ANDROID) {
+            AndroidLog.e(tag, message, throwable);
+        } else {
+            Logger.getLogger(tag).log(Level.SEVERE, message, throwable);
+        }
+    }
+
+    /**
+     * Calls of android.util.Log, in an own class so it is only loaded on Android.
+     */
+    private static final class AndroidLog {
+
+        static void d(String tag, String message) {
+            android.util.Log.d(tag, message);
+        }
+
+        static void i(String tag, String message) {
+            android.util.Log.i(tag, message);
+        }
+
+        static void w(String tag, String message, Throwable throwable) {
+            android.util.Log.w(tag, message, throwable);
+        }
+
+        static void e(String tag, String message, Throwable throwable) {
+            android.util.Log.e(tag, message, throwable);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package de.shuewe.gpx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+
+/**
+ * Selects the platform specific implementations at runtime. On Android the xmlpull parser and serializer of the
+ * platform and android.util.Log are used, on a plain JVM the StAX parser of the JDK, a plain writer and
+ * java.util.logging. Classes of the other platform are never loaded, so no Android classes are needed on a server.
+ */
+final class GPXPlatform {
+
+    //True if running on Android (ART reports itself as Dalvik)
+    static final boolean ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+
+    //Flag indicates if GPX documents are read and written by xmlpull, changed by tests to run both implementations
+    private static volatile boolean m_xmlPull = ANDROID;
+
+    private GPXPlatform() {
+    }
+
+    /**
+     * Selects the xmlpull implementations of Android or the StAX based ones, independent of the platform. Used by
+     * tests to compare both implementations on one JVM (xmlpull needs Android or Robolectric). Logging is not changed.
+     *
+     * @param xmlPull true for xmlpull, false for StAX
+     */
+    static void setXmlPull(boolean xmlPull) {
+        m_xmlPull = xmlPull;
+    }
+
+    /**
+     * Checks if GPX documents are read and written by xmlpull.
+     *
+     * @return boolean
+     */
+    static boolean isXmlPull() {
+        return m_xmlPull;
+    }
+
+    /**
+     * Creates a reader for a GPX document.
+     *
+     * @param stream to read from
+     * @return XmlReader positioned before the first tag
+     * @throws IOException if the stream can not be read
+     */
+    static XmlReader newReader(InputStream stream) throws IOException {
+        return m_xmlPull ? new PullXmlReader(stream) : new StaxXmlReader(stream);
+    }
+
+    /**
+     * Creates a writer for a GPX document.
+     *
+     * @param writer to write to
+     * @return XmlWriter
+     * @throws IOException if the writer can not be used
+     */
+    static XmlWriter newWriter(Writer writer) throws IOException {
+        return m_xmlPull ? new SerializerXmlWriter(writer) : new StreamXmlWriter(writer);
+    }
+}
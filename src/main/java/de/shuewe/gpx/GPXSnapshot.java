@@ -0,0 +1,137 @@
+package de.shuewe.gpx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable state of a SecureGPXParser, published after each change on the background thread.
+ * Snapshots of unchanged tracks and segments and the copies of unchanged single waypoints are shared
+ * between consecutive snapshots, so publishing needs no copy of the points. A snapshot may be read by any
+ * thread without locking.
+ */
+public final class GPXSnapshot {
+
+    private final List<WayPoint> m_wayPoints;
+
+    private final Map<String, TrackSnapshot> m_tracks;
+
+    //Single waypoints the copies were created from and their modification counts, not exposed
+    private final WayPoint[] m_sources;
+    private final int[] m_sourceModCounts;
+
+    //Sorted locations and spatial index, created on first use
+    private volatile LocationIndex m_locations = null;
+    private volatile SpatialIndex m_spatialIndex = null;
+
+    private GPXSnapshot(List<WayPoint> wayPoints, Map<String, TrackSnapshot> tracks, WayPoint[] sources, int[] sourceModCounts) {
+        m_wayPoints = wayPoints;
+        m_tracks = Collections.unmodifiableMap(tracks);
+        m_sources = sources;
+        m_sourceModCounts = sourceModCounts;
+    }
+
+    /**
+     * Creates a snapshot. Has to be called by the thread which changes the parser.
+     *
+     * @param wayPoints single waypoints (copied)
+     * @param tracks    tracks of parser
+     * @param previous  snapshot published before, its copies of the waypoints are reused if they are unchanged. Can be null.
+     * @return GPXSnapshot
+     */
+    static GPXSnapshot create(List<WayPoint> wayPoints, Map<String, Track> tracks, GPXSnapshot previous) {
+        List<WayPoint> points;
+        WayPoint[] sources;
+        int[] modCounts;
+        if (previous != null && previous.isCopyOf(wayPoints)) {
+            points = previous.m_wayPoints;
+            sources = previous.m_sources;
+            modCounts = previous.m_sourceModCounts;
+        } else {
+            List<WayPoint> copies = new ArrayList<WayPoint>(wayPoints.size());
+            sources = new WayPoint[wayPoints.size()];
+            modCounts = new int[wayPoints.size()];
+            for (int i = 0; i < sources.length; i++) {
+                WayPoint point = wayPoints.get(i);
+                copies.add(point.copy());
+                sources[i] = point;
+                modCounts[i] = point.getModCount();
+            }
+            points = Collections.unmodifiableList(copies);
+        }
+        Map<String, TrackSnapshot> trackSnapshots = new LinkedHashMap<String, TrackSnapshot>();
+        for (Map.Entry<String, Track> entry : tracks.entrySet()) {
+            trackSnapshots.put(entry.getKey(), entry.getValue().getSnapshot());
+        }
+        return new GPXSnapshot(points, trackSnapshots, sources, modCounts);
+    }
+
+    /**
+     * Checks if the waypoints of this snapshot are copies of the given, unchanged waypoints.
+     *
+     * @param wayPoints single waypoints of the parser
+     * @return boolean
+     */
+    private boolean isCopyOf(List<WayPoint> wayPoints) {
+        if (wayPoints.size() != m_sources.length) {
+            return false;
+        }
+        for (int i = 0; i < m_sources.length; i++) {
+            WayPoint point = wayPoints.get(i);
+            //Changes of attached points are not counted
+            if (point != m_sources[i] || point.m_segment != null || point.getModCount() != m_sourceModCounts[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the single waypoints. These are copies, changes are not applied to the parser.
+     *
+     * @return unmodifiable List of WayPoint
+     */
+    public List<WayPoint> getWayPoints() {
+        return m_wayPoints;
+    }
+
+    /**
+     * Gets the tracks
+     *
+     * @return unmodifiable Map of track name to TrackSnapshot
+     */
+    public Map<String, TrackSnapshot> getTracks() {
+        return m_tracks;
+    }
+
+    /**
+     * Gets the sorted locations of this snapshot (see GPXHandler#getLocations), may be called by any thread.
+     *
+     * @return LocationIndex
+     */
+    LocationIndex getLocationIndex() {
+        LocationIndex res = m_locations;
+        if (res == null) {
+            //Concurrent callers may create two equal indices
+            res = new LocationIndex(this);
+            m_locations = res;
+        }
+        return res;
+    }
+
+    /**
+     * Gets the spatial index of the locations of this snapshot, may be called by any thread.
+     *
+     * @return SpatialIndex
+     */
+    SpatialIndex getSpatialIndex() {
+        SpatialIndex res = m_spatialIndex;
+        if (res == null) {
+            res = new SpatialIndex(getLocationIndex());
+            m_spatialIndex = res;
+        }
+        return res;
+    }
+}
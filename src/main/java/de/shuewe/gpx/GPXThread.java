@@ -1,12 +1,16 @@
 package de.shuewe.gpx;
 
-import android.net.wifi.aware.DiscoverySession;
-import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Message;
-import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Looper thread used by LooperBackend. Tasks which are posted before the Looper is prepared are
+ * queued and passed to the Handler afterwards, so no caller waits for the thread to start.
+ */
 public class GPXThread extends Thread {
 
     public static final String TAG_THREAD="GPXThread";
@@ -15,10 +19,18 @@ public class GPXThread extends Thread {
 
     public Handler m_handler;
 
+    //Tasks posted before the Handler was created, guarded by this
+    private final List<Runnable> m_pending = new ArrayList<Runnable>();
+
+    //Number of queued or running tasks
+    private final AtomicInteger m_queued = new AtomicInteger();
+
     private GPXThread(){
+        super(TAG_THREAD);
+        setDaemon(true);
     }
 
-    public Handler getHandler()  {
+    public synchronized Handler getHandler()  {
         return m_handler;
     }
 
@@ -44,69 +56,62 @@ public class GPXThread extends Thread {
 
     }
 
-    public static Message getPreparedMessage(ACTION action,SecureGPXParser parser,Runnable runnable){
-        Message res = new Message();
-        res.arg1=action.getId();
-        res.obj=new Object[]{parser,runnable};
-        return res;
-    }
-
-    public static SecureGPXParser getGPXParserFromMessage(Message msg){
-        return (SecureGPXParser) ((Object[])msg.obj)[0];
-    }
-    public static Runnable getRunnableFromMessage(Message msg){
-        return (Runnable) ((Object[])msg.obj)[1];
-    }
-
-
-
-    public static GPXThread getInstance(){
+    public static synchronized GPXThread getInstance(){
         if(m_instance == null || !m_instance.isAlive()){
             m_instance = new GPXThread();
             m_instance.start();
-            while (m_instance.getHandler() == null){
+        }
+        return m_instance;
+    }
 
+    /**
+     * Runs the task on this thread, after all tasks posted before.
+     *
+     * @param runnable task to be run
+     */
+    public void post(final Runnable runnable) {
+        m_queued.incrementAndGet();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    m_queued.decrementAndGet();
+                }
+            }
+        };
+        Handler handler;
+        synchronized (this) {
+            if (m_handler == null) {
+                m_pending.add(task);
+                return;
             }
+            handler = m_handler;
         }
-        return m_instance;
+        handler.post(task);
+    }
+
+    /**
+     * Checks if no task is queued or running.
+     *
+     * @return boolean
+     */
+    public boolean isIdle() {
+        return m_queued.get() == 0;
     }
 
     @Override
     public void run(){
         Looper.prepare();
-        m_handler= new Handler() {
-            public void handleMessage(Message msg) {
-                ACTION action = ACTION.fromInt(msg.arg1);
-                switch (action){
-                    case CHANGE_DATA:
-                        Log.d(TAG_THREAD,"Handle change..");
-                        break;
-                    case CHANGE_VALIDATION:
-                        Log.d(TAG_THREAD,"Handle validation..");
-
-                    case SAVE:
-                        Log.d(TAG_THREAD,"Handle save..");
-
-                    case INIT:
-                        Log.d(TAG_THREAD,"Handle init");
-                }
-                Runnable runnable = getRunnableFromMessage(msg);
-                SecureGPXParser parser = getGPXParserFromMessage(msg);
-                Log.d(TAG_THREAD,"startRunnable");
-                runnable.run();
-
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                    if(Looper.myLooper().getQueue().isIdle()){
-                        Log.d(TAG_THREAD,"isIdle");
-                    }else{
-                        Log.d(TAG_THREAD,"notIdle");
-                    }
-                }
-                if(parser!=null) {
-                    parser.notifyListener(action);
-                }
+        Handler handler = new Handler();
+        synchronized (this) {
+            m_handler = handler;
+            for (Runnable task : m_pending) {
+                handler.post(task);
             }
-        };
+            m_pending.clear();
+        }
         Looper.loop();
     }
 }
@@ -0,0 +1,43 @@
+package de.shuewe.gpx;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Interface for an external store of chain hashes ("Hashstore").
+ * A chain is validated, if the locally calculated hash of its last WayPoint can be found in the store.
+ */
+public interface HashStore {
+
+    /**
+     * Anchors the given hash values in the store.
+     *
+     * @param hashes to be stored
+     * @throws IOException if the store is not available
+     */
+    void anchor(Collection<String> hashes) throws IOException;
+
+    /**
+     * Checks if the given hash value is anchored in the store.
+     *
+     * @param hash to look for
+     * @return true if hash is known to the store
+     * @throws IOException if the store is not available
+     */
+    boolean contains(String hash) throws IOException;
+
+    /**
+     * Listener for failed writes to a HashStore (see GPXHandler#setHashStoreFailureListener).
+     */
+    interface FailureListener {
+
+        /**
+         * Called if tips could not be anchored. The tips are kept and written again later.
+         *
+         * @param e       cause of failure
+         * @param pending number of tips waiting to be anchored
+         * @param dropped number of tips dropped so far, because too many were pending
+         */
+        void handleAnchorFailure(IOException e, int pending, long dropped);
+    }
+}
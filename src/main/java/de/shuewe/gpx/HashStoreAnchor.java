@@ -0,0 +1,292 @@
+package de.shuewe.gpx;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Anchors chain tips in a HashStore. Tips are collected and written in batches on an own
+ * thread, so the recording thread is never blocked by the store. Positive lookups are cached.
+ * Failed writes are retried with exponential backoff. The number of pending tips is bounded,
+ * the oldest tips are dropped first, because the newest tip anchors the whole chain.
+ */
+class HashStoreAnchor {
+
+    static final String TAG_ANCHOR = "HashStoreAnchor";
+
+    //Default number of tips which triggers a write to the store
+    static final int DEFAULT_BATCH_SIZE = 50;
+
+    //Default delay until pending tips are written, even if batch is not full
+    static final long DEFAULT_FLUSH_DELAY_MS = 5000;
+
+    //Default maximum number of pending tips
+    static final int DEFAULT_MAX_PENDING = 1000;
+
+    //Default delay of the first retry after a failed write, doubled for each further failure
+    static final long DEFAULT_RETRY_DELAY_MS = 1000;
+
+    //Maximum delay between retries
+    static final long MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+
+    //Number of anchored hashes kept in cache
+    private static final int CACHE_SIZE = 1024;
+
+    //Single thread shared by all anchors
+    private static ScheduledExecutorService m_executor;
+
+    private final HashStore m_store;
+    private final int m_batchSize;
+    private final long m_flushDelay;
+    private final int m_maxPending;
+    private final long m_initialRetryDelay;
+
+    //Tips which are not written to store yet
+    private List<String> m_pending = new ArrayList<String>();
+
+    //Flag indicates if a delayed flush is scheduled
+    private boolean m_flushScheduled = false;
+
+    //Delay of the next retry, 0 if the last write succeeded. Guarded by this, like the following fields.
+    private long m_retryDelay = 0;
+
+    //Flag indicates if a retry is scheduled
+    private boolean m_retryScheduled = false;
+
+    //Number of tips dropped because too many were pending
+    private long m_dropped = 0;
+
+    private volatile HashStore.FailureListener m_failureListener = null;
+
+    //LRU cache of hashes known to be anchored
+    private final Map<String, Boolean> m_cache = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    HashStoreAnchor(HashStore store) {
+        this(store, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_DELAY_MS);
+    }
+
+    HashStoreAnchor(HashStore store, int batchSize, long flushDelay) {
+        this(store, batchSize, flushDelay, DEFAULT_MAX_PENDING, DEFAULT_RETRY_DELAY_MS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param store      to write tips to
+     * @param batchSize  number of tips which triggers a write
+     * @param flushDelay max delay in ms until pending tips are written
+     * @param maxPending maximum number of pending tips, older tips are dropped
+     * @param retryDelay delay in ms of the first retry after a failed write
+     */
+    HashStoreAnchor(HashStore store, int batchSize, long flushDelay, int maxPending, long retryDelay) {
+        m_store = store;
+        m_batchSize = batchSize;
+        m_flushDelay = flushDelay;
+        m_maxPending = maxPending;
+        m_initialRetryDelay = retryDelay;
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (m_executor == null) {
+            m_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread res = new Thread(runnable, TAG_ANCHOR);
+                    res.setDaemon(true);
+                    return res;
+                }
+            });
+        }
+        return m_executor;
+    }
+
+    HashStore getStore() {
+        return m_store;
+    }
+
+    void setFailureListener(HashStore.FailureListener listener) {
+        m_failureListener = listener;
+    }
+
+    /**
+     * Gets the number of tips which were dropped because too many were pending.
+     *
+     * @return count
+     */
+    synchronized long getDroppedCount() {
+        return m_dropped;
+    }
+
+    /**
+     * Gets the number of tips which are not written to the store yet.
+     *
+     * @return count
+     */
+    synchronized int getPendingCount() {
+        return m_pending.size();
+    }
+
+    /**
+     * Adds a chain tip to be anchored. Never blocks on the store.
+     *
+     * @param hash tip of chain
+     */
+    void offer(String hash) {
+        if (hash == null) {
+            return;
+        }
+        synchronized (this) {
+            m_pending.add(hash);
+            trimPending();
+            if (m_retryDelay > 0) {
+                //Store failed before, pending tips are written by the scheduled retry
+                return;
+            }
+            if (m_pending.size() < m_batchSize) {
+                if (!m_flushScheduled) {
+                    m_flushScheduled = true;
+                    getExecutor().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            writePending(false);
+                        }
+                    }, m_flushDelay, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Writes pending tips to the store (asynchronously).
+     */
+    void flush() {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                writePending(false);
+            }
+        });
+    }
+
+    /**
+     * Checks if given hash is known to be anchored, without asking the store.
+     *
+     * @param hash to check
+     * @return true if anchored by this anchor or found in the store before
+     */
+    boolean isCached(String hash) {
+        synchronized (m_cache) {
+            return m_cache.containsKey(hash);
+        }
+    }
+
+    /**
+     * Checks if given hash is anchored. Uses the cache before asking the store, which may block.
+     *
+     * @param hash to check
+     * @return true if anchored
+     */
+    boolean isAnchored(String hash) {
+        if (hash == null) {
+            return false;
+        }
+        if (isCached(hash)) {
+            return true;
+        }
+        try {
+            if (m_store.contains(hash)) {
+                synchronized (m_cache) {
+                    m_cache.put(hash, Boolean.TRUE);
+                }
+                return true;
+            }
+        } catch (IOException e) {
+            GPXLog.w(TAG_ANCHOR, "Hashstore not available", e);
+        }
+        return false;
+    }
+
+    /**
+     * Drops the oldest pending tips if too many are pending. Has to be called with the lock held.
+     */
+    private void trimPending() {
+        int excess = m_pending.size() - m_maxPending;
+        if (excess > 0) {
+            m_pending.subList(0, excess).clear();
+            m_dropped += excess;
+        }
+    }
+
+    /**
+     * Writes the pending tips to the store, schedules a retry if the store fails.
+     *
+     * @param retry flag indicates if called by the scheduled retry
+     */
+    private void writePending(boolean retry) {
+        List<String> batch;
+        synchronized (this) {
+            m_flushScheduled = false;
+            if (retry) {
+                m_retryScheduled = false;
+            }
+            if (m_pending.isEmpty()) {
+                return;
+            }
+            batch = m_pending;
+            m_pending = new ArrayList<String>();
+        }
+        try {
+            m_store.anchor(batch);
+            synchronized (m_cache) {
+                for (String hash : batch) {
+                    m_cache.put(hash, Boolean.TRUE);
+                }
+            }
+            synchronized (this) {
+                m_retryDelay = 0;
+            }
+            GPXLog.d(TAG_ANCHOR, "Anchored " + batch.size() + " hashes");
+        } catch (IOException e) {
+            int pending;
+            long dropped;
+            long delay;
+            synchronized (this) {
+                m_pending.addAll(0, batch);
+                trimPending();
+                //The delay grows per scheduled retry, not per failed write (flushes may fail while a retry is waiting)
+                if (!m_retryScheduled) {
+                    m_retryDelay = m_retryDelay == 0 ? m_initialRetryDelay : Math.min(2 * m_retryDelay, MAX_RETRY_DELAY_MS);
+                    m_retryScheduled = true;
+                    getExecutor().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            writePending(true);
+                        }
+                    }, m_retryDelay, TimeUnit.MILLISECONDS);
+                }
+                delay = m_retryDelay;
+                pending = m_pending.size();
+                dropped = m_dropped;
+            }
+            GPXLog.w(TAG_ANCHOR, "Anchoring failed, retry in " + delay + " ms", e);
+            HashStore.FailureListener listener = m_failureListener;
+            if (listener != null) {
+                listener.handleAnchorFailure(e, pending, dropped);
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package de.shuewe.gpx;
+
+/**
+ * Bounded buffer for trackpoints in front of the background thread of a parser (see GPXHandler#setIngestionBuffer).
+ * Fixes are stored in primitive ring arrays, at most one drain task per buffer is queued, which appends all buffered
+ * fixes at once. So neither the queue of the background thread nor the buffer grow during bursts or a slow save.
+ */
+public class IngestionBuffer {
+
+    /**
+     * Handling of a fix which arrives while the buffer is full
+     */
+    public enum OverflowPolicy {
+        //Caller waits until the buffer was drained (must not be used on the background thread of the parser)
+        BLOCK,
+        //Oldest buffered fix is dropped
+        DROP_OLDEST,
+        //Newest buffered fix of the same track is replaced by the new fix, so the track ends at the latest position
+        MERGE_LATEST
+    }
+
+    private final int m_capacity;
+    private final OverflowPolicy m_policy;
+
+    //Ring of buffered fixes, oldest at m_head. Guarded by this, like all following fields.
+    private final String[] m_tracks;
+    private final long[] m_time;
+    private final double[] m_lat;
+    private final double[] m_lng;
+    private final double[] m_accuracy;
+    //Altitudes, NaN if the fix has none
+    private final double[] m_altitude;
+    private int m_head = 0;
+    private int m_size = 0;
+
+    //Flag indicates if a drain task is queued
+    private boolean m_drainScheduled = false;
+
+    //Metrics
+    private int m_maxDepth = 0;
+    private long m_accepted = 0;
+    private long m_dropped = 0;
+    private long m_merged = 0;
+    private long m_blockedNanos = 0;
+
+    IngestionBuffer(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        m_capacity = capacity;
+        m_policy = policy;
+        m_tracks = new String[capacity];
+        m_time = new long[capacity];
+        m_lat = new double[capacity];
+        m_lng = new double[capacity];
+        m_accuracy = new double[capacity];
+        m_altitude = new double[capacity];
+    }
+
+    /**
+     * Adds a fix, handles overflow according to the policy.
+     *
+     * @param track    name of track
+     * @param time     time in epoch millis
+     * @param lat      latitude
+     * @param lng      longitude
+     * @param accuracy accuracy
+     * @param altitude altitude, NaN if there is none
+     * @return true if a drain task has to be queued by the caller
+     */
+    synchronized boolean offer(String track, long time, double lat, double lng, double accuracy, double altitude) {
+        if (m_size == m_capacity) {
+            if (m_policy == OverflowPolicy.BLOCK) {
+                long start = System.nanoTime();
+                try {
+                    while (m_size == m_capacity) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    m_dropped++;
+                    return false;
+                } finally {
+                    m_blockedNanos += System.nanoTime() - start;
+                }
+            } else {
+                int newest = (m_head + m_size - 1) % m_capacity;
+                if (m_policy == OverflowPolicy.MERGE_LATEST && track.equals(m_tracks[newest])) {
+                    set(newest, track, time, lat, lng, accuracy, altitude);
+                    m_merged++;
+                    return false;
+                }
+                m_head = (m_head + 1) % m_capacity;
+                m_size--;
+                m_dropped++;
+            }
+        }
+        set((m_head + m_size) % m_capacity, track, time, lat, lng, accuracy, altitude);
+        m_size++;
+        m_accepted++;
+        m_maxDepth = Math.max(m_maxDepth, m_size);
+        if (m_drainScheduled) {
+            return false;
+        }
+        m_drainScheduled = true;
+        return true;
+    }
+
+    private void set(int index, String track, long time, double lat, double lng, double accuracy, double altitude) {
+        m_tracks[index] = track;
+        m_time[index] = time;
+        m_lat[index] = lat;
+        m_lng[index] = lng;
+        m_accuracy[index] = accuracy;
+        m_altitude[index] = altitude;
+    }
+
+    /**
+     * Removes all buffered fixes, called by the drain task.
+     *
+     * @return Batch of fixes in order of arrival
+     */
+    synchronized Batch drain() {
+        Batch res = new Batch(m_size);
+        for (int i = 0; i < m_size; i++) {
+            int index = (m_head + i) % m_capacity;
+            res.m_tracks[i] = m_tracks[index];
+            res.m_time[i] = m_time[index];
+            res.m_lat[i] = m_lat[index];
+            res.m_lng[i] = m_lng[index];
+            res.m_accuracy[i] = m_accuracy[index];
+            res.m_altitude[i] = m_altitude[index];
+            m_tracks[index] = null;
+        }
+        m_head = 0;
+        m_size = 0;
+        m_drainScheduled = false;
+        notifyAll();
+        return res;
+    }
+
+    public int getCapacity() {
+        return m_capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return m_policy;
+    }
+
+    /**
+     * Gets the number of buffered fixes
+     *
+     * @return queue depth
+     */
+    public synchronized int getDepth() {
+        return m_size;
+    }
+
+    /**
+     * Gets the maximum number of buffered fixes since creation
+     *
+     * @return maximum queue depth
+     */
+    public synchronized int getMaxDepth() {
+        return m_maxDepth;
+    }
+
+    /**
+     * Gets the number of fixes which were added to the buffer
+     *
+     * @return count
+     */
+    public synchronized long getAcceptedCount() {
+        return m_accepted;
+    }
+
+    /**
+     * Gets the number of fixes which were dropped (DROP_OLDEST, MERGE_LATEST for another track or interrupted BLOCK)
+     *
+     * @return count
+     */
+    public synchronized long getDroppedCount() {
+        return m_dropped;
+    }
+
+    /**
+     * Gets the number of fixes which replaced the newest buffered fix (MERGE_LATEST)
+     *
+     * @return count
+     */
+    public synchronized long getMergedCount() {
+        return m_merged;
+    }
+
+    /**
+     * Gets the time callers waited for free space (BLOCK)
+     *
+     * @return time in millis
+     */
+    public synchronized long getBlockedTimeMillis() {
+        return m_blockedNanos / 1000000;
+    }
+
+    /**
+     * Fixes taken from the buffer by one drain.
+     */
+    static class Batch {
+
+        final int m_count;
+        final String[] m_tracks;
+        final long[] m_time;
+        final double[] m_lat;
+        final double[] m_lng;
+        final double[] m_accuracy;
+        final double[] m_altitude;
+
+        Batch(int count) {
+            m_count = count;
+            m_tracks = new String[count];
+            m_time = new long[count];
+            m_lat = new double[count];
+            m_lng = new double[count];
+            m_accuracy = new double[count];
+            m_altitude = new double[count];
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package de.shuewe.gpx;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Level of detail pyramid of a TrackSegment. Level k contains the points of level k-1, simplified with a
+ * tolerance of 2^k meter (Douglas-Peucker). The rows are split into chunks of CHUNK_SIZE rows which are
+ * simplified independently (neighbouring chunks share their boundary row), so appended points only change
+ * the last chunk. Complete chunks are simplified in background, the last chunk is simplified on request.
+ */
+public class LevelOfDetail {
+
+    //Number of levels, the coarsest level has a tolerance of 2^(LEVELS-1) meter
+    public static final int LEVELS = 16;
+
+    //Number of rows which are simplified together
+    static final int CHUNK_SIZE = 4096;
+
+    //Meters per pixel at zoom level 0 at the equator (256 pixel tiles)
+    private static final double METERS_PER_PIXEL = 156543.03392;
+
+    private static final String TAG_THREAD = "LevelOfDetail";
+
+    private static ExecutorService m_executor;
+
+    private final TrackSegment m_segment;
+
+    //Simplified complete chunks (null if not available yet) and chunks which are simplified in background.
+    //Both are accessed by the background thread, guarded by this.
+    private Chunk[] m_chunks = new Chunk[0];
+    private boolean[] m_pending = new boolean[0];
+
+    //Increased when simplified rows changed, results of older background tasks are dropped
+    private int m_generation = 0;
+
+    //Simplified last chunk, only used by the thread which owns the segment
+    private Chunk m_openChunk = null;
+
+    LevelOfDetail(TrackSegment segment) {
+        m_segment = segment;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (m_executor == null) {
+            m_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread res = new Thread(runnable, TAG_THREAD);
+                    res.setDaemon(true);
+                    res.setPriority(Thread.MIN_PRIORITY);
+                    return res;
+                }
+            });
+        }
+        return m_executor;
+    }
+
+    /**
+     * Gets the level which fits to a zoom level of a map (web mercator, 256 pixel tiles),
+     * so that the tolerance of the level is at most one pixel.
+     *
+     * @param zoom zoom level of map
+     * @param lat  latitude of the center of the map
+     * @return level
+     */
+    public static int getLevel(double zoom, double lat) {
+        double metersPerPixel = METERS_PER_PIXEL * Math.cos(Math.toRadians(lat)) / Math.pow(2, zoom);
+        if (metersPerPixel < 1) {
+            return 0;
+        }
+        int level = (int) Math.floor(Math.log(metersPerPixel) / Math.log(2));
+        return Math.min(level, LEVELS - 1);
+    }
+
+    /**
+     * Gets the points of the segment which have to be drawn for a viewport.
+     * Chunks which are simplified in background at the moment are returned with all points.
+     *
+     * @param zoom   zoom level of map
+     * @param minLat minimum latitude of viewport
+     * @param minLng minimum (western) longitude of viewport
+     * @param maxLat maximum latitude of viewport
+     * @param maxLng maximum (eastern) longitude of viewport
+     * @return unmodifiable List of WayPoint, sorted by date
+     */
+    public List<WayPoint> getPoints(double zoom, double minLat, double minLng, double maxLat, double maxLng) {
+        int level = getLevel(zoom, (minLat + maxLat) / 2);
+        int[] rows = new int[0];
+        int count = 0;
+        Chunk[] chunks = update();
+        for (int c = 0; c < chunks.length; c++) {
+            Chunk chunk = c < chunks.length - 1 || m_openChunk == null ? chunks[c] : m_openChunk;
+            int[] chunkRows;
+            if (chunk == null) {
+                int start = c * CHUNK_SIZE;
+                chunkRows = new int[CHUNK_SIZE + 1];
+                for (int i = 0; i < chunkRows.length; i++) {
+                    chunkRows[i] = start + i;
+                }
+            } else if (chunk.intersects(level, minLat, minLng, maxLat, maxLng)) {
+                chunkRows = chunk.m_rows[level];
+            } else {
+                continue;
+            }
+            if (rows.length < count + chunkRows.length) {
+                rows = Arrays.copyOf(rows, Math.max(2 * rows.length, count + chunkRows.length));
+            }
+            //Skip boundary row, which is part of the previous chunk
+            int first = count > 0 && rows[count - 1] == chunkRows[0] ? 1 : 0;
+            System.arraycopy(chunkRows, first, rows, count, chunkRows.length - first);
+            count += chunkRows.length - first;
+        }
+        return m_segment.getRows(Arrays.copyOf(rows, count));
+    }
+
+    /**
+     * Schedules simplification of complete chunks and simplifies the last chunk if it changed.
+     *
+     * @return chunks, the last entry is a placeholder for the open chunk
+     */
+    private Chunk[] update() {
+        int size = m_segment.size();
+        int complete = size == 0 ? 0 : (size - 1) / CHUNK_SIZE;
+        Chunk[] res;
+        synchronized (this) {
+            if (m_chunks.length < complete) {
+                m_chunks = Arrays.copyOf(m_chunks, complete);
+                m_pending = Arrays.copyOf(m_pending, complete);
+            }
+            for (int c = 0; c < complete; c++) {
+                if (m_chunks[c] == null && !m_pending[c]) {
+                    m_pending[c] = true;
+                    schedule(c, m_generation);
+                }
+            }
+            res = Arrays.copyOf(m_chunks, size == 0 ? 0 : complete + 1);
+        }
+        int start = complete * CHUNK_SIZE;
+        if (size > 0 && (m_openChunk == null || m_openChunk.m_start != start || m_openChunk.m_end != size - 1)) {
+            m_openChunk = simplify(start, size);
+        }
+        return res;
+    }
+
+    private void schedule(final int chunk, final int generation) {
+        final int start = chunk * CHUNK_SIZE;
+        final double[][] coordinates = m_segment.copyCoordinates(start, start + CHUNK_SIZE + 1);
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                Chunk res = simplify(start, coordinates[0], coordinates[1]);
+                synchronized (LevelOfDetail.this) {
+                    if (generation == m_generation && chunk < m_chunks.length) {
+                        m_chunks[chunk] = res;
+                        m_pending[chunk] = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops simplified chunks which contain the given row or rows after it.
+     *
+     * @param row first changed row
+     */
+    void invalidate(int row) {
+        m_openChunk = null;
+        int chunk = row == 0 ? 0 : (row - 1) / CHUNK_SIZE;
+        synchronized (this) {
+            if (chunk < m_chunks.length) {
+                m_chunks = Arrays.copyOf(m_chunks, chunk);
+                m_pending = Arrays.copyOf(m_pending, chunk);
+                m_generation++;
+            }
+        }
+    }
+
+    private Chunk simplify(int start, int end) {
+        double[][] coordinates = m_segment.copyCoordinates(start, end);
+        return simplify(start, coordinates[0], coordinates[1]);
+    }
+
+    /**
+     * Simplifies the coordinates of a chunk successively for all levels.
+     *
+     * @param start first row of chunk
+     * @param lat   latitudes of chunk
+     * @param lng   longitudes of chunk
+     * @return Chunk
+     */
+    private static Chunk simplify(int start, double[] lat, double[] lng) {
+        Chunk res = new Chunk(start, start + lat.length - 1);
+        int[] rows = new int[lat.length];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
+        }
+        double[] levelLat = new double[lat.length];
+        double[] levelLng = new double[lat.length];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int i = 0; i < rows.length; i++) {
+                levelLat[i] = lat[rows[i]];
+                levelLng[i] = lng[rows[i]];
+            }
+            int[] kept = TrackSimplifier.simplify(levelLat, levelLng, rows.length, 1 << level, TrackSimplifier.Method.DOUGLAS_PEUCKER);
+            int[] levelRows = new int[kept.length];
+            double[] bounds = {Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE};
+            for (int i = 0; i < kept.length; i++) {
+                int row = rows[kept[i]];
+                bounds[0] = Math.min(bounds[0], lat[row]);
+                bounds[1] = Math.max(bounds[1], lat[row]);
+                bounds[2] = Math.min(bounds[2], lng[row]);
+                bounds[3] = Math.max(bounds[3], lng[row]);
+                levelRows[i] = row;
+            }
+            rows = levelRows;
+            res.m_rows[level] = new int[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                res.m_rows[level][i] = start + rows[i];
+            }
+            res.m_bounds[level] = bounds;
+        }
+        return res;
+    }
+
+    /**
+     * Simplified rows of a chunk for all levels.
+     */
+    private static class Chunk {
+
+        //First and last row of chunk
+        private final int m_start;
+        private final int m_end;
+
+        //Rows of each level
+        private final int[][] m_rows = new int[LEVELS][];
+
+        //Bounding box of each level (minLat, maxLat, minLng, maxLng)
+        private final double[][] m_bounds = new double[LEVELS][];
+
+        Chunk(int start, int end) {
+            m_start = start;
+            m_end = end;
+        }
+
+        boolean intersects(int level, double minLat, double minLng, double maxLat, double maxLng) {
+            double[] bounds = m_bounds[level];
+            return bounds[0] <= maxLat && bounds[1] >= minLat && SpatialIndex.intersectsLng(bounds[2], bounds[3], minLng, maxLng);
+        }
+    }
+}
@@ -0,0 +1,611 @@
+package de.shuewe.gpx;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sorted view of all locations of a parser (single waypoints and track points).
+ * The sources (list of single waypoints and each TrackSegment) are already sorted by date, so the
+ * index merges them on access instead of copying and sorting all points. Points with same date are
+ * ordered like a stable sort: single waypoints first, then tracks and segments in their order.
+ * Sequential access (iteration, get(i+1)) merges the k sources with a heap in O(log k) per point,
+ * the last point is found in O(k). Other random access creates the merged order once (O(n log k)),
+ * afterwards get(i) takes O(1) until the locations are changed.
+ * The index of a parser has to be used by its background thread, the index of a GPXSnapshot may be read by
+ * any thread. Iterators and the cursor of sequential access are never shared by concurrent readers.
+ */
+class LocationIndex extends AbstractList<WayPoint> implements RandomAccess {
+
+    //Parser of the index, null for the index of a snapshot
+    private final SecureGPXParser m_parser;
+
+    //Number of calls of invalidate
+    private final AtomicInteger m_invalidations = new AtomicInteger();
+
+    //Sources of the latest access
+    private volatile Sources m_sources;
+
+    //Cursor for sequential access, taken by a reader while it is used
+    private final AtomicReference<Cursor> m_cursor = new AtomicReference<Cursor>();
+
+    LocationIndex(SecureGPXParser parser) {
+        m_parser = parser;
+        m_sources = new SnapshotSources(new ArrayList<WayPoint>(), new SegmentSnapshot[0], 0);
+    }
+
+    /**
+     * Creates the index of a snapshot, its sources never change.
+     *
+     * @param snapshot to be indexed
+     */
+    LocationIndex(GPXSnapshot snapshot) {
+        m_parser = null;
+        List<SegmentSnapshot> segments = new ArrayList<SegmentSnapshot>();
+        for (TrackSnapshot track : snapshot.getTracks().values()) {
+            segments.addAll(track.getSegments());
+        }
+        m_sources = new SnapshotSources(snapshot.getWayPoints(), segments.toArray(new SegmentSnapshot[segments.size()]), 0);
+    }
+
+    /**
+     * Marks the index as changed, e.g. after tracks or single waypoints were added or removed.
+     * Changes of segments of the tracks of this parser are detected without this call.
+     */
+    void invalidate() {
+        m_invalidations.incrementAndGet();
+    }
+
+    @Override
+    public WayPoint get(int i) {
+        Sources sources = ensureSources();
+        if (i < 0 || i >= sources.m_size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + sources.m_size);
+        }
+        Order order = sources.m_order;
+        if (order != null) {
+            return sources.getPoint(order, i);
+        }
+        if (i == sources.m_size - 1) {
+            return sources.getLast();
+        }
+        //Concurrent readers do not find the cursor and use the merged order instead
+        Cursor cursor = m_cursor.getAndSet(null);
+        if (cursor == null || cursor.m_sources != sources || (i != cursor.m_index && i != cursor.m_index + 1)) {
+            if (i != 0) {
+                return sources.getPoint(sources.getOrder(), i);
+            }
+            cursor = new Cursor(sources);
+        }
+        if (i != cursor.m_index) {
+            cursor.m_point = cursor.m_merger.next();
+            cursor.m_index = i;
+        }
+        m_cursor.set(cursor);
+        return cursor.m_point;
+    }
+
+    @Override
+    public int size() {
+        return ensureSources().m_size;
+    }
+
+    @Override
+    public Iterator<WayPoint> iterator() {
+        return new MergeIterator(ensureSources(), Long.MIN_VALUE, Long.MAX_VALUE, false);
+    }
+
+    /**
+     * Gets an iterator over all points with date between start and end (inclusive), sorted by date.
+     * The range is found by binary search in each source, the points are created while iterating.
+     * Points without date are skipped. The iterator must not be used while locations are changed.
+     *
+     * @param startTime in epoch millis
+     * @param endTime   in epoch millis
+     * @return Iterator of WayPoint
+     */
+    Iterator<WayPoint> iterator(long startTime, long endTime) {
+        return new MergeIterator(ensureSources(), startTime, endTime, true);
+    }
+
+    private Sources ensureSources() {
+        Sources sources = m_sources;
+        if (m_parser == null) {
+            return sources;
+        }
+        int invalidations = m_invalidations.get();
+        if (sources instanceof ParserSources && ((ParserSources) sources).isCurrent(invalidations)) {
+            return sources;
+        }
+        sources = new ParserSources(m_parser, invalidations, sources.m_version + 1);
+        m_sources = sources;
+        return sources;
+    }
+
+    /**
+     * Gets the sources of the current version of the locations. A new instance is created whenever the locations change.
+     *
+     * @return Sources
+     */
+    Sources getSources() {
+        return ensureSources();
+    }
+
+    /**
+     * Sorted sources of one version of the locations: index 0 is the list of single waypoints, then the segments.
+     */
+    abstract static class Sources {
+
+        final List<WayPoint> m_points;
+
+        final int m_version;
+
+        //Number of points of all sources
+        int m_size;
+
+        //Merged order, null until random access is needed
+        volatile Order m_order = null;
+
+        Sources(List<WayPoint> points, int version) {
+            m_points = points;
+            m_version = version;
+        }
+
+        abstract int getSourceCount();
+
+        abstract int getSourceSize(int source);
+
+        abstract long getTime(int source, int i);
+
+        abstract WayPoint getPoint(int source, int i);
+
+        abstract double getLat(int source, int i);
+
+        abstract double getLng(int source, int i);
+
+        /**
+         * Gets the number of blocks of TrackSegment.BLOCK_SIZE rows of a segment.
+         *
+         * @param source index of segment (greater than 0)
+         * @return int
+         */
+        abstract int getBlockCount(int source);
+
+        /**
+         * Copies the bounding box of a block of a segment (minLat, maxLat, minLng, maxLng), getBlockCount has to be
+         * called before.
+         *
+         * @param source index of segment (greater than 0)
+         * @param block  index of block
+         * @param bounds to copy to
+         * @param offset in bounds
+         */
+        abstract void getBlockBounds(int source, int block, double[] bounds, int offset);
+
+        WayPoint getPoint(Order order, int i) {
+            return getPoint(order.m_sources[i], order.m_rows[i]);
+        }
+
+        /**
+         * Gets the last point (the last point of the last source with the latest date).
+         *
+         * @return WayPoint
+         */
+        WayPoint getLast() {
+            int last = -1;
+            long lastTime = 0;
+            for (int s = 0; s < getSourceCount(); s++) {
+                int size = getSourceSize(s);
+                if (size == 0) {
+                    continue;
+                }
+                long time = getTime(s, size - 1);
+                if (last == -1 || time >= lastTime) {
+                    last = s;
+                    lastTime = time;
+                }
+            }
+            return getPoint(last, getSourceSize(last) - 1);
+        }
+
+        /**
+         * Gets the merged order of all points for random access, creates it on first call.
+         * Concurrent readers may create it twice, both orders are equal.
+         *
+         * @return Order
+         */
+        Order getOrder() {
+            Order res = m_order;
+            if (res != null) {
+                return res;
+            }
+            res = new Order(m_size);
+            Merger merger = new Merger(this, Long.MIN_VALUE);
+            for (int i = 0; i < m_size; i++) {
+                res.m_sources[i] = merger.peekSource();
+                res.m_rows[i] = merger.skip();
+            }
+            m_order = res;
+            return res;
+        }
+
+        /**
+         * Gets the number of points in source with date before (or at) given time.
+         *
+         * @param source    to search
+         * @param time      to search for
+         * @param inclusive flag indicates if points at time are counted
+         * @return int
+         */
+        int bound(int source, long time, boolean inclusive) {
+            int lo = 0;
+            int hi = getSourceSize(source);
+            //Check range of source before searching in it
+            if (hi == 0 || getTime(source, 0) > time || (!inclusive && getTime(source, 0) == time)) {
+                return 0;
+            }
+            long lastTime = getTime(source, hi - 1);
+            if (lastTime < time || (inclusive && lastTime == time)) {
+                return hi;
+            }
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                long midTime = getTime(source, mid);
+                if (midTime < time || (inclusive && midTime == time)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * Sources of a parser: its list of single waypoints and the segments of its tracks.
+     */
+    private static class ParserSources extends Sources {
+
+        //Number of calls of invalidate the sources were collected for
+        private final int m_invalidations;
+
+        //Tracks of the sources and sum of their modification counts when the sources were collected
+        private final Track[] m_tracks;
+        private final long m_modCount;
+
+        private final TrackSegment[] m_segments;
+
+        ParserSources(SecureGPXParser parser, int invalidations, int version) {
+            super(parser.getPoints(), version);
+            m_invalidations = invalidations;
+            List<Track> tracks = new ArrayList<Track>();
+            List<TrackSegment> segments = new ArrayList<TrackSegment>();
+            for (Track track : parser.getTracks().values()) {
+                tracks.add(track);
+                for (TrackSegment segment : track.getSegments()) {
+                    segments.add(segment);
+                    //Changes of a segment are counted for its parent track, which may differ from the containing track
+                    if (segment.getTrack() != null && segment.getTrack() != track && !tracks.contains(segment.getTrack())) {
+                        tracks.add(segment.getTrack());
+                    }
+                }
+            }
+            m_tracks = tracks.toArray(new Track[tracks.size()]);
+            m_modCount = getModCount();
+            m_segments = segments.toArray(new TrackSegment[segments.size()]);
+            m_size = m_points.size();
+            for (TrackSegment segment : m_segments) {
+                m_size += segment.size();
+            }
+        }
+
+        /**
+         * Checks if the sources are unchanged.
+         *
+         * @param invalidations current number of calls of invalidate
+         * @return boolean
+         */
+        boolean isCurrent(int invalidations) {
+            return m_invalidations == invalidations && m_modCount == getModCount();
+        }
+
+        /**
+         * Gets the sum of the modification counts of the tracks of the sources. Counts only grow, so any change
+         * of a track or of its segments changes the sum.
+         *
+         * @return long
+         */
+        private long getModCount() {
+            long res = 0;
+            for (Track track : m_tracks) {
+                res += track.getModCount();
+            }
+            return res;
+        }
+
+        @Override
+        int getSourceCount() {
+            return m_segments.length + 1;
+        }
+
+        @Override
+        int getSourceSize(int source) {
+            return source == 0 ? m_points.size() : m_segments[source - 1].size();
+        }
+
+        @Override
+        long getTime(int source, int i) {
+            return source == 0 ? m_points.get(i).getSortTime() : m_segments[source - 1].getSortTime(i);
+        }
+
+        @Override
+        WayPoint getPoint(int source, int i) {
+            return source == 0 ? m_points.get(i) : m_segments[source - 1].get(i);
+        }
+
+        @Override
+        double getLat(int source, int i) {
+            return source == 0 ? m_points.get(i).getLat() : m_segments[source - 1].getLat(i);
+        }
+
+        @Override
+        double getLng(int source, int i) {
+            return source == 0 ? m_points.get(i).getLng() : m_segments[source - 1].getLng(i);
+        }
+
+        @Override
+        int getBlockCount(int source) {
+            return m_segments[source - 1].getBlockCount();
+        }
+
+        @Override
+        void getBlockBounds(int source, int block, double[] bounds, int offset) {
+            m_segments[source - 1].getBlockBounds(block, bounds, offset);
+        }
+    }
+
+    /**
+     * Sources of a snapshot, points of segments are copies created on access.
+     */
+    private static class SnapshotSources extends Sources {
+
+        private final SegmentSnapshot[] m_segments;
+
+        SnapshotSources(List<WayPoint> points, SegmentSnapshot[] segments, int version) {
+            super(points, version);
+            m_segments = segments;
+            m_size = m_points.size();
+            for (SegmentSnapshot segment : m_segments) {
+                m_size += segment.size();
+            }
+        }
+
+        @Override
+        int getSourceCount() {
+            return m_segments.length + 1;
+        }
+
+        @Override
+        int getSourceSize(int source) {
+            return source == 0 ? m_points.size() : m_segments[source - 1].size();
+        }
+
+        @Override
+        long getTime(int source, int i) {
+            return source == 0 ? m_points.get(i).getSortTime() : m_segments[source - 1].getSortTime(i);
+        }
+
+        @Override
+        WayPoint getPoint(int source, int i) {
+            return source == 0 ? m_points.get(i) : m_segments[source - 1].getPoint(i);
+        }
+
+        @Override
+        double getLat(int source, int i) {
+            return source == 0 ? m_points.get(i).getLat() : m_segments[source - 1].getLat(i);
+        }
+
+        @Override
+        double getLng(int source, int i) {
+            return source == 0 ? m_points.get(i).getLng() : m_segments[source - 1].getLng(i);
+        }
+
+        @Override
+        int getBlockCount(int source) {
+            return m_segments[source - 1].getBlockCount();
+        }
+
+        @Override
+        void getBlockBounds(int source, int block, double[] bounds, int offset) {
+            m_segments[source - 1].getBlockBounds(block, bounds, offset);
+        }
+    }
+
+    /**
+     * Merged order: source and row of each position.
+     */
+    private static class Order {
+
+        private final int[] m_sources;
+        private final int[] m_rows;
+
+        Order(int size) {
+            m_sources = new int[size];
+            m_rows = new int[size];
+        }
+    }
+
+    /**
+     * Position of sequential access: position of the point returned last and merger positioned behind it.
+     */
+    private static class Cursor {
+
+        private final Sources m_sources;
+        private final Merger m_merger;
+
+        private int m_index = -1;
+        private WayPoint m_point = null;
+
+        Cursor(Sources sources) {
+            m_sources = sources;
+            m_merger = new Merger(sources, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Merges the sources with a binary heap of sources ordered by the date of their next point
+     * (and by their index for the same date).
+     */
+    private static class Merger {
+
+        private final Sources m_sources;
+
+        //Next row of each source
+        private final int[] m_pos;
+
+        //Heap of sources with remaining points
+        private final int[] m_heap;
+        private int m_heapSize = 0;
+
+        /**
+         * Constructor
+         *
+         * @param sources   to be merged
+         * @param startTime sort time of the first point to merge, earlier points are skipped
+         */
+        Merger(Sources sources, long startTime) {
+            m_sources = sources;
+            m_pos = new int[sources.getSourceCount()];
+            m_heap = new int[sources.getSourceCount()];
+            for (int s = 0; s < sources.getSourceCount(); s++) {
+                m_pos[s] = startTime == Long.MIN_VALUE ? 0 : sources.bound(s, startTime, false);
+                if (m_pos[s] < sources.getSourceSize(s)) {
+                    m_heap[m_heapSize++] = s;
+                }
+            }
+            for (int i = m_heapSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        boolean hasNext() {
+            return m_heapSize > 0;
+        }
+
+        /**
+         * Gets the source of the next point.
+         *
+         * @return source
+         */
+        int peekSource() {
+            return m_heap[0];
+        }
+
+        /**
+         * Gets the sort time of the next point.
+         *
+         * @return time in epoch millis
+         */
+        long peekTime() {
+            return m_sources.getTime(m_heap[0], m_pos[m_heap[0]]);
+        }
+
+        WayPoint next() {
+            int source = m_heap[0];
+            return m_sources.getPoint(source, skip());
+        }
+
+        /**
+         * Moves behind the next point without creating it.
+         *
+         * @return row of the skipped point in its source
+         */
+        int skip() {
+            int source = m_heap[0];
+            int res = m_pos[source]++;
+            if (m_pos[source] == m_sources.getSourceSize(source)) {
+                m_heap[0] = m_heap[--m_heapSize];
+            }
+            siftDown(0);
+            return res;
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < m_heapSize && isBefore(m_heap[left], m_heap[smallest])) {
+                    smallest = left;
+                }
+                if (right < m_heapSize && isBefore(m_heap[right], m_heap[smallest])) {
+                    smallest = right;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                int tmp = m_heap[i];
+                m_heap[i] = m_heap[smallest];
+                m_heap[smallest] = tmp;
+                i = smallest;
+            }
+        }
+
+        private boolean isBefore(int source1, int source2) {
+            long time1 = m_sources.getTime(source1, m_pos[source1]);
+            long time2 = m_sources.getTime(source2, m_pos[source2]);
+            return time1 < time2 || (time1 == time2 && source1 < source2);
+        }
+    }
+
+    /**
+     * Iterator over the merged points between two sort times.
+     */
+    private static class MergeIterator implements Iterator<WayPoint> {
+
+        private final Merger m_merger;
+        private final long m_endTime;
+
+        //Flag indicates if points without date are skipped
+        private final boolean m_skipNoTime;
+
+        private WayPoint m_nextPoint = null;
+
+        MergeIterator(Sources sources, long startTime, long endTime, boolean skipNoTime) {
+            m_merger = new Merger(sources, startTime);
+            m_endTime = endTime;
+            m_skipNoTime = skipNoTime;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (m_nextPoint == null && m_merger.hasNext() && m_merger.peekTime() <= m_endTime) {
+                WayPoint point = m_merger.next();
+                if (!m_skipNoTime || point.hasTime()) {
+                    m_nextPoint = point;
+                }
+            }
+            return m_nextPoint != null;
+        }
+
+        @Override
+        public WayPoint next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            WayPoint res = m_nextPoint;
+            m_nextPoint = null;
+            return res;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
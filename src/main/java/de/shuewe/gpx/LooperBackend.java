@@ -0,0 +1,24 @@
+package de.shuewe.gpx;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Backend which runs the tasks of all parsers on the Looper of GPXThread (one thread for all parsers).
+ */
+public class LooperBackend implements GPXBackend {
+
+    @Override
+    public Executor newSerialExecutor(String name) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                GPXThread.getInstance().post(runnable);
+            }
+        };
+    }
+
+    @Override
+    public boolean isIdle() {
+        return GPXThread.getInstance().isIdle();
+    }
+}
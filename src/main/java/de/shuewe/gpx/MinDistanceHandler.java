@@ -1,19 +1,38 @@
 package de.shuewe.gpx;
 
-import java.util.Date;
-
+/**
+ * Handler which adds only trackpoints separated from the last added point by a multiple of their accuracies.
+ * Uses a FilterChain with a FilterChain.MinDistance stage, further stages can be passed to the constructor and are
+ * applied after it. setFilterChain replaces the whole chain, including the MinDistance stage.
+ */
 public class MinDistanceHandler extends GPXHandler {
 
-    private WayPoint m_last;
-    private double m_factor;
+    public MinDistanceHandler(double factor){
+        this(factor, DistanceCalculator.Mode.HAVERSINE);
+    }
 
-    private static boolean isSeperated(WayPoint p1, WayPoint p2, double factor){
-        double distMeter = p1.calculateDistanceInKilometer(p2)*1000;
-        return distMeter > factor*(p1.getAccuracy() + p2.getAccuracy());
+    /**
+     * Constructor
+     *
+     * @param factor of accuracy which points have to be separated at least
+     * @param mode   accuracy of distance calculation, fast mode is sufficient for usual GPS accuracy
+     */
+    public MinDistanceHandler(double factor, DistanceCalculator.Mode mode){
+        this(factor, mode, new FilterChain.Stage[0]);
     }
 
-    public MinDistanceHandler(double factor){
-        m_factor=factor;
+    /**
+     * Constructor with further filters
+     *
+     * @param factor of accuracy which points have to be separated at least
+     * @param mode   accuracy of distance calculation, fast mode is sufficient for usual GPS accuracy
+     * @param stages applied to the points which passed the MinDistance stage, in order of application
+     */
+    public MinDistanceHandler(double factor, DistanceCalculator.Mode mode, FilterChain.Stage... stages){
+        FilterChain.Stage[] chain = new FilterChain.Stage[stages.length + 1];
+        chain[0] = new FilterChain.MinDistance(factor, mode);
+        System.arraycopy(stages, 0, chain, 1, stages.length);
+        setFilterChain(new FilterChain(chain));
     }
 
     @Override
@@ -28,11 +47,6 @@ public class MinDistanceHandler extends GPXHandler {
 
     @Override
     public void processTrackpoint(String trackName, double lat, double lng, double accuracy, double alt) {
-        WayPoint newPoint =  new WayPoint(lat,lng,new Date(),accuracy);
-        newPoint.setAltitude(alt);
-        if(m_last==null || isSeperated(newPoint,m_last,m_factor)){
-            m_last = newPoint;
-            addTrackPoint(trackName,null,lat,lng,accuracy,alt);
-        }
+        addTrackPoint(trackName,null,lat,lng,accuracy,alt);
     }
 }
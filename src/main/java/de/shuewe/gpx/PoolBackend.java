@@ -0,0 +1,68 @@
+package de.shuewe.gpx;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Default backend: all parsers share a pool of daemon threads, each parser runs its tasks in order.
+ * Threads are started on first use, so creating a parser never waits for a thread.
+ */
+public class PoolBackend implements GPXBackend {
+
+    static final String TAG_POOL = "GPXPool";
+
+    private final Executor m_pool;
+
+    //Number of queued or running tasks of all executors
+    private final AtomicInteger m_pending = new AtomicInteger();
+
+    /**
+     * Creates a backend with one thread per processor (at least two).
+     */
+    public PoolBackend() {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates a backend with a pool of given size.
+     *
+     * @param threads number of threads
+     */
+    public PoolBackend(int threads) {
+        this(createPool(threads));
+    }
+
+    /**
+     * Creates a backend which runs the tasks on a given pool.
+     *
+     * @param pool to run tasks on
+     */
+    public PoolBackend(Executor pool) {
+        m_pool = pool;
+    }
+
+    private static ExecutorService createPool(int threads) {
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread res = new Thread(runnable, TAG_POOL + "-" + counter.incrementAndGet());
+                res.setDaemon(true);
+                return res;
+            }
+        });
+    }
+
+    @Override
+    public Executor newSerialExecutor(String name) {
+        return new SerialExecutor(m_pool, m_pending);
+    }
+
+    @Override
+    public boolean isIdle() {
+        return m_pending.get() == 0;
+    }
+}
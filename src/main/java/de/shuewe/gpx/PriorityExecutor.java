@@ -0,0 +1,209 @@
+package de.shuewe.gpx;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the tasks of a parser on its serial executor ordered by the priority of their action: edits and notifications
+ * before validations before saves, tasks of the same priority keep their order. A waiting task which was bypassed
+ * MAX_BYPASS times by tasks of higher priority runs next, so a stream of edits does not starve a save.
+ * Init is a barrier: it runs after all tasks added before and before all tasks added after it.
+ * Only one task is passed to the serial executor at a time, so waiting tasks can still be reordered.
+ */
+class PriorityExecutor {
+
+    //Priorities, lower values run first
+    static final int PRIORITY_EDIT = 0;
+    static final int PRIORITY_VALIDATION = 1;
+    static final int PRIORITY_SAVE = 2;
+    private static final int PRIORITIES = 3;
+
+    //Number of times a waiting task may be bypassed by tasks of higher priority
+    static final int MAX_BYPASS = 16;
+
+    private final Executor m_executor;
+
+    //Tasks separated by barriers, tasks of the first epoch are run. Guarded by this, like m_active.
+    private final ArrayDeque<Epoch> m_epochs = new ArrayDeque<Epoch>();
+
+    //Flag indicates if a task was passed to the serial executor
+    private boolean m_active = false;
+
+    //Thread which runs the current task, null if no task is running
+    private volatile Thread m_thread = null;
+
+    PriorityExecutor(Executor executor) {
+        m_executor = executor;
+        m_epochs.add(new Epoch());
+    }
+
+    /**
+     * Gets the priority of an action.
+     *
+     * @param action type of change
+     * @return priority, lower values run first
+     */
+    static int getPriority(GPXThread.ACTION action) {
+        switch (action) {
+            case CHANGE_VALIDATION:
+                return PRIORITY_VALIDATION;
+            case SAVE:
+                return PRIORITY_SAVE;
+            default:
+                return PRIORITY_EDIT;
+        }
+    }
+
+    /**
+     * Adds a task of an action, tasks of init actions are barriers.
+     *
+     * @param action   type of change
+     * @param runnable to be run
+     */
+    void execute(GPXThread.ACTION action, Runnable runnable) {
+        if (action == GPXThread.ACTION.INIT || action == GPXThread.ACTION.INIT_AND_CHANGE) {
+            executeBarrier(runnable);
+        } else {
+            execute(getPriority(action), runnable);
+        }
+    }
+
+    /**
+     * Adds a task with given priority.
+     *
+     * @param priority of task
+     * @param runnable to be run
+     */
+    synchronized void execute(int priority, Runnable runnable) {
+        m_epochs.getLast().m_lanes.get(priority).offer(runnable);
+        scheduleNext();
+    }
+
+    /**
+     * Adds a task which runs after all tasks added before and before all tasks added after it.
+     *
+     * @param runnable to be run
+     */
+    synchronized void executeBarrier(Runnable runnable) {
+        m_epochs.getLast().m_barrier = runnable;
+        m_epochs.add(new Epoch());
+        scheduleNext();
+    }
+
+    /**
+     * Passes the next task to the serial executor, if no task is active. Has to be called with the lock held.
+     */
+    private void scheduleNext() {
+        if (m_active) {
+            return;
+        }
+        final Runnable next = poll();
+        if (next == null) {
+            return;
+        }
+        m_active = true;
+        m_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                m_thread = Thread.currentThread();
+                try {
+                    next.run();
+                } finally {
+                    m_thread = null;
+                    //Next task is passed before this one finished, so the backend is not idle in between
+                    synchronized (PriorityExecutor.this) {
+                        m_active = false;
+                        scheduleNext();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks if tasks are waiting to be run, e.g. to find out if the current task is the last one of a burst.
+     *
+     * @return boolean
+     */
+    synchronized boolean hasWaitingTasks() {
+        for (Epoch epoch : m_epochs) {
+            if (!epoch.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the calling thread runs a task of this executor.
+     *
+     * @return boolean
+     */
+    boolean isCurrentThread() {
+        return m_thread == Thread.currentThread();
+    }
+
+    private Runnable poll() {
+        Epoch epoch = m_epochs.getFirst();
+        Runnable res = epoch.poll();
+        if (res != null || epoch.m_barrier == null) {
+            return res;
+        }
+        m_epochs.removeFirst();
+        return epoch.m_barrier;
+    }
+
+    /**
+     * Tasks added between two barriers.
+     */
+    private static class Epoch {
+
+        //Queue of each priority
+        private final List<ArrayDeque<Runnable>> m_lanes = new ArrayList<ArrayDeque<Runnable>>(PRIORITIES);
+
+        //Number of times the first task of each lane was bypassed
+        private final int[] m_bypassed = new int[PRIORITIES];
+
+        //Barrier which ends this epoch, null if none was added yet
+        private Runnable m_barrier = null;
+
+        Epoch() {
+            for (int i = 0; i < PRIORITIES; i++) {
+                m_lanes.add(new ArrayDeque<Runnable>());
+            }
+        }
+
+        boolean isEmpty() {
+            if (m_barrier != null) {
+                return false;
+            }
+            for (int i = 0; i < PRIORITIES; i++) {
+                if (!m_lanes.get(i).isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Runnable poll() {
+            int lane = -1;
+            for (int i = 0; i < PRIORITIES; i++) {
+                if (!m_lanes.get(i).isEmpty() && (lane == -1 || m_bypassed[i] >= MAX_BYPASS)) {
+                    lane = i;
+                }
+            }
+            if (lane == -1) {
+                return null;
+            }
+            for (int i = lane + 1; i < PRIORITIES; i++) {
+                if (!m_lanes.get(i).isEmpty()) {
+                    m_bypassed[i]++;
+                }
+            }
+            m_bypassed[lane] = 0;
+            return m_lanes.get(lane).poll();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package de.shuewe.gpx;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * XmlReader using the xmlpull parser of Android.
+ */
+class PullXmlReader implements XmlReader {
+
+    private final XmlPullParser m_parser;
+
+    PullXmlReader(InputStream stream) throws IOException {
+        m_parser = Xml.newPullParser();
+        try {
+            m_parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+            m_parser.setInput(stream, null);
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public int next() throws IOException {
+        try {
+            return toType(m_parser.next());
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public int nextTag() throws IOException {
+        try {
+            return toType(m_parser.nextTag());
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public int getEventType() {
+        try {
+            return toType(m_parser.getEventType());
+        } catch (XmlPullParserException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return m_parser.getName();
+    }
+
+    @Override
+    public String getText() {
+        return m_parser.getText();
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return m_parser.getAttributeCount();
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        return m_parser.getAttributeName(index);
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        return m_parser.getAttributeValue(index);
+    }
+
+    @Override
+    public void require(int type, String name) throws IOException {
+        if (getEventType() != type || (name != null && !name.equals(getName()))) {
+            throw new IOException("Expected " + name + " at " + m_parser.getPositionDescription());
+        }
+    }
+
+    private static int toType(int pullType) {
+        switch (pullType) {
+            case XmlPullParser.START_TAG:
+                return START_TAG;
+            case XmlPullParser.END_TAG:
+                return END_TAG;
+            case XmlPullParser.TEXT:
+                return TEXT;
+            case XmlPullParser.END_DOCUMENT:
+                return END_DOCUMENT;
+            default:
+                return 0;
+        }
+    }
+}
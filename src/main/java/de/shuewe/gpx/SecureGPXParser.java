@@ -1,12 +1,5 @@
 package de.shuewe.gpx;
 
-import android.util.Log;
-import android.util.Xml;
-
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
-
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -27,10 +20,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class for GPX parser.
- * Handles read/write operations and validation in GPXThread
+ * Handles read/write operations and validation in background (see GPXBackend)
  */
 public class SecureGPXParser {
 
@@ -54,7 +55,7 @@ public class SecureGPXParser {
 
 
     private GPXHandler m_handler = null;
-    private GPXHandler m_default_handler = new DefaultGPXHandler(this);
+    private GPXHandler m_default_handler;
 
     //Set of change listeners.
     private Set<GPXChangeListener> m_changeListener = new HashSet<GPXChangeListener>();
@@ -68,22 +69,124 @@ public class SecureGPXParser {
     private List<WayPoint> m_points = new ArrayList<>();
     //Set of save listeners.
     private GPXChangeListener m_saveListener;
+    //Listener for failed background tasks, can be null
+    private volatile GPXErrorListener m_errorListener;
 
     private boolean m_isChanged=false;
 
-    private GPXThread m_thread;
+    //Backend used by new parsers, created on first use
+    private static GPXBackend m_defaultBackend = null;
+
+    //Backend of this parser
+    private final GPXBackend m_backend;
+    //Runs the background work of this parser one task at a time, ordered by priority of the action
+    private final PriorityExecutor m_executor;
     //Map of available tracks.
     private Map<String, Track> m_tracks = new LinkedHashMap<String, Track>();
+
+    //Marks an empty DateStringCache
+    private static final long NO_SECOND = Long.MIN_VALUE;
+
+    //Formatters of gpx dates per thread
+    private static final ThreadLocal<DateStringCache> DATE_STRINGS = new ThreadLocal<DateStringCache>() {
+        @Override
+        protected DateStringCache initialValue() {
+            return new DateStringCache();
+        }
+    };
+
+    //Digits of hex strings
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    //Flag indicates if data changed since the latest snapshot was published, used by the background thread
+    private boolean m_snapshotChanged = false;
+    //Latest published state, read by any thread
+    private volatile GPXSnapshot m_snapshot = GPXSnapshot.create(new ArrayList<WayPoint>(), new LinkedHashMap<String, Track>(), null);
     //Flag indicates if file is valid
     private Boolean m_valid = null;
     //Validation result listener (set by isValid)
     private GPXValidationListener m_validationListener;
 
+    //Coalescing of change notifications (see setNotificationWindow), 0 notifies every change
+    private volatile long m_notificationWindow = 0;
+    private volatile NotificationMode m_notificationMode = NotificationMode.THROTTLE;
+
+    //Timer for delayed notifications and timeouts of all parsers, created on first use
+    private static ScheduledThreadPoolExecutor m_timer = null;
+
+    //Serializes and writes saves of all parsers in order, created on first use
+    private static ExecutorService m_ioExecutor = null;
+
+    //Futures completed by the next change notification, guarded by itself
+    private final List<GPXFuture<SecureGPXParser>> m_changeFutures = new ArrayList<GPXFuture<SecureGPXParser>>();
+
+    //State of coalescing, only used by the background thread of this parser.
+    //Number of changes since the last notification
+    private int m_pendingChanges = 0;
+    //Time of last notification and last change in millis (monotonic), NEVER if there was none
+    private static final long NEVER = Long.MIN_VALUE;
+    private long m_lastNotification = NEVER;
+    private long m_lastChange = NEVER;
+    //Flag indicates if a delayed notification is scheduled
+    private boolean m_notificationScheduled = false;
+
+    //Delivers delayed notifications on the background thread of this parser
+    private final Runnable m_notificationTask = new Runnable() {
+        @Override
+        public void run() {
+            m_notificationScheduled = false;
+            if (m_pendingChanges > 0) {
+                scheduleNotification();
+            }
+        }
+    };
+
     /**
      * Default constructor.
      */
     public SecureGPXParser() {
-        m_thread = GPXThread.getInstance();
+        this(getDefaultBackend());
+    }
+
+    /**
+     * Constructor with own backend.
+     *
+     * @param backend to run background work with
+     */
+    public SecureGPXParser(GPXBackend backend) {
+        m_backend = backend;
+        m_executor = new PriorityExecutor(backend.newSerialExecutor(getClass().getSimpleName()));
+        m_default_handler = new DefaultGPXHandler(this);
+    }
+
+    /**
+     * Gets the backend which runs the background work of this parser.
+     *
+     * @return GPXBackend
+     */
+    GPXBackend getBackend() {
+        return m_backend;
+    }
+
+    /**
+     * Sets the backend used by parsers which are created afterwards.
+     *
+     * @param backend to be used
+     */
+    public static synchronized void setDefaultBackend(GPXBackend backend) {
+        m_defaultBackend = backend;
+    }
+
+    /**
+     * Gets the backend used by new parsers (PoolBackend if none was set).
+     *
+     * @return GPXBackend
+     */
+    public static synchronized GPXBackend getDefaultBackend() {
+        if (m_defaultBackend == null) {
+            m_defaultBackend = new PoolBackend();
+        }
+        return m_defaultBackend;
     }
 
     public GPXHandler getHandler(){
@@ -111,41 +214,61 @@ public class SecureGPXParser {
     }
 
     /**
-     * Add point from XmlSerializer
+     * Add point to XmlWriter
      *
      * @param xmlSerializer serializer
      * @param point         Waypoint to be added
      * @param tagName       Tag name to be used, should be Waypoint, Routepoint or Trackpoint
      * @throws IOException
      */
-    private static void addPointToParser(XmlSerializer xmlSerializer, WayPoint point, String tagName) throws IOException {
-        xmlSerializer.startTag("", tagName);
-        xmlSerializer.attribute("", ATTRIBUTE_LAT, Double.toString(point.getLat()));
-        xmlSerializer.attribute("", ATTRIBUTE_LONG, Double.toString(point.getLng()));
-        if (point.getName() != null) {
-            xmlSerializer.startTag("", TAG_NAME);
-            xmlSerializer.text(point.getName());
-            xmlSerializer.endTag("", TAG_NAME);
+    private static void addPointToParser(XmlWriter xmlSerializer, WayPoint point, String tagName) throws IOException {
+        addPointToParser(xmlSerializer, tagName, point.getLat(), point.getLng(), point.getName(), point.getHash(),
+                point.getTime(), point.getAltitude(), point.getAccuracy());
+    }
+
+    /**
+     * Writes a point.
+     *
+     * @param xmlSerializer to write to
+     * @param tagName       tag of point
+     * @param lat           latitude
+     * @param lng           longitude
+     * @param name          name, may be null
+     * @param hash          hash, may be null
+     * @param time          time in epoch millis, GPXElement.NO_TIME if point has no date
+     * @param altitude      altitude, may be null
+     * @param accuracy      accuracy
+     * @throws IOException if writing fails
+     */
+    private static void addPointToParser(XmlWriter xmlSerializer, String tagName, double lat, double lng, String name,
+                                         String hash, long time, Double altitude, double accuracy) throws IOException {
+        xmlSerializer.startTag(tagName);
+        xmlSerializer.attribute(ATTRIBUTE_LAT, Double.toString(lat));
+        xmlSerializer.attribute(ATTRIBUTE_LONG, Double.toString(lng));
+        if (name != null) {
+            xmlSerializer.startTag(TAG_NAME);
+            xmlSerializer.text(name);
+            xmlSerializer.endTag(TAG_NAME);
         }
-        if (point.getHash() != null) {
-            xmlSerializer.startTag("", TAG_CMT);
-            xmlSerializer.text(point.getHash());
-            xmlSerializer.endTag("", TAG_CMT);
+        if (hash != null) {
+            xmlSerializer.startTag(TAG_CMT);
+            xmlSerializer.text(hash);
+            xmlSerializer.endTag(TAG_CMT);
         }
-        if (point.getDate() != null) {
-            xmlSerializer.startTag("", TAG_TIME);
-            xmlSerializer.text(getDateString(point.getDate()));
-            xmlSerializer.endTag("", TAG_TIME);
+        if (time != GPXElement.NO_TIME) {
+            xmlSerializer.startTag(TAG_TIME);
+            xmlSerializer.text(getDateString(time));
+            xmlSerializer.endTag(TAG_TIME);
         }
-        if(point.getAltitude() != null){
-            xmlSerializer.startTag("",TAG_ALTITUDE);
-            xmlSerializer.text(Double.toString(point.getAltitude()));
-            xmlSerializer.endTag("",TAG_ALTITUDE);
+        if(altitude != null){
+            xmlSerializer.startTag(TAG_ALTITUDE);
+            xmlSerializer.text(Double.toString(altitude));
+            xmlSerializer.endTag(TAG_ALTITUDE);
         }
-        xmlSerializer.startTag("", TAG_PDOP);
-        xmlSerializer.text(String.valueOf(point.getAccuracy()));
-        xmlSerializer.endTag("", TAG_PDOP);
-        xmlSerializer.endTag("", tagName);
+        xmlSerializer.startTag(TAG_PDOP);
+        xmlSerializer.text(String.valueOf(accuracy));
+        xmlSerializer.endTag(TAG_PDOP);
+        xmlSerializer.endTag(tagName);
     }
 
     /**
@@ -155,16 +278,63 @@ public class SecureGPXParser {
      * @return String representation
      */
     static String bytesToHexString(byte[] bytes) {
-        // http://stackoverflow.com/questions/332079
-        StringBuffer sb = new StringBuffer();
+        return bytesToHexString(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Convertrs a range of bytes to string.
+     *
+     * @param bytes  to be parsed
+     * @param offset of first byte
+     * @param length number of bytes
+     * @return String representation
+     */
+    static String bytesToHexString(byte[] bytes, int offset, int length) {
+        char[] res = new char[2 * length];
+        for (int i = 0; i < length; i++) {
+            int value = bytes[offset + i] & 0xFF;
+            res[2 * i] = HEX_DIGITS[value >>> 4];
+            res[2 * i + 1] = HEX_DIGITS[value & 0xF];
+        }
+        return new String(res);
+    }
+
+    /**
+     * Writes the lower case hex representation of bytes as ASCII characters (like bytesToHexString(..).getBytes()).
+     *
+     * @param bytes  to be converted
+     * @param target array of at least 2*bytes.length bytes
+     */
+    static void bytesToHexAscii(byte[] bytes, byte[] target) {
         for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
+            int value = bytes[i] & 0xFF;
+            target[2 * i] = (byte) HEX_DIGITS[value >>> 4];
+            target[2 * i + 1] = (byte) HEX_DIGITS[value & 0xF];
+        }
+    }
+
+    /**
+     * Converts a string created by bytesToHexString back to bytes.
+     *
+     * @param hex    String to be converted
+     * @param target array to write the bytes to
+     * @param offset of first byte in target
+     * @param length expected number of bytes
+     * @return false if the string is no lower case hex string of given length (target may be changed anyway)
+     */
+    static boolean hexStringToBytes(String hex, byte[] target, int offset, int length) {
+        if (hex.length() != 2 * length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high == -1 || low == -1 || Character.isUpperCase(hex.charAt(2 * i)) || Character.isUpperCase(hex.charAt(2 * i + 1))) {
+                return false;
             }
-            sb.append(hex);
+            target[offset + i] = (byte) ((high << 4) | low);
         }
-        return sb.toString();
+        return true;
     }
 
     /**
@@ -223,10 +393,88 @@ public class SecureGPXParser {
      * @return String
      */
     public static String getDateString(Date date) {
-        TimeZone tz = TimeZone.getTimeZone("UTC");
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-        df.setTimeZone(tz);
-        return df.format(date);
+        return getDateString(date.getTime());
+    }
+
+    /**
+     * Get date string suitable for gpx. The string of the latest second is cached per thread,
+     * so consecutive points (e.g. during hashing of a batch) do not format again.
+     *
+     * @param time in epoch millis
+     * @return String
+     */
+    public static String getDateString(long time) {
+        return DATE_STRINGS.get().format(time);
+    }
+
+    /**
+     * Formatter of gpx dates for a single thread (SimpleDateFormat is not thread safe).
+     * Dates from 1970 to 9999 are formatted without SimpleDateFormat if it writes plain ASCII digits
+     * in the default locale (checked once), so the strings, and with them the hashes, are the same.
+     */
+    private static class DateStringCache {
+
+        //Last millisecond of year 9999
+        private static final long MAX_FAST_TIME = 253402300799999L;
+        private static final long MILLIS_PER_DAY = 86400000L;
+
+        private final DateFormat m_format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+        //Flag indicates if dates may be formatted without m_format
+        private final boolean m_fast;
+
+        private final char[] m_chars = "0000-00-00T00:00:00Z".toCharArray();
+
+        //Start of the second of the cached string in millis
+        private long m_second = NO_SECOND;
+        private String m_string = null;
+
+        DateStringCache() {
+            m_format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            m_fast = m_format.format(new Date(0)).equals(formatFast(0))
+                    && m_format.format(new Date(951868799000L)).equals(formatFast(951868799000L));
+        }
+
+        String format(long time) {
+            long second = time - ((time % 1000) + 1000) % 1000;
+            if (second != m_second) {
+                m_string = m_fast && second >= 0 && second <= MAX_FAST_TIME ? formatFast(second) : m_format.format(new Date(second));
+                m_second = second;
+            }
+            return m_string;
+        }
+
+        /**
+         * Formats a non negative time as UTC date of the proleptic gregorian calendar.
+         */
+        private String formatFast(long time) {
+            long days = time / MILLIS_PER_DAY;
+            int secondOfDay = (int) ((time % MILLIS_PER_DAY) / 1000);
+            //Civil date from days since 1970-01-01 (days are counted from 0000-03-01, so leap days are at the end)
+            long z = days + 719468;
+            long era = z / 146097;
+            int dayOfEra = (int) (z - era * 146097);
+            int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            int monthIndex = (5 * dayOfYear + 2) / 153;
+            int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+            int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+            int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+            writeDigits(year, 0, 4);
+            writeDigits(month, 5, 2);
+            writeDigits(day, 8, 2);
+            writeDigits(secondOfDay / 3600, 11, 2);
+            writeDigits(secondOfDay / 60 % 60, 14, 2);
+            writeDigits(secondOfDay % 60, 17, 2);
+            return new String(m_chars);
+        }
+
+        private void writeDigits(int value, int offset, int digits) {
+            for (int i = offset + digits - 1; i >= offset; i--) {
+                m_chars[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+        }
     }
 
     protected static SecureGPXParser getNewInstance() {
@@ -248,6 +496,17 @@ public class SecureGPXParser {
         m_saveListener=listener;
     }
 
+    /**
+     * Sets a listener for background tasks which failed with an exception. Tasks with a GPXFuture
+     * (e.g. initAsync, requestValidation) complete their future instead. Failed tasks are logged if no
+     * listener is set, the following tasks are run anyway.
+     *
+     * @param listener to be notified, null to remove it
+     */
+    public void setErrorListener(GPXErrorListener listener) {
+        m_errorListener = listener;
+    }
+
 
 
     @Override
@@ -377,9 +636,46 @@ public class SecureGPXParser {
      * Notifies registered listeners in case of changed values
      */
     public void notifyListener() {
+        notifyListener(1);
+    }
+
+    /**
+     * Notifies registered listeners about collapsed changes
+     *
+     * @param changes number of changes since last notification
+     */
+    private void notifyListener(int changes) {
+        List<GPXFuture<SecureGPXParser>> futures;
+        synchronized (m_changeFutures) {
+            futures = new ArrayList<GPXFuture<SecureGPXParser>>(m_changeFutures);
+            m_changeFutures.clear();
+        }
+        for (GPXFuture<SecureGPXParser> future : futures) {
+            future.complete(this);
+        }
         for (GPXChangeListener listener : m_changeListener) {
-            listener.handleChangedData(this);
+            if (listener instanceof GPXBatchChangeListener) {
+                ((GPXBatchChangeListener) listener).handleChangedData(this, changes);
+            } else {
+                listener.handleChangedData(this);
+            }
+        }
+    }
+
+    /**
+     * Sets how change notifications are coalesced. Changes within the window are collapsed into one notification,
+     * GPXBatchChangeListener get the number of collapsed changes. Initialization is always notified immediately
+     * (including collapsed changes before).
+     *
+     * @param windowMillis window in millis, 0 notifies every change (default)
+     * @param mode         THROTTLE notifies at most once per window, DEBOUNCE notifies when there was no change for the window
+     */
+    public void setNotificationWindow(long windowMillis, NotificationMode mode) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Window must not be negative: " + windowMillis);
         }
+        m_notificationMode = mode;
+        m_notificationWindow = windowMillis;
     }
 
     /**
@@ -432,23 +728,100 @@ public class SecureGPXParser {
      * Saves the parser. Needs to have filename set.
      */
     void save() {
+        saveAsync().addCallback(new GPXFuture.Callback<Void>() {
+            @Override
+            public void onSuccess(Void value) {
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                GPXLog.w(GPXThread.TAG_THREAD, "Saving " + getName() + " failed", error);
+            }
+        });
+    }
+
+    /**
+     * Saves the parser in background. Needs to have filename set.
+     *
+     * @return GPXFuture, fails if the file can not be written
+     */
+    GPXFuture<Void> saveAsync() {
+        return saveAsync(new CancellationToken());
+    }
+
+    /**
+     * Saves the parser in background. Needs to have filename set. The background thread of the parser only captures
+     * a snapshot, serialization and file output run on the I/O thread, so incoming points are processed meanwhile.
+     * The file is opened after the data was serialized, so a cancelled save leaves the file unchanged.
+     *
+     * @param token to cancel saving
+     * @return GPXFuture, completed after the file was written and the save listener was notified,
+     * fails if the file can not be written or saving was cancelled
+     */
+    GPXFuture<Void> saveAsync(final CancellationToken token) {
         if (m_filename == null) {
             throw new IllegalArgumentException("No filename set! Call setFilename before!");
         }
         final String fileName = m_filename;
-        Runnable runnable = new Runnable() {
+        final GPXFuture<Void> res = new GPXFuture<Void>(token);
+        m_executor.execute(GPXThread.ACTION.SAVE, new Runnable() {
             @Override
             public void run() {
-                try {
-                    Log.d(GPXThread.TAG_THREAD, String.format("Write %s to %s", getName(), fileName));
-                    write(new FileOutputStream(new File(fileName)));
-                    m_isChanged=false;
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
+                if (token.isCancelled()) {
+                    res.completeExceptionally(new CancellationException());
+                    return;
+                }
+                //Snapshots share the columns of unchanged tracks, so capturing copies no track points
+                final String name = m_name;
+                final GPXSnapshot snapshot = GPXSnapshot.create(m_points, m_tracks, m_snapshot);
+                m_isChanged = false;
+                getIoExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Exception error = null;
+                        try {
+                            byte[] data = serialize(name, snapshot, token);
+                            GPXLog.d(GPXThread.TAG_THREAD, String.format("Write %s to %s", name, fileName));
+                            OutputStream stream = new FileOutputStream(new File(fileName));
+                            try {
+                                stream.write(data);
+                            } finally {
+                                stream.close();
+                            }
+                        } catch (Exception e) {
+                            error = e;
+                        }
+                        finishSave(res, error);
+                    }
+                });
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Completes a save on the background thread of the parser, like submit.
+     *
+     * @param future of save
+     * @param error  cause of failure, null if the file was written
+     */
+    private void finishSave(final GPXFuture<Void> future, final Exception error) {
+        m_executor.execute(PriorityExecutor.PRIORITY_EDIT, new Runnable() {
+            @Override
+            public void run() {
+                if (error == null) {
+                    notifyListener(GPXThread.ACTION.SAVE);
+                    future.complete(null);
+                    return;
+                }
+                //Data was not saved
+                m_isChanged = true;
+                if (!(error instanceof CancellationException)) {
+                    notifyListener(GPXThread.ACTION.SAVE);
                 }
+                future.completeExceptionally(error);
             }
-        };
-        addRunnableToBackgroundThread(GPXThread.ACTION.SAVE, runnable);
+        });
     }
 
     /**
@@ -488,22 +861,103 @@ public class SecureGPXParser {
      * @param inStream inputstream (e.g. from file)
      */
     protected void init(InputStream inStream) {
+        try {
+            read(inStream, CancellationToken.NONE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        m_snapshotChanged = true;
+        publishSnapshot();
+    }
+
+    /**
+     * Initializes the parser from given InputStream in background. Listeners are notified before the future is completed.
+     *
+     * @param inStream inputstream (e.g. from file), closed after reading
+     * @return GPXFuture of this parser, fails if the stream is no valid gpx
+     */
+    public GPXFuture<SecureGPXParser> initAsync(InputStream inStream) {
+        return initAsync(inStream, new CancellationToken());
+    }
+
+    /**
+     * Initializes the parser from given InputStream in background like initAsync. A cancelled init leaves an empty parser.
+     *
+     * @param inStream inputstream (e.g. from file), closed after reading
+     * @param token    to cancel reading
+     * @return GPXFuture of this parser, fails if the stream is no valid gpx or reading was cancelled
+     */
+    public GPXFuture<SecureGPXParser> initAsync(final InputStream inStream, final CancellationToken token) {
+        return submit(GPXThread.ACTION.INIT_AND_CHANGE, token, new Callable<SecureGPXParser>() {
+            @Override
+            public SecureGPXParser call() throws IOException {
+                try {
+                    read(inStream, token);
+                } finally {
+                    inStream.close();
+                }
+                return SecureGPXParser.this;
+            }
+        });
+    }
+
+    /**
+     * Generates parser instance from file in background.
+     *
+     * @param filePath path to gpx file
+     * @return GPXFuture of the parser, fails if the file can not be read
+     */
+    public static GPXFuture<SecureGPXParser> fromFileAsync(String filePath) {
+        return fromFileAsync(filePath, new CancellationToken());
+    }
+
+    /**
+     * Generates parser instance from file in background like fromFileAsync.
+     *
+     * @param filePath path to gpx file
+     * @param token    to cancel reading
+     * @return GPXFuture of the parser, fails if the file can not be read or reading was cancelled
+     */
+    public static GPXFuture<SecureGPXParser> fromFileAsync(final String filePath, final CancellationToken token) {
+        final SecureGPXParser res = getNewInstance();
+        res.setFilename(filePath);
+        return res.submit(GPXThread.ACTION.INIT_AND_CHANGE, token, new Callable<SecureGPXParser>() {
+            @Override
+            public SecureGPXParser call() throws IOException {
+                InputStream stream = new FileInputStream(new File(filePath));
+                try {
+                    res.read(stream, token);
+                } finally {
+                    stream.close();
+                }
+                return res;
+            }
+        });
+    }
+
+    /**
+     * Reads the parser from given InputStream
+     *
+     * @param inStream inputstream (e.g. from file)
+     * @param token    checked for every point, the parser is reset if cancelled
+     * @throws IOException if the stream is no valid gpx
+     */
+    private void read(InputStream inStream, CancellationToken token) throws IOException {
         reset();
         try {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-            parser.setInput(inStream, null);
+            XmlReader parser = GPXPlatform.newReader(inStream);
             parser.nextTag();
-            parser.require(XmlPullParser.START_TAG, null, TAG_GPX);
+            parser.require(XmlReader.START_TAG, TAG_GPX);
 
-            while (parser.next() != XmlPullParser.END_TAG) {
-                if (parser.getEventType() != XmlPullParser.START_TAG) {
+            while (parser.next() != XmlReader.END_TAG) {
+                if (parser.getEventType() != XmlReader.START_TAG) {
                     continue;
                 }
+                token.throwIfCancelled();
                 if (parser.getName().equals(TAG_METADATA)) {
 
-                    while (parser.next() != XmlPullParser.END_TAG) {
-                        if (parser.getEventType() != XmlPullParser.START_TAG) {
+                    while (parser.next() != XmlReader.END_TAG) {
+                        if (parser.getEventType() != XmlReader.START_TAG) {
                             continue;
                         }
                         String name = parser.getName();
@@ -519,13 +973,14 @@ public class SecureGPXParser {
                 } else if (parser.getName().equals(TAG_ROUTE)) {
                     List<WayPoint> routePoints = new ArrayList<WayPoint>();
                     String routeName = "";
-                    while (parser.next() != XmlPullParser.END_TAG) {
-                        if (parser.getEventType() != XmlPullParser.START_TAG) {
+                    while (parser.next() != XmlReader.END_TAG) {
+                        if (parser.getEventType() != XmlReader.START_TAG) {
                             continue;
                         }
                         String name = parser.getName();
                         // Starts by looking for the entry tag
                         if (name.equals(TAG_ROUTE_POINT)) {
+                            token.throwIfCancelled();
                             routePoints.add(readWayPoint(parser, TAG_ROUTE_POINT));
                         } else if (name.equals(TAG_NAME)) {
                             routeName = readText(parser);
@@ -547,8 +1002,8 @@ public class SecureGPXParser {
 
                     String trackName = "";
                     List<List<WayPoint>> wayPointList = new ArrayList<List<WayPoint>>();
-                    while (parser.next() != XmlPullParser.END_TAG) {
-                        if (parser.getEventType() != XmlPullParser.START_TAG) {
+                    while (parser.next() != XmlReader.END_TAG) {
+                        if (parser.getEventType() != XmlReader.START_TAG) {
                             continue;
                         }
                         String name = parser.getName();
@@ -556,11 +1011,12 @@ public class SecureGPXParser {
                             trackName = readText(parser);
                         } else if (name.equals(TAG_TRACK_SEG)) {
                             List<WayPoint> trackPoints = new ArrayList<WayPoint>();
-                            while (parser.next() != XmlPullParser.END_TAG) {
-                                if (parser.getEventType() != XmlPullParser.START_TAG) {
+                            while (parser.next() != XmlReader.END_TAG) {
+                                if (parser.getEventType() != XmlReader.START_TAG) {
                                     continue;
                                 }
                                 if (parser.getName().equals(TAG_TRACK_POINT)) {
+                                    token.throwIfCancelled();
                                     trackPoints.add(readWayPoint(parser, TAG_TRACK_POINT));
                                 } else {
                                     skip(parser);
@@ -595,22 +1051,70 @@ public class SecureGPXParser {
                 }
             }
             Collections.sort(m_points);
+            getHandler().invalidateLocations();
             m_init_ok = true;
             m_isChanged = false;
-        } catch (XmlPullParserException | IOException e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            m_init_ok = false;
+            throw e;
+        } catch (CancellationException e) {
+            reset();
             m_init_ok = false;
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the state after the latest processed changes. The snapshot is immutable and may be read by any thread
+     * without locking, while the background thread changes the data. It is published once the queued work is done,
+     * and before change listeners and futures (e.g. of whenProcessed) are notified.
+     *
+     * @return GPXSnapshot
+     */
+    public GPXSnapshot getSnapshot() {
+        return m_snapshot;
+    }
+
+    /**
+     * Checks if the calling thread is the background thread of this parser, which is the only thread allowed
+     * to read the data directly while changes are processed.
+     *
+     * @return boolean
+     */
+    boolean isBackgroundThread() {
+        return m_executor.isCurrentThread();
+    }
+
+    /**
+     * Publishes the current state as snapshot, if data changed since the last one. Has to be called by the thread
+     * which changes the data.
+     */
+    void publishSnapshot() {
+        if (!m_snapshotChanged) {
+            return;
         }
+        m_snapshotChanged = false;
+        m_snapshot = GPXSnapshot.create(m_points, m_tracks, m_snapshot);
     }
 
     void notifyListener(GPXThread.ACTION action) {
+        if (action != GPXThread.ACTION.CHANGE_VALIDATION && action != GPXThread.ACTION.SAVE) {
+            m_snapshotChanged = true;
+        }
+        //One snapshot for a burst of changes, published by its last task
+        if (!m_executor.hasWaitingTasks()) {
+            publishSnapshot();
+        }
         if (action.equals(GPXThread.ACTION.INIT_AND_CHANGE)) {
-            notifyListener();
+            m_pendingChanges++;
+            notifyPendingChanges();
             notifySaveListener();
             return;
         }
         if (action.equals(GPXThread.ACTION.CHANGE_DATA)) {
-            notifyListener();
+            m_pendingChanges++;
+            m_lastChange = now();
+            scheduleNotification();
             return;
         }
         if (action.equals(GPXThread.ACTION.SAVE)) {
@@ -619,81 +1123,294 @@ public class SecureGPXParser {
         }
     }
 
+    /**
+     * Notifies the pending changes if the window allows it, otherwise schedules a delayed notification.
+     * Has to be called by the background thread of this parser.
+     */
+    private void scheduleNotification() {
+        long window = m_notificationWindow;
+        long now = now();
+        long due;
+        if (window == 0) {
+            due = now;
+        } else if (m_notificationMode == NotificationMode.DEBOUNCE) {
+            due = m_lastChange + window;
+        } else {
+            due = m_lastNotification == NEVER ? now : m_lastNotification + window;
+        }
+        if (due <= now) {
+            notifyPendingChanges();
+            return;
+        }
+        if (!m_notificationScheduled) {
+            m_notificationScheduled = true;
+            getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    m_executor.execute(GPXThread.ACTION.CHANGE_DATA, m_notificationTask);
+                }
+            }, due - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void notifyPendingChanges() {
+        boolean waiting;
+        synchronized (m_changeFutures) {
+            waiting = !m_changeFutures.isEmpty();
+        }
+        if (waiting || !m_changeListener.isEmpty()) {
+            publishSnapshot();
+        }
+        int changes = m_pendingChanges;
+        m_pendingChanges = 0;
+        m_lastNotification = now();
+        notifyListener(changes);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Gets the timer shared by all parsers. Timer tasks must be short, they should hand over work to an executor.
+     *
+     * @return ScheduledExecutorService
+     */
+    static synchronized ScheduledExecutorService getTimer() {
+        if (m_timer == null) {
+            m_timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread res = new Thread(runnable, "GPXTimer");
+                    res.setDaemon(true);
+                    return res;
+                }
+            });
+            //Timeouts are usually cancelled, so they should not stay in the queue
+            m_timer.setRemoveOnCancelPolicy(true);
+        }
+        return m_timer;
+    }
+
+    /**
+     * Gets the thread which serializes and writes saves of all parsers, so saving does not delay incoming points.
+     *
+     * @return ExecutorService
+     */
+    static synchronized ExecutorService getIoExecutor() {
+        if (m_ioExecutor == null) {
+            m_ioExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread res = new Thread(runnable, "GPXIO");
+                    res.setDaemon(true);
+                    return res;
+                }
+            });
+        }
+        return m_ioExecutor;
+    }
+
     /**
      * Write the data to a given OutputStream.
      *
      * @param stream to be written to
      */
     void write(OutputStream stream) {
-        XmlSerializer xmlSerializer = Xml.newSerializer();
-        StringWriter writer = new StringWriter();
         try {
-            xmlSerializer.setOutput(writer);
-            // start DOCUMENT
-            xmlSerializer.startDocument("UTF-8", true);
-
-            xmlSerializer.startTag("", TAG_GPX);
-            xmlSerializer.attribute("", "xmlns", "http://www.topografix.com/GPX/1/1");
-            xmlSerializer.attribute("", "version", "1.1");
-            xmlSerializer.attribute("", "creator", "https://www.shuewe.de");
-            if (m_name != null) {
-                xmlSerializer.startTag("", TAG_METADATA);
-                xmlSerializer.startTag("", TAG_NAME);
-                xmlSerializer.text(m_name);
-                xmlSerializer.endTag("", TAG_NAME);
-                xmlSerializer.endTag("", TAG_METADATA);
-            }
-            for (WayPoint point : m_points) {
-                addPointToParser(xmlSerializer, point, TAG_WAYPOINT);
-            }
-            for (String trackName : m_tracks.keySet()) {
-                Track track = m_tracks.get(trackName);
-                xmlSerializer.startTag("", TAG_TRACK);
-                xmlSerializer.startTag("", TAG_NAME);
-                xmlSerializer.text(trackName);
-                xmlSerializer.endTag("", TAG_NAME);
-
-                for (TrackSegment segmentPoints : track.getSegments()) {
-                    if (segmentPoints.isEmpty()) {
-                        continue;
-                    }
-                    xmlSerializer.startTag("", TAG_TRACK_SEG);
-                    for (WayPoint trackPoint : segmentPoints.getPoints()) {
-                        addPointToParser(xmlSerializer, trackPoint, TAG_TRACK_POINT);
-                    }
-                    xmlSerializer.endTag("", TAG_TRACK_SEG);
+            stream.write(serialize(m_name, GPXSnapshot.create(m_points, m_tracks, m_snapshot), CancellationToken.NONE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Serializes a snapshot as gpx, may be called by any thread.
+     *
+     * @param name     of parser
+     * @param snapshot to be serialized
+     * @param token    checked for every point
+     * @return gpx document
+     * @throws IOException if serializing fails
+     */
+    private static byte[] serialize(String name, GPXSnapshot snapshot, CancellationToken token) throws IOException {
+        StringWriter writer = new StringWriter();
+        XmlWriter xmlSerializer = GPXPlatform.newWriter(writer);
+        // start DOCUMENT
+        xmlSerializer.startDocument();
+
+        xmlSerializer.startTag(TAG_GPX);
+        xmlSerializer.attribute("xmlns", "http://www.topografix.com/GPX/1/1");
+        xmlSerializer.attribute("version", "1.1");
+        xmlSerializer.attribute("creator", "https://www.shuewe.de");
+        if (name != null) {
+            xmlSerializer.startTag(TAG_METADATA);
+            xmlSerializer.startTag(TAG_NAME);
+            xmlSerializer.text(name);
+            xmlSerializer.endTag(TAG_NAME);
+            xmlSerializer.endTag(TAG_METADATA);
+        }
+        for (WayPoint point : snapshot.getWayPoints()) {
+            token.throwIfCancelled();
+            addPointToParser(xmlSerializer, point, TAG_WAYPOINT);
+        }
+        for (Map.Entry<String, TrackSnapshot> entry : snapshot.getTracks().entrySet()) {
+            String trackName = entry.getKey();
+            xmlSerializer.startTag(TAG_TRACK);
+            xmlSerializer.startTag(TAG_NAME);
+            xmlSerializer.text(trackName);
+            xmlSerializer.endTag(TAG_NAME);
+
+            for (SegmentSnapshot segment : entry.getValue().getSegments()) {
+                if (segment.isEmpty()) {
+                    continue;
+                }
+                xmlSerializer.startTag(TAG_TRACK_SEG);
+                //Rows are written from the columns, no WayPoint is created
+                for (int i = 0; i < segment.size(); i++) {
+                    token.throwIfCancelled();
+                    addPointToParser(xmlSerializer, TAG_TRACK_POINT, segment.getLat(i), segment.getLng(i), segment.getName(i),
+                            segment.getHash(i), segment.getTime(i), segment.getAltitude(i), segment.getAccuracy(i));
                 }
-                xmlSerializer.endTag("", TAG_TRACK);
+                xmlSerializer.endTag(TAG_TRACK_SEG);
             }
-            xmlSerializer.endTag("", TAG_GPX);
+            xmlSerializer.endTag(TAG_TRACK);
+        }
+        xmlSerializer.endTag(TAG_GPX);
 
 
-            // end DOCUMENT
-            xmlSerializer.endDocument();
-            stream.write(writer.toString().getBytes());
-        } catch (IOException e) {
+        // end DOCUMENT
+        xmlSerializer.endDocument();
+        return writer.toString().getBytes();
+    }
+
+    private void addRunnableToBackgroundThread(GPXThread.ACTION action, Runnable runnable) {
+        execute(action, runnable);
+    }
 
+    /**
+     * Runs the runnable in background and notifies the listeners afterwards. Runnables of edits run before waiting
+     * validations and saves, runnables of the same action and init run in order of submission (see PriorityExecutor).
+     * A RuntimeException of the runnable is passed to the error listener (see setErrorListener).
+     *
+     * @param action   type of change
+     * @param runnable to be run
+     */
+    void execute(final GPXThread.ACTION action, final Runnable runnable) {
+        m_executor.execute(action, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                    notifyListener(action);
+                } catch (RuntimeException e) {
+                    handleError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Passes the exception of a failed background task to the error listener, or logs it if there is none.
+     *
+     * @param e thrown by the task
+     */
+    private void handleError(RuntimeException e) {
+        GPXErrorListener listener = m_errorListener;
+        if (listener == null) {
+            GPXLog.e(GPXThread.TAG_THREAD, "Task of " + getName() + " failed", e);
+            return;
         }
+        listener.handleError(this, e);
     }
 
-    private void addRunnableToBackgroundThread(GPXThread.ACTION action, Runnable runnable) {
-        Log.d(GPXThread.TAG_THREAD, "Add runnable to background thread");
-        m_thread.m_handler.sendMessage(GPXThread.getPreparedMessage(action, this, runnable));
+
+    /**
+     * Runs the task in background like execute. The future is completed after the listeners were notified,
+     * so the published snapshot contains the changes of the task. The task is not started if the token was
+     * cancelled before, cancelling the future cancels the token.
+     *
+     * @param action type of change
+     * @param token  to cancel the task, has to be checked by the task while running
+     * @param task   to be run
+     * @param <V>    type of result
+     * @return GPXFuture of the result of the task
+     */
+    <V> GPXFuture<V> submit(final GPXThread.ACTION action, final CancellationToken token, final Callable<V> task) {
+        final GPXFuture<V> res = new GPXFuture<V>(token);
+        final Object[] result = new Object[1];
+        final Exception[] error = new Exception[1];
+        m_executor.execute(action, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    token.throwIfCancelled();
+                    result[0] = task.call();
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+                //Cancelled save or validation changed nothing, a cancelled init left an empty parser
+                if (!(error[0] instanceof CancellationException) || action == GPXThread.ACTION.INIT_AND_CHANGE) {
+                    notifyListener(action);
+                }
+            }
+        });
+        m_executor.execute(action, new Runnable() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run() {
+                publishSnapshot();
+                if (error[0] != null) {
+                    res.completeExceptionally(error[0]);
+                } else {
+                    res.complete((V) result[0]);
+                }
+            }
+        });
+        return res;
     }
 
+    /**
+     * Gets a future which is completed when all work added before was processed in background.
+     *
+     * @return GPXFuture of this parser
+     */
+    public GPXFuture<SecureGPXParser> whenProcessed() {
+        final GPXFuture<SecureGPXParser> res = new GPXFuture<SecureGPXParser>();
+        m_executor.executeBarrier(new Runnable() {
+            @Override
+            public void run() {
+                publishSnapshot();
+                res.complete(SecureGPXParser.this);
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Gets a future which is completed with the next change notification (see setNotificationWindow).
+     *
+     * @return GPXFuture of this parser
+     */
+    public GPXFuture<SecureGPXParser> nextChange() {
+        GPXFuture<SecureGPXParser> res = new GPXFuture<SecureGPXParser>();
+        synchronized (m_changeFutures) {
+            m_changeFutures.add(res);
+        }
+        return res;
+    }
 
     /**
      * Read date from XML.
      *
      * @param parser to read from
      * @return Date
-     * @throws XmlPullParserException
      * @throws IOException
      */
-    private Date readDate(XmlPullParser parser) throws XmlPullParserException, IOException {
-        parser.require(XmlPullParser.START_TAG, null, TAG_TIME);
+    private Date readDate(XmlReader parser) throws IOException {
+        parser.require(XmlReader.START_TAG, TAG_TIME);
         String dateString = readText(parser);
-        parser.require(XmlPullParser.END_TAG, null, TAG_TIME);
+        parser.require(XmlReader.END_TAG, TAG_TIME);
         return getDateFromString(dateString);
     }
 
@@ -703,11 +1420,10 @@ public class SecureGPXParser {
      * @param parser to read from
      * @return String
      * @throws IOException
-     * @throws XmlPullParserException
      */
-    private String readText(XmlPullParser parser) throws IOException, XmlPullParserException {
+    private String readText(XmlReader parser) throws IOException {
         String result = "";
-        if (parser.next() == XmlPullParser.TEXT) {
+        if (parser.next() == XmlReader.TEXT) {
             result = parser.getText();
             parser.nextTag();
         }
@@ -719,10 +1435,9 @@ public class SecureGPXParser {
      *
      * @param parser to read from
      * @return WayPoint instance
-     * @throws XmlPullParserException
      * @throws IOException
      */
-    private WayPoint readWayPoint(XmlPullParser parser) throws XmlPullParserException, IOException {
+    private WayPoint readWayPoint(XmlReader parser) throws IOException {
         return readWayPoint(parser, TAG_WAYPOINT);
     }
 
@@ -732,11 +1447,10 @@ public class SecureGPXParser {
      * @param parser   to read from
      * @param tag_name Tag to read (from Waypoint, Track or Route)
      * @return WayPoint instance
-     * @throws XmlPullParserException
      * @throws IOException
      */
-    private WayPoint readWayPoint(XmlPullParser parser, String tag_name) throws IOException, XmlPullParserException {
-        parser.require(XmlPullParser.START_TAG, null, tag_name);
+    private WayPoint readWayPoint(XmlReader parser, String tag_name) throws IOException {
+        parser.require(XmlReader.START_TAG, tag_name);
         //This is a waypoint
         String lat = "0";
         String lng = "0";
@@ -754,8 +1468,8 @@ public class SecureGPXParser {
                 lng = parser.getAttributeValue(i);
             }
         }
-        while (parser.next() != XmlPullParser.END_TAG) {
-            if (parser.getEventType() != XmlPullParser.START_TAG) {
+        while (parser.next() != XmlReader.END_TAG) {
+            if (parser.getEventType() != XmlReader.START_TAG) {
                 continue;
             }
             String name = parser.getName();
@@ -774,7 +1488,7 @@ public class SecureGPXParser {
                 skip(parser);
             }
         }
-        parser.require(XmlPullParser.END_TAG, null, tag_name);
+        parser.require(XmlReader.END_TAG, tag_name);
         WayPoint res = getWayPointInstance(pointName, Double.parseDouble(lat), Double.parseDouble(lng), date, Double.parseDouble(accuracy));
         if(altitude!=null){
             res.setAltitude(Double.parseDouble(altitude));
@@ -789,20 +1503,19 @@ public class SecureGPXParser {
      * Skip tag (including child tags)
      *
      * @param parser to handle
-     * @throws XmlPullParserException
      * @throws IOException
      */
-    private void skip(XmlPullParser parser) throws XmlPullParserException, IOException {
-        if (parser.getEventType() != XmlPullParser.START_TAG) {
+    private void skip(XmlReader parser) throws IOException {
+        if (parser.getEventType() != XmlReader.START_TAG) {
             throw new IllegalStateException();
         }
         int depth = 1;
         while (depth != 0) {
             switch (parser.next()) {
-                case XmlPullParser.END_TAG:
+                case XmlReader.END_TAG:
                     depth--;
                     break;
-                case XmlPullParser.START_TAG:
+                case XmlReader.START_TAG:
                     depth++;
                     break;
             }
@@ -813,8 +1526,8 @@ public class SecureGPXParser {
         m_isChanged=true;
     }
 
-    private void skipText(XmlPullParser parser) throws XmlPullParserException, IOException {
-        while (parser.getEventType() == XmlPullParser.TEXT){
+    private void skipText(XmlReader parser) throws IOException {
+        while (parser.getEventType() == XmlReader.TEXT){
             parser.next();
         }
     }
@@ -834,6 +1547,30 @@ public class SecureGPXParser {
         void handleChangedData(SecureGPXParser parser);
     }
 
+    /**
+     * Change listener which is informed about the number of changes collapsed into one notification
+     * (see setNotificationWindow). Only handleChangedData(parser, changes) is called for it.
+     */
+    public interface GPXBatchChangeListener extends GPXChangeListener {
+        /**
+         * Passes changed parser to GPXBatchChangeListener (called from SecureGPXParser)
+         *
+         * @param parser  changed parser
+         * @param changes number of changes since the last notification
+         */
+        void handleChangedData(SecureGPXParser parser, int changes);
+    }
+
+    /**
+     * Coalescing of change notifications (see setNotificationWindow)
+     */
+    public enum NotificationMode {
+        //Notify at most once per window, the first change immediately
+        THROTTLE,
+        //Notify when there was no change for the window
+        DEBOUNCE
+    }
+
     public interface GPXOnInitListener {
 
         void onInitReady(SecureGPXParser parser);
@@ -844,6 +1581,19 @@ public class SecureGPXParser {
         void handleValidation(boolean valid);
     }
 
+    /**
+     * Interface for handling failed background tasks which have no GPXFuture (e.g. edits).
+     */
+    public interface GPXErrorListener {
+        /**
+         * Passes the exception of a failed task (called on the background thread of the parser)
+         *
+         * @param parser parser of the task
+         * @param e      thrown by the task
+         */
+        void handleError(SecureGPXParser parser, RuntimeException e);
+    }
+
     public List<? extends GPXElement> getTrackSegmentsAndSinglePlaces(){
         List<GPXElement> res = new ArrayList<GPXElement>();
         res.addAll(m_points);
@@ -0,0 +1,213 @@
+package de.shuewe.gpx;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable state of a TrackSegment. The snapshot shares the columns of the segment, the segment copies
+ * them before a shared row is changed (copy on write). Appended points are written behind the rows of the
+ * snapshot, so recording does not copy anything. A snapshot may be read by any thread without locking.
+ */
+public final class SegmentSnapshot {
+
+    private final int m_size;
+    private final double[] m_lat;
+    private final double[] m_lng;
+    private final double[] m_accuracy;
+    private final double[] m_altitude;
+    private final long[] m_time;
+    private final byte[] m_flags;
+    private final byte[] m_hashes;
+    private final String[] m_names;
+    private final String[] m_rawHashes;
+
+    //Bounding boxes of the complete blocks of rows, shared with the segment (see TrackSegment#getBlockBounds)
+    private final double[] m_blockBounds;
+
+    //Instance used to create points (keeps the WayPoint class of the segment)
+    private final WayPoint m_template;
+
+    private final List<WayPoint> m_points = new SnapshotList();
+
+    SegmentSnapshot(int size, double[] lat, double[] lng, double[] accuracy, double[] altitude, long[] time, byte[] flags,
+                    byte[] hashes, String[] names, String[] rawHashes, double[] blockBounds, WayPoint template) {
+        m_size = size;
+        m_lat = lat;
+        m_lng = lng;
+        m_accuracy = accuracy;
+        m_altitude = altitude;
+        m_time = time;
+        m_flags = flags;
+        m_hashes = hashes;
+        m_names = names;
+        m_rawHashes = rawHashes;
+        m_blockBounds = blockBounds;
+        m_template = template;
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    public boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    public double getLat(int i) {
+        checkIndex(i);
+        return m_lat[i];
+    }
+
+    public double getLng(int i) {
+        checkIndex(i);
+        return m_lng[i];
+    }
+
+    public double getAccuracy(int i) {
+        checkIndex(i);
+        return m_accuracy[i];
+    }
+
+    /**
+     * Gets the altitude of a point
+     *
+     * @param i index of point
+     * @return altitude, null if point has no altitude
+     */
+    public Double getAltitude(int i) {
+        checkIndex(i);
+        return (m_flags[i] & TrackSegment.FLAG_ALTITUDE) == 0 ? null : m_altitude[i];
+    }
+
+    /**
+     * Gets the time of a point
+     *
+     * @param i index of point
+     * @return time in epoch millis, GPXElement.NO_TIME if point has no date
+     */
+    public long getTime(int i) {
+        checkIndex(i);
+        return m_time[i];
+    }
+
+    /**
+     * Gets the time used for sorting of a point (points without date are sorted like Date(0)).
+     *
+     * @param i index of point
+     * @return time in epoch millis
+     */
+    long getSortTime(int i) {
+        return m_time[i] == GPXElement.NO_TIME ? 0 : m_time[i];
+    }
+
+    public String getName(int i) {
+        checkIndex(i);
+        return m_names == null ? null : m_names[i];
+    }
+
+    public boolean isStart(int i) {
+        checkIndex(i);
+        return (m_flags[i] & TrackSegment.FLAG_START) != 0;
+    }
+
+    public String getHash(int i) {
+        checkIndex(i);
+        if ((m_flags[i] & TrackSegment.FLAG_HASH) != 0) {
+            return SecureGPXParser.bytesToHexString(m_hashes, i * TrackSegment.HASH_LENGTH, TrackSegment.HASH_LENGTH);
+        }
+        if ((m_flags[i] & TrackSegment.FLAG_RAW_HASH) != 0) {
+            return m_rawHashes[i];
+        }
+        return null;
+    }
+
+    /**
+     * Gets the number of blocks of TrackSegment.BLOCK_SIZE rows.
+     *
+     * @return int
+     */
+    int getBlockCount() {
+        return (m_size + TrackSegment.BLOCK_SIZE - 1) / TrackSegment.BLOCK_SIZE;
+    }
+
+    /**
+     * Copies the bounding box of a block (minLat, maxLat, minLng, maxLng).
+     *
+     * @param block  index of block
+     * @param bounds to copy to
+     * @param offset in bounds
+     */
+    void getBlockBounds(int block, double[] bounds, int offset) {
+        int start = block * TrackSegment.BLOCK_SIZE;
+        int end = Math.min(m_size, start + TrackSegment.BLOCK_SIZE);
+        if (end - start == TrackSegment.BLOCK_SIZE) {
+            System.arraycopy(m_blockBounds, 4 * block, bounds, offset, 4);
+            return;
+        }
+        //Rows appended to the segment change the box of its last block, so it is calculated from the rows
+        double minLat = m_lat[start];
+        double maxLat = m_lat[start];
+        double minLng = m_lng[start];
+        double maxLng = m_lng[start];
+        for (int row = start + 1; row < end; row++) {
+            minLat = Math.min(minLat, m_lat[row]);
+            maxLat = Math.max(maxLat, m_lat[row]);
+            minLng = Math.min(minLng, m_lng[row]);
+            maxLng = Math.max(maxLng, m_lng[row]);
+        }
+        bounds[offset] = minLat;
+        bounds[offset + 1] = maxLat;
+        bounds[offset + 2] = minLng;
+        bounds[offset + 3] = maxLng;
+    }
+
+    /**
+     * Creates a detached copy of a point. Changes of the copy do not change the snapshot or the track.
+     *
+     * @param i index of point
+     * @return WayPoint
+     */
+    public WayPoint getPoint(int i) {
+        checkIndex(i);
+        WayPoint res = m_template.newView(m_lat[i], m_lng[i], m_time[i], m_accuracy[i]);
+        res.setName(getName(i));
+        res.setAltitude(getAltitude(i));
+        if ((m_flags[i] & TrackSegment.FLAG_HASH) != 0) {
+            res.setHash(Arrays.copyOfRange(m_hashes, i * TrackSegment.HASH_LENGTH, (i + 1) * TrackSegment.HASH_LENGTH));
+        } else {
+            res.setHash(getHash(i));
+        }
+        res.setIsStartPoint(isStart(i));
+        return res;
+    }
+
+    /**
+     * Gets all points, copies are created on access (see #getPoint).
+     *
+     * @return unmodifiable List of WayPoint
+     */
+    public List<WayPoint> getPoints() {
+        return m_points;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= m_size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + m_size);
+        }
+    }
+
+    private class SnapshotList extends AbstractList<WayPoint> implements RandomAccess {
+
+        @Override
+        public WayPoint get(int index) {
+            return getPoint(index);
+        }
+
+        @Override
+        public int size() {
+            return m_size;
+        }
+    }
+}
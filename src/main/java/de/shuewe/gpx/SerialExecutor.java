@@ -0,0 +1,56 @@
+package de.shuewe.gpx;
+
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor which runs its tasks one after another on a shared pool. At most one task of this executor
+ * is passed to the pool at a time, so no pool thread is blocked by waiting tasks. Exceptions of a task
+ * are passed on to the pool (parsers report failed tasks to their error listener before), the following
+ * tasks are run anyway.
+ */
+class SerialExecutor implements Executor {
+
+    private final Executor m_pool;
+
+    //Number of queued or running tasks of all executors of the backend
+    private final AtomicInteger m_pending;
+
+    private final ArrayDeque<Runnable> m_tasks = new ArrayDeque<Runnable>();
+
+    //Task which was passed to the pool, null if there is none
+    private Runnable m_active = null;
+
+    SerialExecutor(Executor pool, AtomicInteger pending) {
+        m_pool = pool;
+        m_pending = pending;
+    }
+
+    @Override
+    public synchronized void execute(final Runnable runnable) {
+        m_pending.incrementAndGet();
+        m_tasks.offer(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    m_pending.decrementAndGet();
+                    scheduleNext();
+                }
+            }
+        });
+        if (m_active == null) {
+            scheduleNext();
+        }
+    }
+
+    private synchronized void scheduleNext() {
+        m_active = m_tasks.poll();
+        if (m_active != null) {
+            m_pool.execute(m_active);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package de.shuewe.gpx;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * XmlWriter using the xmlpull serializer of Android.
+ */
+class SerializerXmlWriter implements XmlWriter {
+
+    private final XmlSerializer m_serializer;
+
+    SerializerXmlWriter(Writer writer) throws IOException {
+        m_serializer = Xml.newSerializer();
+        m_serializer.setOutput(writer);
+    }
+
+    @Override
+    public void startDocument() throws IOException {
+        m_serializer.startDocument("UTF-8", true);
+    }
+
+    @Override
+    public void startTag(String name) throws IOException {
+        m_serializer.startTag("", name);
+    }
+
+    @Override
+    public void attribute(String name, String value) throws IOException {
+        m_serializer.attribute("", name, value);
+    }
+
+    @Override
+    public void text(String text) throws IOException {
+        m_serializer.text(text);
+    }
+
+    @Override
+    public void endTag(String name) throws IOException {
+        m_serializer.endTag("", name);
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        m_serializer.endDocument();
+    }
+}
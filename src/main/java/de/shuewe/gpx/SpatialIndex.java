@@ -0,0 +1,409 @@
+package de.shuewe.gpx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Spatial queries over all locations of a parser (single waypoints and track points).
+ * Each TrackSegment keeps bounding boxes of blocks of consecutive points. The blocks and the single
+ * waypoints are the entries of an R-tree, which is packed (sort tile recursive) on the first query after
+ * the locations were changed. Queries descend only into nodes which intersect the query, nearest
+ * neighbours are found by a best-first search ordered by the minimum distance to the nodes.
+ * The tree is immutable once built. The index of a parser has to be used by its background thread, the index
+ * of a GPXSnapshot may be queried by any thread.
+ */
+class SpatialIndex {
+
+    //Maximum number of children of a node
+    private static final int NODE_SIZE = 16;
+
+    //Levels of candidates of the nearest neighbour search (entries have level 0, nodes above)
+    private static final int LEVEL_ROW = -1;
+
+    private final LocationIndex m_locations;
+
+    //Tree of the latest query, null until the first query
+    private volatile Tree m_tree = null;
+
+    SpatialIndex(LocationIndex locations) {
+        m_locations = locations;
+    }
+
+    /**
+     * Gets all locations inside of the bounding box. If minLng > maxLng, the box crosses the 180th meridian.
+     *
+     * @param minLat minimum latitude
+     * @param minLng minimum (western) longitude
+     * @param maxLat maximum latitude
+     * @param maxLng maximum (eastern) longitude
+     * @return List of WayPoint
+     */
+    List<WayPoint> findInBoundingBox(double minLat, double minLng, double maxLat, double maxLng) {
+        Tree tree = ensureTree();
+        List<WayPoint> res = new ArrayList<WayPoint>();
+        int top = tree.m_levels.length - 1;
+        for (int node = 0; node < tree.getNodeCount(top); node++) {
+            findInBoundingBox(tree, top, node, minLat, maxLat, minLng, maxLng, res);
+        }
+        return res;
+    }
+
+    /**
+     * Gets all locations within the radius, sorted by distance.
+     *
+     * @param lat                latitude of center
+     * @param lng                longitude of center
+     * @param radiusInKilometer  radius
+     * @return List of WayPoint
+     */
+    List<WayPoint> findInRadius(double lat, double lng, double radiusInKilometer) {
+        Tree tree = ensureTree();
+        List<WayPoint> res = new ArrayList<WayPoint>();
+        List<Double> distances = new ArrayList<Double>();
+        int top = tree.m_levels.length - 1;
+        for (int node = 0; node < tree.getNodeCount(top); node++) {
+            findInRadius(tree, top, node, lat, lng, radiusInKilometer, res, distances);
+        }
+        return sortByDistance(res, distances);
+    }
+
+    /**
+     * Gets the nearest locations, sorted by distance. Nodes, blocks and points are visited in order of their
+     * minimum distance, so only nodes closer than the found locations are visited.
+     *
+     * @param lat   latitude
+     * @param lng   longitude
+     * @param count maximum number of locations
+     * @return List of WayPoint
+     */
+    List<WayPoint> findNearest(double lat, double lng, int count) {
+        List<WayPoint> res = new ArrayList<WayPoint>();
+        if (count <= 0) {
+            return res;
+        }
+        Tree tree = ensureTree();
+        LocationIndex.Sources sources = tree.m_sources;
+        PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+        int top = tree.m_levels.length - 1;
+        for (int node = 0; node < tree.getNodeCount(top); node++) {
+            queue.add(new Candidate(tree.getMinDistance(top, node, lat, lng), top, node, 0));
+        }
+        while (res.size() < count && !queue.isEmpty()) {
+            Candidate candidate = queue.poll();
+            if (candidate.m_level == LEVEL_ROW) {
+                res.add(sources.getPoint(candidate.m_index, candidate.m_row));
+            } else if (candidate.m_level > 0) {
+                int end = tree.getChildEnd(candidate.m_level, candidate.m_index);
+                for (int child = candidate.m_index * NODE_SIZE; child < end; child++) {
+                    queue.add(new Candidate(tree.getMinDistance(candidate.m_level - 1, child, lat, lng), candidate.m_level - 1, child, 0));
+                }
+            } else if (tree.m_entrySources[candidate.m_index] == 0) {
+                //Distance to the box of a single waypoint is its distance
+                res.add(sources.getPoint(0, tree.m_entryIndices[candidate.m_index]));
+            } else {
+                int source = tree.m_entrySources[candidate.m_index];
+                int start = tree.m_entryIndices[candidate.m_index] * TrackSegment.BLOCK_SIZE;
+                int end = Math.min(sources.getSourceSize(source), start + TrackSegment.BLOCK_SIZE);
+                for (int row = start; row < end; row++) {
+                    double distance = WayPoint.calculateDistanceInKilometer(lat, lng, sources.getLat(source, row), sources.getLng(source, row));
+                    queue.add(new Candidate(distance, LEVEL_ROW, source, row));
+                }
+            }
+        }
+        return res;
+    }
+
+    private static void findInBoundingBox(Tree tree, int level, int node, double minLat, double maxLat, double minLng, double maxLng, List<WayPoint> res) {
+        double[] bounds = tree.m_levels[level];
+        int offset = 4 * node;
+        if (bounds[offset] > maxLat || bounds[offset + 1] < minLat || !intersectsLng(bounds[offset + 2], bounds[offset + 3], minLng, maxLng)) {
+            return;
+        }
+        LocationIndex.Sources sources = tree.m_sources;
+        if (level > 0) {
+            int end = tree.getChildEnd(level, node);
+            for (int child = node * NODE_SIZE; child < end; child++) {
+                findInBoundingBox(tree, level - 1, child, minLat, maxLat, minLng, maxLng, res);
+            }
+        } else if (tree.m_entrySources[node] == 0) {
+            //Box of a single waypoint is the point itself
+            res.add(sources.getPoint(0, tree.m_entryIndices[node]));
+        } else {
+            int source = tree.m_entrySources[node];
+            int start = tree.m_entryIndices[node] * TrackSegment.BLOCK_SIZE;
+            int end = Math.min(sources.getSourceSize(source), start + TrackSegment.BLOCK_SIZE);
+            for (int row = start; row < end; row++) {
+                double lat = sources.getLat(source, row);
+                if (lat >= minLat && lat <= maxLat && containsLng(minLng, maxLng, sources.getLng(source, row))) {
+                    res.add(sources.getPoint(source, row));
+                }
+            }
+        }
+    }
+
+    private static void findInRadius(Tree tree, int level, int node, double lat, double lng, double radius, List<WayPoint> res, List<Double> distances) {
+        if (tree.getMinDistance(level, node, lat, lng) > radius) {
+            return;
+        }
+        LocationIndex.Sources sources = tree.m_sources;
+        if (level > 0) {
+            int end = tree.getChildEnd(level, node);
+            for (int child = node * NODE_SIZE; child < end; child++) {
+                findInRadius(tree, level - 1, child, lat, lng, radius, res, distances);
+            }
+        } else if (tree.m_entrySources[node] == 0) {
+            int index = tree.m_entryIndices[node];
+            res.add(sources.getPoint(0, index));
+            distances.add(WayPoint.calculateDistanceInKilometer(lat, lng, sources.getLat(0, index), sources.getLng(0, index)));
+        } else {
+            int source = tree.m_entrySources[node];
+            int start = tree.m_entryIndices[node] * TrackSegment.BLOCK_SIZE;
+            int end = Math.min(sources.getSourceSize(source), start + TrackSegment.BLOCK_SIZE);
+            for (int row = start; row < end; row++) {
+                double distance = WayPoint.calculateDistanceInKilometer(lat, lng, sources.getLat(source, row), sources.getLng(source, row));
+                if (distance <= radius) {
+                    res.add(sources.getPoint(source, row));
+                    distances.add(distance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the tree of the current locations, builds it again if the locations changed since it was built.
+     * Concurrent queries of a snapshot may build two equal trees.
+     *
+     * @return Tree
+     */
+    private Tree ensureTree() {
+        LocationIndex.Sources sources = m_locations.getSources();
+        Tree tree = m_tree;
+        if (tree != null && tree.m_sources == sources) {
+            return tree;
+        }
+        tree = new Tree(sources);
+        m_tree = tree;
+        return tree;
+    }
+
+    /**
+     * Creates the bounding boxes of the parent nodes of a level, each parent has NODE_SIZE consecutive children.
+     *
+     * @param children bounding boxes of the children
+     * @return bounding boxes of the parents
+     */
+    private static double[] createParentLevel(double[] children) {
+        int childCount = children.length / 4;
+        int count = (childCount + NODE_SIZE - 1) / NODE_SIZE;
+        double[] res = new double[4 * count];
+        for (int node = 0; node < count; node++) {
+            int offset = 4 * node;
+            res[offset] = Double.MAX_VALUE;
+            res[offset + 1] = -Double.MAX_VALUE;
+            res[offset + 2] = Double.MAX_VALUE;
+            res[offset + 3] = -Double.MAX_VALUE;
+            int end = Math.min(childCount, (node + 1) * NODE_SIZE);
+            for (int child = node * NODE_SIZE; child < end; child++) {
+                res[offset] = Math.min(res[offset], children[4 * child]);
+                res[offset + 1] = Math.max(res[offset + 1], children[4 * child + 1]);
+                res[offset + 2] = Math.min(res[offset + 2], children[4 * child + 2]);
+                res[offset + 3] = Math.max(res[offset + 3], children[4 * child + 3]);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Gets the minimum distance between a point and a bounding box (minLng <= maxLng).
+     * If the longitude is outside of the box, the closest point is on one of its meridians.
+     *
+     * @return distance in km
+     */
+    static double getMinDistance(double lat, double lng, double minLat, double maxLat, double minLng, double maxLng) {
+        if (lng >= minLng && lng <= maxLng) {
+            double dLat = lat < minLat ? minLat - lat : (lat > maxLat ? lat - maxLat : 0);
+            return Math.toRadians(dLat) * WayPoint.AVERAGE_RADIUS_OF_EARTH_KM;
+        }
+        return Math.min(getMinDistance(lat, lng, minLat, maxLat, minLng), getMinDistance(lat, lng, minLat, maxLat, maxLng));
+    }
+
+    /**
+     * Gets the minimum distance between a point and a part of a meridian.
+     *
+     * @return distance in km
+     */
+    private static double getMinDistance(double lat, double lng, double minLat, double maxLat, double meridian) {
+        double res = Math.min(WayPoint.calculateDistanceInKilometer(lat, lng, minLat, meridian),
+                WayPoint.calculateDistanceInKilometer(lat, lng, maxLat, meridian));
+        //Closest point of the great circle of the meridian, if it is on the same side of the earth
+        double cosDLng = Math.cos(Math.toRadians(meridian - lng));
+        if (cosDLng > 0) {
+            double closest = Math.toDegrees(Math.atan(Math.tan(Math.toRadians(lat)) / cosDLng));
+            if (closest > minLat && closest < maxLat) {
+                res = Math.min(res, WayPoint.calculateDistanceInKilometer(lat, lng, closest, meridian));
+            }
+        }
+        return res;
+    }
+
+    private static List<WayPoint> sortByDistance(List<WayPoint> points, final List<Double> distances) {
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < points.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(distances.get(i1), distances.get(i2));
+            }
+        });
+        List<WayPoint> res = new ArrayList<WayPoint>(points.size());
+        for (Integer i : order) {
+            res.add(points.get(i));
+        }
+        return res;
+    }
+
+    /**
+     * Checks if a longitude is in range, range may cross the 180th meridian (minLng > maxLng).
+     */
+    static boolean containsLng(double minLng, double maxLng, double lng) {
+        if (minLng <= maxLng) {
+            return lng >= minLng && lng <= maxLng;
+        }
+        return lng >= minLng || lng <= maxLng;
+    }
+
+    /**
+     * Checks if the longitude range of a block intersects the range of a query (may cross the 180th meridian).
+     */
+    static boolean intersectsLng(double blockMinLng, double blockMaxLng, double minLng, double maxLng) {
+        if (minLng <= maxLng) {
+            return blockMaxLng >= minLng && blockMinLng <= maxLng;
+        }
+        return blockMaxLng >= minLng || blockMinLng <= maxLng;
+    }
+
+    /**
+     * Packed R-tree of one version of the locations, immutable once built.
+     */
+    private static class Tree {
+
+        private final LocationIndex.Sources m_sources;
+
+        //Entries in tree order: source (0 for single waypoints) and block (index of waypoint)
+        private final int[] m_entrySources;
+        private final int[] m_entryIndices;
+
+        //Bounding boxes of each level (minLat, maxLat, minLng, maxLng per node), level 0 are the entries
+        private final double[][] m_levels;
+
+        Tree(LocationIndex.Sources sources) {
+            m_sources = sources;
+            int segments = sources.getSourceCount();
+            int count = sources.getSourceSize(0);
+            for (int s = 1; s < segments; s++) {
+                count += sources.getBlockCount(s);
+            }
+            final int[] entrySources = new int[count];
+            final int[] indices = new int[count];
+            final double[] bounds = new double[4 * count];
+            int entry = 0;
+            for (int i = 0; i < sources.getSourceSize(0); i++) {
+                entrySources[entry] = 0;
+                indices[entry] = i;
+                bounds[4 * entry] = sources.getLat(0, i);
+                bounds[4 * entry + 1] = sources.getLat(0, i);
+                bounds[4 * entry + 2] = sources.getLng(0, i);
+                bounds[4 * entry + 3] = sources.getLng(0, i);
+                entry++;
+            }
+            for (int s = 1; s < segments; s++) {
+                for (int block = 0; block < sources.getBlockCount(s); block++) {
+                    entrySources[entry] = s;
+                    indices[entry] = block;
+                    sources.getBlockBounds(s, block, bounds, 4 * entry);
+                    entry++;
+                }
+            }
+            //Sort tile recursive: vertical slices sorted by longitude, entries of each slice sorted by latitude
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer e1, Integer e2) {
+                    return Double.compare(bounds[4 * e1 + 2] + bounds[4 * e1 + 3], bounds[4 * e2 + 2] + bounds[4 * e2 + 3]);
+                }
+            });
+            int slices = Math.max(1, (int) Math.ceil(Math.sqrt((double) count / NODE_SIZE)));
+            int sliceSize = (int) Math.ceil((double) count / slices / NODE_SIZE) * NODE_SIZE;
+            for (int start = 0; start < count; start += sliceSize) {
+                Arrays.sort(order, start, Math.min(count, start + sliceSize), new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer e1, Integer e2) {
+                        return Double.compare(bounds[4 * e1] + bounds[4 * e1 + 1], bounds[4 * e2] + bounds[4 * e2 + 1]);
+                    }
+                });
+            }
+            m_entrySources = new int[count];
+            m_entryIndices = new int[count];
+            double[] level = new double[4 * count];
+            for (int i = 0; i < count; i++) {
+                m_entrySources[i] = entrySources[order[i]];
+                m_entryIndices[i] = indices[order[i]];
+                System.arraycopy(bounds, 4 * order[i], level, 4 * i, 4);
+            }
+            List<double[]> levels = new ArrayList<double[]>();
+            levels.add(level);
+            while (level.length > 4 * NODE_SIZE) {
+                level = createParentLevel(level);
+                levels.add(level);
+            }
+            m_levels = levels.toArray(new double[levels.size()][]);
+        }
+
+        private int getNodeCount(int level) {
+            return m_levels[level].length / 4;
+        }
+
+        private int getChildEnd(int level, int node) {
+            return Math.min((node + 1) * NODE_SIZE, getNodeCount(level - 1));
+        }
+
+        private double getMinDistance(int level, int node, double lat, double lng) {
+            double[] bounds = m_levels[level];
+            int offset = 4 * node;
+            return SpatialIndex.getMinDistance(lat, lng, bounds[offset], bounds[offset + 1], bounds[offset + 2], bounds[offset + 3]);
+        }
+    }
+
+    /**
+     * Node, entry or row of the nearest neighbour search with its minimum distance.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+
+        private final double m_distance;
+        private final int m_level;
+        //Node or entry, source for rows
+        private final int m_index;
+        private final int m_row;
+
+        Candidate(double distance, int level, int index, int row) {
+            m_distance = distance;
+            m_level = level;
+            m_index = index;
+            m_row = row;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(m_distance, other.m_distance);
+        }
+    }
+}
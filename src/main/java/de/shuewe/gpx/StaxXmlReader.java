@@ -0,0 +1,114 @@
+package de.shuewe.gpx;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * XmlReader using the StAX parser of the JDK (not available on Android).
+ * DTDs and external entities are not supported, so untrusted documents can be read safely.
+ */
+class StaxXmlReader implements XmlReader {
+
+    //Creating a factory looks up the implementation, so it is done once. Creating readers is thread safe.
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private final XMLStreamReader m_reader;
+
+    private int m_eventType = 0;
+
+    StaxXmlReader(InputStream stream) throws IOException {
+        try {
+            m_reader = FACTORY.createXMLStreamReader(stream);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory res = XMLInputFactory.newInstance();
+        res.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        res.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        res.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return res;
+    }
+
+    @Override
+    public int next() throws IOException {
+        try {
+            while (m_reader.hasNext()) {
+                switch (m_reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        return m_eventType = START_TAG;
+                    case XMLStreamConstants.END_ELEMENT:
+                        return m_eventType = END_TAG;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        return m_eventType = TEXT;
+                    case XMLStreamConstants.END_DOCUMENT:
+                        return m_eventType = END_DOCUMENT;
+                    default:
+                        //Comments, processing instructions and DTD are skipped
+                        break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        throw new IOException("Unexpected end of document");
+    }
+
+    @Override
+    public int nextTag() throws IOException {
+        int type = next();
+        while (type == TEXT && m_reader.isWhiteSpace()) {
+            type = next();
+        }
+        if (type != START_TAG && type != END_TAG) {
+            throw new IOException("Expected tag at line " + m_reader.getLocation().getLineNumber());
+        }
+        return type;
+    }
+
+    @Override
+    public int getEventType() {
+        return m_eventType;
+    }
+
+    @Override
+    public String getName() {
+        return m_eventType == START_TAG || m_eventType == END_TAG ? m_reader.getLocalName() : null;
+    }
+
+    @Override
+    public String getText() {
+        return m_eventType == TEXT ? m_reader.getText() : null;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return m_reader.getAttributeCount();
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        return m_reader.getAttributeLocalName(index);
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        return m_reader.getAttributeValue(index);
+    }
+
+    @Override
+    public void require(int type, String name) throws IOException {
+        if (m_eventType != type || (name != null && !name.equals(getName()))) {
+            throw new IOException("Expected " + name + " at line " + m_reader.getLocation().getLineNumber());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package de.shuewe.gpx;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+
+/**
+ * XmlWriter which writes the document directly to a Writer. Writes the same output as the serializer of Android,
+ * so files written on a server and on a device do not differ.
+ */
+class StreamXmlWriter implements XmlWriter {
+
+    private final Writer m_writer;
+
+    //Names of open tags
+    private final ArrayDeque<String> m_tags = new ArrayDeque<String>();
+
+    //True if the start tag is not closed yet (attributes may be added)
+    private boolean m_pending = false;
+
+    StreamXmlWriter(Writer writer) {
+        m_writer = writer;
+    }
+
+    @Override
+    public void startDocument() throws IOException {
+        m_writer.write("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>");
+    }
+
+    @Override
+    public void startTag(String name) throws IOException {
+        closeStartTag();
+        m_writer.write('<');
+        m_writer.write(name);
+        m_tags.push(name);
+        m_pending = true;
+    }
+
+    @Override
+    public void attribute(String name, String value) throws IOException {
+        if (!m_pending) {
+            throw new IllegalStateException("Attribute " + name + " has to be written after start tag");
+        }
+        m_writer.write(' ');
+        m_writer.write(name);
+        m_writer.write("=\"");
+        escape(value, true);
+        m_writer.write('"');
+    }
+
+    @Override
+    public void text(String text) throws IOException {
+        closeStartTag();
+        if (text != null) {
+            escape(text, false);
+        }
+    }
+
+    @Override
+    public void endTag(String name) throws IOException {
+        String open = m_tags.pop();
+        if (!open.equals(name)) {
+            throw new IllegalStateException("End tag " + name + " does not match " + open);
+        }
+        if (m_pending) {
+            m_writer.write(" />");
+            m_pending = false;
+            return;
+        }
+        m_writer.write("</");
+        m_writer.write(name);
+        m_writer.write('>');
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        while (!m_tags.isEmpty()) {
+            endTag(m_tags.peek());
+        }
+        m_writer.flush();
+    }
+
+    private void closeStartTag() throws IOException {
+        if (m_pending) {
+            m_writer.write('>');
+            m_pending = false;
+        }
+    }
+
+    private void escape(String text, boolean attribute) throws IOException {
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement;
+            switch (c) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = attribute ? "&quot;" : null;
+                    break;
+                default:
+                    replacement = null;
+            }
+            if (replacement != null) {
+                m_writer.write(text, start, i - start);
+                m_writer.write(replacement);
+                start = i + 1;
+            }
+        }
+        m_writer.write(text, start, text.length() - start);
+    }
+}
@@ -1,7 +1,6 @@
 package de.shuewe.gpx;
 
 import android.content.Context;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -10,6 +9,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static de.shuewe.gpx.GPXHandler.LOG_TAG;
 
@@ -24,6 +27,12 @@ public class Track extends GPXElement {
     //List of List of Waypoints. A single list represents a track-segment.
     private List<TrackSegment> m_waypoints = new ArrayList<TrackSegment>();
 
+    //Latest snapshot, reused while name and segments are unchanged
+    private TrackSnapshot m_snapshot = null;
+
+    //Counts changes of segments and of their rows, used to detect outdated indices
+    private int m_modCount = 0;
+
     /**
      * Public constructor.
      *
@@ -31,7 +40,7 @@ public class Track extends GPXElement {
      */
     public Track(String name) {
         m_name=name;
-        m_waypoints.add(getTrackSegmentInstance());
+        m_waypoints.add(newSegment());
 
     }
 
@@ -39,6 +48,17 @@ public class Track extends GPXElement {
         return new TrackSegment();
     }
 
+    /**
+     * Creates a new segment with this track as parent.
+     *
+     * @return TrackSegment
+     */
+    private TrackSegment newSegment(){
+        TrackSegment res = getTrackSegmentInstance();
+        res.setTrack(this);
+        return res;
+    }
+
     /**
      * Public constructor
      *
@@ -63,10 +83,11 @@ public class Track extends GPXElement {
     public boolean removeSegment(int segmentNumber){
         //Starts with 1!
         if(m_waypoints.size()<segmentNumber){
-            Log.i(LOG_TAG,"Cannot remove segment "+segmentNumber+", max size: "+m_waypoints.size());
+            GPXLog.i(LOG_TAG,"Cannot remove segment "+segmentNumber+", max size: "+m_waypoints.size());
             return false;
         }
         TrackSegment seg =m_waypoints.remove(segmentNumber-1);
+        markModified();
         return seg!=null;
     }
 
@@ -88,7 +109,13 @@ public class Track extends GPXElement {
 
     @Override
     protected Date getSortDate() {
-        return getSegments().get(0).isEmpty() ? null: getSegments().get(0).get(0).getDate();
+        long time = getSortTime();
+        return time == NO_TIME ? null : new Date(time);
+    }
+
+    @Override
+    protected long getSortTime() {
+        return getSegments().get(0).isEmpty() ? NO_TIME : getSegments().get(0).getTime(0);
     }
 
     @Override
@@ -117,6 +144,27 @@ public class Track extends GPXElement {
         return res;
     }
 
+    /**
+     * Gets the index of the segment which contains the given point.
+     * Points of this track know their segment, other points are searched in all segments.
+     *
+     * @param point to search for
+     * @return index of segment, -1 if point is not part of track
+     */
+    public int indexOfSegment(WayPoint point) {
+        for (int i = 0; i < m_waypoints.size(); i++) {
+            if (m_waypoints.get(i) == point.m_segment) {
+                return i;
+            }
+        }
+        for (int i = 0; i < m_waypoints.size(); i++) {
+            if (m_waypoints.get(i).indexOf(point) != -1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Finds number of matching segment to given List of points (=segment)
      *
@@ -130,9 +178,9 @@ public class Track extends GPXElement {
             if(segmentPoints.isEmpty()){
                 continue;
             }
-            Date minDate=segmentPoints.getFirst().getDate();
-            Date maxDate=segmentPoints.getLast().getDate();
-            if(WayPoint.isPointInRange(points.getFirst(),minDate,maxDate) || WayPoint.isPointInRange(points.getLast(),minDate,maxDate)){
+            long minTime=segmentPoints.getTime(0);
+            long maxTime=segmentPoints.getTime(segmentPoints.size()-1);
+            if(WayPoint.isPointInRange(points.getFirst(),minTime,maxTime) || WayPoint.isPointInRange(points.getLast(),minTime,maxTime)){
                 return i;
             }
         }
@@ -152,9 +200,9 @@ public class Track extends GPXElement {
             if(nextSegment.isEmpty()){
                 continue;
             }
-            Date minDate=prevSegment.get(prevSegment.size()-1).getDate();
-            Date maxDate=nextSegment.get(0).getDate();
-            if(WayPoint.isPointInRange(points.getFirst(),minDate,maxDate)){
+            long minTime=prevSegment.getTime(prevSegment.size()-1);
+            long maxTime=nextSegment.getTime(0);
+            if(WayPoint.isPointInRange(points.getFirst(),minTime,maxTime)){
                 return i+1;
             }
         }
@@ -180,12 +228,53 @@ public class Track extends GPXElement {
             startNewSegment();
         }
         Collections.sort(m_waypoints);
+        markModified();
         List<TrackSegment> segments = getNumberedSegments();
-        Log.i(LOG_TAG,"Added segments. Total segments: "+segments.size());
+        GPXLog.i(LOG_TAG,"Added segments. Total segments: "+segments.size());
     }
 
 
 
+    /**
+     * Removes the segments from given index on, e.g. to move them to another track. A new current segment is
+     * started if no segment is left.
+     *
+     * @param index of first segment to be removed
+     * @return List of removed segments
+     */
+    List<TrackSegment> removeSegmentsFrom(int index) {
+        List<TrackSegment> following = m_waypoints.subList(index, m_waypoints.size());
+        List<TrackSegment> res = new ArrayList<TrackSegment>(following);
+        following.clear();
+        if (m_waypoints.isEmpty()) {
+            m_waypoints.add(newSegment());
+        }
+        markModified();
+        return res;
+    }
+
+    /**
+     * Adds segments which were removed from another track. The segments themselves are added (no copies), so their
+     * points keep their identity. Segments are sorted by date, new points are added to a new segment.
+     *
+     * @param segments to be added
+     */
+    void addMovedSegments(List<TrackSegment> segments) {
+        if (getCurrentSegment().isEmpty()) {
+            m_waypoints.remove(m_waypoints.size() - 1);
+        }
+        for (TrackSegment segment : segments) {
+            if (!segment.isEmpty()) {
+                segment.setTrack(this);
+                m_waypoints.add(segment);
+            }
+        }
+        Collections.sort(m_waypoints);
+        m_waypoints.add(newSegment());
+        markModified();
+        GPXLog.i(LOG_TAG,"Added segments. Total segments: "+getNumberedSegments().size());
+    }
+
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof Track)) {
@@ -223,6 +312,129 @@ public class Track extends GPXElement {
         return res;
     }
 
+    /**
+     * Gets the statistics of all segments, calculated in one pass over new points of each segment.
+     * Distances and pauses between segments are not considered.
+     *
+     * @return TrackStatistics
+     */
+    public TrackStatistics getStatistics() {
+        TrackStatistics res = new TrackStatistics();
+        for (TrackSegment segment : m_waypoints) {
+            res.merge(segment.peekStatistics());
+        }
+        res.m_splits = TrackStatistics.calculateSplits(m_waypoints);
+        return res;
+    }
+
+    /**
+     * Gets the points of each segment which have to be drawn for a viewport of a map, see LevelOfDetail.
+     *
+     * @param zoom   zoom level of map
+     * @param minLat minimum latitude of viewport
+     * @param minLng minimum (western) longitude of viewport
+     * @param maxLat maximum latitude of viewport
+     * @param maxLng maximum (eastern) longitude of viewport
+     * @return List of points per segment
+     */
+    public List<List<WayPoint>> getPointsForViewport(double zoom, double minLat, double minLng, double maxLat, double maxLng) {
+        List<List<WayPoint>> res = new ArrayList<List<WayPoint>>();
+        for (TrackSegment segment : m_waypoints) {
+            res.add(segment.getLevelOfDetail().getPoints(zoom, minLat, minLng, maxLat, maxLng));
+        }
+        return res;
+    }
+
+    /**
+     * Gets a simplified view of each segment. The points of the track are not changed.
+     *
+     * @param tolerance in meter
+     * @param method    of simplification
+     * @return List of simplified segments
+     */
+    public List<List<WayPoint>> getSimplified(double tolerance, TrackSimplifier.Method method) {
+        return getSimplified(tolerance, method, null);
+    }
+
+    /**
+     * Gets a simplified view of each segment. The segments are simplified in parallel by the given executor,
+     * the track must not be changed until this method returns.
+     *
+     * @param tolerance in meter
+     * @param method    of simplification
+     * @param executor  to simplify segments with, null to simplify them in the calling thread
+     * @return List of simplified segments
+     */
+    public List<List<WayPoint>> getSimplified(final double tolerance, final TrackSimplifier.Method method, ExecutorService executor) {
+        List<List<WayPoint>> res = new ArrayList<List<WayPoint>>();
+        if (executor == null) {
+            for (TrackSegment segment : m_waypoints) {
+                res.add(segment.getSimplified(tolerance, method));
+            }
+            return res;
+        }
+        List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+        for (final TrackSegment segment : m_waypoints) {
+            tasks.add(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    return segment.getSimplifiedRows(tolerance, method);
+                }
+            });
+        }
+        try {
+            List<Future<int[]>> rows = executor.invokeAll(tasks);
+            for (int i = 0; i < m_waypoints.size(); i++) {
+                res.add(m_waypoints.get(i).getRows(rows.get(i).get()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while simplifying track " + m_name, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot simplify track " + m_name, e.getCause());
+        }
+        return res;
+    }
+
+    /**
+     * Gets the position at the given time, interpolated between the two surrounding points of a segment.
+     *
+     * @param time in epoch millis
+     * @return new WayPoint (without hash), null if time is not within a segment
+     */
+    public WayPoint getPositionAt(long time) {
+        for (TrackSegment segment : m_waypoints) {
+            if (segment.isEmpty() || segment.getTime(segment.size() - 1) < time) {
+                continue;
+            }
+            WayPoint res = segment.getPositionAt(time);
+            if (res != null) {
+                return res;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets an immutable snapshot of the track. Snapshots of unchanged segments are reused.
+     *
+     * @return TrackSnapshot
+     */
+    TrackSnapshot getSnapshot() {
+        List<SegmentSnapshot> segments = new ArrayList<SegmentSnapshot>(m_waypoints.size());
+        boolean changed = m_snapshot == null || m_snapshot.getSegments().size() != m_waypoints.size()
+                || (m_name == null ? m_snapshot.getName() != null : !m_name.equals(m_snapshot.getName()));
+        for (int i = 0; i < m_waypoints.size(); i++) {
+            SegmentSnapshot segment = m_waypoints.get(i).getSnapshot();
+            changed = changed || m_snapshot.getSegments().get(i) != segment;
+            segments.add(segment);
+        }
+        if (changed) {
+            m_snapshot = new TrackSnapshot(m_name, segments);
+        }
+        return m_snapshot;
+    }
+
     /**
      * Gets the name of the track
      *
@@ -271,15 +483,14 @@ public class Track extends GPXElement {
      * @return true if WayPoint was removed
      */
     public boolean removeWaypoint(WayPoint point,boolean correctStart) {
-        boolean removed=false;
-        for(TrackSegment points: getSegments()){
-            removed = removed | points.remove(point);
-            if(removed && correctStart){
-                if(!points.isEmpty()){
-                    points.getFirst().setIsStartPoint(true);
-                }
-                break;
-            }
+        int segmentIndex = indexOfSegment(point);
+        if(segmentIndex == -1){
+            return false;
+        }
+        TrackSegment points = getSegments().get(segmentIndex);
+        boolean removed = points.remove(point);
+        if(removed && correctStart && !points.isEmpty()){
+            points.getFirst().setIsStartPoint(true);
         }
         return removed;
     }
@@ -301,10 +512,19 @@ public class Track extends GPXElement {
      * @return
      */
     public boolean removeWaypoints(TrackSegment toBeMoved,boolean correctStart) {
-        boolean res=false;
         for(WayPoint point: toBeMoved.clone().getPoints()){
             removeWaypoint(point,correctStart);
         }
+        return removeEmptySegments();
+    }
+
+    /**
+     * Removes empty segments (except for the current segment).
+     *
+     * @return true if a segment was removed
+     */
+    boolean removeEmptySegments() {
+        boolean res=false;
         List<TrackSegment> emptyLists=new ArrayList<TrackSegment>();
         for(int i = 0; (i+1)< getSegments().size(); i++){
             if(getSegments().get(i).isEmpty()){
@@ -315,6 +535,7 @@ public class Track extends GPXElement {
             getSegments().remove(points);
             res=true;
         }
+        markModified();
         return res;
     }
 
@@ -325,6 +546,23 @@ public class Track extends GPXElement {
         if(getCurrentSegment().isEmpty()){
             return;
         }
-        m_waypoints.add(getTrackSegmentInstance());
+        m_waypoints.add(newSegment());
+        markModified();
+    }
+
+    /**
+     * Gets the number of changes of segments and rows of this track.
+     *
+     * @return int
+     */
+    int getModCount() {
+        return m_modCount;
+    }
+
+    /**
+     * Marks a change of segments or of rows of a segment.
+     */
+    void markModified() {
+        m_modCount++;
     }
 }
@@ -8,51 +8,188 @@ import android.view.ViewGroup;
 
 
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.text.DateFormat;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * Class representing a track segment. The points are stored column wise in primitive arrays,
+ * WayPoint instances are created on demand as views on a single row.
+ */
 public class TrackSegment extends GPXElement {
 
+    //Length of a binary SHA-256 hash
+    static final int HASH_LENGTH = 32;
+
+    //Flags of a single row
+    static final byte FLAG_START = 1;
+    static final byte FLAG_ALTITUDE = 2;
+    static final byte FLAG_HASH = 4;
+    static final byte FLAG_RAW_HASH = 8;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    //Number of rows which share a bounding box in the spatial index
+    static final int BLOCK_SIZE = 64;
 
     private static DateFormat DATE_FORMAT=null;
-    private List<WayPoint> m_points;
+
+    //Number of points
+    private int m_size = 0;
+
+    //Point columns
+    private double[] m_lat = new double[0];
+    private double[] m_lng = new double[0];
+    private double[] m_accuracy = new double[0];
+    private double[] m_altitude = new double[0];
+    private long[] m_time = new long[0];
+    private byte[] m_flags = new byte[0];
+    private byte[] m_hashes = new byte[0];
+
+    //Rarely used columns, created on first use
+    private String[] m_names = null;
+    private String[] m_rawHashes = null;
+
+    //Views which are currently in use, created on first use
+    private ViewReference[] m_views = null;
+    private final ReferenceQueue<WayPoint> m_releasedViews = new ReferenceQueue<WayPoint>();
+
+    //Bounding boxes of blocks of BLOCK_SIZE rows (minLat, maxLat, minLng, maxLng per block)
+    private double[] m_blockBounds = new double[0];
+
+    //Number of blocks with valid bounding box
+    private int m_validBlocks = 0;
+    //Number of blocks whose bounding boxes are shared with the snapshot
+    private int m_sharedBlocks = 0;
+
+    //Instance used to create views (keeps the WayPoint class of added points)
+    private WayPoint m_template = null;
+
+    //Parent track of all points
+    private Track m_track = null;
+
+    private final List<WayPoint> m_points = new PointList(0, -1);
 
     private int m_segmentNumber;
 
-    private Double m_distance=null;
+    //Distance from the first point to each point in km
+    private double[] m_cumulativeDistance = new double[0];
+
+    //Cosine of latitude of each point, calculated together with the cumulative distance
+    private double[] m_cosLat = new double[0];
+
+    //Number of rows with valid cumulative distance
+    private int m_validDistances = 0;
+
+    //Statistics of the first m_statisticsRows rows, created on first use
+    private TrackStatistics m_statistics = null;
+    private int m_statisticsRows = 0;
+
+    //Level of detail pyramid, created on first use
+    private LevelOfDetail m_levelOfDetail = null;
+
+    //Latest snapshot (null if segment changed since) and number of rows shared with it, which must not be changed in place
+    private SegmentSnapshot m_snapshot = null;
+    private int m_sharedRows = 0;
+
+    //Flag indicates if rows are sorted by date (false only if constructed from unsorted points)
+    private boolean m_sorted = true;
+
+    //Counts added, removed and reordered rows, used to detect outdated indices
+    private int m_modCount = 0;
 
     public TrackSegment(){
-        m_points=new ArrayList<>();
     }
 
     public TrackSegment(List<? extends WayPoint> points){
         this();
-        m_points.addAll(points);
+        appendRows(points);
+        m_sorted = isSorted(0);
     }
 
+    /**
+     * Adds points and keeps the segment sorted by date. Points which are newer than the last point
+     * (e.g. during recording) are appended in O(1) per point, other points are merged into the segment.
+     *
+     * @param points to be added
+     */
     public void addPoints(List<? extends WayPoint> points){
-        m_points.addAll(points);
-        WayPoint oldFirst =getFirst();
-        Collections.sort(m_points);
-        if(!oldFirst.equals(getFirst())){
-            for(WayPoint point:m_points){
-                point.setIsStartPoint(false);
+        if (points.isEmpty()) {
+            return;
+        }
+        int oldSize = m_size;
+        appendRows(points);
+        if (!m_sorted || !isSorted(Math.max(oldSize - 1, 0))) {
+            int[] order = getMergedOrder(m_sorted ? oldSize : 0);
+            if (order[0] != 0) {
+                //First point changed
+                beforeWrite(0);
+                for (int i = 0; i < m_size; i++) {
+                    m_flags[i] &= ~FLAG_START;
+                }
             }
+            applyOrder(order);
+            m_sorted = true;
         }
-        getFirst().setIsStartPoint(true);
-        m_distance=null;
+        if (!isStart(0)) {
+            setIsStart(0, true);
+        }
+        markModified();
     }
 
+    /**
+     * Creates a new segment with copies of the rows from posStart (inclusive) to posEnd (exclusive).
+     * The points of the new segment are independent of this segment.
+     *
+     * @param posStart first row
+     * @param posEnd   end of range (exclusive)
+     * @return TrackSegment
+     */
     public TrackSegment subList(int posStart,int posEnd){
-        TrackSegment res= getInstance(m_points.subList(posStart,posEnd));
+        TrackSegment res= getInstance(new PointList(posStart, posEnd));
         res.setSegmentNumber(getSegmentNumber());
         return res;
     }
 
+    /**
+     * Moves the rows from posStart (inclusive) to the end of this segment into a new segment. Unlike subList,
+     * points in use keep their identity: they belong to the new segment afterwards.
+     *
+     * @param posStart first row to be moved
+     * @return TrackSegment with the moved rows
+     */
+    TrackSegment moveRows(int posStart) {
+        TrackSegment res = getInstance(new ArrayList<WayPoint>());
+        res.setSegmentNumber(getSegmentNumber());
+        if (posStart >= m_size) {
+            return res;
+        }
+        expungeReleasedViews();
+        copyRowsTo(res, posStart, m_size);
+        if (m_views != null) {
+            for (int i = posStart; i < m_size; i++) {
+                WayPoint view = peekView(i);
+                if (view != null) {
+                    m_views[i] = null;
+                    view.attach(res, i - posStart);
+                    res.registerView(view, i - posStart);
+                }
+            }
+        }
+        res.setIsStart(0, true);
+        removeRange(posStart, m_size);
+        return res;
+    }
+
     public void addPoints(TrackSegment segment){
         List<? extends WayPoint> points = segment.getPoints();
         if(points ==null || points.isEmpty()){
@@ -61,8 +198,13 @@ public class TrackSegment extends GPXElement {
         addPoints(points);
     }
 
+    /**
+     * Creates a new segment with copies of all rows, the points of the copy are independent of this segment.
+     *
+     * @return TrackSegment
+     */
     public TrackSegment clone(){
-        TrackSegment res =getInstance(new ArrayList<WayPoint>(m_points));
+        TrackSegment res =getInstance(new PointList(0, m_size));
         res.setSegmentNumber(getSegmentNumber());
         return res;
     }
@@ -72,8 +214,31 @@ public class TrackSegment extends GPXElement {
         return new TrackSegment(points);
     }
 
+    /**
+     * Gets the position of a point. O(1) for points of this segment, otherwise the first equal
+     * point is searched by binary search over the date.
+     *
+     * @param point to search for
+     * @return index, -1 if point is not part of segment
+     */
     public int indexOf(WayPoint point){
-        return m_points.indexOf(point);
+        if (point.m_segment == this) {
+            return point.m_row;
+        }
+        int start = 0;
+        int end = m_size;
+        if (m_sorted) {
+            //Equal points have the same date in seconds
+            long second = WayPoint.toSeconds(point.getSortTime());
+            start = lowerBound(second * 1000);
+            end = lowerBound((second + 1) * 1000);
+        }
+        for (int i = start; i < end; i++) {
+            if (isEqual(i, point)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     public void setSegmentNumber(int pos){
@@ -86,7 +251,23 @@ public class TrackSegment extends GPXElement {
 
     @Override
     protected Date getSortDate() {
-        return m_points.isEmpty() ? new Date(0l):getLast().getDate();
+        long time = getSortTime();
+        return time == NO_TIME ? null : new Date(time);
+    }
+
+    @Override
+    protected long getSortTime() {
+        return m_size == 0 ? 0 : m_time[m_size - 1];
+    }
+
+    /**
+     * Gets the time of a point
+     *
+     * @param i index of point
+     * @return time in epoch millis, NO_TIME if point has no date
+     */
+    public long getTime(int i) {
+        return m_time[i];
     }
 
     @Override
@@ -95,66 +276,1080 @@ public class TrackSegment extends GPXElement {
     }
 
     public boolean isEmpty(){
-        return m_points.isEmpty();
+        return m_size == 0;
     }
 
     public int size(){
-        return m_points.size();
+        return m_size;
     }
 
     public WayPoint getFirst(){
-        if(m_points.isEmpty()){
+        if(m_size == 0){
             return null;
         }
-        return m_points.get(0);
+        return getView(0);
     }
 
+    /**
+     * Gets a read-only list of the points. The list is a live view: it reflects later changes of the segment
+     * and its elements are views on the rows, so a point keeps its identity while the segment is changed
+     * (see WayPoint). Points are added and removed by the methods of the segment or its track,
+     * add/remove/set of the list throw UnsupportedOperationException.
+     *
+     * @return unmodifiable List of WayPoint
+     */
     public List<? extends WayPoint> getPoints(){
         return m_points;
     }
 
     public double getDistanceInKilometer(){
-        if(m_distance == null) {
-            WayPoint oldPoint = null;
-            double res = 0;
-            for (WayPoint point : m_points) {
-                if (oldPoint != null) {
-                    res += oldPoint.calculateDistanceInKilometer(point);
-                }
-                oldPoint = point;
+        if (m_size == 0) {
+            return 0;
+        }
+        return getDistanceInKilometer(0, m_size - 1);
+    }
+
+    /**
+     * Gets the distance along the segment between two points in O(1).
+     *
+     * @param from index of first point
+     * @param to   index of second point
+     * @return distance in km (negative if to is before from)
+     */
+    public double getDistanceInKilometer(int from, int to) {
+        if (from < 0 || to >= m_size || to < 0 || from >= m_size) {
+            throw new IndexOutOfBoundsException("from: " + from + ", to: " + to + ", size: " + m_size);
+        }
+        updateDistances();
+        return m_cumulativeDistance[to] - m_cumulativeDistance[from];
+    }
+
+    /**
+     * Gets the index of the first point which is at least the given distance away from the start of the segment (O(log n)).
+     *
+     * @param distance in km along the segment
+     * @return index, -1 if the segment is shorter
+     */
+    public int indexAtDistance(double distance) {
+        if (m_size == 0) {
+            return -1;
+        }
+        updateDistances();
+        int lo = 0;
+        int hi = m_size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (m_cumulativeDistance[mid] < distance) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
             }
-            m_distance=res;
         }
-        return m_distance;
+        return lo == m_size ? -1 : lo;
+    }
+
+    /**
+     * Gets the first point which is at least the given distance away from the start of the segment.
+     *
+     * @param distance in km along the segment
+     * @return WayPoint, null if the segment is shorter
+     */
+    public WayPoint getPointAtDistance(double distance) {
+        int index = indexAtDistance(distance);
+        return index == -1 ? null : getView(index);
     }
 
     public double getAvgSpeedInKmH(){
-        if(getLast().getDate() == null || getFirst().getDate() == null){
+        if(m_size == 0 || m_time[m_size - 1] == NO_TIME || m_time[0] == NO_TIME){
             return 0;
         }
-        double hoursDif=((double)(getLast().getDate().getTime()-getFirst().getDate().getTime()))/(1000*60*60);
+        double hoursDif=((double)(m_time[m_size - 1]-m_time[0]))/(1000*60*60);
         if(hoursDif == 0){
             return 0;
         }
         return getDistanceInKilometer()/hoursDif;
     }
 
+    /**
+     * Gets the statistics of the segment. They are cached and updated incrementally when points are appended.
+     *
+     * @return TrackStatistics
+     */
+    public TrackStatistics getStatistics() {
+        TrackStatistics res = new TrackStatistics(peekStatistics());
+        res.m_splits = TrackStatistics.calculateSplits(Collections.singletonList(this));
+        return res;
+    }
+
+    /**
+     * Gets the level of detail pyramid of the segment, which is built lazily and updated when points are added.
+     *
+     * @return LevelOfDetail
+     */
+    public LevelOfDetail getLevelOfDetail() {
+        if (m_levelOfDetail == null) {
+            m_levelOfDetail = new LevelOfDetail(this);
+        }
+        return m_levelOfDetail;
+    }
+
+    /**
+     * Gets a simplified view of the segment. The points of the view are the points of this segment,
+     * the segment itself is not changed. The view must not be used after points were removed or inserted.
+     *
+     * @param tolerance in meter
+     * @param method    of simplification
+     * @return unmodifiable List of WayPoint
+     */
+    public List<WayPoint> getSimplified(double tolerance, TrackSimplifier.Method method) {
+        return getRows(getSimplifiedRows(tolerance, method));
+    }
+
+    /**
+     * Gets the rows of a simplified view of the segment. Only reads the rows, so it may be called
+     * from another thread as long as the segment is not changed.
+     *
+     * @param tolerance in meter
+     * @param method    of simplification
+     * @return sorted rows
+     */
+    int[] getSimplifiedRows(double tolerance, TrackSimplifier.Method method) {
+        return TrackSimplifier.simplify(m_lat, m_lng, m_size, tolerance, method);
+    }
+
+    /**
+     * Gets a view on the given rows.
+     *
+     * @param rows to be viewed
+     * @return unmodifiable List of WayPoint
+     */
+    List<WayPoint> getRows(final int[] rows) {
+        return new RowList(rows);
+    }
+
     public WayPoint getLast(){
-        if(m_points.isEmpty()){
+        if(m_size == 0){
             return null;
         }
-        return m_points.get(m_points.size()-1);
+        return getView(m_size - 1);
     }
 
     public WayPoint get(int i){
-        if(m_points.isEmpty() || i>=m_points.size()){
+        if(m_size == 0 || i>=m_size){
             return null;
         }
-        return m_points.get(i);
+        return getView(i);
     }
 
     protected boolean remove(WayPoint point){
-        return m_points.remove(point);
+        int row = indexOf(point);
+        if (row == -1) {
+            return false;
+        }
+        removeRow(row);
+        return true;
+    }
+
+    /**
+     * Gets the time used for sorting of a point (points without date are sorted like Date(0)).
+     *
+     * @param i index of point
+     * @return time in epoch millis
+     */
+    long getSortTime(int i) {
+        return sortKey(i);
+    }
+
+    /**
+     * Gets the number of changes of rows of this segment.
+     *
+     * @return int
+     */
+    int getModCount() {
+        return m_modCount;
+    }
+
+    /**
+     * Marks a change of rows, the change is counted for the parent track as well.
+     */
+    private void markModified() {
+        m_modCount++;
+        if (m_track != null) {
+            m_track.markModified();
+        }
+    }
+
+    /**
+     * Gets the position at the given time, interpolated between the two surrounding points.
+     *
+     * @param time in epoch millis
+     * @return new WayPoint (without hash), null if time is not within the time of the segment
+     */
+    public WayPoint getPositionAt(long time) {
+        if (m_size == 0 || time == NO_TIME || !m_sorted) {
+            return null;
+        }
+        int next = lowerBound(time);
+        if (next == m_size || (m_time[next] != time && (next == 0 || m_time[next - 1] == NO_TIME))) {
+            return null;
+        }
+        int prev = m_time[next] == time ? next : next - 1;
+        double fraction = prev == next ? 0 : ((double) (time - m_time[prev])) / (m_time[next] - m_time[prev]);
+        double dLng = m_lng[next] - m_lng[prev];
+        //Take the short way across the 180th meridian
+        if (dLng > 180) {
+            dLng -= 360;
+        } else if (dLng < -180) {
+            dLng += 360;
+        }
+        double lng = m_lng[prev] + fraction * dLng;
+        if (lng > 180) {
+            lng -= 360;
+        } else if (lng < -180) {
+            lng += 360;
+        }
+        WayPoint res = new WayPoint(null, m_lat[prev] + fraction * (m_lat[next] - m_lat[prev]), lng, time,
+                m_accuracy[prev] + fraction * (m_accuracy[next] - m_accuracy[prev]));
+        Double altPrev = getAltitude(prev);
+        Double altNext = getAltitude(next);
+        if (altPrev != null && altNext != null) {
+            res.setAltitude(altPrev + fraction * (altNext - altPrev));
+        }
+        res.setParentTrack(m_track);
+        return res;
+    }
+
+    /**
+     * Gets the parent track of the points.
+     *
+     * @return Track, can be null
+     */
+    Track getTrack() {
+        return m_track;
+    }
+
+    /**
+     * Sets the parent track of the points.
+     *
+     * @param track to be set
+     */
+    void setTrack(Track track) {
+        if (track == m_track) {
+            return;
+        }
+        if (m_track != null) {
+            m_track.markModified();
+        }
+        m_track = track;
+        markModified();
+    }
+
+    //Access to single columns, used by WayPoint views
+
+    double getLat(int row) {
+        return m_lat[row];
+    }
+
+    double getLng(int row) {
+        return m_lng[row];
+    }
+
+    String getName(int row) {
+        return m_names == null ? null : m_names[row];
+    }
+
+    void setName(int row, String name) {
+        beforeWrite(row);
+        if (m_names == null) {
+            if (name == null) {
+                return;
+            }
+            m_names = new String[m_lat.length];
+        }
+        m_names[row] = name;
+    }
+
+    Double getAltitude(int row) {
+        return (m_flags[row] & FLAG_ALTITUDE) == 0 ? null : m_altitude[row];
+    }
+
+    void setAltitude(int row, Double altitude) {
+        beforeWrite(row);
+        invalidateStatistics(row);
+        if (altitude == null) {
+            m_flags[row] &= ~FLAG_ALTITUDE;
+        } else {
+            m_altitude[row] = altitude;
+            m_flags[row] |= FLAG_ALTITUDE;
+        }
+    }
+
+    boolean isStart(int row) {
+        return (m_flags[row] & FLAG_START) != 0;
+    }
+
+    void setIsStart(int row, boolean isStart) {
+        beforeWrite(row);
+        if (isStart) {
+            m_flags[row] |= FLAG_START;
+        } else {
+            m_flags[row] &= ~FLAG_START;
+        }
+    }
+
+    /**
+     * Gets the binary hash of a row.
+     *
+     * @param row of point
+     * @return copy of hash, null if the row has no hash generated by this library
+     */
+    byte[] getHashBytes(int row) {
+        if ((m_flags[row] & FLAG_HASH) == 0) {
+            return null;
+        }
+        return Arrays.copyOfRange(m_hashes, row * HASH_LENGTH, (row + 1) * HASH_LENGTH);
+    }
+
+    /**
+     * Compares the hash of a row without rendering it.
+     *
+     * @param row  of point
+     * @param hash binary hash
+     * @return boolean
+     */
+    boolean hasHash(int row, byte[] hash) {
+        if ((m_flags[row] & FLAG_HASH) == 0 || hash.length != HASH_LENGTH) {
+            return false;
+        }
+        int offset = row * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (m_hashes[offset + i] != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void setHash(int row, byte[] hash) {
+        beforeWrite(row);
+        if (m_rawHashes != null) {
+            m_rawHashes[row] = null;
+        }
+        m_flags[row] &= ~FLAG_RAW_HASH;
+        System.arraycopy(hash, 0, m_hashes, row * HASH_LENGTH, HASH_LENGTH);
+        m_flags[row] |= FLAG_HASH;
+    }
+
+    String getHash(int row) {
+        if ((m_flags[row] & FLAG_HASH) != 0) {
+            return SecureGPXParser.bytesToHexString(m_hashes, row * HASH_LENGTH, HASH_LENGTH);
+        }
+        if ((m_flags[row] & FLAG_RAW_HASH) != 0) {
+            return m_rawHashes[row];
+        }
+        return null;
+    }
+
+    void setHash(int row, String hash) {
+        beforeWrite(row);
+        m_flags[row] &= ~(FLAG_HASH | FLAG_RAW_HASH);
+        if (m_rawHashes != null) {
+            m_rawHashes[row] = null;
+        }
+        if (hash == null) {
+            return;
+        }
+        if (SecureGPXParser.hexStringToBytes(hash, m_hashes, row * HASH_LENGTH, HASH_LENGTH)) {
+            m_flags[row] |= FLAG_HASH;
+            return;
+        }
+        //Not a hash generated by this library, keep it as it is
+        if (m_rawHashes == null) {
+            m_rawHashes = new String[m_lat.length];
+        }
+        m_rawHashes[row] = hash;
+        m_flags[row] |= FLAG_RAW_HASH;
+    }
+
+    /**
+     * Appends the given points as new rows. Detached points become views on their row.
+     *
+     * @param points to be appended
+     */
+    private void appendRows(List<? extends WayPoint> points) {
+        if (points instanceof PointList) {
+            ((PointList) points).copyTo(this);
+            return;
+        }
+        expungeReleasedViews();
+        invalidateRows(m_size);
+        beforeWrite(m_size);
+        ensureCapacity(m_size + points.size());
+        for (WayPoint point : points) {
+            int row = m_size++;
+            m_lat[row] = point.getLat();
+            m_lng[row] = point.getLng();
+            m_accuracy[row] = point.getAccuracy();
+            m_time[row] = point.getTime();
+            m_flags[row] = 0;
+            setAltitude(row, point.getAltitude());
+            setIsStart(row, point.isStart());
+            byte[] hash = point.getHashBytes();
+            if (hash != null) {
+                setHash(row, hash);
+            } else {
+                setHash(row, point.getHash());
+            }
+            setName(row, point.getName());
+            if (m_template == null) {
+                m_template = point;
+            }
+            if (m_track == null && point.getParentTrack() != null) {
+                m_track = point.getParentTrack();
+            }
+            if (point.m_segment == null) {
+                point.attach(this, row);
+                registerView(point, row);
+            }
+        }
+    }
+
+    /**
+     * Copies rows of this segment to the end of another segment.
+     *
+     * @param target  segment to copy to
+     * @param start   first row (inclusive)
+     * @param end     last row (exclusive)
+     */
+    private void copyRowsTo(TrackSegment target, int start, int end) {
+        int count = end - start;
+        int offset = target.m_size;
+        target.ensureCapacity(offset + count);
+        target.invalidateRows(offset);
+        target.beforeWrite(offset);
+        System.arraycopy(m_lat, start, target.m_lat, offset, count);
+        System.arraycopy(m_lng, start, target.m_lng, offset, count);
+        System.arraycopy(m_accuracy, start, target.m_accuracy, offset, count);
+        System.arraycopy(m_altitude, start, target.m_altitude, offset, count);
+        System.arraycopy(m_time, start, target.m_time, offset, count);
+        System.arraycopy(m_flags, start, target.m_flags, offset, count);
+        System.arraycopy(m_hashes, start * HASH_LENGTH, target.m_hashes, offset * HASH_LENGTH, count * HASH_LENGTH);
+        target.m_size += count;
+        for (int i = 0; i < count; i++) {
+            if (m_names != null && m_names[start + i] != null) {
+                target.setName(offset + i, m_names[start + i]);
+            }
+            if (m_rawHashes != null && m_rawHashes[start + i] != null) {
+                if (target.m_rawHashes == null) {
+                    target.m_rawHashes = new String[target.m_lat.length];
+                }
+                target.m_rawHashes[offset + i] = m_rawHashes[start + i];
+            }
+        }
+        if (target.m_template == null) {
+            target.m_template = m_template;
+        }
+        if (target.m_track == null) {
+            target.m_track = m_track;
+        }
+    }
+
+    /**
+     * Removes a row. A view on this row becomes a detached WayPoint.
+     *
+     * @param row to be removed
+     */
+    private void removeRow(int row) {
+        removeRange(row, row + 1);
+    }
+
+    /**
+     * Removes the points from start (inclusive) to end (exclusive). Views on these rows become detached WayPoints.
+     *
+     * @param start first point to be removed
+     * @param end   end of range (exclusive)
+     */
+    void removeRange(int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        expungeReleasedViews();
+        invalidateRows(start);
+        beforeWrite(start);
+        for (int i = start; i < end; i++) {
+            WayPoint removed = peekView(i);
+            if (removed != null) {
+                removed.detach();
+            }
+        }
+        int count = end - start;
+        int moved = m_size - end;
+        System.arraycopy(m_lat, end, m_lat, start, moved);
+        System.arraycopy(m_lng, end, m_lng, start, moved);
+        System.arraycopy(m_accuracy, end, m_accuracy, start, moved);
+        System.arraycopy(m_altitude, end, m_altitude, start, moved);
+        System.arraycopy(m_time, end, m_time, start, moved);
+        System.arraycopy(m_flags, end, m_flags, start, moved);
+        System.arraycopy(m_hashes, end * HASH_LENGTH, m_hashes, start * HASH_LENGTH, moved * HASH_LENGTH);
+        if (m_names != null) {
+            System.arraycopy(m_names, end, m_names, start, moved);
+            Arrays.fill(m_names, m_size - count, m_size, null);
+        }
+        if (m_rawHashes != null) {
+            System.arraycopy(m_rawHashes, end, m_rawHashes, start, moved);
+            Arrays.fill(m_rawHashes, m_size - count, m_size, null);
+        }
+        if (m_views != null) {
+            System.arraycopy(m_views, end, m_views, start, moved);
+            Arrays.fill(m_views, m_size - count, m_size, null);
+            for (int i = start; i < m_size - count; i++) {
+                moveView(i);
+            }
+        }
+        m_size -= count;
+        markModified();
+    }
+
+    /**
+     * Gets the number of blocks of BLOCK_SIZE rows, updates the bounding boxes of the blocks.
+     *
+     * @return int
+     */
+    int getBlockCount() {
+        updateBlocks();
+        return m_validBlocks;
+    }
+
+    /**
+     * Copies the bounding box of a block (minLat, maxLat, minLng, maxLng), getBlockCount has to be called before.
+     *
+     * @param block  index of block
+     * @param bounds to copy to
+     * @param offset in bounds
+     */
+    void getBlockBounds(int block, double[] bounds, int offset) {
+        System.arraycopy(m_blockBounds, 4 * block, bounds, offset, 4);
+    }
+
+    /**
+     * Marks data derived from the rows (bounding boxes, cumulative distances) as invalid, starting with given row.
+     *
+     * @param row first changed row
+     */
+    private void invalidateRows(int row) {
+        m_validBlocks = Math.min(m_validBlocks, row / BLOCK_SIZE);
+        m_validDistances = Math.min(m_validDistances, row);
+        invalidateStatistics(row);
+        if (m_levelOfDetail != null) {
+            m_levelOfDetail.invalidate(row);
+        }
+    }
+
+    /**
+     * Gets an immutable snapshot of the segment. The columns are shared with the snapshot until a shared row is changed.
+     *
+     * @return SegmentSnapshot
+     */
+    SegmentSnapshot getSnapshot() {
+        if (m_snapshot == null) {
+            updateBlocks();
+            m_snapshot = new SegmentSnapshot(m_size, m_lat, m_lng, m_accuracy, m_altitude, m_time, m_flags, m_hashes,
+                    m_names, m_rawHashes, m_blockBounds, m_template);
+            m_sharedRows = m_size;
+            //The last block may still grow, the snapshot calculates its bounding box itself
+            m_sharedBlocks = m_size / BLOCK_SIZE;
+        }
+        return m_snapshot;
+    }
+
+    /**
+     * Has to be called before rows are changed. Copies the columns if the row is shared with a snapshot.
+     *
+     * @param row first row to be changed
+     */
+    private void beforeWrite(int row) {
+        m_snapshot = null;
+        if (row >= m_sharedRows) {
+            return;
+        }
+        m_lat = m_lat.clone();
+        m_lng = m_lng.clone();
+        m_accuracy = m_accuracy.clone();
+        m_altitude = m_altitude.clone();
+        m_time = m_time.clone();
+        m_flags = m_flags.clone();
+        m_hashes = m_hashes.clone();
+        if (m_names != null) {
+            m_names = m_names.clone();
+        }
+        if (m_rawHashes != null) {
+            m_rawHashes = m_rawHashes.clone();
+        }
+        m_sharedRows = 0;
+    }
+
+    /**
+     * Copies coordinates of rows, e.g. to process them in another thread.
+     *
+     * @param start first row (inclusive)
+     * @param end   last row (exclusive)
+     * @return latitudes and longitudes
+     */
+    double[][] copyCoordinates(int start, int end) {
+        return new double[][]{Arrays.copyOfRange(m_lat, start, end), Arrays.copyOfRange(m_lng, start, end)};
+    }
+
+    /**
+     * Drops the statistics if they contain the given row.
+     *
+     * @param row changed row
+     */
+    private void invalidateStatistics(int row) {
+        if (row < m_statisticsRows) {
+            m_statistics = null;
+            m_statisticsRows = 0;
+        }
+    }
+
+    /**
+     * Adds the rows which are not part of the statistics yet. Appended rows are added in O(1) per row.
+     */
+    private void updateStatistics() {
+        if (m_statistics == null) {
+            m_statistics = new TrackStatistics();
+            m_statisticsRows = 0;
+        }
+        if (m_statisticsRows == m_size) {
+            return;
+        }
+        updateDistances();
+        TrackStatistics stats = m_statistics;
+        for (int row = m_statisticsRows; row < m_size; row++) {
+            stats.addToBoundingBox(m_lat[row], m_lng[row]);
+            stats.m_pointCount++;
+            if ((m_flags[row] & FLAG_ALTITUDE) != 0) {
+                if (!Double.isNaN(stats.m_lastAltitude)) {
+                    double diff = m_altitude[row] - stats.m_lastAltitude;
+                    if (diff > 0) {
+                        stats.m_elevationGain += diff;
+                    } else {
+                        stats.m_elevationLoss -= diff;
+                    }
+                }
+                stats.m_lastAltitude = m_altitude[row];
+            }
+            if (row > 0 && m_time[row] != NO_TIME && m_time[row - 1] != NO_TIME && m_time[row] > m_time[row - 1]) {
+                long timeDif = m_time[row] - m_time[row - 1];
+                double speed = (m_cumulativeDistance[row] - m_cumulativeDistance[row - 1]) / ((double) timeDif / (1000 * 60 * 60));
+                stats.m_maxSpeed = Math.max(stats.m_maxSpeed, speed);
+                if (speed >= TrackStatistics.MIN_MOVING_SPEED_KMH) {
+                    stats.m_movingTime += timeDif;
+                }
+            }
+        }
+        stats.m_distance = m_cumulativeDistance[m_size - 1];
+        stats.m_duration = m_time[0] == NO_TIME || m_time[m_size - 1] == NO_TIME ? 0 : m_time[m_size - 1] - m_time[0];
+        m_statisticsRows = m_size;
+    }
+
+    /**
+     * Gets the cached statistics, updated to the current rows (without splits).
+     *
+     * @return TrackStatistics, must not be changed
+     */
+    TrackStatistics peekStatistics() {
+        updateStatistics();
+        return m_statistics;
+    }
+
+    /**
+     * Gets the interpolated time at which the given distance from the start of the segment was reached.
+     *
+     * @param distance in km along the segment
+     * @return time in epoch millis, NO_TIME if unknown
+     */
+    long getTimeAtDistance(double distance) {
+        int index = indexAtDistance(distance);
+        if (index == -1 || m_time[index] == NO_TIME) {
+            return NO_TIME;
+        }
+        if (index == 0 || m_cumulativeDistance[index] == distance) {
+            return m_time[index];
+        }
+        if (m_time[index - 1] == NO_TIME) {
+            return NO_TIME;
+        }
+        double fraction = (distance - m_cumulativeDistance[index - 1]) / (m_cumulativeDistance[index] - m_cumulativeDistance[index - 1]);
+        return m_time[index - 1] + Math.round(fraction * (m_time[index] - m_time[index - 1]));
+    }
+
+    /**
+     * Calculates missing cumulative distances. Appended rows are calculated in O(1) per row.
+     */
+    private void updateDistances() {
+        if (m_validDistances == m_size) {
+            return;
+        }
+        if (m_cumulativeDistance.length < m_size) {
+            m_cumulativeDistance = Arrays.copyOf(m_cumulativeDistance, m_lat.length);
+            m_cosLat = Arrays.copyOf(m_cosLat, m_lat.length);
+        }
+        int row = m_validDistances;
+        DistanceCalculator.cosLatitudes(m_lat, row, m_size, m_cosLat);
+        if (row == 0) {
+            m_cumulativeDistance[0] = 0;
+            row = 1;
+        }
+        DistanceCalculator.cumulate(m_lat, m_lng, m_cosLat, row, m_size, DistanceCalculator.Mode.HAVERSINE, m_cumulativeDistance);
+        m_validDistances = m_size;
+    }
+
+    /**
+     * Calculates missing bounding boxes of blocks.
+     */
+    private void updateBlocks() {
+        int blocks = (m_size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (m_validBlocks == blocks) {
+            return;
+        }
+        if (m_blockBounds.length < 4 * blocks) {
+            m_blockBounds = Arrays.copyOf(m_blockBounds, 4 * Math.max(blocks, m_lat.length / BLOCK_SIZE + 1));
+            m_sharedBlocks = 0;
+        } else if (m_validBlocks < m_sharedBlocks) {
+            //Changed block is shared with the snapshot
+            m_blockBounds = m_blockBounds.clone();
+            m_sharedBlocks = 0;
+        }
+        for (int block = m_validBlocks; block < blocks; block++) {
+            int offset = 4 * block;
+            int start = block * BLOCK_SIZE;
+            int end = Math.min(m_size, start + BLOCK_SIZE);
+            double minLat = m_lat[start];
+            double maxLat = m_lat[start];
+            double minLng = m_lng[start];
+            double maxLng = m_lng[start];
+            for (int row = start + 1; row < end; row++) {
+                minLat = Math.min(minLat, m_lat[row]);
+                maxLat = Math.max(maxLat, m_lat[row]);
+                minLng = Math.min(minLng, m_lng[row]);
+                maxLng = Math.max(maxLng, m_lng[row]);
+            }
+            m_blockBounds[offset] = minLat;
+            m_blockBounds[offset + 1] = maxLat;
+            m_blockBounds[offset + 2] = minLng;
+            m_blockBounds[offset + 3] = maxLng;
+        }
+        m_validBlocks = blocks;
+    }
+
+    /**
+     * Gets the first row with a sort time not before the given time (rows have to be sorted).
+     *
+     * @param time in epoch millis
+     * @return row
+     */
+    private int lowerBound(long time) {
+        int lo = 0;
+        int hi = m_size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sortKey(mid) < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Checks if a row equals the given point (like WayPoint#equals, without creating a view).
+     *
+     * @param row   to compare
+     * @param point to compare
+     * @return boolean
+     */
+    private boolean isEqual(int row, WayPoint point) {
+        if (m_lat[row] != point.getLat() || m_lng[row] != point.getLng() || m_accuracy[row] != point.getAccuracy()) {
+            return false;
+        }
+        if ((m_time[row] == NO_TIME) != !point.hasTime()) {
+            return false;
+        }
+        if (point.hasTime() && WayPoint.toSeconds(m_time[row]) != WayPoint.toSeconds(point.getTime())) {
+            return false;
+        }
+        String name = getName(row);
+        return name == null ? point.getName() == null : name.equals(point.getName());
+    }
+
+    /**
+     * Checks if rows are sorted by date, starting at given row.
+     *
+     * @param start first row to check
+     * @return boolean
+     */
+    private boolean isSorted(int start) {
+        for (int i = start + 1; i < m_size; i++) {
+            if (sortKey(i - 1) > sortKey(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the sorted order of rows (stable, rows without date first like WayPoint#compareTo).
+     * The rows before sortedRows have to be sorted already, only the remaining rows are sorted and
+     * merged into them.
+     *
+     * @param sortedRows number of rows which are sorted already
+     * @return array of old row indices in sorted order
+     */
+    private int[] getMergedOrder(int sortedRows) {
+        Integer[] tail = new Integer[m_size - sortedRows];
+        for (int i = 0; i < tail.length; i++) {
+            tail[i] = sortedRows + i;
+        }
+        Arrays.sort(tail, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer row1, Integer row2) {
+                long key1 = sortKey(row1);
+                long key2 = sortKey(row2);
+                return key1 < key2 ? -1 : (key1 == key2 ? 0 : 1);
+            }
+        });
+        int[] order = new int[m_size];
+        int i = 0;
+        int j = 0;
+        for (int pos = 0; pos < m_size; pos++) {
+            if (j >= tail.length || (i < sortedRows && sortKey(i) <= sortKey(tail[j]))) {
+                order[pos] = i++;
+            } else {
+                order[pos] = tail[j++];
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Reorders the rows.
+     *
+     * @param order old row indices in new order
+     */
+    private void applyOrder(int[] order) {
+        expungeReleasedViews();
+        invalidateRows(0);
+        m_snapshot = null;
+        m_sharedRows = 0;
+        int capacity = m_lat.length;
+        double[] lat = new double[capacity];
+        double[] lng = new double[capacity];
+        double[] accuracy = new double[capacity];
+        double[] altitude = new double[capacity];
+        long[] time = new long[capacity];
+        byte[] flags = new byte[capacity];
+        byte[] hashes = new byte[capacity * HASH_LENGTH];
+        String[] names = m_names == null ? null : new String[capacity];
+        String[] rawHashes = m_rawHashes == null ? null : new String[capacity];
+        ViewReference[] views = m_views == null ? null : new ViewReference[capacity];
+        for (int i = 0; i < m_size; i++) {
+            int row = order[i];
+            lat[i] = m_lat[row];
+            lng[i] = m_lng[row];
+            accuracy[i] = m_accuracy[row];
+            altitude[i] = m_altitude[row];
+            time[i] = m_time[row];
+            flags[i] = m_flags[row];
+            System.arraycopy(m_hashes, row * HASH_LENGTH, hashes, i * HASH_LENGTH, HASH_LENGTH);
+            if (names != null) {
+                names[i] = m_names[row];
+            }
+            if (rawHashes != null) {
+                rawHashes[i] = m_rawHashes[row];
+            }
+            if (views != null) {
+                views[i] = m_views[row];
+            }
+        }
+        m_lat = lat;
+        m_lng = lng;
+        m_accuracy = accuracy;
+        m_altitude = altitude;
+        m_time = time;
+        m_flags = flags;
+        m_hashes = hashes;
+        m_names = names;
+        m_rawHashes = rawHashes;
+        m_views = views;
+        if (m_views != null) {
+            for (int i = 0; i < m_size; i++) {
+                moveView(i);
+            }
+        }
+    }
+
+    private long sortKey(int row) {
+        //WayPoints without date are sorted like Date(0)
+        return m_time[row] == NO_TIME ? 0 : m_time[row];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= m_lat.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, Math.max(INITIAL_CAPACITY, m_lat.length + (m_lat.length >> 1)));
+        //New columns are not shared with a snapshot
+        m_sharedRows = 0;
+        m_lat = Arrays.copyOf(m_lat, newCapacity);
+        m_lng = Arrays.copyOf(m_lng, newCapacity);
+        m_accuracy = Arrays.copyOf(m_accuracy, newCapacity);
+        m_altitude = Arrays.copyOf(m_altitude, newCapacity);
+        m_time = Arrays.copyOf(m_time, newCapacity);
+        m_flags = Arrays.copyOf(m_flags, newCapacity);
+        m_hashes = Arrays.copyOf(m_hashes, newCapacity * HASH_LENGTH);
+        if (m_names != null) {
+            m_names = Arrays.copyOf(m_names, newCapacity);
+        }
+        if (m_rawHashes != null) {
+            m_rawHashes = Arrays.copyOf(m_rawHashes, newCapacity);
+        }
+        if (m_views != null) {
+            m_views = Arrays.copyOf(m_views, newCapacity);
+        }
+    }
+
+    /**
+     * Gets the view of a row, creates it if no view is in use.
+     *
+     * @param row of point
+     * @return WayPoint
+     */
+    private WayPoint getView(int row) {
+        WayPoint res = peekView(row);
+        if (res == null) {
+            expungeReleasedViews();
+            res = m_template.newView(m_lat[row], m_lng[row], m_time[row], m_accuracy[row]);
+            res.attach(this, row);
+            registerView(res, row);
+        }
+        return res;
+    }
+
+    private WayPoint peekView(int row) {
+        if (m_views == null || m_views[row] == null) {
+            return null;
+        }
+        return m_views[row].get();
+    }
+
+    private void registerView(WayPoint view, int row) {
+        if (m_views == null) {
+            m_views = new ViewReference[m_lat.length];
+        }
+        m_views[row] = new ViewReference(view, row, m_releasedViews);
+    }
+
+    /**
+     * Updates the row of the view reference at given position.
+     *
+     * @param row new row
+     */
+    private void moveView(int row) {
+        ViewReference ref = m_views[row];
+        if (ref == null) {
+            return;
+        }
+        ref.m_row = row;
+        WayPoint view = ref.get();
+        if (view != null) {
+            view.m_row = row;
+        }
+    }
+
+    /**
+     * Clears references of views which are not in use anymore.
+     */
+    private void expungeReleasedViews() {
+        ViewReference ref;
+        while ((ref = (ViewReference) m_releasedViews.poll()) != null) {
+            if (m_views != null && ref.m_row < m_views.length && m_views[ref.m_row] == ref) {
+                m_views[ref.m_row] = null;
+            }
+        }
+    }
+
+    /**
+     * Weak reference to a view, keeps track of the row of the view.
+     */
+    private static class ViewReference extends WeakReference<WayPoint> {
+
+        private int m_row;
+
+        ViewReference(WayPoint view, int row, ReferenceQueue<WayPoint> queue) {
+            super(view, queue);
+            m_row = row;
+        }
+    }
+
+    /**
+     * Unmodifiable list of views on selected rows.
+     */
+    private class RowList extends AbstractList<WayPoint> implements RandomAccess {
+
+        private final int[] m_rows;
+
+        RowList(int[] rows) {
+            m_rows = rows;
+        }
+
+        @Override
+        public WayPoint get(int index) {
+            return getView(m_rows[index]);
+        }
+
+        @Override
+        public int size() {
+            return m_rows.length;
+        }
+    }
+
+    /**
+     * List of views on a range of rows.
+     */
+    private class PointList extends AbstractList<WayPoint> implements RandomAccess {
+
+        private final int m_start;
+
+        //Exclusive end, -1 for end of segment
+        private final int m_end;
+
+        PointList(int start, int end) {
+            m_start = start;
+            m_end = end;
+        }
+
+        @Override
+        public WayPoint get(int i) {
+            if (i < 0 || i >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+            }
+            return getView(m_start + i);
+        }
+
+        @Override
+        public int size() {
+            return (m_end == -1 ? m_size : m_end) - m_start;
+        }
+
+        @Override
+        public List<WayPoint> subList(int fromIndex, int toIndex) {
+            return new PointList(m_start + fromIndex, m_start + toIndex);
+        }
+
+        void copyTo(TrackSegment target) {
+            copyRowsTo(target, m_start, m_start + size());
+        }
     }
 
 }
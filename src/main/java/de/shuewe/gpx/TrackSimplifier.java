@@ -0,0 +1,239 @@
+package de.shuewe.gpx;
+
+import java.util.Arrays;
+
+/**
+ * Simplifies a sequence of coordinates. The result are the indices of the kept points, so the original
+ * points (and their hashes) are not touched. Both methods work iteratively without recursion.
+ * Coordinates are projected equirectangular around the mean latitude, which is exact enough for
+ * tolerances of a few meters up to kilometers.
+ */
+public final class TrackSimplifier {
+
+    /**
+     * Method of simplification
+     */
+    public enum Method {
+        //Keeps points whose distance to the simplified line is larger than the tolerance
+        DOUGLAS_PEUCKER,
+        //Removes points whose triangle with their neighbours has an area below the square of the tolerance
+        VISVALINGAM
+    }
+
+    private TrackSimplifier() {
+    }
+
+    /**
+     * Simplifies the given coordinates. The first and last point are always kept.
+     *
+     * @param lat       latitudes in degrees
+     * @param lng       longitudes in degrees
+     * @param size      number of points
+     * @param tolerance in meter
+     * @param method    of simplification
+     * @return sorted indices of kept points
+     */
+    public static int[] simplify(double[] lat, double[] lng, int size, double tolerance, Method method) {
+        if (size <= 2) {
+            int[] res = new int[size];
+            for (int i = 0; i < size; i++) {
+                res[i] = i;
+            }
+            return res;
+        }
+        double[] x = new double[size];
+        double[] y = new double[size];
+        project(lat, lng, size, x, y);
+        if (method == Method.VISVALINGAM) {
+            return visvalingam(x, y, size, tolerance * tolerance);
+        }
+        return douglasPeucker(x, y, size, tolerance);
+    }
+
+    /**
+     * Projects the coordinates to meters. Longitudes are unwrapped, so tracks crossing the 180th meridian stay continuous.
+     */
+    private static void project(double[] lat, double[] lng, int size, double[] x, double[] y) {
+        double meanLat = 0;
+        for (int i = 0; i < size; i++) {
+            meanLat += lat[i];
+        }
+        double radius = WayPoint.AVERAGE_RADIUS_OF_EARTH_KM * 1000;
+        double scaleX = radius * Math.cos(Math.toRadians(meanLat / size));
+        double offset = 0;
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                double dLng = lng[i] - lng[i - 1];
+                if (dLng > 180) {
+                    offset -= 360;
+                } else if (dLng < -180) {
+                    offset += 360;
+                }
+            }
+            x[i] = Math.toRadians(lng[i] + offset) * scaleX;
+            y[i] = Math.toRadians(lat[i]) * radius;
+        }
+    }
+
+    private static int[] douglasPeucker(double[] x, double[] y, int size, double tolerance) {
+        boolean[] keep = new boolean[size];
+        keep[0] = true;
+        keep[size - 1] = true;
+        int kept = 2;
+        //Stack of ranges (start, end) which have to be checked
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = size - 1;
+        double squaredTolerance = tolerance * tolerance;
+        while (top > 0) {
+            int end = stack[--top];
+            int start = stack[--top];
+            double dx = x[end] - x[start];
+            double dy = y[end] - y[start];
+            double squaredLength = dx * dx + dy * dy;
+            double maxDistance = -1;
+            int index = -1;
+            for (int i = start + 1; i < end; i++) {
+                double distance = squaredSegmentDistance(x[i], y[i], x[start], y[start], dx, dy, squaredLength);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    index = i;
+                }
+            }
+            if (index != -1 && maxDistance > squaredTolerance) {
+                keep[index] = true;
+                kept++;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = start;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = end;
+            }
+        }
+        int[] res = new int[kept];
+        int pos = 0;
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) {
+                res[pos++] = i;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Gets the squared distance of a point to the line segment from (x1,y1) to (x1+dx,y1+dy).
+     */
+    private static double squaredSegmentDistance(double px, double py, double x1, double y1, double dx, double dy, double squaredLength) {
+        double t = squaredLength == 0 ? 0 : ((px - x1) * dx + (py - y1) * dy) / squaredLength;
+        t = Math.max(0, Math.min(1, t));
+        double ex = x1 + t * dx - px;
+        double ey = y1 + t * dy - py;
+        return ex * ex + ey * ey;
+    }
+
+    private static int[] visvalingam(double[] x, double[] y, int size, double minArea) {
+        int[] prev = new int[size];
+        int[] next = new int[size];
+        double[] area = new double[size];
+        //Binary min heap of point indices by area, position of each point in heap (-1 if not in heap)
+        int[] heap = new int[size];
+        int[] position = new int[size];
+        Arrays.fill(position, -1);
+        int heapSize = 0;
+        for (int i = 0; i < size; i++) {
+            prev[i] = i - 1;
+            next[i] = i + 1;
+        }
+        for (int i = 1; i < size - 1; i++) {
+            area[i] = triangleArea(x, y, i - 1, i, i + 1);
+            heap[heapSize] = i;
+            position[i] = heapSize;
+            heapSize++;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, position, area, heapSize, i);
+        }
+        int kept = size;
+        //Area of the last removed point, an area of a neighbour must not be smaller (effective area)
+        double lastArea = 0;
+        while (heapSize > 0 && area[heap[0]] < minArea) {
+            int point = heap[0];
+            heapSize--;
+            position[point] = -1;
+            if (heapSize > 0) {
+                heap[0] = heap[heapSize];
+                position[heap[0]] = 0;
+                siftDown(heap, position, area, heapSize, 0);
+            }
+            lastArea = Math.max(lastArea, area[point]);
+            kept--;
+            int before = prev[point];
+            int after = next[point];
+            next[before] = after;
+            prev[after] = before;
+            int[] neighbours = {before, after};
+            for (int neighbour : neighbours) {
+                if (position[neighbour] == -1) {
+                    continue;
+                }
+                double newArea = Math.max(lastArea, triangleArea(x, y, prev[neighbour], neighbour, next[neighbour]));
+                double oldArea = area[neighbour];
+                area[neighbour] = newArea;
+                if (newArea < oldArea) {
+                    siftUp(heap, position, area, position[neighbour]);
+                } else {
+                    siftDown(heap, position, area, heapSize, position[neighbour]);
+                }
+            }
+        }
+        int[] res = new int[kept];
+        int pos = 0;
+        for (int i = 0; i < size; i = next[i]) {
+            res[pos++] = i;
+        }
+        return res;
+    }
+
+    private static double triangleArea(double[] x, double[] y, int a, int b, int c) {
+        return Math.abs((x[b] - x[a]) * (y[c] - y[a]) - (x[c] - x[a]) * (y[b] - y[a])) / 2;
+    }
+
+    private static void siftUp(int[] heap, int[] position, double[] area, int pos) {
+        int point = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (area[heap[parent]] <= area[point]) {
+                break;
+            }
+            heap[pos] = heap[parent];
+            position[heap[pos]] = pos;
+            pos = parent;
+        }
+        heap[pos] = point;
+        position[point] = pos;
+    }
+
+    private static void siftDown(int[] heap, int[] position, double[] area, int heapSize, int pos) {
+        int point = heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && area[heap[child + 1]] < area[heap[child]]) {
+                child++;
+            }
+            if (area[heap[child]] >= area[point]) {
+                break;
+            }
+            heap[pos] = heap[child];
+            position[heap[pos]] = pos;
+            pos = child;
+        }
+        heap[pos] = point;
+        position[point] = pos;
+    }
+}
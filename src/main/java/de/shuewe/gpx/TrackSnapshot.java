@@ -0,0 +1,45 @@
+package de.shuewe.gpx;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable state of a Track, see SegmentSnapshot. Unchanged tracks keep their snapshot.
+ */
+public final class TrackSnapshot {
+
+    private final String m_name;
+
+    private final List<SegmentSnapshot> m_segments;
+
+    TrackSnapshot(String name, List<SegmentSnapshot> segments) {
+        m_name = name;
+        m_segments = Collections.unmodifiableList(segments);
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    /**
+     * Get the segments
+     *
+     * @return unmodifiable List of SegmentSnapshot
+     */
+    public List<SegmentSnapshot> getSegments() {
+        return m_segments;
+    }
+
+    /**
+     * Gets the total size of track (including all segments)
+     *
+     * @return int
+     */
+    public int getSize() {
+        int res = 0;
+        for (SegmentSnapshot segment : m_segments) {
+            res += segment.size();
+        }
+        return res;
+    }
+}
@@ -0,0 +1,233 @@
+package de.shuewe.gpx;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static de.shuewe.gpx.GPXElement.NO_TIME;
+
+/**
+ * Statistics of a track or track segment. Each TrackSegment keeps its statistics and updates them
+ * incrementally when points are appended, a Track merges the statistics of its segments.
+ */
+public class TrackStatistics {
+
+    //Minimum speed between two points to count the time between them as moving time
+    public static final double MIN_MOVING_SPEED_KMH = 1;
+
+    //Length of a split in km
+    public static final double SPLIT_DISTANCE_KM = 1;
+
+    int m_pointCount = 0;
+    double m_distance = 0;
+    double m_elevationGain = 0;
+    double m_elevationLoss = 0;
+    long m_duration = 0;
+    long m_movingTime = 0;
+    double m_maxSpeed = 0;
+    double m_minLat = Double.NaN;
+    double m_maxLat = Double.NaN;
+    double m_minLng = Double.NaN;
+    double m_maxLng = Double.NaN;
+    long[] m_splits = new long[0];
+
+    //Altitude of the last point with altitude (NaN if there was none), used for incremental updates
+    double m_lastAltitude = Double.NaN;
+
+    TrackStatistics() {
+    }
+
+    TrackStatistics(TrackStatistics other) {
+        m_pointCount = other.m_pointCount;
+        m_distance = other.m_distance;
+        m_elevationGain = other.m_elevationGain;
+        m_elevationLoss = other.m_elevationLoss;
+        m_duration = other.m_duration;
+        m_movingTime = other.m_movingTime;
+        m_maxSpeed = other.m_maxSpeed;
+        m_minLat = other.m_minLat;
+        m_maxLat = other.m_maxLat;
+        m_minLng = other.m_minLng;
+        m_maxLng = other.m_maxLng;
+        m_splits = other.m_splits;
+        m_lastAltitude = other.m_lastAltitude;
+    }
+
+    /**
+     * Adds the point to the bounding box.
+     *
+     * @param lat latitude
+     * @param lng longitude
+     */
+    void addToBoundingBox(double lat, double lng) {
+        if (m_pointCount == 0) {
+            m_minLat = m_maxLat = lat;
+            m_minLng = m_maxLng = lng;
+            return;
+        }
+        m_minLat = Math.min(m_minLat, lat);
+        m_maxLat = Math.max(m_maxLat, lat);
+        m_minLng = Math.min(m_minLng, lng);
+        m_maxLng = Math.max(m_maxLng, lng);
+    }
+
+    /**
+     * Adds the statistics of another segment. Distance and time between the segments are not considered.
+     *
+     * @param other statistics of segment
+     */
+    void merge(TrackStatistics other) {
+        if (other.m_pointCount == 0) {
+            return;
+        }
+        if (m_pointCount == 0) {
+            m_minLat = other.m_minLat;
+            m_maxLat = other.m_maxLat;
+            m_minLng = other.m_minLng;
+            m_maxLng = other.m_maxLng;
+        } else {
+            m_minLat = Math.min(m_minLat, other.m_minLat);
+            m_maxLat = Math.max(m_maxLat, other.m_maxLat);
+            m_minLng = Math.min(m_minLng, other.m_minLng);
+            m_maxLng = Math.max(m_maxLng, other.m_maxLng);
+        }
+        m_pointCount += other.m_pointCount;
+        m_distance += other.m_distance;
+        m_elevationGain += other.m_elevationGain;
+        m_elevationLoss += other.m_elevationLoss;
+        m_duration += other.m_duration;
+        m_movingTime += other.m_movingTime;
+        m_maxSpeed = Math.max(m_maxSpeed, other.m_maxSpeed);
+    }
+
+    /**
+     * Calculates the time of each full split over the given segments. The split times are searched
+     * by the cumulative distance of the segments, so only O(log n) per split is needed.
+     * Splits are calculated until the first split whose time is unknown.
+     *
+     * @param segments to calculate splits of
+     * @return time of each split in millis
+     */
+    static long[] calculateSplits(List<TrackSegment> segments) {
+        long[] res = new long[0];
+        int count = 0;
+        long lastTime = NO_TIME;
+        double offset = 0;
+        double next = SPLIT_DISTANCE_KM;
+        for (TrackSegment segment : segments) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (lastTime == NO_TIME) {
+                lastTime = segment.getTime(0);
+                if (lastTime == NO_TIME) {
+                    break;
+                }
+            }
+            double distance = segment.getDistanceInKilometer();
+            while (next <= offset + distance) {
+                long time = segment.getTimeAtDistance(next - offset);
+                if (time == NO_TIME) {
+                    return Arrays.copyOf(res, count);
+                }
+                if (count == res.length) {
+                    res = Arrays.copyOf(res, Math.max(8, 2 * count));
+                }
+                res[count++] = time - lastTime;
+                lastTime = time;
+                next += SPLIT_DISTANCE_KM;
+            }
+            offset += distance;
+        }
+        return Arrays.copyOf(res, count);
+    }
+
+    /**
+     * Gets the number of points
+     *
+     * @return int
+     */
+    public int getPointCount() {
+        return m_pointCount;
+    }
+
+    /**
+     * Gets the distance (distances between segments are not considered)
+     *
+     * @return distance in km
+     */
+    public double getDistance() {
+        return m_distance;
+    }
+
+    /**
+     * Gets the sum of all ascents
+     *
+     * @return elevation gain in m
+     */
+    public double getElevationGain() {
+        return m_elevationGain;
+    }
+
+    /**
+     * Gets the sum of all descents
+     *
+     * @return elevation loss in m (positive)
+     */
+    public double getElevationLoss() {
+        return m_elevationLoss;
+    }
+
+    /**
+     * Gets the time from first to last point (pauses between segments are not considered)
+     *
+     * @return duration in millis
+     */
+    public long getDuration() {
+        return m_duration;
+    }
+
+    /**
+     * Gets the time in which the speed was at least MIN_MOVING_SPEED_KMH
+     *
+     * @return moving time in millis
+     */
+    public long getMovingTime() {
+        return m_movingTime;
+    }
+
+    /**
+     * Gets the maximum speed between two consecutive points
+     *
+     * @return speed in km/h
+     */
+    public double getMaxSpeed() {
+        return m_maxSpeed;
+    }
+
+    /**
+     * Gets the average speed over the moving time
+     *
+     * @return speed in km/h, 0 if there is no moving time
+     */
+    public double getAvgMovingSpeed() {
+        return m_movingTime == 0 ? 0 : m_distance / ((double) m_movingTime / (1000 * 60 * 60));
+    }
+
+    /**
+     * Gets the time needed for each full split of SPLIT_DISTANCE_KM
+     *
+     * @return times in millis
+     */
+    public long[] getSplits() {
+        return m_splits.clone();
+    }
+
+    /**
+     * Gets the bounding box
+     *
+     * @return minLat, minLng, maxLat, maxLng (NaN if there are no points)
+     */
+    public double[] getBoundingBox() {
+        return new double[]{m_minLat, m_minLng, m_maxLat, m_maxLng};
+    }
+}
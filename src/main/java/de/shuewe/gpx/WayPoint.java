@@ -1,7 +1,6 @@
 package de.shuewe.gpx;
 
 import android.content.Context;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -12,6 +11,8 @@ import java.math.RoundingMode;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Locale;
 
@@ -19,11 +20,36 @@ import java.util.Locale;
 /**
  * Class representing a single WayPoint. Can be single WayPoint, Track-Point or Route-Point in gpx.
  */
-public class WayPoint extends GPXElement implements Serializable {
+public class WayPoint extends GPXElement implements Serializable, Cloneable {
 
     //Radius of earth
     public final static double AVERAGE_RADIUS_OF_EARTH_KM = 6371;
 
+    /**
+     * Comparator which orders WayPoints by time like compareTo, but without any Date instance.
+     */
+    public static final Comparator<WayPoint> TIME_COMPARATOR = new Comparator<WayPoint>() {
+        @Override
+        public int compare(WayPoint p1, WayPoint p2) {
+            long time1 = p1.getSortTime();
+            long time2 = p2.getSortTime();
+            return time1 < time2 ? -1 : (time1 == time2 ? 0 : 1);
+        }
+    };
+
+    //SHA-256 instance of each thread, null if not available
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    };
+
     //Secret key used for hash generating. Should be replaced in production by a secret key, or the corresponding method should be overwritten
     private static final String HASH_SECRET_KEY="";
 
@@ -38,11 +64,14 @@ public class WayPoint extends GPXElement implements Serializable {
 
     private boolean m_isStart=false;
 
-    //Date
-    private Date m_date;
+    //Date in epoch millis, NO_TIME if point has no date
+    private long m_time;
+
+    //Blockchain Hash value (binary SHA-256)
+    private byte[] m_hash;
 
-    //Blockchain Hash value
-    private String m_hash;
+    //Hash value which was not generated by this library, kept as it was read
+    private String m_rawHash;
 
     //Name of point
     private String m_name = null;
@@ -50,6 +79,15 @@ public class WayPoint extends GPXElement implements Serializable {
     //Name of parent track
     private Track m_parentTrack = null;
 
+    //Segment which stores name, altitude, hash and start flag of this point, null if point is detached
+    transient TrackSegment m_segment = null;
+
+    //Row of this point in m_segment
+    transient int m_row = -1;
+
+    //Counts changes of the detached point, used to reuse copies in snapshots
+    private transient int m_modCount = 0;
+
     /**
      * public constructor
      *
@@ -60,8 +98,21 @@ public class WayPoint extends GPXElement implements Serializable {
      * @param accuracy accuracy
      */
     public WayPoint(String name, double lat, double lng, Date date, double accuracy) {
+        this(name, lat, lng, date == null ? NO_TIME : date.getTime(), accuracy);
+    }
+
+    /**
+     * public constructor
+     *
+     * @param name name of point
+     * @param lat latitude
+     * @param lng longitude
+     * @param time date in epoch millis, NO_TIME if point has no date
+     * @param accuracy accuracy
+     */
+    public WayPoint(String name, double lat, double lng, long time, double accuracy) {
         m_name = name;
-        m_date = date;
+        m_time = time;
         m_accuracy = accuracy;
         m_lat = lat;
         m_lng = lng;
@@ -73,19 +124,29 @@ public class WayPoint extends GPXElement implements Serializable {
     }
 
     public void setAltitude(Double altitude){
+        if (m_segment != null) {
+            m_segment.setAltitude(m_row, altitude);
+            return;
+        }
         m_altitude=altitude;
+        m_modCount++;
     }
 
     public Double getAltitude(){
-        return m_altitude;
+        return m_segment != null ? m_segment.getAltitude(m_row) : m_altitude;
     }
 
     public void setIsStartPoint(boolean isStart){
+        if (m_segment != null) {
+            m_segment.setIsStart(m_row, isStart);
+            return;
+        }
         m_isStart=isStart;
+        m_modCount++;
     }
 
     public boolean isStart(){
-        return m_isStart;
+        return m_segment != null ? m_segment.isStart(m_row) : m_isStart;
     }
 
     /**
@@ -108,17 +169,21 @@ public class WayPoint extends GPXElement implements Serializable {
      * @return distance in km
      */
     public double calculateDistanceInKilometer(WayPoint point) {
+        return calculateDistanceInKilometer(m_lat, m_lng, point.m_lat, point.m_lng);
+    }
 
-        double latDistance = Math.toRadians(m_lat - point.m_lat);
-        double lngDistance = Math.toRadians(m_lng - point.m_lng);
-
-        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
-                + Math.cos(Math.toRadians(m_lat)) * Math.cos(Math.toRadians(point.m_lat))
-                * Math.sin(lngDistance / 2) * Math.sin(lngDistance / 2);
-
-        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-
-        return AVERAGE_RADIUS_OF_EARTH_KM * c;
+    /**
+     * Returns the distance between two coordinates (haversine)
+     *
+     * @param lat1 latitude of first point
+     * @param lng1 longitude of first point
+     * @param lat2 latitude of second point
+     * @param lng2 longitude of second point
+     * @return distance in km
+     */
+    static double calculateDistanceInKilometer(double lat1, double lng1, double lat2, double lng2) {
+        return DistanceCalculator.haversine(lat1, lng1, Math.cos(Math.toRadians(lat1)),
+                lat2, lng2, Math.cos(Math.toRadians(lat2)));
     }
 
 
@@ -138,17 +203,41 @@ public class WayPoint extends GPXElement implements Serializable {
                 return false;
             }
         }
-        if ((getDate() == null && p1.getDate() != null) || (getDate() != null && p1.getDate() == null)) {
+        if (hasTime() != p1.hasTime()) {
             return false;
         }
-        if (!(getDate() == null && p1.getDate() == null)) {
-            if (!SecureGPXParser.getDateString(getDate()).equals(SecureGPXParser.getDateString(p1.getDate()))) {
-                return false;
-            }
+        //Dates are compared with precision of the gpx date string (seconds)
+        if (hasTime() && toSeconds(getTime()) != toSeconds(p1.getTime())) {
+            return false;
         }
         return getLat() == p1.getLat() && getLng() == p1.getLng() && getAccuracy() == p1.getAccuracy();
     }
 
+    @Override
+    public int hashCode() {
+        //The name is not considered, as it can be changed
+        int res = Long.valueOf(hasTime() ? toSeconds(getTime()) : NO_TIME).hashCode();
+        res = 31 * res + hashDouble(getLat());
+        res = 31 * res + hashDouble(getLng());
+        res = 31 * res + hashDouble(getAccuracy());
+        return res;
+    }
+
+    private static int hashDouble(double val) {
+        //0.0 == -0.0 in equals
+        return val == 0 ? 0 : Double.valueOf(val).hashCode();
+    }
+
+    /**
+     * Converts epoch millis to epoch seconds (rounded down, like the date string in gpx).
+     *
+     * @param time in epoch millis
+     * @return seconds
+     */
+    static long toSeconds(long time) {
+        return time >= 0 ? time / 1000 : -((-time + 999) / 1000);
+    }
+
     /**
      * Returns the accuracy
      *
@@ -159,12 +248,30 @@ public class WayPoint extends GPXElement implements Serializable {
     }
 
     /**
-     * Returns the date
+     * Returns the date. Creates a new Date instance, use getTime() in loops.
      *
      * @return date
      */
     public Date getDate() {
-        return m_date;
+        return m_time == NO_TIME ? null : new Date(m_time);
+    }
+
+    /**
+     * Returns the date in epoch millis
+     *
+     * @return time, NO_TIME if point has no date
+     */
+    public long getTime() {
+        return m_time;
+    }
+
+    /**
+     * Checks if point has a date
+     *
+     * @return boolean
+     */
+    public boolean hasTime() {
+        return m_time != NO_TIME;
     }
 
     /**
@@ -191,7 +298,7 @@ public class WayPoint extends GPXElement implements Serializable {
      * @return String
      */
     public String getName() {
-        return m_name;
+        return m_segment != null ? m_segment.getName(m_row) : m_name;
     }
 
     /**
@@ -200,7 +307,12 @@ public class WayPoint extends GPXElement implements Serializable {
      * @param name to be set
      */
     public void setName(String name) {
+        if (m_segment != null) {
+            m_segment.setName(m_row, name);
+            return;
+        }
         m_name = name;
+        m_modCount++;
     }
 
     /**
@@ -209,18 +321,40 @@ public class WayPoint extends GPXElement implements Serializable {
      * @return String
      */
     public String get_parentName() {
-        return m_parentTrack == null ? null : m_parentTrack.getName();
+        return getParentTrack() == null ? null : getParentTrack().getName();
     }
 
     /**
-     * Sets the parent name via track
+     * Sets the parent name via track. For points of a TrackSegment the parent is set for the whole segment.
      *
      * @param track to be set as parent track
      */
     public void setParentTrack(Track track) {
+        if (m_segment != null) {
+            m_segment.setTrack(track);
+            return;
+        }
         m_parentTrack = track;
     }
 
+    /**
+     * Gets the parent track
+     *
+     * @return Track, null for single waypoints
+     */
+    public Track getParentTrack() {
+        return m_segment != null ? m_segment.getTrack() : m_parentTrack;
+    }
+
+    /**
+     * Gets the segment of a track point
+     *
+     * @return TrackSegment, null for single waypoints or removed points
+     */
+    public TrackSegment getSegment() {
+        return m_segment;
+    }
+
     /**
      * Returns the secret hash key. Should be changed / overwritten in production to return a secret (but constant) String
      *
@@ -232,7 +366,13 @@ public class WayPoint extends GPXElement implements Serializable {
 
     @Override
     protected Date getSortDate() {
-        return m_date != null ? m_date: new Date(0l);
+        return new Date(getSortTime());
+    }
+
+    @Override
+    protected long getSortTime() {
+        //Points without date are sorted like Date(0)
+        return m_time != NO_TIME ? m_time : 0;
     }
 
     @Override
@@ -248,29 +388,34 @@ public class WayPoint extends GPXElement implements Serializable {
      * @return hash
      */
     String generateHash(String prevHash, boolean setHash) {
-        String res = null;
-        String toEncode =  getHashSecretKey();
-        if (prevHash != null) {
-            toEncode += prevHash;
+        byte[] res = generateHashBytes(prevHash == null ? null : prevHash.getBytes(), setHash);
+        return res == null ? null : SecureGPXParser.bytesToHexString(res);
+    }
+
+    /**
+     * Estimates the binary hash value from the text of the previous hash value.
+     *
+     * @param prevHashText previous hash as bytes of its hex string (see SecureGPXParser#bytesToHexAscii), null if there is none
+     * @param setHash      flag indicates if hash should be generated and set to WayPoint
+     * @return hash, null if point has no date
+     */
+    byte[] generateHashBytes(byte[] prevHashText, boolean setHash) {
+        if (m_time == NO_TIME) {
+            return null;
         }
-        if (m_date == null) {
+        MessageDigest digest = DIGEST.get();
+        if (digest == null) {
             return null;
         }
-        toEncode += SecureGPXParser.getDateString(m_date) + parseAccuracy(m_accuracy) + parseCoordinate(getLat()) + parseCoordinate(getLng());
-        MessageDigest digest = null;
-        String hash;
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-            digest.update(toEncode.getBytes());
-            res = SecureGPXParser.bytesToHexString(digest.digest());
-            if (setHash) {
-                setHash(res);
-            }
-            Log.d(GPXHandler.LOG_TAG,res+" "+getLat()+" "+parseCoordinate(getLat()));
-            return res;
-
-        } catch (NoSuchAlgorithmException e1) {
-            e1.printStackTrace();
+        //Same as hashing the concatenated string
+        digest.update(getHashSecretKey().getBytes());
+        if (prevHashText != null) {
+            digest.update(prevHashText);
+        }
+        digest.update((SecureGPXParser.getDateString(m_time) + parseAccuracy(m_accuracy) + parseCoordinate(getLat()) + parseCoordinate(getLng())).getBytes());
+        byte[] res = digest.digest();
+        if (setHash) {
+            setHash(res);
         }
         return res;
     }
@@ -281,10 +426,10 @@ public class WayPoint extends GPXElement implements Serializable {
 
     private String parseDouble(int digits,double val){
         String res= Double.toString(val);
-        if(!res.contains(".")){
+        int prePoint = res.indexOf('.');
+        if(prePoint == -1){
             return res;
         }
-        int prePoint = res.split("\\.")[0].length();
         if(res.length() > prePoint + 1+ digits){
             return res.substring(0,prePoint+1+digits); //digits + .
         }
@@ -315,7 +460,35 @@ public class WayPoint extends GPXElement implements Serializable {
      * @return hash value
      */
     String getHash() {
-        return m_hash;
+        if (m_segment != null) {
+            return m_segment.getHash(m_row);
+        }
+        return m_hash != null ? SecureGPXParser.bytesToHexString(m_hash) : m_rawHash;
+    }
+
+    /**
+     * Gets the binary hash
+     *
+     * @return hash (must not be changed), null if point has no hash or the hash was not generated by this library
+     */
+    byte[] getHashBytes() {
+        return m_segment != null ? m_segment.getHashBytes(m_row) : m_hash;
+    }
+
+    /**
+     * Checks if the point has the given hash
+     *
+     * @param hash binary hash
+     * @return boolean
+     */
+    boolean hasHash(byte[] hash) {
+        if (hash == null) {
+            return false;
+        }
+        if (m_segment != null) {
+            return m_segment.hasHash(m_row, hash);
+        }
+        return Arrays.equals(m_hash, hash);
     }
 
     /**
@@ -324,11 +497,158 @@ public class WayPoint extends GPXElement implements Serializable {
      * @param hashValue to be set
      */
     void setHash(String hashValue) {
-        m_hash = hashValue;
+        if (m_segment != null) {
+            m_segment.setHash(m_row, hashValue);
+            return;
+        }
+        m_modCount++;
+        m_hash = null;
+        m_rawHash = null;
+        if (hashValue == null) {
+            return;
+        }
+        byte[] hash = new byte[TrackSegment.HASH_LENGTH];
+        if (SecureGPXParser.hexStringToBytes(hashValue, hash, 0, hash.length)) {
+            m_hash = hash;
+        } else {
+            m_rawHash = hashValue;
+        }
+    }
+
+    /**
+     * Sets the binary hash value
+     *
+     * @param hash SHA-256 hash (not copied)
+     */
+    void setHash(byte[] hash) {
+        if (m_segment != null) {
+            m_segment.setHash(m_row, hash);
+            return;
+        }
+        m_hash = hash;
+        m_rawHash = null;
+        m_modCount++;
+    }
+
+    /**
+     * Gets the number of changes of the detached point.
+     *
+     * @return int
+     */
+    int getModCount() {
+        return m_modCount;
+    }
+
+    /**
+     * Creates a view of the same class for a row of a TrackSegment.
+     *
+     * @param lat      latitude
+     * @param lng      longitude
+     * @param time     date in epoch millis
+     * @param accuracy accuracy
+     * @return WayPoint (not attached yet)
+     */
+    WayPoint newView(double lat, double lng, long time, double accuracy) {
+        WayPoint res;
+        try {
+            res = (WayPoint) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        res.m_lat = lat;
+        res.m_lng = lng;
+        res.m_time = time;
+        res.m_accuracy = accuracy;
+        res.m_name = null;
+        res.m_altitude = null;
+        res.m_hash = null;
+        res.m_rawHash = null;
+        res.m_isStart = false;
+        res.m_parentTrack = null;
+        res.m_segment = null;
+        res.m_row = -1;
+        return res;
+    }
+
+    /**
+     * Attaches the point to a row of a TrackSegment. Name, altitude, hash and start flag are read from the segment afterwards.
+     *
+     * @param segment to attach to
+     * @param row     of point in segment
+     */
+    void attach(TrackSegment segment, int row) {
+        m_segment = segment;
+        m_row = row;
+        m_name = null;
+        m_altitude = null;
+        m_hash = null;
+        m_rawHash = null;
+    }
+
+    /**
+     * Detaches the point from its TrackSegment (e.g. if point is removed). Values of the segment are copied to the point.
+     */
+    void detach() {
+        if (m_segment == null) {
+            return;
+        }
+        TrackSegment segment = m_segment;
+        int row = m_row;
+        m_segment = null;
+        m_row = -1;
+        m_name = segment.getName(row);
+        m_altitude = segment.getAltitude(row);
+        copyHash(segment.getHashBytes(row), segment.getHash(row));
+        m_isStart = segment.isStart(row);
+        m_parentTrack = segment.getTrack();
+        m_modCount++;
+    }
+
+    /**
+     * Replaces an attached point by a detached copy for serialization.
+     *
+     * @return Object to be serialized
+     */
+    protected Object writeReplace() {
+        if (m_segment == null) {
+            return this;
+        }
+        return copy();
+    }
+
+    /**
+     * Creates a detached copy of the point.
+     *
+     * @return WayPoint
+     */
+    WayPoint copy() {
+        WayPoint res = newView(m_lat, m_lng, m_time, m_accuracy);
+        res.m_name = getName();
+        res.m_altitude = getAltitude();
+        res.copyHash(getHashBytes(), getHash());
+        res.m_isStart = isStart();
+        return res;
+    }
+
+    private void copyHash(byte[] hash, String hashValue) {
+        m_hash = hash == null ? null : hash.clone();
+        m_rawHash = hash == null ? hashValue : null;
     }
 
     public static boolean isPointInRange(WayPoint point,Date minDate,Date maxDate){
         return minDate.compareTo(point.getDate())<0 && maxDate.compareTo(point.getDate())>0;
     }
 
+    /**
+     * Checks if the date of the point is between (exclusive) minTime and maxTime.
+     *
+     * @param point   to check
+     * @param minTime in epoch millis
+     * @param maxTime in epoch millis
+     * @return false if point has no date
+     */
+    public static boolean isPointInRange(WayPoint point, long minTime, long maxTime) {
+        return point.m_time != NO_TIME && minTime < point.m_time && maxTime > point.m_time;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package de.shuewe.gpx;
+
+import java.io.IOException;
+
+/**
+ * Minimal pull reader for GPX documents, implemented by the xmlpull parser on Android and by StAX on a plain JVM
+ * (see GPXPlatform). Comments and processing instructions are skipped, all character data is reported as TEXT.
+ */
+interface XmlReader {
+
+    int START_TAG = 1;
+    int END_TAG = 2;
+    int TEXT = 3;
+    int END_DOCUMENT = 4;
+
+    /**
+     * Moves to the next event.
+     *
+     * @return type of event
+     * @throws IOException if the document is not well formed
+     */
+    int next() throws IOException;
+
+    /**
+     * Moves to the next tag, whitespace is skipped.
+     *
+     * @return START_TAG or END_TAG
+     * @throws IOException if there is other content than whitespace before the next tag
+     */
+    int nextTag() throws IOException;
+
+    /**
+     * Gets the type of the current event
+     *
+     * @return type of event
+     */
+    int getEventType();
+
+    /**
+     * Gets the name of the current tag
+     *
+     * @return name, null if current event is no tag
+     */
+    String getName();
+
+    /**
+     * Gets the text of the current TEXT event
+     *
+     * @return text
+     */
+    String getText();
+
+    int getAttributeCount();
+
+    String getAttributeName(int index);
+
+    String getAttributeValue(int index);
+
+    /**
+     * Checks the current event.
+     *
+     * @param type of event
+     * @param name of tag, null to accept any tag
+     * @throws IOException if the current event does not match
+     */
+    void require(int type, String name) throws IOException;
+}
@@ -0,0 +1,34 @@
+package de.shuewe.gpx;
+
+import java.io.IOException;
+
+/**
+ * Minimal writer for GPX documents, implemented by the xmlpull serializer on Android and by a plain writer
+ * on a plain JVM (see GPXPlatform). Tags have no namespace, the document is written as UTF-8.
+ */
+interface XmlWriter {
+
+    void startDocument() throws IOException;
+
+    void startTag(String name) throws IOException;
+
+    /**
+     * Adds an attribute to the current tag. Has to be called directly after startTag.
+     *
+     * @param name  of attribute
+     * @param value of attribute
+     * @throws IOException if writing fails
+     */
+    void attribute(String name, String value) throws IOException;
+
+    void text(String text) throws IOException;
+
+    void endTag(String name) throws IOException;
+
+    /**
+     * Closes all open tags and flushes the output.
+     *
+     * @throws IOException if writing fails
+     */
+    void endDocument() throws IOException;
+}
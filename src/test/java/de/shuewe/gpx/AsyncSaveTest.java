@@ -0,0 +1,104 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncSaveTest {
+
+    private static final int COUNT = 100;
+
+    private static SecureGPXParser createParser(String fileName) {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        parser.setFilename(fileName);
+        long[] time = new long[COUNT];
+        double[] lat = new double[COUNT];
+        double[] lng = new double[COUNT];
+        double[] accuracy = new double[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            time[i] = 1600000000000L + i * 1000L;
+            lat[i] = 50 + i * 0.0001;
+            lng[i] = 8;
+            accuracy[i] = 5;
+        }
+        parser.getHandler().processTrackpoints("track", time, lat, lng, accuracy, null, COUNT);
+        return parser;
+    }
+
+    /**
+     * Blocks the I/O thread until the returned latch is released.
+     *
+     * @return CountDownLatch
+     */
+    private static CountDownLatch blockIo() {
+        final CountDownLatch res = new CountDownLatch(1);
+        SecureGPXParser.getIoExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    res.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return res;
+    }
+
+    @Test
+    public void checkSave_pointsProcessedWhileWriting() throws Exception {
+        File file = File.createTempFile("save", ".gpx");
+        try {
+            SecureGPXParser parser = createParser(file.getAbsolutePath());
+            CountDownLatch io = blockIo();
+            GPXFuture<Void> save = parser.getHandler().saveAsync();
+            //Snapshot is captured, the file is still written
+            parser.whenProcessed().get(10, TimeUnit.SECONDS);
+            assertFalse(parser.isChanged());
+            parser.getHandler().processTrackpoint("track", 51, 8, 5, 100);
+            parser.whenProcessed().get(10, TimeUnit.SECONDS);
+            assertFalse(save.isDone());
+            assertEquals(COUNT + 1, parser.getSnapshot().getTracks().get("track").getSize());
+            io.countDown();
+            save.get(10, TimeUnit.SECONDS);
+            assertTrue(parser.isChanged());
+
+            //File contains the snapshot captured by the save
+            SecureGPXParser loaded = new SecureGPXParser(new PoolBackend(1));
+            loaded.initAsync(new FileInputStream(file)).get(10, TimeUnit.SECONDS);
+            assertEquals(COUNT, loaded.getSnapshot().getTracks().get("track").getSize());
+            assertTrue(loaded.getHandler().requestValidation().get(10, TimeUnit.SECONDS));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void checkSave_failureKeepsChanged() throws Exception {
+        File dir = File.createTempFile("save", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            SecureGPXParser parser = createParser(dir.getAbsolutePath());
+            try {
+                parser.getHandler().saveAsync().get(10, TimeUnit.SECONDS);
+                fail("Directory can not be written");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertTrue(parser.isChanged());
+        } finally {
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package de.shuewe.gpx;
+
+import org.junit.Assume;
+
+/**
+ * Benchmarks print their timings and assert nothing about them. They are skipped unless the tests are run
+ * with -Dgpx.benchmark=true (e.g. ./gradlew test -Dgpx.benchmark=true).
+ */
+public class Benchmarks {
+
+    //System property which enables the benchmarks
+    public static final String PROPERTY = "gpx.benchmark";
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Skips the calling test, if benchmarks are not enabled.
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmark, run with -D" + PROPERTY + "=true", Boolean.getBoolean(PROPERTY));
+    }
+}
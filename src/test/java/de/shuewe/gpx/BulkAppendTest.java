@@ -0,0 +1,146 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkAppendTest {
+
+    private static final long START = 1600000000000L;
+
+    private static void waitIdle(GPXBackend backend) throws InterruptedException {
+        Thread.sleep(10);
+        while (!backend.isIdle()) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static boolean isValid(SecureGPXParser parser, GPXBackend backend) throws InterruptedException {
+        final boolean[] res = new boolean[2];
+        parser.getHandler().requestValidation(new SecureGPXParser.GPXValidationListener() {
+            @Override
+            public void handleValidation(boolean valid) {
+                res[0] = valid;
+                res[1] = true;
+            }
+        });
+        waitIdle(backend);
+        return res[0] && res[1];
+    }
+
+    @Test
+    public void checkBatch_chainAndNotification() throws InterruptedException {
+        GPXBackend backend = new PoolBackend(1);
+        SecureGPXParser parser = new SecureGPXParser(backend);
+        final AtomicInteger notifications = new AtomicInteger();
+        parser.addChangeListener(new SecureGPXParser.GPXChangeListener() {
+            @Override
+            public void handleChangedData(SecureGPXParser parser) {
+                notifications.incrementAndGet();
+            }
+        });
+        int count = 1000;
+        long[] time = new long[count];
+        double[] lat = new double[count];
+        double[] lng = new double[count];
+        double[] accuracy = new double[count];
+        for (int i = 0; i < count; i++) {
+            //Unsorted input, the batch is sorted before hashing
+            time[i] = START + (i % 2 == 0 ? i : count - i) * 1000L;
+            lat[i] = 50 + i * 0.0001;
+            lng[i] = 8;
+            accuracy[i] = 5;
+        }
+        parser.getHandler().processTrackpoints("track", time, lat, lng, accuracy, null, count);
+        waitIdle(backend);
+        assertEquals(1, notifications.get());
+        assertEquals(count, parser.getTracks().get("track").getSize());
+        assertTrue(isValid(parser, backend));
+
+        //Chain is continued by a second batch
+        for (int i = 0; i < count; i++) {
+            time[i] += 2 * count * 1000L;
+        }
+        parser.getHandler().processTrackpoints("track", time, lat, lng, accuracy, null, count);
+        waitIdle(backend);
+        assertEquals(2 * count, parser.getTracks().get("track").getSize());
+        assertTrue(isValid(parser, backend));
+    }
+
+    /**
+     * Buffered fixes of a track as passed to processTrackpoints.
+     */
+    private static final class Fixes {
+
+        final int count;
+        final long[] time;
+        final double[] lat;
+        final double[] lng;
+        final double[] accuracy;
+        final double[] alt;
+
+        Fixes(int count) {
+            this.count = count;
+            time = new long[count];
+            lat = new double[count];
+            lng = new double[count];
+            accuracy = new double[count];
+            alt = new double[count];
+            for (int i = 0; i < count; i++) {
+                time[i] = START + i * 1000L;
+                lat[i] = 50 + i * 0.00001;
+                lng[i] = 8 + Math.sin(i * 0.01) * 0.001;
+                accuracy[i] = 5;
+                alt[i] = 100 + i % 50;
+            }
+        }
+    }
+
+    @Test
+    public void checkBatch_large() throws InterruptedException {
+        Fixes fixes = new Fixes(100000);
+        GPXBackend backend = new PoolBackend(1);
+        SecureGPXParser parser = new SecureGPXParser(backend);
+        parser.getHandler().processTrackpoints("track", fixes.time, fixes.lat, fixes.lng, fixes.accuracy, fixes.alt, fixes.count);
+        waitIdle(backend);
+        TrackSegment segment = parser.getTracks().get("track").getCurrentSegment();
+        assertEquals(fixes.count, segment.size());
+        for (int i = 0; i < fixes.count; i += 997) {
+            WayPoint point = segment.get(i);
+            assertEquals(fixes.time[i], point.getTime());
+            assertEquals(fixes.lat[i], point.getLat(), 0);
+            assertEquals(fixes.lng[i], point.getLng(), 0);
+            assertEquals(fixes.alt[i], point.getAltitude(), 0);
+        }
+        assertTrue(isValid(parser, backend));
+    }
+
+    @Test
+    public void checkBatch_throughput() throws InterruptedException {
+        Benchmarks.assumeEnabled();
+        Fixes fixes = new Fixes(100000);
+        int count = fixes.count;
+        for (int round = 0; round < 3; round++) {
+            GPXBackend backend = new PoolBackend(1);
+            SecureGPXParser batch = new SecureGPXParser(backend);
+            long start = System.nanoTime();
+            batch.getHandler().processTrackpoints("track", fixes.time, fixes.lat, fixes.lng, fixes.accuracy, fixes.alt, count);
+            waitIdle(backend);
+            long batchTime = System.nanoTime() - start;
+            assertEquals(count, batch.getTracks().get("track").getSize());
+
+            SecureGPXParser single = new SecureGPXParser(backend);
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                single.getHandler().processTrackpoint("track", fixes.lat[i], fixes.lng[i], fixes.accuracy[i], fixes.alt[i]);
+            }
+            waitIdle(backend);
+            long singleTime = System.nanoTime() - start;
+            System.out.println(String.format("%d points: batch %d ms (%.0f points/s), single %d ms (%.0f points/s)",
+                    count, batchTime / 1000000, count / (batchTime / 1e9), singleTime / 1000000, count / (singleTime / 1e9)));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CancellationTest {
+
+    private static final int COUNT = 1000;
+
+    /**
+     * Token which is cancelled by the given check, so running operations are cancelled deterministically.
+     */
+    private static class CountingToken extends CancellationToken {
+
+        private final int m_cancelAt;
+        private int m_checks = 0;
+
+        CountingToken(int cancelAt) {
+            m_cancelAt = cancelAt;
+        }
+
+        @Override
+        void throwIfCancelled() {
+            if (++m_checks == m_cancelAt) {
+                cancel();
+            }
+            super.throwIfCancelled();
+        }
+    }
+
+    private static SecureGPXParser createParser(File file) throws Exception {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        parser.setFilename(file.getAbsolutePath());
+        long[] time = new long[COUNT];
+        double[] lat = new double[COUNT];
+        double[] lng = new double[COUNT];
+        double[] accuracy = new double[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            time[i] = 1600000000000L + i * 1000L;
+            lat[i] = 50 + i * 0.0001;
+            lng[i] = 8;
+            accuracy[i] = 5;
+        }
+        parser.getHandler().processTrackpoints("track", time, lat, lng, accuracy, null, COUNT);
+        parser.getHandler().saveAsync().get(10, TimeUnit.SECONDS);
+        return parser;
+    }
+
+    private static byte[] read(File file) throws Exception {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] res = new byte[(int) in.length()];
+            in.readFully(res);
+            return res;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void assertCancelled(GPXFuture<?> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Operation must be cancelled");
+        } catch (CancellationException e) {
+            assertTrue(future.isCancelled());
+        }
+    }
+
+    @Test
+    public void checkInit_stopsAndResets() throws Exception {
+        File file = File.createTempFile("cancel", ".gpx");
+        try {
+            createParser(file);
+            SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+            CountingToken token = new CountingToken(100);
+            assertCancelled(parser.initAsync(new FileInputStream(file), token));
+            assertEquals(100, token.m_checks);
+            assertTrue(parser.getSnapshot().getTracks().isEmpty());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void checkSave_leavesFileUnchanged() throws Exception {
+        File file = File.createTempFile("cancel", ".gpx");
+        try {
+            SecureGPXParser parser = createParser(file);
+            byte[] saved = read(file);
+            parser.getHandler().processTrackpoint("track", 51, 8, 5, 100);
+            CountingToken token = new CountingToken(COUNT / 2);
+            assertCancelled(parser.getHandler().saveAsync(token));
+            assertEquals(COUNT / 2, token.m_checks);
+            assertTrue(Arrays.equals(saved, read(file)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void checkValidation_cancelledAndQueued() throws Exception {
+        File file = File.createTempFile("cancel", ".gpx");
+        try {
+            SecureGPXParser parser = createParser(file);
+            CountingToken token = new CountingToken(10);
+            assertCancelled(parser.getHandler().requestValidation(token));
+            assertEquals(10, token.m_checks);
+
+            //Cancelled before start: the task is not run at all
+            CountingToken queued = new CountingToken(0);
+            queued.cancel();
+            assertCancelled(parser.getHandler().requestValidation(queued));
+            assertEquals(1, queued.m_checks);
+
+            //Cancelling the future cancels its token, the background thread is blocked until then
+            final CountDownLatch latch = new CountDownLatch(1);
+            parser.execute(GPXThread.ACTION.CHANGE_VALIDATION, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            CountingToken shared = new CountingToken(0);
+            GPXFuture<Boolean> future = parser.getHandler().requestValidation(shared);
+            assertTrue(future.cancel(true));
+            assertTrue(shared.isCancelled());
+            latch.countDown();
+            assertCancelled(future);
+            parser.whenProcessed().get(10, TimeUnit.SECONDS);
+            assertEquals(1, shared.m_checks);
+
+            //No result was kept from the cancelled validations
+            assertTrue(parser.getHandler().requestValidation().get(10, TimeUnit.SECONDS));
+            assertFalse(parser.getHandler().requestValidation().isCancelled());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DistanceCalculatorTest {
+
+    private static final int COUNT = 1000000;
+
+    //Maximum relative error of fast mode for hops up to FAST_MAX_DEGREES, see DistanceCalculator
+    private static final double FAST_MAX_ERROR = 3.53e-7;
+
+    //Former implementation of WayPoint#calculateDistanceInKilometer
+    private static double reference(double lat1, double lng1, double lat2, double lng2) {
+        double latDistance = Math.toRadians(lat1 - lat2);
+        double lngDistance = Math.toRadians(lng1 - lng2);
+        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(lngDistance / 2) * Math.sin(lngDistance / 2);
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        return WayPoint.AVERAGE_RADIUS_OF_EARTH_KM * c;
+    }
+
+    /**
+     * Creates a random track with hops up to the given size.
+     */
+    private static double[][] createTrack(double maxHop) {
+        Random random = new Random(42);
+        double[] lat = new double[COUNT];
+        double[] lng = new double[COUNT];
+        for (int i = 1; i < COUNT; i++) {
+            lat[i] = Math.max(-80, Math.min(80, lat[i - 1] + (random.nextDouble() * 2 - 1) * maxHop));
+            lng[i] = lng[i - 1] + (random.nextDouble() * 2 - 1) * maxHop;
+            if (i % 1000 == 0) {
+                //Jump to another latitude
+                lat[i] = random.nextDouble() * 160 - 80;
+            }
+        }
+        return new double[][]{lat, lng};
+    }
+
+    @Test
+    public void checkHaversine_sameAsReference() {
+        double[][] track = createTrack(1);
+        double[] cos = new double[COUNT];
+        double[] distance = new double[COUNT];
+        DistanceCalculator.cosLatitudes(track[0], 0, COUNT, cos);
+        DistanceCalculator.distances(track[0], track[1], cos, 0, COUNT, DistanceCalculator.Mode.HAVERSINE, distance);
+        for (int i = 1; i < COUNT; i++) {
+            assertEquals(reference(track[0][i - 1], track[1][i - 1], track[0][i], track[1][i]), distance[i], 0);
+        }
+    }
+
+    /**
+     * Gets the maximum relative error of fast mode for a track (hops shorter than 1m are left out).
+     */
+    private static double getFastError(double[][] track) {
+        double[] cos = new double[COUNT];
+        double[] distance = new double[COUNT];
+        DistanceCalculator.cosLatitudes(track[0], 0, COUNT, cos);
+        DistanceCalculator.distances(track[0], track[1], cos, 0, COUNT, DistanceCalculator.Mode.FAST, distance);
+        double maxError = 0;
+        for (int i = 1; i < COUNT; i++) {
+            double exact = reference(track[0][i - 1], track[1][i - 1], track[0][i], track[1][i]);
+            if (exact > 0.001) {
+                maxError = Math.max(maxError, Math.abs(distance[i] - exact) / exact);
+            }
+        }
+        return maxError;
+    }
+
+    @Test
+    public void checkFast_errorBound() {
+        assertTrue(getFastError(createTrack(DistanceCalculator.FAST_MAX_DEGREES)) <= FAST_MAX_ERROR);
+    }
+
+    @Test
+    public void checkBatch_sameAsPairwise() {
+        double[][] track = createTrack(0.001);
+        double[] lat = track[0];
+        double[] lng = track[1];
+        double[] cos = new double[COUNT];
+        double[] distance = new double[COUNT];
+        double[] cumulative = new double[COUNT];
+        DistanceCalculator.cosLatitudes(lat, 0, COUNT, cos);
+        DistanceCalculator.distances(lat, lng, cos, 0, COUNT, DistanceCalculator.Mode.HAVERSINE, distance);
+        DistanceCalculator.cumulate(lat, lng, cos, 1, COUNT, DistanceCalculator.Mode.HAVERSINE, cumulative);
+        double sum = 0;
+        for (int i = 1; i < COUNT; i++) {
+            double pairwise = WayPoint.calculateDistanceInKilometer(lat[i - 1], lng[i - 1], lat[i], lng[i]);
+            assertEquals(pairwise, distance[i], 1e-12);
+            sum += pairwise;
+            assertEquals(sum, cumulative[i], 1e-9);
+        }
+    }
+
+    @Test
+    public void checkDistances_benchmark() {
+        Benchmarks.assumeEnabled();
+        double[][] track = createTrack(0.001);
+        double[] lat = track[0];
+        double[] lng = track[1];
+        double[] cos = new double[COUNT];
+        double[] distance = new double[COUNT];
+        double sum = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 1; i < COUNT; i++) {
+                sum += WayPoint.calculateDistanceInKilometer(lat[i - 1], lng[i - 1], lat[i], lng[i]);
+            }
+            long single = System.nanoTime() - start;
+            start = System.nanoTime();
+            DistanceCalculator.cosLatitudes(lat, 0, COUNT, cos);
+            DistanceCalculator.distances(lat, lng, cos, 0, COUNT, DistanceCalculator.Mode.HAVERSINE, distance);
+            long haversine = System.nanoTime() - start;
+            start = System.nanoTime();
+            DistanceCalculator.cosLatitudes(lat, 0, COUNT, cos);
+            DistanceCalculator.distances(lat, lng, cos, 0, COUNT, DistanceCalculator.Mode.FAST, distance);
+            long fast = System.nanoTime() - start;
+            System.out.println(String.format("%d distances: pairwise %d ms, batch haversine %d ms, batch fast %d ms",
+                    COUNT, single / 1000000, haversine / 1000000, fast / 1000000));
+        }
+        System.out.println(String.format("Sum of pairwise distances: %.1f km", sum / 5));
+        for (double maxHop : new double[]{0.001, 0.01, DistanceCalculator.FAST_MAX_DEGREES}) {
+            System.out.println(String.format("Fast mode, hops up to %.3f degrees: max. relative error %.2e", maxHop, getFastError(createTrack(maxHop))));
+        }
+    }
+}
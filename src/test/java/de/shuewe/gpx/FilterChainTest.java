@@ -0,0 +1,139 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FilterChainTest {
+
+    private static final long START = 1600000000000L;
+
+    //About 11 meter per step
+    private static final double STEP = 0.0001;
+
+    private static boolean filter(FilterChain chain, long time, double lat, double accuracy) {
+        FilterChain.Fix fix = chain.getFix();
+        fix.set(time, lat, 8, accuracy, Double.NaN);
+        return chain.filter(fix);
+    }
+
+    @Test
+    public void checkStages_counts() {
+        FilterChain.MaxAccuracy accuracy = new FilterChain.MaxAccuracy(20);
+        FilterChain.MinInterval interval = new FilterChain.MinInterval(2000);
+        FilterChain.MaxSpeed speed = new FilterChain.MaxSpeed(50, DistanceCalculator.Mode.HAVERSINE);
+        FilterChain.MinDistance distance = new FilterChain.MinDistance(1, DistanceCalculator.Mode.HAVERSINE);
+        FilterChain chain = new FilterChain(accuracy, interval, speed, distance);
+
+        assertTrue(filter(chain, START, 50, 5));
+        //Bad accuracy
+        assertFalse(filter(chain, START + 5000, 50 + STEP, 30));
+        //Too soon
+        assertFalse(filter(chain, START + 1000, 50 + STEP, 5));
+        //Outlier: 1 km in 5 s
+        assertFalse(filter(chain, START + 5000, 50.01, 5));
+        //Within accuracies of last point
+        assertFalse(filter(chain, START + 5000, 50 + STEP / 2, 5));
+        assertTrue(filter(chain, START + 5000, 50 + STEP * 2, 5));
+
+        assertEquals(5, accuracy.getAcceptedCount());
+        assertEquals(1, accuracy.getRejectedCount());
+        assertEquals(1, interval.getRejectedCount());
+        assertEquals(1, speed.getRejectedCount());
+        assertEquals(1, distance.getRejectedCount());
+        assertEquals(2, distance.getAcceptedCount());
+        List<FilterChain.Stage> stages = chain.getStages();
+        assertEquals(4, stages.size());
+        assertEquals("MaxAccuracy: 5 accepted, 1 rejected", stages.get(0).toString());
+    }
+
+    @Test
+    public void checkKalman_smoothsJitter() {
+        FilterChain chain = new FilterChain(new FilterChain.Kalman(1));
+        double maxRaw = 0;
+        double maxSmoothed = 0;
+        for (int i = 0; i < 100; i++) {
+            //Standing still with 10 meter jitter
+            double lat = 50 + (i % 2 == 0 ? 1 : -1) * STEP;
+            assertTrue(filter(chain, START + i * 1000L, lat, 10));
+            if (i >= 10) {
+                maxRaw = Math.max(maxRaw, Math.abs(lat - 50));
+                maxSmoothed = Math.max(maxSmoothed, Math.abs(chain.getFix().getLat() - 50));
+                assertTrue(chain.getFix().getAccuracy() < 10);
+            }
+        }
+        assertTrue(maxSmoothed < maxRaw / 4);
+    }
+
+    @Test
+    public void checkKalman_rejectedFixIgnored() {
+        FilterChain chain = new FilterChain(new FilterChain.Kalman(1), new FilterChain.MaxSpeed(50, DistanceCalculator.Mode.HAVERSINE));
+        FilterChain reference = new FilterChain(new FilterChain.Kalman(1), new FilterChain.MaxSpeed(50, DistanceCalculator.Mode.HAVERSINE));
+        for (int i = 0; i < 10; i++) {
+            double lat = 50 + (i % 2 == 0 ? 1 : -1) * STEP;
+            assertTrue(filter(chain, START + i * 1000L, lat, 10));
+            assertTrue(filter(reference, START + i * 1000L, lat, 10));
+            //Outliers are rejected after smoothing, the Kalman stage must not learn from them
+            FilterChain.Fix fix = chain.getFix();
+            fix.set(START + i * 1000L + 500, 51, 9, 1, Double.NaN);
+            assertFalse(chain.filter(fix));
+        }
+        assertTrue(filter(chain, START + 10000, 50, 10));
+        assertTrue(filter(reference, START + 10000, 50, 10));
+        assertEquals(reference.getFix().getLat(), chain.getFix().getLat(), 0);
+        assertEquals(reference.getFix().getLng(), chain.getFix().getLng(), 0);
+        assertEquals(reference.getFix().getAccuracy(), chain.getFix().getAccuracy(), 0);
+    }
+
+    @Test
+    public void checkHandler_singleAndBatch() throws Exception {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        MinDistanceHandler handler = new MinDistanceHandler(1);
+        parser.setHandler(handler);
+        FilterChain.Stage distance = handler.getFilterChain().getStages().get(0);
+
+        handler.processTrackpoint("track", 50, 8, 5, 100);
+        handler.processTrackpoint("track", 50 + STEP / 2, 8, 5, 100);
+        int count = 10;
+        long[] time = new long[count];
+        double[] lat = new double[count];
+        double[] lng = new double[count];
+        double[] accuracy = new double[count];
+        for (int i = 0; i < count; i++) {
+            time[i] = System.currentTimeMillis() + (i + 1) * 1000L;
+            //Every second point is within the accuracies of its predecessor
+            lat[i] = 50 + (i / 2 + 1) * STEP;
+            lng[i] = 8;
+            accuracy[i] = 5;
+        }
+        handler.processTrackpoints("track", time, lat, lng, accuracy, null, count);
+        parser.whenProcessed().get();
+        assertEquals(1 + count / 2, parser.getSnapshot().getTracks().get("track").getSize());
+        assertEquals(1 + count / 2, distance.getAcceptedCount());
+        assertEquals(1 + count / 2, distance.getRejectedCount());
+    }
+
+    @Test
+    public void checkHandler_furtherStages() throws Exception {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        MinDistanceHandler handler = new MinDistanceHandler(1, DistanceCalculator.Mode.HAVERSINE, new FilterChain.MaxAccuracy(20));
+        parser.setHandler(handler);
+        List<FilterChain.Stage> stages = handler.getFilterChain().getStages();
+        assertEquals(2, stages.size());
+        assertTrue(stages.get(0) instanceof FilterChain.MinDistance);
+        assertTrue(stages.get(1) instanceof FilterChain.MaxAccuracy);
+
+        handler.processTrackpoint("track", 50, 8, 5, 100);
+        //Far enough, but too inaccurate
+        handler.processTrackpoint("track", 50.01, 8, 50, 100);
+        handler.processTrackpoint("track", 50.02, 8, 5, 100);
+        parser.whenProcessed().get();
+        assertEquals(2, parser.getSnapshot().getTracks().get("track").getSize());
+        assertEquals(3, stages.get(0).getAcceptedCount());
+        assertEquals(1, stages.get(1).getRejectedCount());
+    }
+}
@@ -0,0 +1,90 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GPXFutureTest {
+
+    @Test
+    public void checkPipeline_saveLoadValidate() throws Exception {
+        File file = File.createTempFile("future", ".gpx");
+        try {
+            SecureGPXParser parser = new SecureGPXParser();
+            parser.setFilename(file.getAbsolutePath());
+            parser.getHandler().processTrackpoints("track", new long[]{1000, 2000, 3000},
+                    new double[]{50, 50.001, 50.002}, new double[]{8, 8, 8}, new double[]{5, 5, 5}, null, 3);
+            GPXFuture<Boolean> valid = parser.getHandler().saveAsync()
+                    .thenCompose(new GPXFuture.AsyncFunction<Void, SecureGPXParser>() {
+                        @Override
+                        public GPXFuture<SecureGPXParser> apply(Void value) {
+                            return SecureGPXParser.fromFileAsync(file.getAbsolutePath());
+                        }
+                    })
+                    .thenCompose(new GPXFuture.AsyncFunction<SecureGPXParser, Boolean>() {
+                        @Override
+                        public GPXFuture<Boolean> apply(SecureGPXParser loaded) {
+                            assertEquals(3, loaded.getSnapshot().getTracks().get("track").getSize());
+                            return loaded.getHandler().requestValidation();
+                        }
+                    });
+            assertTrue(valid.get(10, TimeUnit.SECONDS));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void checkFailure() throws InterruptedException {
+        GPXFuture<SecureGPXParser> future = new SecureGPXParser().initAsync(new ByteArrayInputStream("no gpx".getBytes()));
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Invalid gpx must fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        } catch (TimeoutException e) {
+            fail("Init did not finish");
+        }
+    }
+
+    @Test
+    public void checkTimeout() throws InterruptedException {
+        GPXFuture<String> never = new GPXFuture<String>();
+        try {
+            never.withTimeout(50, TimeUnit.MILLISECONDS).get();
+            fail("Timeout expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertFalse(never.isDone());
+    }
+
+    @Test
+    public void checkAllOf() throws Exception {
+        SecureGPXParser parser = new SecureGPXParser();
+        GPXFuture<Integer> size = parser.whenProcessed().then(new GPXFuture.Function<SecureGPXParser, Integer>() {
+            @Override
+            public Integer apply(SecureGPXParser value) {
+                return value.getPoints().size();
+            }
+        });
+        List<Integer> res = GPXFuture.allOf(Arrays.asList(size, GPXFuture.completed(7))).get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(0, 7), res);
+        GPXFuture<SecureGPXParser> change = parser.nextChange();
+        parser.getHandler().processWaypoint("point", 50, 8, 5, 100);
+        assertSame(parser, change.get(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,166 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashChainTest {
+
+    private static final long START = 1600000000000L;
+
+    /**
+     * Hex format of hashes before they were stored binary.
+     */
+    private static String toHexLegacy(byte[] bytes, int offset, int length) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = offset; i < offset + length; i++) {
+            String hex = Integer.toHexString(0xFF & bytes[i]);
+            if (hex.length() == 1) {
+                sb.append('0');
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void checkHex_sameAsLegacyFormat() {
+        Random random = new Random(1);
+        byte[] bytes = new byte[TrackSegment.HASH_LENGTH];
+        byte[] ascii = new byte[2 * TrackSegment.HASH_LENGTH];
+        byte[] parsed = new byte[TrackSegment.HASH_LENGTH];
+        for (int n = 0; n < 1000; n++) {
+            random.nextBytes(bytes);
+            if (n == 0) {
+                //Leading zero digits and all bits set
+                bytes[0] = 0;
+                bytes[1] = 0x0f;
+                bytes[2] = (byte) 0xff;
+            }
+            String hex = SecureGPXParser.bytesToHexString(bytes);
+            assertEquals(toHexLegacy(bytes, 0, bytes.length), hex);
+            assertEquals(toHexLegacy(bytes, 3, 10), SecureGPXParser.bytesToHexString(bytes, 3, 10));
+            SecureGPXParser.bytesToHexAscii(bytes, ascii);
+            assertEquals(hex, new String(ascii));
+            assertTrue(SecureGPXParser.hexStringToBytes(hex, parsed, 0, parsed.length));
+            assertEquals(hex, SecureGPXParser.bytesToHexString(parsed));
+        }
+        //Only lower case hex strings of the hash length are stored binary
+        String hex = SecureGPXParser.bytesToHexString(bytes);
+        assertFalse(SecureGPXParser.hexStringToBytes(hex.toUpperCase(), parsed, 0, parsed.length));
+        assertFalse(SecureGPXParser.hexStringToBytes(hex.substring(2), parsed, 0, parsed.length));
+        assertFalse(SecureGPXParser.hexStringToBytes(hex.substring(2) + "xy", parsed, 0, parsed.length));
+    }
+
+    @Test
+    public void checkHash_storedBinary() {
+        WayPoint point = new WayPoint(null, 50, 8, START, 5);
+        String hash = point.generateHash(null, true);
+        byte[] bytes = point.generateHashBytes(null, false);
+        assertEquals(hash, SecureGPXParser.bytesToHexString(bytes));
+        assertEquals(hash, point.getHash());
+        assertTrue(point.hasHash(bytes));
+
+        //The previous hash is hashed as hex text
+        WayPoint next = new WayPoint(null, 50.001, 8, START + 1000, 5);
+        String nextHash = next.generateHash(hash, false);
+        assertEquals(nextHash, SecureGPXParser.bytesToHexString(next.generateHashBytes(hash.getBytes(), false)));
+
+        //Hashes which are no lower case hex strings are kept as text
+        point.setHash(hash.toUpperCase());
+        assertEquals(hash.toUpperCase(), point.getHash());
+        assertFalse(point.hasHash(bytes));
+        point.setHash(hash);
+        assertTrue(point.hasHash(bytes));
+    }
+
+    @Test
+    public void checkDateString_sameAsSimpleDateFormat() {
+        //Dates are hashed as text, so the cached fast formatting must give the strings of the former formatter
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(utc);
+        GregorianCalendar calendar = new GregorianCalendar(utc);
+        calendar.setGregorianChange(new Date(Long.MIN_VALUE));
+        List<Long> times = new ArrayList<Long>();
+        //Days around the end of february and the turn of the year, including leap years and the century rules
+        for (int year : new int[]{1970, 1971, 1972, 1999, 2000, 2001, 2004, 2023, 2024, 2100, 2400, 9996, 9999}) {
+            for (int[] date : new int[][]{{Calendar.JANUARY, 1}, {Calendar.FEBRUARY, 28}, {Calendar.MARCH, 1}, {Calendar.DECEMBER, 31}}) {
+                calendar.clear();
+                calendar.set(year, date[0], date[1]);
+                long day = calendar.getTimeInMillis();
+                times.add(day - 1);
+                times.add(day);
+                times.add(day + 86399999L);
+            }
+        }
+        //Bounds of the fast path
+        long maxFastTime = 253402300799999L;
+        for (long time : new long[]{-1001, -1000, -1, 0, 999, 1000, 946684799999L, 946684800000L, 951782400000L,
+                951868799999L, maxFastTime - 1000, maxFastTime, maxFastTime + 1}) {
+            times.add(time);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            times.add((long) (random.nextDouble() * maxFastTime));
+        }
+        for (long time : times) {
+            assertEquals(format.format(new Date(time)), SecureGPXParser.getDateString(time));
+            //The cached string of the same second
+            assertEquals(format.format(new Date(time)), SecureGPXParser.getDateString(time));
+        }
+    }
+
+    /**
+     * Creates a parser with single waypoints whose hashes are chained like by the former string based code.
+     */
+    private static SecureGPXParser createChain(int count) {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        String prevHash = null;
+        for (int i = 0; i < count; i++) {
+            WayPoint point = new WayPoint(null, 50 + i * 0.001, 8, START + i * 1000L, 5);
+            prevHash = point.generateHash(prevHash, true);
+            parser.getPoints().add(point);
+        }
+        parser.getHandler().clear();
+        return parser;
+    }
+
+    @Test
+    public void checkValidate_binaryComparison() throws Exception {
+        assertTrue(createChain(100).getHandler().requestValidation().get());
+
+        //Changed position of a point
+        SecureGPXParser parser = createChain(100);
+        List<WayPoint> points = parser.getPoints();
+        points.set(50, new WayPoint(null, 51, 8, points.get(50).getTime(), 5));
+        parser.getHandler().clear();
+        assertFalse(parser.getHandler().requestValidation().get());
+
+        //Tip with the same hash in upper case
+        parser = createChain(100);
+        WayPoint tip = parser.getPoints().get(99);
+        tip.setHash(tip.getHash().toUpperCase());
+        assertFalse(parser.getHandler().requestValidation().get());
+
+        //Tip with a changed hash byte
+        parser = createChain(100);
+        tip = parser.getPoints().get(99);
+        byte[] hash = tip.getHashBytes().clone();
+        hash[TrackSegment.HASH_LENGTH - 1] ^= 1;
+        tip.setHash(hash);
+        assertFalse(parser.getHandler().requestValidation().get());
+    }
+}
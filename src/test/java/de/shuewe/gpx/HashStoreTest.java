@@ -0,0 +1,149 @@
+package de.shuewe.gpx;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashStoreTest {
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    @Test
+    public void checkFileHashStore_reload() throws Exception {
+        File file = m_folder.newFile("hashes.txt");
+        FileHashStore store = new FileHashStore(file);
+        store.anchor(Arrays.asList("aa", "bb"));
+        assertTrue(store.contains("aa"));
+        assertFalse(store.contains("cc"));
+
+        FileHashStore reloaded = new FileHashStore(file);
+        assertTrue(reloaded.contains("bb"));
+        assertFalse(reloaded.contains("cc"));
+    }
+
+    @Test
+    public void checkAnchor_batches() throws Exception {
+        final int[] calls = new int[1];
+        FileHashStore store = new FileHashStore() {
+            @Override
+            public synchronized void anchor(Collection<String> hashes) throws java.io.IOException {
+                calls[0]++;
+                super.anchor(hashes);
+            }
+        };
+        HashStoreAnchor anchor = new HashStoreAnchor(store, 3, 60000);
+        anchor.offer("a");
+        anchor.offer("b");
+        assertFalse(anchor.isAnchored("a"));
+        anchor.offer("c");
+        int counter = 0;
+        while (!anchor.isAnchored("c") && counter < 50) {
+            Thread.sleep(20);
+            counter++;
+        }
+        assertTrue(anchor.isAnchored("a"));
+        assertEquals(1, calls[0]);
+    }
+
+    @Test
+    public void checkAnchor_retryAfterFailure() throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        final AtomicInteger calls = new AtomicInteger();
+        FileHashStore store = new FileHashStore() {
+            @Override
+            public synchronized void anchor(Collection<String> hashes) throws IOException {
+                calls.incrementAndGet();
+                if (failing.get()) {
+                    throw new IOException("Store not available");
+                }
+                super.anchor(hashes);
+            }
+        };
+        final AtomicInteger failures = new AtomicInteger();
+        final int[] maxPending = new int[1];
+        HashStoreAnchor anchor = new HashStoreAnchor(store, 1, 60000, 5, 20);
+        anchor.setFailureListener(new HashStore.FailureListener() {
+            @Override
+            public void handleAnchorFailure(IOException e, int pending, long dropped) {
+                failures.incrementAndGet();
+                maxPending[0] = Math.max(maxPending[0], pending);
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            anchor.offer("t" + i);
+        }
+        //Pending tips are bounded, oldest tips are dropped
+        assertTrue(anchor.getPendingCount() <= 5);
+        assertEquals(5, anchor.getDroppedCount());
+        int counter = 0;
+        while (failures.get() < 3 && counter < 100) {
+            Thread.sleep(20);
+            counter++;
+        }
+        //Failed writes are retried without further offers
+        assertTrue(calls.get() >= 3);
+        assertTrue(failures.get() >= 3);
+        assertTrue(maxPending[0] <= 5);
+
+        failing.set(false);
+        counter = 0;
+        while (!store.contains("t9") && counter < 200) {
+            Thread.sleep(20);
+            counter++;
+        }
+        assertTrue(anchor.isAnchored("t9"));
+        assertTrue(anchor.isAnchored("t5"));
+        assertFalse(anchor.isAnchored("t0"));
+        assertEquals(0, anchor.getPendingCount());
+    }
+
+    @Test
+    public void checkValidate_storeOnlyOnChangedTip() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        FileHashStore store = new FileHashStore() {
+            @Override
+            public synchronized boolean contains(String hash) throws IOException {
+                lookups.incrementAndGet();
+                return super.contains(hash);
+            }
+        };
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        parser.getHandler().setHashStore(store, 1000, 60000);
+        String hash = null;
+        for (int i = 0; i < 10; i++) {
+            WayPoint point = new WayPoint(null, 50 + i * 0.001, 8, 1600000000000L + i * 1000L, 5);
+            hash = point.generateHash(hash, true);
+            parser.getPoints().add(point);
+        }
+        WayPoint tip = parser.getPoints().get(9);
+
+        //Matching tip -> the store is not asked
+        parser.getHandler().clear();
+        assertTrue(parser.getHandler().requestValidation().get());
+        assertEquals(0, lookups.get());
+
+        //Changed tip, calculated tip not anchored -> the store is asked once on the background thread
+        tip.setHash(hash.toUpperCase());
+        parser.getHandler().clear();
+        assertFalse(parser.getHandler().requestValidation().get());
+        assertEquals(1, lookups.get());
+
+        //Calculated tip anchored -> valid
+        store.anchor(Arrays.asList(hash));
+        parser.getHandler().clear();
+        assertTrue(parser.getHandler().requestValidation().get());
+        assertEquals(2, lookups.get());
+    }
+}
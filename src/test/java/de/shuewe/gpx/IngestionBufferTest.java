@@ -0,0 +1,82 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IngestionBufferTest {
+
+    private static void fill(IngestionBuffer buffer, int count) {
+        for (int i = 0; i < count; i++) {
+            buffer.offer("track", 1000L * i, 50 + i, 8, 5, Double.NaN);
+        }
+    }
+
+    @Test
+    public void checkDropOldest() {
+        IngestionBuffer buffer = new IngestionBuffer(3, IngestionBuffer.OverflowPolicy.DROP_OLDEST);
+        assertTrue(buffer.offer("track", 0, 50, 8, 5, Double.NaN));
+        fill(buffer, 4);
+        assertEquals(3, buffer.getDepth());
+        IngestionBuffer.Batch batch = buffer.drain();
+        assertEquals(3, batch.m_count);
+        assertEquals(51, batch.m_lat[0], 0);
+        assertEquals(53, batch.m_lat[2], 0);
+        assertEquals(2, buffer.getDroppedCount());
+        assertEquals(3, buffer.getMaxDepth());
+        assertEquals(0, buffer.getDepth());
+    }
+
+    @Test
+    public void checkMergeLatest() {
+        IngestionBuffer buffer = new IngestionBuffer(3, IngestionBuffer.OverflowPolicy.MERGE_LATEST);
+        fill(buffer, 5);
+        IngestionBuffer.Batch batch = buffer.drain();
+        assertEquals(3, batch.m_count);
+        assertEquals(50, batch.m_lat[0], 0);
+        assertEquals(54, batch.m_lat[2], 0);
+        assertEquals(4000, batch.m_time[2]);
+        assertEquals(2, buffer.getMergedCount());
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void checkBlock() throws InterruptedException {
+        final IngestionBuffer buffer = new IngestionBuffer(2, IngestionBuffer.OverflowPolicy.BLOCK);
+        fill(buffer, 2);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                buffer.offer("track", 5000, 60, 8, 5, Double.NaN);
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+        assertEquals(2, buffer.drain().m_count);
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(60, buffer.drain().m_lat[0], 0);
+        assertTrue(buffer.getBlockedTimeMillis() >= 100);
+    }
+
+    @Test
+    public void checkHandler_burst() throws Exception {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        parser.getHandler().setIngestionBuffer(64, IngestionBuffer.OverflowPolicy.BLOCK);
+        for (int i = 0; i < 5000; i++) {
+            parser.getHandler().processTrackpoint(i % 2 == 0 ? "a" : "b", 50 + i * 0.0001, 8, 5, 100);
+        }
+        //Drain task is queued before
+        parser.whenProcessed().get();
+        IngestionBuffer buffer = parser.getHandler().getIngestionBuffer();
+        assertEquals(5000, buffer.getAcceptedCount());
+        assertEquals(0, buffer.getDroppedCount());
+        assertTrue(buffer.getMaxDepth() <= 64);
+        assertEquals(2500, parser.getTracks().get("a").getSize());
+        assertEquals(2500, parser.getTracks().get("b").getSize());
+        assertEquals(0, buffer.getDepth());
+    }
+}
@@ -0,0 +1,65 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LevelOfDetailTest {
+
+    private static final int COUNT = 3 * LevelOfDetail.CHUNK_SIZE + 100;
+
+    private static TrackSegment createSegment() {
+        TrackSegment segment = new TrackSegment();
+        List<WayPoint> points = new ArrayList<WayPoint>();
+        for (int i = 0; i < COUNT; i++) {
+            //Zig zag with an amplitude of about 10m
+            points.add(new WayPoint(null, 50 + i * 0.00005, 8 + (i % 2) * 0.00015, i * 1000L, 5));
+        }
+        segment.addPoints(points);
+        return segment;
+    }
+
+    private static List<WayPoint> waitForPoints(LevelOfDetail lod, double zoom) throws InterruptedException {
+        List<WayPoint> res = lod.getPoints(zoom, -90, -180, 90, 180);
+        for (int i = 0; i < 100 && res.size() > 50; i++) {
+            Thread.sleep(20);
+            res = lod.getPoints(zoom, -90, -180, 90, 180);
+        }
+        return res;
+    }
+
+    @Test
+    public void checkLevels() throws Exception {
+        TrackSegment segment = createSegment();
+        LevelOfDetail lod = segment.getLevelOfDetail();
+        List<WayPoint> coarse = waitForPoints(lod, 10);
+        List<WayPoint> fine = lod.getPoints(22, -90, -180, 90, 180);
+        assertEquals(COUNT, fine.size());
+        assertTrue("coarse " + coarse.size(), coarse.size() < 20);
+        assertSame(segment.getFirst(), coarse.get(0));
+        assertSame(segment.getLast(), coarse.get(coarse.size() - 1));
+        assertEquals(0, lod.getPoints(10, 0, 0, 1, 1).size());
+    }
+
+    @Test
+    public void checkAppend() throws Exception {
+        TrackSegment segment = createSegment();
+        LevelOfDetail lod = segment.getLevelOfDetail();
+        waitForPoints(lod, 10);
+        WayPoint point = new WayPoint(null, 60, 8, COUNT * 1000L, 5);
+        List<WayPoint> points = new ArrayList<WayPoint>();
+        points.add(point);
+        segment.addPoints(points);
+        List<WayPoint> coarse = lod.getPoints(10, -90, -180, 90, 180);
+        assertSame(point, coarse.get(coarse.size() - 1));
+
+        segment.removeRange(0, 10);
+        coarse = waitForPoints(lod, 10);
+        assertSame(segment.getFirst(), coarse.get(0));
+    }
+}
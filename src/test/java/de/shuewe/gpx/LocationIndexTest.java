@@ -0,0 +1,288 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LocationIndexTest {
+
+    private static final long START = 1600000000000L;
+
+    /**
+     * Creates a parser with single waypoints and three tracks with two segments each. Times are random
+     * seconds, so many points of different sources share a date.
+     */
+    private static SecureGPXParser createParser(Random random) {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        for (int i = 0; i < 20; i++) {
+            parser.getPoints().add(new WayPoint("wp" + i, 50, 8, START + random.nextInt(100) * 1000L, 5));
+        }
+        //Waypoint without date is sorted like Date(0)
+        parser.getPoints().add(new WayPoint("noTime", 50, 8, GPXElement.NO_TIME, 5));
+        Collections.sort(parser.getPoints());
+        for (int t = 0; t < 3; t++) {
+            Track track = new Track("track" + t);
+            parser.getTracks().put(track.getName(), track);
+            for (int s = 0; s < 2; s++) {
+                List<WayPoint> points = new ArrayList<WayPoint>();
+                for (int i = 0; i < 50; i++) {
+                    points.add(new WayPoint(null, 50 + i * 0.001, 8, START + random.nextInt(100) * 1000L, 5));
+                }
+                track.addPoints(points);
+                track.startNewSegment();
+            }
+        }
+        parser.getHandler().clear();
+        return parser;
+    }
+
+    /**
+     * Gets all locations sorted like getLocations before the index (stable sort of all points).
+     */
+    private static List<WayPoint> getSortedLocations(SecureGPXParser parser) {
+        List<WayPoint> res = new ArrayList<WayPoint>(parser.getPoints());
+        for (Track track : parser.getTracks().values()) {
+            for (TrackSegment segment : track.getSegments()) {
+                res.addAll(segment.getPoints());
+            }
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    @Test
+    public void checkOrder_equalsSortedList() {
+        SecureGPXParser parser = createParser(new Random(1));
+        List<WayPoint> expected = getSortedLocations(parser);
+        List<WayPoint> locations = new LocationIndex(parser);
+        assertEquals(expected.size(), locations.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), locations.get(i));
+        }
+        int i = 0;
+        for (WayPoint point : locations) {
+            assertSame(expected.get(i++), point);
+        }
+        assertEquals(expected.size(), i);
+    }
+
+    @Test
+    public void checkGet_randomAccess() {
+        SecureGPXParser parser = createParser(new Random(2));
+        List<WayPoint> expected = getSortedLocations(parser);
+        List<WayPoint> locations = new LocationIndex(parser);
+        Random random = new Random(3);
+        assertSame(expected.get(expected.size() - 1), locations.get(locations.size() - 1));
+        for (int n = 0; n < 1000; n++) {
+            int i = random.nextInt(expected.size());
+            assertSame(expected.get(i), locations.get(i));
+        }
+        //Backwards
+        for (int i = expected.size() - 1; i >= 0; i--) {
+            assertSame(expected.get(i), locations.get(i));
+        }
+    }
+
+    @Test
+    public void checkIterator_timeRange() {
+        SecureGPXParser parser = createParser(new Random(4));
+        List<WayPoint> expected = new ArrayList<WayPoint>();
+        long startTime = START + 20000;
+        long endTime = START + 40000;
+        for (WayPoint point : getSortedLocations(parser)) {
+            if (point.hasTime() && point.getTime() >= startTime && point.getTime() <= endTime) {
+                expected.add(point);
+            }
+        }
+        Iterator<WayPoint> it = new LocationIndex(parser).iterator(startTime, endTime);
+        for (WayPoint point : expected) {
+            assertTrue(it.hasNext());
+            assertSame(point, it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void checkIterator_bounds() {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        parser.getPoints().add(new WayPoint("noTime", 50, 8, GPXElement.NO_TIME, 5));
+        parser.getPoints().add(new WayPoint("zero", 50, 8, 0L, 5));
+        Track track = new Track("track");
+        parser.getTracks().put(track.getName(), track);
+        for (int i = 0; i < 10; i++) {
+            track.addPoints(Collections.singletonList(new WayPoint(null, 50, 8, START + i * 1000L, 5)));
+        }
+        parser.getHandler().clear();
+
+        //Start and end are inclusive
+        assertEquals(3, count(new LocationIndex(parser).iterator(START + 2000, START + 4000)));
+        assertEquals(2, count(new LocationIndex(parser).iterator(START + 1999, START + 3999)));
+        assertEquals(1, count(new LocationIndex(parser).iterator(START + 9000, START + 9000)));
+        assertEquals(0, count(new LocationIndex(parser).iterator(START + 4000, START + 2000)));
+        assertEquals(0, count(new LocationIndex(parser).iterator(START + 9001, Long.MAX_VALUE)));
+        assertEquals(10, count(new LocationIndex(parser).iterator(START, START + 9000)));
+
+        //Points without date are sorted like Date(0), but never returned
+        Iterator<WayPoint> it = new LocationIndex(parser).iterator(Long.MIN_VALUE, 0);
+        assertEquals("zero", it.next().getName());
+        assertFalse(it.hasNext());
+        assertEquals(11, count(new LocationIndex(parser).iterator(Long.MIN_VALUE, Long.MAX_VALUE)));
+    }
+
+    private static int count(Iterator<WayPoint> it) {
+        int res = 0;
+        while (it.hasNext()) {
+            it.next();
+            res++;
+        }
+        return res;
+    }
+
+    @Test
+    public void checkGetLocations_concurrentReaders() throws Exception {
+        final SecureGPXParser parser = new SecureGPXParser(new PoolBackend(2));
+        final int batch = 1000;
+        addTrackPoints(parser, 0, batch);
+        parser.whenProcessed().get();
+        //Other threads read the latest snapshot, readers of the same list do not share their position
+        final List<? extends WayPoint> locations = parser.getHandler().getLocations();
+        assertEquals(batch, locations.size());
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int n = 0; n < 20; n++) {
+                            for (int i = 0; i < batch; i++) {
+                                assertEquals(START + i * 1000L, locations.get(i).getTime());
+                            }
+                            List<? extends WayPoint> latest = parser.getHandler().getLocations();
+                            for (int i = 1; i < latest.size(); i++) {
+                                assertTrue(latest.get(i - 1).getTime() < latest.get(i).getTime());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (int n = 1; n < 20; n++) {
+            addTrackPoints(parser, n * batch, batch);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(batch, locations.size());
+        parser.whenProcessed().get();
+        assertEquals(20 * batch, parser.getHandler().getLocations().size());
+    }
+
+    private static void addTrackPoints(SecureGPXParser parser, int start, int count) {
+        long[] time = new long[count];
+        double[] lat = new double[count];
+        double[] lng = new double[count];
+        double[] accuracy = new double[count];
+        for (int i = 0; i < count; i++) {
+            time[i] = START + (start + i) * 1000L;
+            lat[i] = 50 + (start + i) * 0.00001;
+            lng[i] = 8;
+            accuracy[i] = 5;
+        }
+        parser.getHandler().processTrackpoints("track", time, lat, lng, accuracy, null, count);
+    }
+
+    @Test
+    public void checkInvalidation_afterEdits() {
+        SecureGPXParser parser = createParser(new Random(5));
+        List<WayPoint> locations = new LocationIndex(parser);
+        int size = locations.size();
+        //Random access creates the merged order, it has to be dropped by the following edits
+        locations.get(size / 2);
+
+        //Points appended to a segment are detected without invalidate
+        TrackSegment segment = parser.getTracks().get("track0").getSegments().get(0);
+        WayPoint appended = new WayPoint(null, 51, 9, START + 1000000, 5);
+        segment.addPoints(Collections.singletonList(appended));
+        assertEquals(size + 1, locations.size());
+        assertSame(appended, locations.get(size));
+
+        //Removed segment
+        Track track = parser.getTracks().get("track1");
+        int removed = track.getSegments().get(0).size();
+        track.removeSegment(1);
+        assertEquals(size + 1 - removed, locations.size());
+
+        //Removed points
+        segment.removeRange(0, 10);
+        assertEquals(size + 1 - removed - 10, locations.size());
+        List<WayPoint> expected = getSortedLocations(parser);
+        for (int i = expected.size() - 1; i >= 0; i--) {
+            assertSame(expected.get(i), locations.get(i));
+        }
+    }
+
+    @Test
+    public void checkInvalidation_otherParserUnaffected() {
+        SecureGPXParser parser = createParser(new Random(6));
+        SecureGPXParser other = createParser(new Random(7));
+        List<WayPoint> locations = new LocationIndex(parser);
+        WayPoint point = locations.get(locations.size() / 2);
+        int modCount = parser.getTracks().get("track0").getModCount();
+        other.getTracks().get("track0").getCurrentSegment().addPoints(
+                Collections.singletonList(new WayPoint(null, 51, 9, START, 5)));
+        assertEquals(modCount, parser.getTracks().get("track0").getModCount());
+        assertSame(point, locations.get(locations.size() / 2));
+    }
+
+    @Test
+    public void checkRemoveLocation_singleWaypoints() throws Exception {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        List<WayPoint> points = parser.getPoints();
+        for (int i = 0; i < 100; i++) {
+            //Four points per second, two of them equal
+            points.add(new WayPoint(null, 50 + (i / 2) * 0.001, 8, START + i * 250L, 5));
+        }
+        parser.getHandler().clear();
+        //The identical point is removed, not the equal point before it
+        WayPoint identical = points.get(41);
+        WayPoint before = points.get(40);
+        WayPoint after = points.get(42);
+        assertTrue(before.equals(identical));
+        parser.getHandler().removeLocation(identical);
+        parser.whenProcessed().get();
+        assertEquals(99, points.size());
+        assertSame(before, points.get(40));
+        assertSame(after, points.get(41));
+
+        //Equal copy removes the first equal point
+        WayPoint equal = points.get(50).copy();
+        WayPoint next = points.get(51);
+        parser.getHandler().removeLocation(equal);
+        parser.whenProcessed().get();
+        assertEquals(98, points.size());
+        assertSame(next, points.get(50));
+
+        //Unknown point
+        parser.getHandler().removeLocation(new WayPoint(null, 51, 8, START + 1000, 5));
+        parser.whenProcessed().get();
+        assertEquals(98, points.size());
+        assertEquals(98, parser.getHandler().getLocations().size());
+    }
+}
@@ -0,0 +1,62 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationTest {
+
+    private static class CountingListener implements SecureGPXParser.GPXBatchChangeListener {
+
+        final AtomicInteger m_notifications = new AtomicInteger();
+        final AtomicInteger m_changes = new AtomicInteger();
+
+        @Override
+        public void handleChangedData(SecureGPXParser parser, int changes) {
+            m_notifications.incrementAndGet();
+            m_changes.addAndGet(changes);
+        }
+
+        @Override
+        public void handleChangedData(SecureGPXParser parser) {
+            throw new AssertionError("Batch listener must get the number of changes");
+        }
+
+        void waitForChanges(int changes) throws InterruptedException {
+            for (int i = 0; i < 100 && m_changes.get() < changes; i++) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static CountingListener record(SecureGPXParser.NotificationMode mode, int points) throws InterruptedException {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        parser.setNotificationWindow(500, mode);
+        CountingListener listener = new CountingListener();
+        parser.addChangeListener(listener);
+        for (int i = 0; i < points; i++) {
+            parser.getHandler().processTrackpoint("track", 50 + i * 0.0001, 8, 5, 100);
+        }
+        listener.waitForChanges(points);
+        return listener;
+    }
+
+    @Test
+    public void checkThrottle() throws InterruptedException {
+        CountingListener listener = record(SecureGPXParser.NotificationMode.THROTTLE, 200);
+        assertEquals(200, listener.m_changes.get());
+        //First change is notified immediately, the others are collapsed at the end of each window
+        assertTrue(listener.m_notifications.get() >= 2);
+        assertTrue(listener.m_notifications.get() < 20);
+    }
+
+    @Test
+    public void checkDebounce() throws InterruptedException {
+        CountingListener listener = record(SecureGPXParser.NotificationMode.DEBOUNCE, 200);
+        assertEquals(200, listener.m_changes.get());
+        assertEquals(1, listener.m_notifications.get());
+    }
+}
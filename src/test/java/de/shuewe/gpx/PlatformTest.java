@@ -0,0 +1,128 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the plain JVM implementations. Uses no Android classes, so it runs without android.jar.
+ */
+public class PlatformTest {
+
+    private static final long START = 1600000000000L;
+
+    @Test
+    public void checkPlatform_jvmSelected() throws IOException {
+        assertFalse(GPXPlatform.ANDROID);
+        assertTrue(GPXPlatform.newReader(new ByteArrayInputStream("<gpx />".getBytes())) instanceof StaxXmlReader);
+        assertTrue(GPXPlatform.newWriter(new StringWriter()) instanceof StreamXmlWriter);
+    }
+
+    @Test
+    public void checkWriter_readerRoundTrip() throws IOException {
+        StringWriter out = new StringWriter();
+        XmlWriter writer = new StreamXmlWriter(out);
+        writer.startDocument();
+        writer.startTag("gpx");
+        writer.attribute("creator", "a \"quoted\" & <tagged> name");
+        writer.startTag("wpt");
+        writer.attribute("lat", "50.0");
+        writer.endTag("wpt");
+        writer.startTag("name");
+        writer.text("Fish & Chips <3 \"here\"");
+        writer.endTag("name");
+        writer.endDocument();
+        assertEquals("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?><gpx creator=\"a &quot;quoted&quot; &amp; &lt;tagged&gt; name\">"
+                + "<wpt lat=\"50.0\" /><name>Fish &amp; Chips &lt;3 \"here\"</name></gpx>", out.toString());
+
+        XmlReader reader = new StaxXmlReader(new ByteArrayInputStream(out.toString().getBytes("UTF-8")));
+        assertEquals(XmlReader.START_TAG, reader.nextTag());
+        reader.require(XmlReader.START_TAG, "gpx");
+        assertEquals(1, reader.getAttributeCount());
+        assertEquals("creator", reader.getAttributeName(0));
+        assertEquals("a \"quoted\" & <tagged> name", reader.getAttributeValue(0));
+        assertEquals(XmlReader.START_TAG, reader.nextTag());
+        assertEquals("wpt", reader.getName());
+        assertEquals("50.0", reader.getAttributeValue(0));
+        assertEquals(XmlReader.END_TAG, reader.nextTag());
+        assertEquals(XmlReader.START_TAG, reader.nextTag());
+        assertEquals(XmlReader.TEXT, reader.next());
+        assertEquals("Fish & Chips <3 \"here\"", reader.getText());
+        assertEquals(XmlReader.END_TAG, reader.next());
+        assertEquals(XmlReader.END_TAG, reader.nextTag());
+        assertEquals(XmlReader.END_DOCUMENT, reader.next());
+    }
+
+    @Test
+    public void checkReader_externalEntityRejected() {
+        String document = "<?xml version=\"1.0\"?><!DOCTYPE gpx [<!ENTITY secret SYSTEM \"file:///etc/passwd\">]>"
+                + "<gpx><name>&secret;</name></gpx>";
+        try {
+            XmlReader reader = new StaxXmlReader(new ByteArrayInputStream(document.getBytes()));
+            while (reader.next() != XmlReader.END_DOCUMENT) {
+                assertFalse(reader.getEventType() == XmlReader.TEXT && reader.getText().contains("root"));
+            }
+            fail();
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void checkParser_roundTrip() throws Exception {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        int count = 20;
+        long[] time = new long[count];
+        double[] lat = new double[count];
+        double[] lng = new double[count];
+        double[] accuracy = new double[count];
+        double[] alt = new double[count];
+        for (int i = 0; i < count; i++) {
+            time[i] = START + i * 1000L;
+            lat[i] = 50 + i * 0.0001;
+            lng[i] = 8 - i * 0.0001;
+            accuracy[i] = 5;
+            alt[i] = 100 + i;
+        }
+        parser.getHandler().processTrackpoints("track & more", time, lat, lng, accuracy, alt, count);
+        parser.whenProcessed().get();
+        assertTrue(parser.getHandler().requestValidation().get());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        parser.write(out);
+        SecureGPXParser reloaded = new SecureGPXParser(new PoolBackend(1));
+        reloaded.initAsync(new ByteArrayInputStream(out.toByteArray())).get();
+        assertTrue(reloaded.getHandler().requestValidation().get());
+
+        List<? extends WayPoint> expected = parser.getHandler().getLocations();
+        List<? extends WayPoint> locations = reloaded.getHandler().getLocations();
+        assertEquals(count, locations.size());
+        for (int i = 0; i < count; i++) {
+            assertTrue(expected.get(i).equals(locations.get(i)));
+            assertEquals(expected.get(i).getAltitude(), locations.get(i).getAltitude(), 1e-9);
+            assertEquals(expected.get(i).getHash(), locations.get(i).getHash());
+        }
+        assertTrue(reloaded.getTracks().containsKey("track & more"));
+
+        //Writing the reloaded data gives the same document
+        ByteArrayOutputStream rewritten = new ByteArrayOutputStream();
+        reloaded.write(rewritten);
+        assertEquals(out.toString("UTF-8"), rewritten.toString("UTF-8"));
+
+        //Changed coordinate breaks the chain
+        String manipulated = out.toString("UTF-8").replace("lat=\"50.0005", "lat=\"50.0006");
+        assertFalse(manipulated.equals(out.toString("UTF-8")));
+        SecureGPXParser broken = new SecureGPXParser(new PoolBackend(1));
+        broken.initAsync(new ByteArrayInputStream(manipulated.getBytes("UTF-8"))).get();
+        assertFalse(broken.getHandler().requestValidation().get());
+    }
+}
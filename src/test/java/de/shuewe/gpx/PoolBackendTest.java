@@ -0,0 +1,144 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PoolBackendTest {
+
+    private static void waitIdle(GPXBackend backend) throws InterruptedException {
+        int counter = 0;
+        while (!backend.isIdle() && counter < 500) {
+            Thread.sleep(10);
+            counter++;
+        }
+        assertTrue(backend.isIdle());
+    }
+
+    @Test
+    public void checkSerialExecutor_orderPerParser() throws InterruptedException {
+        int parsers = 4;
+        int count = 2000;
+        GPXBackend backend = new PoolBackend(4);
+        final List<List<Integer>> order = new ArrayList<List<Integer>>();
+        final AtomicBoolean overlap = new AtomicBoolean(false);
+        for (int p = 0; p < parsers; p++) {
+            final List<Integer> list = new ArrayList<Integer>();
+            order.add(list);
+            final AtomicInteger running = new AtomicInteger();
+            Executor executor = backend.newSerialExecutor("parser" + p);
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (running.incrementAndGet() > 1) {
+                            overlap.set(true);
+                        }
+                        //Tasks of one executor may run on different pool threads, but never at the same time
+                        list.add(index);
+                        running.decrementAndGet();
+                    }
+                });
+            }
+        }
+        waitIdle(backend);
+        assertFalse(overlap.get());
+        for (List<Integer> list : order) {
+            assertEquals(count, list.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(i, list.get(i).intValue());
+            }
+        }
+    }
+
+    @Test
+    public void checkPoolBackend_parsersInParallel() throws InterruptedException {
+        GPXBackend backend = new PoolBackend(2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch other = new CountDownLatch(1);
+        final AtomicBoolean parallel = new AtomicBoolean(false);
+        //The task of the first parser waits for the task of the second one, which only works if both run at once
+        backend.newSerialExecutor("first").execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    parallel.set(other.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        backend.newSerialExecutor("second").execute(new Runnable() {
+            @Override
+            public void run() {
+                other.countDown();
+            }
+        });
+        waitIdle(backend);
+        assertTrue(parallel.get());
+    }
+
+    @Test
+    public void checkSerialExecutor_continuesAfterFailure() throws InterruptedException {
+        GPXBackend backend = new PoolBackend(1);
+        Executor executor = backend.newSerialExecutor("failing");
+        final AtomicBoolean ran = new AtomicBoolean(false);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Task failed");
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        });
+        waitIdle(backend);
+        assertTrue(ran.get());
+    }
+
+    @Test
+    public void checkParser_errorListener() throws Exception {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+        parser.setErrorListener(new SecureGPXParser.GPXErrorListener() {
+            @Override
+            public void handleError(SecureGPXParser parser, RuntimeException e) {
+                error.set(e);
+            }
+        });
+        final IllegalStateException failure = new IllegalStateException("Edit failed");
+        final AtomicBoolean ran = new AtomicBoolean(false);
+        parser.execute(GPXThread.ACTION.CHANGE_DATA, new Runnable() {
+            @Override
+            public void run() {
+                throw failure;
+            }
+        });
+        parser.execute(GPXThread.ACTION.CHANGE_DATA, new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        });
+        parser.whenProcessed().get();
+        assertTrue(error.get() == failure);
+        assertTrue(ran.get());
+    }
+}
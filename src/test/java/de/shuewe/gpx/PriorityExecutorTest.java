@@ -0,0 +1,96 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityExecutorTest {
+
+    private final List<String> m_order = new ArrayList<String>();
+
+    private final CountDownLatch m_release = new CountDownLatch(1);
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                synchronized (m_order) {
+                    m_order.add(name);
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates an executor whose first task waits for m_release, so the following tasks are queued.
+     *
+     * @return PriorityExecutor
+     */
+    private PriorityExecutor createBlocked() {
+        PriorityExecutor res = new PriorityExecutor(new PoolBackend(1).newSerialExecutor("test"));
+        res.execute(GPXThread.ACTION.CHANGE_DATA, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    m_release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return res;
+    }
+
+    private List<String> finish(PriorityExecutor executor) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.executeBarrier(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        m_release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        synchronized (m_order) {
+            return new ArrayList<String>(m_order);
+        }
+    }
+
+    @Test
+    public void checkOrder_byAction() throws InterruptedException {
+        PriorityExecutor executor = createBlocked();
+        executor.execute(GPXThread.ACTION.SAVE, record("save"));
+        executor.execute(GPXThread.ACTION.CHANGE_VALIDATION, record("validation"));
+        executor.execute(GPXThread.ACTION.CHANGE_DATA, record("edit1"));
+        executor.execute(GPXThread.ACTION.CHANGE_DATA, record("edit2"));
+        assertEquals(Arrays.asList("edit1", "edit2", "validation", "save"), finish(executor));
+    }
+
+    @Test
+    public void checkOrder_initIsBarrier() throws InterruptedException {
+        PriorityExecutor executor = createBlocked();
+        executor.execute(GPXThread.ACTION.SAVE, record("save"));
+        executor.execute(GPXThread.ACTION.INIT_AND_CHANGE, record("init"));
+        executor.execute(GPXThread.ACTION.CHANGE_DATA, record("edit"));
+        assertEquals(Arrays.asList("save", "init", "edit"), finish(executor));
+    }
+
+    @Test
+    public void checkStarvation() throws InterruptedException {
+        PriorityExecutor executor = createBlocked();
+        executor.execute(GPXThread.ACTION.SAVE, record("save"));
+        for (int i = 0; i < 2 * PriorityExecutor.MAX_BYPASS; i++) {
+            executor.execute(GPXThread.ACTION.CHANGE_DATA, record("edit" + i));
+        }
+        List<String> order = finish(executor);
+        assertEquals(2 * PriorityExecutor.MAX_BYPASS + 1, order.size());
+        assertEquals(PriorityExecutor.MAX_BYPASS, order.indexOf("save"));
+    }
+}
@@ -0,0 +1,102 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static de.shuewe.gpx.TestPoints.START_TIME;
+import static de.shuewe.gpx.TestPoints.getPoint;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotTest {
+
+    @Test
+    public void checkSnapshot_copyOnWrite() {
+        TrackSegment segment = new TrackSegment();
+        List<WayPoint> points = new ArrayList<WayPoint>();
+        for (int i = 0; i < 10; i++) {
+            points.add(getPoint(i));
+        }
+        segment.addPoints(points);
+        SegmentSnapshot snapshot = segment.getSnapshot();
+        assertSame(snapshot, segment.getSnapshot());
+
+        segment.addPoints(Collections.singletonList(getPoint(10)));
+        segment.get(3).setAltitude(100.0);
+        segment.removeRange(0, 2);
+        assertEquals(10, snapshot.size());
+        assertEquals(50, snapshot.getLat(0), 0);
+        assertNull(snapshot.getAltitude(3));
+        assertTrue(snapshot.isStart(0));
+
+        SegmentSnapshot next = segment.getSnapshot();
+        assertEquals(9, next.size());
+        assertEquals(100.0, next.getAltitude(1), 0);
+        assertEquals(segment.get(1), next.getPoint(1));
+    }
+
+    @Test
+    public void checkSnapshot_wayPointsReused() {
+        List<WayPoint> wayPoints = new ArrayList<WayPoint>();
+        for (int i = 0; i < 10; i++) {
+            wayPoints.add(getPoint(i));
+        }
+        Map<String, Track> tracks = new LinkedHashMap<String, Track>();
+        GPXSnapshot first = GPXSnapshot.create(wayPoints, tracks, null);
+        assertSame(first.getWayPoints(), GPXSnapshot.create(wayPoints, tracks, first).getWayPoints());
+
+        wayPoints.get(3).setName("changed");
+        GPXSnapshot renamed = GPXSnapshot.create(wayPoints, tracks, first);
+        assertFalse(first.getWayPoints() == renamed.getWayPoints());
+        assertEquals("changed", renamed.getWayPoints().get(3).getName());
+        assertNull(first.getWayPoints().get(3).getName());
+
+        wayPoints.add(getPoint(10));
+        GPXSnapshot added = GPXSnapshot.create(wayPoints, tracks, renamed);
+        assertEquals(11, added.getWayPoints().size());
+    }
+
+    @Test
+    public void checkSnapshot_concurrentReader() throws Exception {
+        final Track track = new Track("concurrent");
+        final int count = 200000;
+        final AtomicReference<TrackSnapshot> published = new AtomicReference<TrackSnapshot>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    track.addPoints(Collections.singletonList(getPoint(i)));
+                    if (i % 100 == 0) {
+                        track.getCurrentSegment().get(i / 2).setName("name " + i);
+                    }
+                    published.set(track.getSnapshot());
+                }
+            }
+        });
+        writer.start();
+        int checked = 0;
+        while (writer.isAlive()) {
+            TrackSnapshot snapshot = published.get();
+            if (snapshot == null) {
+                continue;
+            }
+            SegmentSnapshot segment = snapshot.getSegments().get(0);
+            for (int i = 0; i < segment.size(); i++) {
+                assertEquals(START_TIME + i * 1000L, segment.getTime(i));
+            }
+            checked++;
+        }
+        writer.join();
+        assertEquals(count, track.getSnapshot().getSize());
+        assertTrue(checked > 0);
+    }
+}
@@ -0,0 +1,254 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpatialIndexTest {
+
+    private static final long START = 1600000000000L;
+
+    /**
+     * Creates a parser with single waypoints and random walks as tracks, one of them crosses the 180th meridian.
+     */
+    private static SecureGPXParser createParser(Random random) {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        for (int i = 0; i < 50; i++) {
+            parser.getPoints().add(new WayPoint("wp" + i, 40 + random.nextDouble() * 20, random.nextDouble() * 20, START + i * 1000L, 5));
+        }
+        double[][] starts = {{50, 8}, {45, 12}, {-20, 179.5}};
+        for (int t = 0; t < starts.length; t++) {
+            Track track = new Track("track" + t);
+            parser.getTracks().put(track.getName(), track);
+            double lat = starts[t][0];
+            double lng = starts[t][1];
+            for (int s = 0; s < 3; s++) {
+                List<WayPoint> points = new ArrayList<WayPoint>();
+                for (int i = 0; i < 500; i++) {
+                    lat += (random.nextDouble() - 0.5) * 0.01;
+                    lng += (random.nextDouble() - 0.3) * 0.01;
+                    if (lng > 180) {
+                        lng -= 360;
+                    }
+                    points.add(new WayPoint(null, lat, lng, START + (s * 500 + i) * 1000L, 5));
+                }
+                track.addPoints(points);
+                track.startNewSegment();
+            }
+        }
+        parser.getHandler().clear();
+        return parser;
+    }
+
+    private static List<WayPoint> getAllLocations(SecureGPXParser parser) {
+        return new ArrayList<WayPoint>(new LocationIndex(parser));
+    }
+
+    private static double distance(WayPoint point, double lat, double lng) {
+        return WayPoint.calculateDistanceInKilometer(lat, lng, point.getLat(), point.getLng());
+    }
+
+    @Test
+    public void checkBoundingBox() {
+        SecureGPXParser parser = createParser(new Random(1));
+        SpatialIndex index = new SpatialIndex(new LocationIndex(parser));
+        List<WayPoint> all = getAllLocations(parser);
+        double[][] boxes = {{49.9, 7.9, 50.1, 8.2}, {40, 0, 60, 20}, {-21, 179, -19, -179}, {0, 0, 1, 1}};
+        for (double[] box : boxes) {
+            Set<WayPoint> expected = new HashSet<WayPoint>();
+            for (WayPoint point : all) {
+                if (point.getLat() >= box[0] && point.getLat() <= box[2] && SpatialIndex.containsLng(box[1], box[3], point.getLng())) {
+                    expected.add(point);
+                }
+            }
+            List<WayPoint> found = index.findInBoundingBox(box[0], box[1], box[2], box[3]);
+            assertEquals(expected.size(), found.size());
+            assertEquals(expected, new HashSet<WayPoint>(found));
+        }
+    }
+
+    @Test
+    public void checkRadius() {
+        SecureGPXParser parser = createParser(new Random(2));
+        SpatialIndex index = new SpatialIndex(new LocationIndex(parser));
+        List<WayPoint> all = getAllLocations(parser);
+        double[][] queries = {{50, 8, 1}, {45.05, 12.1, 5}, {-20, 180, 2}, {50, 8, 1000}};
+        for (double[] query : queries) {
+            Set<WayPoint> expected = new HashSet<WayPoint>();
+            for (WayPoint point : all) {
+                if (distance(point, query[0], query[1]) <= query[2]) {
+                    expected.add(point);
+                }
+            }
+            List<WayPoint> found = index.findInRadius(query[0], query[1], query[2]);
+            assertEquals(expected, new HashSet<WayPoint>(found));
+            for (int i = 1; i < found.size(); i++) {
+                assertTrue(distance(found.get(i - 1), query[0], query[1]) <= distance(found.get(i), query[0], query[1]));
+            }
+        }
+    }
+
+    @Test
+    public void checkNearest() {
+        SecureGPXParser parser = createParser(new Random(3));
+        SpatialIndex index = new SpatialIndex(new LocationIndex(parser));
+        List<WayPoint> all = getAllLocations(parser);
+        double[][] queries = {{50, 8}, {-20.1, -179.9}, {0, 0}, {89, 45}};
+        for (final double[] query : queries) {
+            List<Double> expected = new ArrayList<Double>();
+            for (WayPoint point : all) {
+                expected.add(distance(point, query[0], query[1]));
+            }
+            Collections.sort(expected);
+            List<WayPoint> found = index.findNearest(query[0], query[1], 25);
+            assertEquals(25, found.size());
+            for (int i = 0; i < found.size(); i++) {
+                assertEquals(expected.get(i), distance(found.get(i), query[0], query[1]), 1e-9);
+            }
+        }
+        assertEquals(all.size(), index.findNearest(50, 8, all.size() + 10).size());
+    }
+
+    @Test
+    public void checkIndex_updatedAfterEdits() {
+        SecureGPXParser parser = createParser(new Random(4));
+        SpatialIndex index = new SpatialIndex(new LocationIndex(parser));
+        assertEquals(0, index.findInRadius(0, 0, 10).size());
+        WayPoint appended = new WayPoint(null, 0.01, 0.01, START + 10000000L, 5);
+        parser.getTracks().get("track0").getCurrentSegment().addPoints(Collections.singletonList(appended));
+        List<WayPoint> found = index.findNearest(0, 0, 1);
+        assertEquals(1, found.size());
+        assertTrue(found.get(0) == appended);
+        assertEquals(1, index.findInBoundingBox(-1, -1, 1, 1).size());
+    }
+
+    private static void addTrackPoints(SecureGPXParser parser, int start, int count) {
+        long[] time = new long[count];
+        double[] lat = new double[count];
+        double[] lng = new double[count];
+        double[] accuracy = new double[count];
+        for (int i = 0; i < count; i++) {
+            time[i] = START + (start + i) * 1000L;
+            lat[i] = 50 + (start + i) * 0.001;
+            lng[i] = 8 + ((start + i) % 10) * 0.001;
+            accuracy[i] = 5;
+        }
+        parser.getHandler().processTrackpoints("track", time, lat, lng, accuracy, null, count);
+    }
+
+    @Test
+    public void checkSnapshot_queriedByOtherThreads() throws Exception {
+        final SecureGPXParser parser = new SecureGPXParser(new PoolBackend(2));
+        //Last block of the segment is not complete
+        addTrackPoints(parser, 0, 1000);
+        parser.whenProcessed().get();
+        List<WayPoint> all = getAllLocations(parser);
+        assertEquals(1000, all.size());
+        Set<WayPoint> expected = new HashSet<WayPoint>();
+        for (WayPoint point : all) {
+            if (point.getLat() >= 50.5 && point.getLat() <= 51.1) {
+                expected.add(point);
+            }
+        }
+        assertEquals(expected, new HashSet<WayPoint>(parser.getHandler().getLocationsInBoundingBox(50.5, 7, 51.1, 9)));
+
+        //Rows appended to the last block are found, the former snapshot keeps its rows
+        GPXSnapshot former = parser.getSnapshot();
+        addTrackPoints(parser, 1000, 30);
+        parser.whenProcessed().get();
+        assertEquals(1000, former.getSpatialIndex().findInBoundingBox(49, 7, 52, 9).size());
+        assertEquals(1030, parser.getHandler().getLocationsInBoundingBox(49, 7, 52, 9).size());
+        assertEquals(1, parser.getHandler().getNearestLocations(51.029, 8.009, 1).size());
+        assertEquals(51.029, parser.getHandler().getNearestLocations(51.029, 8.009, 1).get(0).getLat(), 1e-9);
+
+        //Queries while the background thread adds points
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int n = 0; n < 50; n++) {
+                            int size = parser.getHandler().getLocationsInBoundingBox(49, 7, 90, 9).size();
+                            assertTrue(size >= 1030);
+                            assertEquals(10, parser.getHandler().getNearestLocations(50, 8, 10).size());
+                            assertTrue(parser.getHandler().getLocationsInRadius(50, 8, 1).size() > 0);
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (int n = 0; n < 20; n++) {
+            addTrackPoints(parser, 1030 + n * 100, 100);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        parser.whenProcessed().get();
+        assertEquals(3030, parser.getHandler().getLocationsInBoundingBox(49, 7, 90, 9).size());
+    }
+
+    @Test
+    public void checkSnapshot_blockBoundsCopiedOnWrite() {
+        TrackSegment segment = new TrackSegment();
+        List<WayPoint> points = new ArrayList<WayPoint>();
+        for (int i = 0; i < 3 * TrackSegment.BLOCK_SIZE; i++) {
+            points.add(new WayPoint(null, 50 + i * 0.001, 8, START + i * 1000L, 5));
+        }
+        segment.addPoints(points);
+        SegmentSnapshot snapshot = segment.getSnapshot();
+        double[] before = new double[4 * snapshot.getBlockCount()];
+        for (int block = 0; block < snapshot.getBlockCount(); block++) {
+            snapshot.getBlockBounds(block, before, 4 * block);
+        }
+        //Removed rows change the boxes of the segment, not of the snapshot
+        segment.removeRange(0, TrackSegment.BLOCK_SIZE + 10);
+        assertEquals(2, segment.getBlockCount());
+        double[] changed = new double[4];
+        segment.getBlockBounds(0, changed, 0);
+        assertEquals(50 + (TrackSegment.BLOCK_SIZE + 10) * 0.001, changed[0], 1e-9);
+        double[] after = new double[4 * snapshot.getBlockCount()];
+        for (int block = 0; block < snapshot.getBlockCount(); block++) {
+            snapshot.getBlockBounds(block, after, 4 * block);
+        }
+        for (int i = 0; i < before.length; i++) {
+            assertEquals(before[i], after[i], 0);
+        }
+        assertEquals(50, after[0], 1e-9);
+    }
+
+    @Test
+    public void checkMinDistance_lowerBound() {
+        Random random = new Random(5);
+        for (int i = 0; i < 10000; i++) {
+            double lat = random.nextDouble() * 180 - 90;
+            double lng = random.nextDouble() * 360 - 180;
+            double minLat = random.nextDouble() * 170 - 90;
+            double maxLat = Math.min(90, minLat + random.nextDouble() * 20);
+            double minLng = random.nextDouble() * 340 - 180;
+            double maxLng = Math.min(180, minLng + random.nextDouble() * 20);
+            double bound = SpatialIndex.getMinDistance(lat, lng, minLat, maxLat, minLng, maxLng);
+            for (int j = 0; j < 20; j++) {
+                double pointLat = minLat + random.nextDouble() * (maxLat - minLat);
+                double pointLng = minLng + random.nextDouble() * (maxLng - minLng);
+                assertTrue(bound <= WayPoint.calculateDistanceInKilometer(lat, lng, pointLat, pointLng) + 1e-9);
+            }
+        }
+    }
+}
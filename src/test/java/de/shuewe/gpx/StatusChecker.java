@@ -67,6 +67,6 @@ public class StatusChecker implements SecureGPXParser.GPXValidationListener, Sec
     }
 
     public boolean isThreadReady(){
-        return GPXThread.getInstance().getHandler().getLooper().getQueue().isIdle();
+        return SecureGPXParser.getDefaultBackend().isIdle();
     }
 }
\ No newline at end of file
@@ -0,0 +1,23 @@
+package de.shuewe.gpx;
+
+/**
+ * Points shared by the tests.
+ */
+public class TestPoints {
+
+    //Date of the first point in epoch millis
+    public static final long START_TIME = 1600000000000L;
+
+    private TestPoints() {
+    }
+
+    /**
+     * Creates a point of a straight track to the north, one point per second about 1.1 m apart.
+     *
+     * @param i index of point
+     * @return WayPoint
+     */
+    public static WayPoint getPoint(int i) {
+        return new WayPoint(null, 50 + i * 0.00001, 8, START_TIME + i * 1000L, 5);
+    }
+}
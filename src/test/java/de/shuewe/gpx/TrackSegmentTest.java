@@ -0,0 +1,362 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static de.shuewe.gpx.TestPoints.START_TIME;
+import static de.shuewe.gpx.TestPoints.getPoint;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TrackSegmentTest {
+
+    @Test
+    public void checkAddPoints_outOfOrder() {
+        TrackSegment segment = new TrackSegment();
+        segment.addPoints(Arrays.asList(getPoint(2), getPoint(4)));
+        WayPoint early = getPoint(1);
+        segment.addPoints(Arrays.asList(getPoint(3), early));
+        assertEquals(4, segment.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(START_TIME + (i + 1) * 1000L, segment.getTime(i));
+        }
+        assertSame(early, segment.getFirst());
+        assertTrue(segment.getFirst().isStart());
+        assertFalse(segment.get(1).isStart());
+    }
+
+    @Test
+    public void checkAddPoints_sequential() {
+        int count = 100000;
+        Track track = new Track("sequential");
+        for (int i = 0; i < count; i++) {
+            WayPoint point = getPoint(i);
+            point.setParentTrack(track);
+            track.addPoints(Collections.singletonList(point));
+        }
+        assertEquals(count, track.getSize());
+        TrackSegment segment = track.getCurrentSegment();
+        assertTrue(segment.getFirst().isStart());
+        assertEquals(START_TIME + (count - 1) * 1000L, segment.getTime(count - 1));
+    }
+
+    @Test
+    public void checkAddPoints_sequentialBenchmark() {
+        Benchmarks.assumeEnabled();
+        int count = 1000000;
+        Track track = new Track("benchmark");
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            WayPoint point = getPoint(i);
+            point.setParentTrack(track);
+            track.addPoints(Collections.singletonList(point));
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%d sequential appends: %d ms (%d ns/point)", count, elapsed / 1000000, elapsed / count));
+    }
+
+    @Test
+    public void checkStatistics_incremental() {
+        TrackSegment segment = new TrackSegment();
+        for (int i = 0; i < 3000; i++) {
+            //1.1m per second, every 10th point a pause
+            WayPoint point = getPoint(i % 10 == 0 ? i - 1 : i);
+            point = new WayPoint(null, point.getLat(), point.getLng(), START_TIME + i * 1000L, 5);
+            point.setAltitude(100.0 + (i % 20 < 10 ? i % 20 : 20 - i % 20));
+            segment.addPoints(Collections.singletonList(point));
+            if (i == 1500) {
+                assertEquals(1501, segment.getStatistics().getPointCount());
+            }
+        }
+        TrackStatistics stats = segment.getStatistics();
+        TrackStatistics fresh = segment.clone().getStatistics();
+        assertEquals(fresh.getDistance(), stats.getDistance(), 1e-9);
+        assertEquals(fresh.getElevationGain(), stats.getElevationGain(), 1e-9);
+        assertEquals(fresh.getMovingTime(), stats.getMovingTime());
+        assertEquals(150 * 10, stats.getElevationGain(), 1e-9);
+        assertEquals(149 * 10 + 9, stats.getElevationLoss(), 1e-9);
+        assertEquals(2999 * 1000L, stats.getDuration());
+        assertEquals((2999 - 299) * 1000L, stats.getMovingTime());
+        assertEquals(3, stats.getSplits().length);
+        assertEquals(50 - 0.00001, stats.getBoundingBox()[0], 1e-9);
+
+        segment.get(0).setAltitude(50.0);
+        assertEquals(150 * 10 + 50, segment.getStatistics().getElevationGain(), 1e-9);
+    }
+
+    @Test
+    public void checkViews_identity() {
+        TrackSegment segment = new TrackSegment();
+        WayPoint added = getPoint(0);
+        segment.addPoints(Arrays.asList(added, getPoint(1)));
+        assertSame(added, segment.get(0));
+        assertSame(segment.get(1), segment.get(1));
+        assertSame(segment.get(1), segment.getPoints().get(1));
+        assertEquals(1, segment.indexOf(segment.get(1)));
+    }
+
+    @Test
+    public void checkViews_surviveEdits() {
+        TrackSegment segment = new TrackSegment();
+        segment.addPoints(Arrays.asList(getPoint(2), getPoint(4), getPoint(6)));
+        WayPoint view = segment.get(1);
+        view.setName("four");
+
+        //Appended and merged points move the view to its new row
+        segment.addPoints(Collections.singletonList(getPoint(8)));
+        segment.addPoints(Arrays.asList(getPoint(1), getPoint(3)));
+        assertEquals(6, segment.size());
+        assertSame(view, segment.get(3));
+        assertEquals(START_TIME + 4000L, view.getTime());
+        assertEquals("four", segment.get(3).getName());
+
+        //Removed rows before the view
+        segment.removeRange(0, 2);
+        assertSame(view, segment.get(1));
+        assertEquals(START_TIME + 4000L, view.getTime());
+
+        //Removed view keeps its data
+        WayPoint removed = segment.get(0);
+        segment.removeRange(0, 2);
+        assertEquals(START_TIME + 3000L, removed.getTime());
+        assertEquals("four", view.getName());
+        assertEquals(-1, segment.indexOf(view));
+        assertEquals(2, segment.size());
+        assertEquals(START_TIME + 6000L, segment.getTime(0));
+    }
+
+    @Test
+    public void checkViews_moveRows() {
+        TrackSegment segment = new TrackSegment();
+        segment.addPoints(Arrays.asList(getPoint(0), getPoint(1), getPoint(2), getPoint(3)));
+        WayPoint kept = segment.get(1);
+        WayPoint moved = segment.get(2);
+        moved.setName("two");
+
+        TrackSegment tail = segment.moveRows(2);
+        assertEquals(2, segment.size());
+        assertEquals(2, tail.size());
+        assertSame(kept, segment.get(1));
+        assertSame(moved, tail.get(0));
+        assertEquals(0, tail.indexOf(moved));
+        assertEquals(-1, segment.indexOf(moved));
+        assertEquals("two", moved.getName());
+        assertTrue(moved.isStart());
+        assertEquals(START_TIME + 3000L, tail.get(1).getTime());
+    }
+
+    @Test
+    public void checkViews_movedToOtherTrack() throws Exception {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        Track track = new Track("source");
+        track.addPoints(Arrays.asList(getPoint(0), getPoint(1), getPoint(2)));
+        track.startNewSegment();
+        track.addPoints(Arrays.asList(getPoint(5), getPoint(6)));
+        parser.getTracks().put("source", track);
+        WayPoint first = track.getSegments().get(0).get(1);
+        WayPoint split = track.getSegments().get(0).get(2);
+        WayPoint later = track.getSegments().get(1).get(1);
+
+        parser.getHandler().changeTrackFromWaypoint(split, "target");
+        parser.whenProcessed().get();
+        Track target = parser.getTracks().get("target");
+        assertEquals(2, track.getSize());
+        assertEquals(3, target.getSize());
+        assertSame(track, first.getParentTrack());
+        //Moved points are the same objects, now part of the target track
+        assertSame(target, split.getParentTrack());
+        assertSame(target, later.getParentTrack());
+        assertSame(split, target.getSegments().get(0).get(0));
+        assertSame(later, target.getSegments().get(1).get(1));
+        assertTrue(split.isStart());
+
+        //Moving the first point of a track moves the whole track
+        parser.getHandler().changeTrackFromWaypoint(split, "other");
+        parser.whenProcessed().get();
+        assertFalse(parser.getTracks().containsKey("target"));
+        assertSame(parser.getTracks().get("other"), later.getParentTrack());
+        assertEquals(3, parser.getTracks().get("other").getSize());
+    }
+
+    @Test
+    public void checkPoints_readOnlyView() {
+        TrackSegment segment = new TrackSegment();
+        segment.addPoints(Arrays.asList(getPoint(0), getPoint(1)));
+        List<? extends WayPoint> points = segment.getPoints();
+        try {
+            points.remove(0);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        segment.addPoints(Collections.singletonList(getPoint(2)));
+        assertEquals(3, points.size());
+        assertSame(segment.get(2), points.get(2));
+
+        //Copies are independent of the segment
+        TrackSegment copy = segment.clone();
+        TrackSegment part = segment.subList(1, 3);
+        assertFalse(copy.get(0) == segment.get(0));
+        assertEquals(2, part.size());
+        segment.get(1).setName("changed");
+        assertEquals(null, copy.get(1).getName());
+        assertEquals(null, part.get(0).getName());
+        assertEquals(START_TIME + 1000L, part.get(0).getTime());
+    }
+
+    @Test
+    public void checkIndexOf_bySegmentAndRow() {
+        Track track = new Track("track");
+        for (int i = 0; i < 100; i++) {
+            //Two points per second
+            track.addPoints(Collections.singletonList(new WayPoint(null, 50 + i * 0.00001, 8, START_TIME + i * 500L, 5)));
+        }
+        track.startNewSegment();
+        track.addPoints(Collections.singletonList(getPoint(1000)));
+        TrackSegment segment = track.getSegments().get(0);
+        for (int i = 0; i < segment.size(); i++) {
+            WayPoint view = segment.get(i);
+            assertEquals(i, segment.indexOf(view));
+            assertEquals(0, track.indexOfSegment(view));
+            //Equal points are found by binary search over the date
+            assertEquals(i, segment.indexOf(view.copy()));
+        }
+        assertEquals(1, track.indexOfSegment(track.getSegments().get(1).get(0)));
+        assertEquals(1, track.indexOfSegment(getPoint(1000)));
+
+        //Same date in seconds, but other position or name
+        WayPoint other = segment.get(10).copy();
+        other.setName("other");
+        assertEquals(-1, segment.indexOf(other));
+        assertEquals(-1, segment.indexOf(new WayPoint(null, 51, 8, START_TIME + 5000L, 5)));
+        assertEquals(-1, track.indexOfSegment(new WayPoint(null, 51, 8, START_TIME + 5000L, 5)));
+        assertEquals(-1, track.getSegments().get(1).indexOf(segment.get(0)));
+    }
+
+    @Test
+    public void checkPositionAt_interpolation() {
+        Track track = new Track("track");
+        WayPoint first = new WayPoint(null, 50, 8, START_TIME, 4);
+        first.setAltitude(100.0);
+        WayPoint second = new WayPoint(null, 50.01, 8.02, START_TIME + 10000, 8);
+        second.setAltitude(200.0);
+        track.addPoints(Arrays.asList(first, second));
+        track.startNewSegment();
+        track.addPoints(Collections.singletonList(new WayPoint(null, 51, 9, START_TIME + 60000, 5)));
+
+        WayPoint position = track.getPositionAt(START_TIME + 2500);
+        assertEquals(50.0025, position.getLat(), 1e-9);
+        assertEquals(8.005, position.getLng(), 1e-9);
+        assertEquals(5, position.getAccuracy(), 1e-9);
+        assertEquals(125, position.getAltitude(), 1e-9);
+        assertEquals(START_TIME + 2500, position.getTime());
+        assertSame(track, position.getParentTrack());
+        //Exact times of points
+        assertEquals(50.01, track.getPositionAt(START_TIME + 10000).getLat(), 0);
+        assertEquals(51, track.getPositionAt(START_TIME + 60000).getLat(), 0);
+
+        //No interpolation across the gap between segments or outside the track
+        assertNull(track.getPositionAt(START_TIME + 30000));
+        assertNull(track.getPositionAt(START_TIME - 1));
+        assertNull(track.getPositionAt(START_TIME + 60001));
+        assertNull(track.getPositionAt(GPXElement.NO_TIME));
+    }
+
+    @Test
+    public void checkPositionAt_duplicateTimes() {
+        TrackSegment segment = new TrackSegment();
+        segment.addPoints(Arrays.asList(new WayPoint(null, 50, 8, START_TIME, 5),
+                new WayPoint(null, 50.1, 8, START_TIME + 1000, 5),
+                new WayPoint(null, 50.2, 8, START_TIME + 1000, 5),
+                new WayPoint(null, 50.4, 8, START_TIME + 2000, 5)));
+        //Exact time of duplicates gives the first of them
+        assertEquals(50.1, segment.getPositionAt(START_TIME + 1000).getLat(), 0);
+        //Before and after the duplicates the nearest of them is used
+        assertEquals(50.05, segment.getPositionAt(START_TIME + 500).getLat(), 1e-9);
+        assertEquals(50.3, segment.getPositionAt(START_TIME + 1500).getLat(), 1e-9);
+    }
+
+    @Test
+    public void checkPositionAt_antimeridian() {
+        TrackSegment segment = new TrackSegment();
+        segment.addPoints(Arrays.asList(new WayPoint(null, -20, 179.9, START_TIME, 5),
+                new WayPoint(null, -20, -179.9, START_TIME + 4000, 5)));
+        assertEquals(179.95, segment.getPositionAt(START_TIME + 1000).getLng(), 1e-9);
+        assertEquals(180, Math.abs(segment.getPositionAt(START_TIME + 2000).getLng()), 1e-9);
+        assertEquals(-179.95, segment.getPositionAt(START_TIME + 3000).getLng(), 1e-9);
+
+        segment = new TrackSegment();
+        segment.addPoints(Arrays.asList(new WayPoint(null, -20, -179.9, START_TIME, 5),
+                new WayPoint(null, -20, 179.9, START_TIME + 4000, 5)));
+        assertEquals(-179.95, segment.getPositionAt(START_TIME + 1000).getLng(), 1e-9);
+        assertEquals(179.95, segment.getPositionAt(START_TIME + 3000).getLng(), 1e-9);
+    }
+
+    /**
+     * Checks the cumulative distances of a segment against the sum of the distances of its points.
+     */
+    private static void assertDistances(TrackSegment segment) {
+        double sum = 0;
+        for (int i = 1; i < segment.size(); i++) {
+            WayPoint prev = segment.get(i - 1);
+            WayPoint point = segment.get(i);
+            sum += WayPoint.calculateDistanceInKilometer(prev.getLat(), prev.getLng(), point.getLat(), point.getLng());
+            assertEquals(sum, segment.getDistanceInKilometer(0, i), 1e-9);
+        }
+        assertEquals(sum, segment.getDistanceInKilometer(), 1e-9);
+    }
+
+    @Test
+    public void checkDistance_afterEdits() {
+        TrackSegment segment = new TrackSegment();
+        for (int i = 0; i < 200; i += 2) {
+            segment.addPoints(Collections.singletonList(new WayPoint(null, 50 + (i % 7) * 0.001, 8 + i * 0.001, START_TIME + i * 1000L, 5)));
+        }
+        assertDistances(segment);
+
+        //Removed range in the middle and at the end
+        segment.removeRange(40, 60);
+        assertDistances(segment);
+        segment.removeRange(segment.size() - 5, segment.size());
+        assertDistances(segment);
+
+        //Out of order inserts reorder the rows
+        segment.addPoints(Arrays.asList(new WayPoint(null, 50.5, 8.1, START_TIME + 11000L, 5),
+                new WayPoint(null, 49.5, 8.2, START_TIME + 1000L, 5)));
+        assertDistances(segment);
+        segment.addPoints(Collections.singletonList(new WayPoint(null, 50, 7, START_TIME - 1000L, 5)));
+        assertDistances(segment);
+        assertEquals(-segment.getDistanceInKilometer(0, 10), segment.getDistanceInKilometer(10, 0), 0);
+    }
+
+    @Test
+    public void checkIndexAtDistance() {
+        TrackSegment segment = new TrackSegment();
+        assertEquals(-1, segment.indexAtDistance(0));
+        for (int i = 0; i < 100; i++) {
+            segment.addPoints(Collections.singletonList(getPoint(i * 100)));
+        }
+        //About 111 m between points
+        double step = segment.getDistanceInKilometer(0, 1);
+        assertEquals(0, segment.indexAtDistance(0));
+        assertEquals(0, segment.indexAtDistance(-1));
+        assertEquals(10, segment.indexAtDistance(segment.getDistanceInKilometer(0, 10)));
+        assertEquals(11, segment.indexAtDistance(segment.getDistanceInKilometer(0, 10) + step / 2));
+        assertEquals(99, segment.indexAtDistance(segment.getDistanceInKilometer()));
+        assertEquals(-1, segment.indexAtDistance(segment.getDistanceInKilometer() + step / 2));
+        assertSame(segment.get(11), segment.getPointAtDistance(segment.getDistanceInKilometer(0, 10) + step / 2));
+        assertNull(segment.getPointAtDistance(1000));
+
+        //Distances are updated after edits
+        segment.removeRange(0, 50);
+        assertEquals(10, segment.indexAtDistance(segment.getDistanceInKilometer(0, 10)));
+        assertEquals(-1, segment.indexAtDistance(step * 50));
+    }
+}
@@ -0,0 +1,154 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrackSimplifierTest {
+
+    private static final double RADIUS = WayPoint.AVERAGE_RADIUS_OF_EARTH_KM * 1000;
+
+    /**
+     * Creates a recorded track: one point per second at cycling speed with slowly changing heading and GPS noise.
+     */
+    private static double[][] createTrack(int count, long seed) {
+        Random random = new Random(seed);
+        double[] lat = new double[count];
+        double[] lng = new double[count];
+        double heading = 0;
+        double posLat = 50;
+        double posLng = 8;
+        for (int i = 0; i < count; i++) {
+            heading += random.nextGaussian() * 0.05;
+            double meter = 5 + random.nextGaussian();
+            posLat += Math.toDegrees(meter * Math.cos(heading) / RADIUS);
+            posLng += Math.toDegrees(meter * Math.sin(heading) / (RADIUS * Math.cos(Math.toRadians(posLat))));
+            lat[i] = posLat + Math.toDegrees(random.nextGaussian() * 2 / RADIUS);
+            lng[i] = posLng + Math.toDegrees(random.nextGaussian() * 2 / (RADIUS * Math.cos(Math.toRadians(posLat))));
+        }
+        return new double[][]{lat, lng};
+    }
+
+    @Test
+    public void checkDouglasPeucker_tolerance() {
+        int count = 20000;
+        double tolerance = 10;
+        double[][] track = createTrack(count, 1);
+        int[] rows = TrackSimplifier.simplify(track[0], track[1], count, tolerance, TrackSimplifier.Method.DOUGLAS_PEUCKER);
+        assertEquals(0, rows[0]);
+        assertEquals(count - 1, rows[rows.length - 1]);
+        assertTrue(rows.length < count / 4);
+        double scaleX = RADIUS * Math.cos(Math.toRadians(track[0][count / 2]));
+        for (int j = 1; j < rows.length; j++) {
+            int start = rows[j - 1];
+            int end = rows[j];
+            double x1 = Math.toRadians(track[1][start]) * scaleX;
+            double y1 = Math.toRadians(track[0][start]) * RADIUS;
+            double dx = Math.toRadians(track[1][end]) * scaleX - x1;
+            double dy = Math.toRadians(track[0][end]) * RADIUS - y1;
+            for (int i = start + 1; i < end; i++) {
+                double px = Math.toRadians(track[1][i]) * scaleX - x1;
+                double py = Math.toRadians(track[0][i]) * RADIUS - y1;
+                double t = Math.max(0, Math.min(1, (px * dx + py * dy) / (dx * dx + dy * dy)));
+                //Small tolerance for the different projection latitude
+                assertTrue(Math.hypot(px - t * dx, py - t * dy) <= tolerance * 1.01);
+            }
+        }
+    }
+
+    @Test
+    public void checkSimplified_keepsOriginalPoints() {
+        double[][] track = createTrack(1000, 2);
+        List<WayPoint> points = new ArrayList<WayPoint>();
+        for (int i = 0; i < 1000; i++) {
+            points.add(new WayPoint(null, track[0][i], track[1][i], i * 1000L, 5));
+        }
+        TrackSegment segment = new TrackSegment();
+        segment.addPoints(points);
+        for (TrackSimplifier.Method method : TrackSimplifier.Method.values()) {
+            List<WayPoint> simplified = segment.getSimplified(20, method);
+            assertTrue(simplified.size() < 1000 && simplified.size() >= 2);
+            assertTrue(simplified.get(0) == segment.getFirst());
+            assertTrue(simplified.get(simplified.size() - 1) == segment.getLast());
+        }
+        assertEquals(1000, segment.size());
+    }
+
+    /**
+     * Creates a track of count points in the given number of segments.
+     */
+    private static Track createSegmentedTrack(String name, int count, int segments) {
+        Track track = new Track(name);
+        for (int s = 0; s < segments; s++) {
+            double[][] coordinates = createTrack(count / segments, s);
+            List<WayPoint> points = new ArrayList<WayPoint>();
+            for (int i = 0; i < coordinates[0].length; i++) {
+                points.add(new WayPoint(null, coordinates[0][i], coordinates[1][i], (s * count + i) * 1000L, 5));
+            }
+            track.startNewSegment();
+            track.addPoints(points);
+        }
+        return track;
+    }
+
+    @Test
+    public void checkSimplify_parallelSameAsSequential() throws Exception {
+        int count = 40000;
+        Track track = createSegmentedTrack("parallel", count, 8);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (TrackSimplifier.Method method : TrackSimplifier.Method.values()) {
+                int lastKept = count + 1;
+                for (double tolerance : new double[]{2, 10, 50}) {
+                    List<List<WayPoint>> sequential = track.getSimplified(tolerance, method);
+                    List<List<WayPoint>> parallel = track.getSimplified(tolerance, method, executor);
+                    assertEquals(sequential.size(), parallel.size());
+                    int kept = 0;
+                    for (int s = 0; s < sequential.size(); s++) {
+                        assertEquals(sequential.get(s), parallel.get(s));
+                        kept += sequential.get(s).size();
+                    }
+                    //Higher tolerance keeps fewer points
+                    assertTrue(kept < lastKept);
+                    lastKept = kept;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void checkSimplify_benchmark() throws Exception {
+        Benchmarks.assumeEnabled();
+        int count = 200000;
+        Track track = createSegmentedTrack("benchmark", count, 8);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (TrackSimplifier.Method method : TrackSimplifier.Method.values()) {
+                for (double tolerance : new double[]{2, 10, 50}) {
+                    long start = System.nanoTime();
+                    int kept = 0;
+                    for (List<WayPoint> simplified : track.getSimplified(tolerance, method)) {
+                        kept += simplified.size();
+                    }
+                    long sequential = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    track.getSimplified(tolerance, method, executor);
+                    long parallel = System.nanoTime() - start;
+                    System.out.println(String.format("%s %.0fm: %d of %d points kept (%.1f%%), sequential %d ms, parallel %d ms",
+                            method, tolerance, kept, count, 100.0 * kept / count, sequential / 1000000, parallel / 1000000));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package de.shuewe.gpx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WayPointTest {
+
+    private static final long START_TIME = 1600000000000L;
+
+    @Test
+    public void checkNoTime_sentinel() {
+        WayPoint point = new WayPoint("noTime", 50, 8, (Date) null, 5);
+        assertFalse(point.hasTime());
+        assertEquals(GPXElement.NO_TIME, point.getTime());
+        assertNull(point.getDate());
+        assertFalse(point.copy().hasTime());
+
+        //Dates before 1970 are no sentinel
+        WayPoint early = new WayPoint(null, 50, 8, -1000L, 5);
+        assertTrue(early.hasTime());
+        assertEquals(-1000L, early.getDate().getTime());
+
+        WayPoint dated = new WayPoint(null, 50, 8, new Date(START_TIME), 5);
+        assertEquals(START_TIME, dated.getTime());
+        assertEquals(new Date(START_TIME), dated.getDate());
+        //getDate creates a new instance, changes of it do not change the point
+        dated.getDate().setTime(0);
+        assertEquals(START_TIME, dated.getTime());
+    }
+
+    @Test
+    public void checkNoTime_equals() {
+        WayPoint noTime = new WayPoint(null, 50, 8, GPXElement.NO_TIME, 5);
+        WayPoint zero = new WayPoint(null, 50, 8, 0L, 5);
+        assertFalse(noTime.equals(zero));
+        assertFalse(zero.equals(noTime));
+        assertTrue(noTime.equals(new WayPoint(null, 50, 8, (Date) null, 5)));
+        assertEquals(noTime.hashCode(), new WayPoint(null, 50, 8, (Date) null, 5).hashCode());
+    }
+
+    @Test
+    public void checkNoTime_sortOrder() {
+        WayPoint noTime = new WayPoint("noTime", 50, 8, GPXElement.NO_TIME, 5);
+        WayPoint early = new WayPoint("early", 50, 8, -1000L, 5);
+        WayPoint late = new WayPoint("late", 50, 8, START_TIME, 5);
+        //Points without date are sorted like Date(0)
+        List<WayPoint> points = new ArrayList<WayPoint>(Arrays.asList(late, noTime, early));
+        Collections.sort(points);
+        assertEquals(Arrays.asList(early, noTime, late), points);
+        points = new ArrayList<WayPoint>(Arrays.asList(late, noTime, early));
+        Collections.sort(points, WayPoint.TIME_COMPARATOR);
+        assertEquals(Arrays.asList(early, noTime, late), points);
+        assertEquals(0, noTime.compareTo(new WayPoint(null, 50, 8, 0L, 5)));
+    }
+
+    @Test
+    public void checkNoTime_segmentColumn() {
+        TrackSegment segment = new TrackSegment();
+        segment.addPoints(Arrays.asList(new WayPoint(null, 50, 8, GPXElement.NO_TIME, 5),
+                new WayPoint(null, 50.001, 8, START_TIME, 5)));
+        assertEquals(GPXElement.NO_TIME, segment.getTime(0));
+        assertFalse(segment.get(0).hasTime());
+        assertNull(segment.get(0).getDate());
+        assertEquals(START_TIME, segment.get(1).getTime());
+        //Points without date get no hash
+        assertNull(segment.get(0).generateHashBytes(null, false));
+    }
+
+    @Test
+    public void checkHashCode_consistentWithEquals() {
+        //Dates are compared in seconds
+        WayPoint point = new WayPoint(null, 50, 8, START_TIME + 100, 5);
+        WayPoint sameSecond = new WayPoint(null, 50, 8, START_TIME + 900, 5);
+        assertTrue(point.equals(sameSecond));
+        assertEquals(point.hashCode(), sameSecond.hashCode());
+        assertFalse(point.equals(new WayPoint(null, 50, 8, START_TIME + 1000, 5)));
+        WayPoint negative = new WayPoint(null, 50, 8, -1500L, 5);
+        assertTrue(negative.equals(new WayPoint(null, 50, 8, -1001L, 5)));
+        assertEquals(negative.hashCode(), new WayPoint(null, 50, 8, -1001L, 5).hashCode());
+        assertFalse(negative.equals(new WayPoint(null, 50, 8, -1000L, 5)));
+
+        WayPoint zero = new WayPoint(null, 0.0, 0.0, START_TIME, 5);
+        WayPoint negativeZero = new WayPoint(null, -0.0, -0.0, START_TIME, 5);
+        assertTrue(zero.equals(negativeZero));
+        assertEquals(zero.hashCode(), negativeZero.hashCode());
+
+        //The name is compared by equals, but changing it keeps the hash code
+        int hash = point.hashCode();
+        point.setName("renamed");
+        assertEquals(hash, point.hashCode());
+        assertFalse(point.equals(sameSecond));
+
+        //Views and detached copies
+        TrackSegment segment = new TrackSegment();
+        segment.addPoints(Collections.singletonList(new WayPoint(null, 50, 8, START_TIME, 5)));
+        WayPoint view = segment.get(0);
+        WayPoint copy = view.copy();
+        assertTrue(view.equals(copy));
+        assertEquals(view.hashCode(), copy.hashCode());
+        Set<WayPoint> set = new HashSet<WayPoint>();
+        set.add(view);
+        assertTrue(set.contains(copy));
+    }
+}
@@ -0,0 +1,107 @@
+package de.shuewe.gpx;
+
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip through the xmlpull implementations of Android (provided by Robolectric) and the StAX based
+ * implementations of the plain JVM. Both have to write the same bytes, otherwise files change when they are
+ * saved on the other platform.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class XmlPlatformTest {
+
+    private static final long START = 1600000000000L;
+
+    @After
+    public void tearDown() {
+        GPXPlatform.setXmlPull(GPXPlatform.ANDROID);
+    }
+
+    private static SecureGPXParser createParser() throws Exception {
+        SecureGPXParser parser = new SecureGPXParser(new PoolBackend(1));
+        int count = 20;
+        long[] time = new long[count];
+        double[] lat = new double[count];
+        double[] lng = new double[count];
+        double[] accuracy = new double[count];
+        double[] alt = new double[count];
+        for (int i = 0; i < count; i++) {
+            time[i] = START + i * 1000L;
+            lat[i] = 50 + i * 0.0001;
+            lng[i] = 8 - i * 0.0001;
+            accuracy[i] = 5;
+            alt[i] = 100 + i;
+        }
+        parser.getHandler().processWaypoint("Fish & Chips <3 \"here\"", 50.5, 8.5, 10, 120);
+        parser.getHandler().processTrackpoints("track & more", time, lat, lng, accuracy, alt, count);
+        parser.whenProcessed().get();
+        return parser;
+    }
+
+    private static byte[] write(SecureGPXParser parser, boolean xmlPull) {
+        GPXPlatform.setXmlPull(xmlPull);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        parser.write(out);
+        return out.toByteArray();
+    }
+
+    private static SecureGPXParser read(byte[] document, boolean xmlPull) throws Exception {
+        GPXPlatform.setXmlPull(xmlPull);
+        SecureGPXParser res = new SecureGPXParser(new PoolBackend(1));
+        res.initAsync(new ByteArrayInputStream(document)).get();
+        return res;
+    }
+
+    @Test
+    public void checkPlatform_selectable() throws IOException {
+        GPXPlatform.setXmlPull(true);
+        assertTrue(GPXPlatform.newReader(new ByteArrayInputStream("<gpx />".getBytes())) instanceof PullXmlReader);
+        assertTrue(GPXPlatform.newWriter(new StringWriter()) instanceof SerializerXmlWriter);
+        GPXPlatform.setXmlPull(false);
+        assertTrue(GPXPlatform.newReader(new ByteArrayInputStream("<gpx />".getBytes())) instanceof StaxXmlReader);
+        assertTrue(GPXPlatform.newWriter(new StringWriter()) instanceof StreamXmlWriter);
+    }
+
+    @Test
+    public void checkRoundTrip_sameBytes() throws Exception {
+        SecureGPXParser parser = createParser();
+        byte[] pull = write(parser, true);
+        byte[] stax = write(parser, false);
+        assertEquals(new String(pull, "UTF-8"), new String(stax, "UTF-8"));
+        assertTrue(Arrays.equals(pull, stax));
+
+        List<? extends WayPoint> expected = parser.getHandler().getLocations();
+        for (boolean readPull : new boolean[]{true, false}) {
+            SecureGPXParser reloaded = read(stax, readPull);
+            assertTrue(reloaded.getHandler().requestValidation().get());
+            List<? extends WayPoint> locations = reloaded.getHandler().getLocations();
+            assertEquals(expected.size(), locations.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertTrue(expected.get(i).equals(locations.get(i)));
+                assertEquals(expected.get(i).getHash(), locations.get(i).getHash());
+            }
+            assertTrue(reloaded.getTracks().containsKey("track & more"));
+
+            //Documents read by either reader are written the same by both writers
+            assertTrue(Arrays.equals(stax, write(reloaded, true)));
+            assertTrue(Arrays.equals(stax, write(reloaded, false)));
+        }
+    }
+}